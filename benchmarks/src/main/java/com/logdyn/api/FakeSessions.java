@@ -0,0 +1,153 @@
+package com.logdyn.api;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory {@link Session}s for benchmarking without a websocket container.
+ * Every send completes immediately and only counts the bytes it was given.
+ */
+final class FakeSessions
+{
+    /** Total characters or bytes "sent" by every fake session */
+    static final AtomicLong SENT = new AtomicLong();
+
+    private static final Future<Void> DONE;
+
+    static
+    {
+        final FutureTask<Void> done = new FutureTask<>(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // NOOP
+            }
+        }, null);
+        done.run();
+        DONE = done;
+    }
+
+    private FakeSessions()
+    {
+        super();
+    }
+
+    /**
+     * @param count the number of sessions to create
+     * @return a list of new fake sessions
+     */
+    static List<Session> create(final int count)
+    {
+        final List<Session> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            result.add(FakeSessions.create(Integer.toString(i)));
+        }
+        return result;
+    }
+
+    /**
+     * @param id the id of the session
+     * @return a new fake session
+     */
+    static Session create(final String id)
+    {
+        final RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+                FakeSessions.class.getClassLoader(),
+                new Class<?>[] {RemoteEndpoint.Async.class},
+                new RemoteHandler());
+        return (Session) Proxy.newProxyInstance(
+                FakeSessions.class.getClassLoader(),
+                new Class<?>[] {Session.class},
+                new SessionHandler(id, remote));
+    }
+
+    private static class SessionHandler implements InvocationHandler
+    {
+        private final String id;
+        private final RemoteEndpoint.Async remote;
+        private final Map<String, Object> userProperties = new HashMap<>();
+
+        SessionHandler(final String id, final RemoteEndpoint.Async remote)
+        {
+            this.id = id;
+            this.remote = remote;
+        }
+
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+        {
+            switch (method.getName())
+            {
+                case "getAsyncRemote":
+                    return this.remote;
+                case "getId":
+                    return this.id;
+                case "isOpen":
+                    return Boolean.TRUE;
+                case "getUserProperties":
+                    return this.userProperties;
+                case "getRequestParameterMap":
+                    return Collections.emptyMap();
+                case "getNegotiatedSubprotocol":
+                    return "";
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "FakeSession[" + this.id + ']';
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private static class RemoteHandler implements InvocationHandler
+    {
+        @Override
+        public Object invoke(final Object proxy, final Method method, final Object[] args)
+        {
+            switch (method.getName())
+            {
+                case "sendText":
+                    FakeSessions.SENT.addAndGet(((String) args[0]).length());
+                    return FakeSessions.complete(args);
+                case "sendBinary":
+                    FakeSessions.SENT.addAndGet(((ByteBuffer) args[0]).remaining());
+                    return FakeSessions.complete(args);
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private static Future<Void> complete(final Object[] args)
+    {
+        if (args.length > 1 && args[1] instanceof SendHandler)
+        {
+            ((SendHandler) args[1]).onResult(new SendResult());
+            return null;
+        }
+        return FakeSessions.DONE;
+    }
+}
@@ -0,0 +1,65 @@
+package com.logdyn.api;
+
+import java.util.logging.Level;
+
+/**
+ * Compares the heap retained by each in memory history store for the same records.
+ * The off heap store keeps its messages in direct memory, which is not counted.
+ * Not a JMH benchmark, as JMH measures time, run with
+ * {@code java -XX:MaxDirectMemorySize=2g -cp target/benchmarks.jar com.logdyn.api.HistoryFootprint [records]}.
+ */
+public class HistoryFootprint
+{
+    private static final Level[] LEVELS = {Level.FINE, Level.INFO, Level.INFO, Level.INFO, Level.WARNING, JsLevel.ERROR};
+
+    public static void main(final String[] args)
+    {
+        final int records = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        System.out.printf("%-10s %12s %14s %14s%n", "store", "records", "heap bytes", "bytes/record");
+        for (final String name : new String[] {"memory", "columnar", "offheap"})
+        {
+            final HistoryStore.Factory factory = HistoryFootprint.factory(name);
+            final long before = HistoryFootprint.usedHeap();
+            HistoryStore store = factory.create(name, RetentionPolicy.UNBOUNDED);
+            for (int i = 0; i < records; i++)
+            {
+                final LogMessage logMessage = new LogMessage(HistoryFootprint.LEVELS[i % HistoryFootprint.LEVELS.length],
+                        "Processed order " + i + " for customer " + (i % 5_000) + " in " + (i % 97) + "ms",
+                        "user" + (i % 50), "SESSION" + (i % 200), 1497052800000L + i);
+                logMessage.setLoggerName("com.example.orders");
+                store.add(logMessage);
+            }
+            final long used = HistoryFootprint.usedHeap() - before;
+            System.out.printf("%-10s %12d %14d %14.1f%n", name, store.size(), used, (double) used / records);
+            store.close();
+            store = null;
+        }
+    }
+
+    /**
+     * @param name memory, columnar or offheap
+     * @return the factory for the named store
+     */
+    static HistoryStore.Factory factory(final String name)
+    {
+        switch (name)
+        {
+            case "columnar":
+                return HistoryStores.columnar();
+            case "offheap":
+                return HistoryStores.offHeap(1L << 30, 1 << 20);
+            default:
+                return HistoryStores.memory();
+        }
+    }
+
+    private static long usedHeap()
+    {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++)
+        {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
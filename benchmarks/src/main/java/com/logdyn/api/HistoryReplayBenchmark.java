@@ -0,0 +1,71 @@
+package com.logdyn.api;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.websocket.Session;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Cost of sending a user and root history to a newly connected websocket,
+ * as a single frame through {@link LogSession#sendMessages} and as paced frames through {@link LogSession#replayMessages},
+ * from each in memory history store.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HistoryReplayBenchmark
+{
+    @Param({"1000", "100000"})
+    public int history;
+
+    @Param({"memory", "columnar", "offheap"})
+    public String store;
+
+    private LogSession userSession;
+    private LogSession rootSession;
+    private Session session;
+
+    @Setup
+    public void setUp()
+    {
+        final HistoryStore.Factory factory = HistoryFootprint.factory(this.store);
+        this.userSession = new LogSession(factory.create("user", RetentionPolicy.UNBOUNDED));
+        this.rootSession = new LogSession(factory.create("root", RetentionPolicy.UNBOUNDED));
+        for (int i = 0; i < this.history; i++)
+        {
+            final LogSession target = i % 2 == 0 ? this.userSession : this.rootSession;
+            target.logMessage(new LogMessage(Level.INFO, "Processed order " + i, "admin", "A1B2C3D4", 1497052800000L + i));
+        }
+        this.session = FakeSessions.create("replay");
+    }
+
+    @Benchmark
+    public Future<Void> sendMessages()
+    {
+        return this.userSession.sendMessages(this.session, this.rootSession);
+    }
+
+    @Benchmark
+    public LogViewer replayMessages()
+    {
+        // the fake session completes each send immediately, so the whole replay runs within this call
+        final LogViewer viewer = LoggingEndpointConfig.DEFAULTS.createViewer(this.session);
+        this.userSession.replayMessages(viewer, this.rootSession, ReplayRequest.ALL);
+        return viewer;
+    }
+}
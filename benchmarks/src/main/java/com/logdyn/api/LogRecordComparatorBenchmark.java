@@ -0,0 +1,80 @@
+package com.logdyn.api;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Compares the full content {@link LogRecordComparator#COMPARATOR} with the
+ * sequence number based {@link LogRecordComparator#BY_SEQUENCE}, both on a single
+ * comparison of records sharing a timestamp and on skip list inserts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LogRecordComparatorBenchmark
+{
+    @Param({"COMPARATOR", "BY_SEQUENCE"})
+    public String comparator;
+
+    private Comparator<LogRecord> selected;
+    private LogRecord first;
+    private LogRecord second;
+    private LogRecord[] burst;
+    private ConcurrentSkipListSet<LogRecord> set;
+    private int next;
+
+    @Setup
+    public void setUp()
+    {
+        this.selected = "BY_SEQUENCE".equals(this.comparator)
+                ? LogRecordComparator.BY_SEQUENCE
+                : LogRecordComparator.COMPARATOR;
+        // same timestamp, level, user and session: the worst case for the full comparator
+        final String prefix = "GET /api/orders/12345 failed with status 500 after retry ";
+        this.first = new LogMessage(Level.WARNING, prefix + 1, "admin", "A1B2C3D4", 0L);
+        this.second = new LogMessage(Level.WARNING, prefix + 2, "admin", "A1B2C3D4", 0L);
+        // a burst of records logged within the same few milliseconds
+        this.burst = new LogRecord[1 << 16];
+        for (int i = 0; i < this.burst.length; i++)
+        {
+            this.burst[i] = new LogMessage(Level.WARNING, prefix + i, "admin", "A1B2C3D4", i / 64);
+        }
+        this.set = new ConcurrentSkipListSet<>(this.selected);
+        this.next = 0;
+    }
+
+    @Benchmark
+    public int compare()
+    {
+        return this.selected.compare(this.first, this.second);
+    }
+
+    @Benchmark
+    public boolean insert()
+    {
+        if (this.next == this.burst.length)
+        {
+            this.set.clear();
+            this.next = 0;
+        }
+        return this.set.add(this.burst[this.next++]);
+    }
+}
@@ -0,0 +1,66 @@
+package com.logdyn.api;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Encoding and decoding costs of {@link LogRecordUtils}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LogRecordUtilsBenchmark
+{
+    private LogRecord logRecord;
+    private List<LogRecord> logRecords;
+    private String json;
+
+    @Setup
+    public void setUp()
+    {
+        this.logRecord = new LogMessage(Level.WARNING,
+                "Request to \"/api/orders\" failed:\n\tjava.io.IOException: Connection reset", "admin", "A1B2C3D4", 1497052800000L);
+        this.logRecords = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+        {
+            this.logRecords.add(new LogMessage(Level.INFO, "Processed order " + i, "admin", "A1B2C3D4", 1497052800000L + i));
+        }
+        this.json = LogRecordUtils.toJSON(this.logRecord);
+    }
+
+    @Benchmark
+    public String toJSON()
+    {
+        return LogRecordUtils.toJSON(this.logRecord);
+    }
+
+    @Benchmark
+    public String toJSONCollection()
+    {
+        return LogRecordUtils.toJSON(this.logRecords);
+    }
+
+    @Benchmark
+    public LogRecord fromJSON()
+    {
+        return LogRecordUtils.fromJSON(new JSONObject(this.json), "admin", "A1B2C3D4");
+    }
+}
@@ -0,0 +1,53 @@
+package com.logdyn.api;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.websocket.Session;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Cost of {@link LogSession#logMessage} as the number of attached viewers grows.
+ * Dividing the score by the viewer count gives the per-viewer cost of a broadcast.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LogSessionBroadcastBenchmark
+{
+    @Param({"0", "1", "10", "100", "1000"})
+    public int viewers;
+
+    private LogSession logSession;
+    private long timestamp;
+
+    @Setup
+    public void setUp()
+    {
+        this.logSession = new LogSession(new RetentionPolicy(1_000, Long.MAX_VALUE, Long.MAX_VALUE));
+        for (final Session session : FakeSessions.create(this.viewers))
+        {
+            this.logSession.addWebsocketSession(session);
+        }
+    }
+
+    @Benchmark
+    public boolean broadcast()
+    {
+        return this.logSession.logMessage(new LogMessage(Level.INFO,
+                "User \"admin\" requested /index.html", "admin", "A1B2C3D4", this.timestamp++));
+    }
+}
@@ -0,0 +1,74 @@
+package com.logdyn.api;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.websocket.Session;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogRecord;
+
+/**
+ * Cost to the logging thread of {@link LogdynHandler#publish}, synchronously through
+ * {@link Logger#log} or handing off to the asynchronous dispatcher, with viewers attached to the user's LogSession.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LoggerBenchmark
+{
+    @Param({"sync", "async"})
+    public String mode;
+
+    @Param({"0", "10"})
+    public int viewers;
+
+    private LogdynHandler handler;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        Logger.setRetentionPolicy(new RetentionPolicy(10_000, Long.MAX_VALUE, Long.MAX_VALUE));
+        this.handler = "async".equals(this.mode)
+                ? new LogdynHandler(8192, 256, 20, LogdynHandler.OverflowPolicy.DROP_OLDEST)
+                : new LogdynHandler();
+        for (final Session session : FakeSessions.create(this.viewers))
+        {
+            Logger.addSession(session, "admin", "A1B2C3D4");
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setThreadLocals()
+    {
+        // JMH may run iterations on different threads
+        Logger.setCurrentUsername("admin");
+        Logger.setCurrentSessionId("A1B2C3D4");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        this.handler.close();
+        Logger.clearUser("admin");
+    }
+
+    @Benchmark
+    public void publish()
+    {
+        this.handler.publish(new LogRecord(java.util.logging.Level.INFO, "User \"admin\" requested /index.html"));
+    }
+}
@@ -0,0 +1,99 @@
+package com.logdyn.api;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Cost of encoding a frame of records as JSON, as sent to websockets by default,
+ * or as {@link BinaryFrameCodec}, as sent to websockets that negotiate {@link LoggingEndpointConfig#BINARY_SUBPROTOCOL}.
+ * The JSON is encoded without the per record cache, as the records are not held in a history.
+ * Run the main method for the size of each, with
+ * {@code java -cp target/benchmarks.jar com.logdyn.api.WireFormatBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WireFormatBenchmark
+{
+    private static final Level[] LEVELS = {Level.FINE, Level.INFO, Level.INFO, Level.INFO, Level.WARNING, JsLevel.ERROR};
+
+    @Param({"1", "200"})
+    public int batch;
+
+    private List<LogRecord> logRecords;
+    private final BinaryFrameCodec codec = new BinaryFrameCodec();
+    private final StringBuilder builder = new StringBuilder();
+
+    @Setup
+    public void setUp()
+    {
+        this.logRecords = WireFormatBenchmark.records(this.batch);
+    }
+
+    @Benchmark
+    public int json()
+    {
+        this.builder.setLength(0);
+        LogRecordUtils.appendJSON(this.logRecords.iterator(), Integer.MAX_VALUE, Integer.MAX_VALUE, this.builder);
+        return this.builder.length();
+    }
+
+    @Benchmark
+    public ByteBuffer binary()
+    {
+        return this.codec.encode(this.logRecords);
+    }
+
+    /**
+     * Prints the bytes per record of each format, for the UTF-8 of the JSON.
+     * @param args the batch sizes, by default 1, 10 and 200
+     */
+    public static void main(final String[] args)
+    {
+        final String[] batches = args.length > 0 ? args : new String[] {"1", "10", "200"};
+        System.out.printf("%8s %14s %16s %8s%n", "batch", "json b/record", "binary b/record", "ratio");
+        for (final String batch : batches)
+        {
+            final int count = Integer.parseInt(batch);
+            final List<LogRecord> logRecords = WireFormatBenchmark.records(count);
+            final StringBuilder json = new StringBuilder();
+            LogRecordUtils.appendJSON(logRecords.iterator(), Integer.MAX_VALUE, Integer.MAX_VALUE, json);
+            final int jsonBytes = json.toString().getBytes(StandardCharsets.UTF_8).length;
+            final int binaryBytes = new BinaryFrameCodec().encode(logRecords).remaining();
+            System.out.printf("%8d %14.1f %16.1f %8.2f%n", count, (double) jsonBytes / count,
+                    (double) binaryBytes / count, (double) jsonBytes / binaryBytes);
+        }
+    }
+
+    private static List<LogRecord> records(final int count)
+    {
+        final List<LogRecord> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            result.add(new LogMessage(WireFormatBenchmark.LEVELS[i % WireFormatBenchmark.LEVELS.length],
+                    "Processed order " + i + " for customer " + (i % 5_000) + " in " + (i % 97) + "ms",
+                    "admin", "A1B2C3D4", 1497052800000L + i * 3L));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,275 @@
+package com.logdyn.api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+import java.util.logging.LogRecord;
+
+/**
+ * Moves {@link Logger#log} off the logging threads.
+ * Records are queued in a bounded buffer and a single dispatcher thread logs them in batches,
+ * grouped by the user and httpSession they were logged for, once a batch is full or its first record has waited
+ * for the maximum latency.
+ *
+ * A record submitted as the dispatcher closes is either logged or counted as dropped, never left in the queue:
+ * it is taken back out of the queue if the dispatcher stopped before taking it, and a blocked submit
+ * gives up once the dispatcher has stopped.
+ */
+class AsyncDispatcher implements Runnable
+{
+    /** How long the dispatcher waits for a first record before checking if it has been closed */
+    private static final long IDLE_POLL_MILLIS = 100;
+
+    private final BlockingQueue<PendingRecord> queue;
+    private final int batchSize;
+    private final long maxLatencyNanos;
+    private final LogdynHandler.OverflowPolicy overflowPolicy;
+    private final ErrorManager errorManager;
+    private final Thread thread;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    /** records taken from the queue and either logged or dropped, guarded by this */
+    private long completed = 0;
+    private volatile boolean flushRequested = false;
+    private volatile boolean running = true;
+
+    AsyncDispatcher(final int queueSize, final int batchSize, final long maxLatencyMillis,
+                    final LogdynHandler.OverflowPolicy overflowPolicy, final ErrorManager errorManager)
+    {
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.batchSize = batchSize;
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+        this.overflowPolicy = overflowPolicy;
+        this.errorManager = errorManager;
+        this.thread = new Thread(this, "logdyn-dispatcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queues a record to be logged to the LogSession of the given user or httpSession.
+     * If the queue is full the overflow policy decides which record is dropped, or whether to wait,
+     * which gives up if the dispatcher is closed.
+     * @param logRecord the record to log
+     * @param username the username captured on the logging thread
+     * @param httpSessionId the httpSession Id captured on the logging thread
+     * @return true if the record was queued
+     */
+    public boolean submit(final LogRecord logRecord, final String username, final String httpSessionId)
+    {
+        if (!this.running)
+        {
+            this.dropped.incrementAndGet();
+            return false;
+        }
+        final PendingRecord pending = new PendingRecord(logRecord, username, httpSessionId);
+        boolean result;
+        switch (this.overflowPolicy)
+        {
+            case BLOCK:
+                try
+                {
+                    // timed, so a submit that is still waiting once the dispatcher has stopped gives up
+                    while (!(result = this.queue.offer(pending, AsyncDispatcher.IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS))
+                            && this.running)
+                    {
+                        // wait for room
+                    }
+                }
+                catch (final InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    result = false;
+                }
+                break;
+            case DROP_OLDEST:
+                while (!(result = this.queue.offer(pending)))
+                {
+                    if (null != this.queue.poll())
+                    {
+                        this.recordDropped();
+                    }
+                }
+                break;
+            default:
+                result = this.queue.offer(pending);
+                break;
+        }
+        if (result && !this.running && this.queue.remove(pending))
+        {
+            // closed while it was queued, and the dispatcher may have stopped before it could take it
+            result = false;
+        }
+        if (result)
+        {
+            this.submitted.incrementAndGet();
+        }
+        else
+        {
+            this.dropped.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Waits until every record queued before this call has been logged.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void flush() throws InterruptedException
+    {
+        final long target = this.submitted.get();
+        synchronized (this)
+        {
+            while (this.completed < target && this.thread.isAlive())
+            {
+                this.flushRequested = true;
+                this.wait(AsyncDispatcher.IDLE_POLL_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting records, logs everything already queued and stops the dispatcher thread.
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void close() throws InterruptedException
+    {
+        this.running = false;
+        this.thread.join();
+    }
+
+    /**
+     * @return the number of records dropped because the queue was full or the dispatcher was closed
+     */
+    public long getDroppedCount()
+    {
+        return this.dropped.get();
+    }
+
+    /**
+     * @return the number of records currently waiting to be logged
+     */
+    public int getQueueSize()
+    {
+        return this.queue.size();
+    }
+
+    @Override
+    public void run()
+    {
+        final List<PendingRecord> batch = new ArrayList<>(this.batchSize);
+        while (this.running || !this.queue.isEmpty())
+        {
+            try
+            {
+                this.fillBatch(batch);
+            }
+            catch (final InterruptedException e)
+            {
+                this.running = false;
+            }
+            if (!batch.isEmpty())
+            {
+                this.dispatch(batch);
+                this.complete(batch.size());
+                batch.clear();
+            }
+            this.flushRequested = false;
+        }
+    }
+
+    private void fillBatch(final List<PendingRecord> batch) throws InterruptedException
+    {
+        final PendingRecord first = this.queue.poll(AsyncDispatcher.IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (null == first)
+        {
+            return;
+        }
+        batch.add(first);
+        final long deadline = System.nanoTime() + this.maxLatencyNanos;
+        while (batch.size() < this.batchSize)
+        {
+            this.queue.drainTo(batch, this.batchSize - batch.size());
+            final long remaining = deadline - System.nanoTime();
+            if (batch.size() >= this.batchSize || remaining <= 0 || this.flushRequested || !this.running)
+            {
+                break;
+            }
+            final PendingRecord next = this.queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (null == next)
+            {
+                break;
+            }
+            batch.add(next);
+        }
+    }
+
+    /**
+     * Logs a batch through {@link Logger}, one call per user and httpSession, so the records are counted in the metrics
+     * and forwarded to any cluster as records logged synchronously are.
+     */
+    private void dispatch(final List<PendingRecord> batch)
+    {
+        // keyed by both, as records for the same LogSession may still be forwarded for different users or httpSessions
+        final Map<List<String>, List<LogRecord>> byOrigin = new LinkedHashMap<>();
+        for (final PendingRecord pending : batch)
+        {
+            final List<String> origin = Arrays.asList(pending.username, pending.httpSessionId);
+            List<LogRecord> group = byOrigin.get(origin);
+            if (null == group)
+            {
+                group = new ArrayList<>();
+                byOrigin.put(origin, group);
+            }
+            group.add(pending.logRecord);
+        }
+        for (final Map.Entry<List<String>, List<LogRecord>> group : byOrigin.entrySet())
+        {
+            try
+            {
+                Logger.log(group.getValue(), null, group.getKey().get(0), group.getKey().get(1));
+            }
+            catch (final RuntimeException e)
+            {
+                this.errorManager.error("Failed to dispatch log records", e, ErrorManager.WRITE_FAILURE);
+            }
+        }
+    }
+
+    private void recordDropped()
+    {
+        this.dropped.incrementAndGet();
+        this.complete(1);
+    }
+
+    private synchronized void complete(final int count)
+    {
+        this.completed += count;
+        this.notifyAll();
+    }
+
+    /**
+     * A queued record along with the thread local values of the thread that logged it.
+     */
+    private static class PendingRecord
+    {
+        private final LogRecord logRecord;
+        private final String username;
+        private final String httpSessionId;
+
+        PendingRecord(final LogRecord logRecord, final String username, final String httpSessionId)
+        {
+            this.logRecord = logRecord;
+            this.username = username;
+            this.httpSessionId = httpSessionId;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package com.logdyn.api;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Binary frames of records for websockets that negotiate {@link LoggingEndpointConfig#BINARY_SUBPROTOCOL},
+ * an alternative to the JSON array frames of {@link LogRecordUtils}.
+ *
+ * A frame is a version byte, the number of records as a varint padded to 5 bytes, then each record as:
+ * <ul>
+ *     <li>flags as a varint, where 1 marks a {@link RepeatedLogMessage}</li>
+ *     <li>the timestamp as a zigzag varint of the difference from the previous record in the frame, or from 0</li>
+ *     <li>the level name as a dictionary reference</li>
+ *     <li>the message as its UTF-8 length plus one as a varint followed by the UTF-8, where a length of 0 means {@code null}</li>
+ *     <li>for a repeated record, the count and the time from its first repeat to its timestamp as varints</li>
+ * </ul>
+ * A dictionary reference is a varint, 0 for {@code null}, an odd number {@code 2n + 1} for a new string,
+ * which follows as its UTF-8 length as a varint and the UTF-8, and becomes entry {@code n}, or an even number {@code 2n + 2} for entry {@code n}.
+ * The dictionary is per frame, so every frame can be decoded on its own.
+ * Like the JSON, a frame does not carry the username or sessionId of its records, as records of the root LogSession
+ * are sent to every viewer.
+ *
+ * An instance reuses its buffers between frames and is not safe for concurrent use.
+ */
+class BinaryFrameCodec
+{
+    static final byte VERSION = 1;
+    private static final int REPEATED_FLAG = 1;
+
+    private final RecordCodec buffer = new RecordCodec(4096);
+    private final Map<String, Integer> dictionary = new HashMap<>();
+    private long previousMillis;
+    private int count;
+
+    /**
+     * Encodes records into a frame.
+     * @param logRecords the records to encode, advanced past those encoded
+     * @param maxRecords the most records to encode
+     * @param maxBytes the frame length after which no more records are added to it
+     * @return the frame, only valid until this codec is next used
+     */
+    ByteBuffer encode(final Iterator<? extends LogRecord> logRecords, final int maxRecords, final int maxBytes)
+    {
+        this.start();
+        while (this.count < maxRecords && this.buffer.length() < maxBytes && logRecords.hasNext())
+        {
+            this.append(logRecords.next());
+        }
+        return this.finish();
+    }
+
+    /**
+     * Encodes records into a frame.
+     * @param logRecords the records to encode
+     * @return the frame, only valid until this codec is next used
+     */
+    ByteBuffer encode(final Iterable<? extends LogRecord> logRecords)
+    {
+        return this.encode(logRecords.iterator(), Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    private void start()
+    {
+        this.dictionary.clear();
+        this.previousMillis = 0;
+        this.count = 0;
+        // the version and a count of up to 5 bytes, which is filled in once the records are written
+        this.buffer.reset().writeBytes(new byte[] {BinaryFrameCodec.VERSION, 0, 0, 0, 0, 0}, 0, 6);
+    }
+
+    private void append(final LogRecord logRecord)
+    {
+        final boolean repeated = logRecord instanceof RepeatedLogMessage;
+        this.buffer.writeVarLong(repeated ? BinaryFrameCodec.REPEATED_FLAG : 0);
+        this.buffer.writeVarLong(BinaryFrameCodec.zigzag(logRecord.getMillis() - this.previousMillis));
+        this.previousMillis = logRecord.getMillis();
+        this.writeReference(null != logRecord.getLevel() ? logRecord.getLevel().getName() : null);
+        this.buffer.writeString(logRecord.getMessage());
+        if (repeated)
+        {
+            final RepeatedLogMessage repeatedMessage = (RepeatedLogMessage) logRecord;
+            this.buffer.writeVarLong(repeatedMessage.getCount());
+            this.buffer.writeVarLong(repeatedMessage.getMillis() - repeatedMessage.getFirstMillis());
+        }
+        this.count++;
+    }
+
+    private ByteBuffer finish()
+    {
+        // the count is written as a padded 5 byte varint, so the records need not be moved
+        final byte[] array = this.buffer.array();
+        int remaining = this.count;
+        for (int i = 1; i < 5; i++)
+        {
+            array[i] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        array[5] = (byte) remaining;
+        return ByteBuffer.wrap(array, 0, this.buffer.length());
+    }
+
+    private void writeReference(final String value)
+    {
+        if (null == value)
+        {
+            this.buffer.writeVarLong(0);
+            return;
+        }
+        final Integer index = this.dictionary.get(value);
+        if (null != index)
+        {
+            this.buffer.writeVarLong(2L * index + 2);
+        }
+        else
+        {
+            final int added = this.dictionary.size();
+            this.dictionary.put(value, added);
+            this.buffer.writeVarLong(2L * added + 1);
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            this.buffer.writeVarLong(bytes.length);
+            this.buffer.writeBytes(bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Decodes a frame.
+     * @param frame the frame, advanced past it
+     * @return the records in the frame
+     * @throws IllegalArgumentException if the frame is not a supported version or is malformed
+     * @throws java.nio.BufferUnderflowException if the frame is truncated
+     */
+    static List<LogMessage> decode(final ByteBuffer frame)
+    {
+        if (BinaryFrameCodec.VERSION != frame.get())
+        {
+            throw new IllegalArgumentException("Unsupported frame version");
+        }
+        final int count = (int) RecordCodec.readVarLong(frame);
+        final List<LogMessage> result = new ArrayList<>(Math.min(count, 1024));
+        final List<String> dictionary = new ArrayList<>();
+        long millis = 0;
+        for (int i = 0; i < count; i++)
+        {
+            final long flags = RecordCodec.readVarLong(frame);
+            millis += BinaryFrameCodec.unzigzag(RecordCodec.readVarLong(frame));
+            final String levelName = BinaryFrameCodec.readReference(frame, dictionary);
+            final String message = RecordCodec.readString(frame);
+            final Level level = null != levelName ? JsLevel.parse(levelName) : null;
+            if (0 != (flags & BinaryFrameCodec.REPEATED_FLAG))
+            {
+                final int repeats = (int) RecordCodec.readVarLong(frame);
+                final long firstMillis = millis - RecordCodec.readVarLong(frame);
+                result.add(new RepeatedLogMessage(level, message, null, null, repeats, firstMillis, millis));
+            }
+            else
+            {
+                result.add(new LogMessage(level, message, (String) null, null, millis));
+            }
+        }
+        return result;
+    }
+
+    private static String readReference(final ByteBuffer frame, final List<String> dictionary)
+    {
+        final long reference = RecordCodec.readVarLong(frame);
+        if (0 == reference)
+        {
+            return null;
+        }
+        if (1 == (reference & 1))
+        {
+            if ((reference - 1) / 2 != dictionary.size())
+            {
+                throw new IllegalArgumentException("Dictionary entry out of order");
+            }
+            final long length = RecordCodec.readVarLong(frame);
+            if (length > frame.remaining())
+            {
+                throw new IllegalArgumentException("String length exceeds frame");
+            }
+            final byte[] bytes = new byte[(int) length];
+            frame.get(bytes);
+            final String value = new String(bytes, StandardCharsets.UTF_8);
+            dictionary.add(value);
+            return value;
+        }
+        final long index = (reference - 2) / 2;
+        if (index >= dictionary.size())
+        {
+            throw new IllegalArgumentException("Unknown dictionary entry");
+        }
+        return dictionary.get((int) index);
+    }
+
+    private static long zigzag(final long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(final long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
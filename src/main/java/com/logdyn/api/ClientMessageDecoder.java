@@ -0,0 +1,461 @@
+package com.logdyn.api;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Decodes messages sent by a client straight from the websocket into {@link LogMessage}s,
+ * reading only the fields of a record and skipping any others without building a JSON object.
+ *
+ * A message is either a single record, a JSON array of records, or a control message with a {@code filter}
+ * property, see {@link ViewerFilter}. A record has the same form as {@link LogRecordUtils#fromJSON(JSONObject)}
+ * reads. An instance reuses its buffers between messages and is not safe for concurrent use.
+ */
+class ClientMessageDecoder
+{
+    private static final String LEVEL_FIELD = "level";
+    private static final String MESSAGE_FIELD = "message";
+    private static final String TIMESTAMP_FIELD = "timestamp";
+    private static final String USERNAME_FIELD = "username";
+    private static final String SESSION_ID_FIELD = "sessionId";
+    private static final String FILTER_FIELD = "filter";
+
+    /** The level of a record that does not have one, as {@link LogRecordUtils#fromJSON(JSONObject)} */
+    private static final Level DEFAULT_LEVEL = Level.FINE;
+    private static final int EOF = -1;
+
+    private final char[] buffer = new char[4096];
+    private final StringBuilder builder = new StringBuilder(256);
+    private Reader reader;
+    private int position;
+    private int limit;
+    private long offset;
+    private StringBuilder capture;
+
+    private final List<LogRecord> records = new ArrayList<>();
+    private JSONObject filter;
+
+    /**
+     * Decodes one message.
+     * @param reader the message
+     * @param username the username of the client, which takes precedence over any in the records
+     * @param sessionId the httpSession Id of the client, which takes precedence over any in the records
+     * @throws JSONException if the message is not valid JSON, or a record has no message or an unknown level
+     * @throws IOException if the message cannot be read
+     */
+    void decode(final Reader reader, final String username, final String sessionId) throws IOException
+    {
+        this.reader = reader;
+        this.position = 0;
+        this.limit = 0;
+        this.offset = 0;
+        this.records.clear();
+        this.filter = null;
+        try
+        {
+            final int first = this.skipWhitespace();
+            if ('[' == first)
+            {
+                this.position++;
+                if (']' == this.skipWhitespace())
+                {
+                    this.position++;
+                }
+                else
+                {
+                    do
+                    {
+                        this.readObject(username, sessionId);
+                    }
+                    while (this.readSeparator(']'));
+                }
+            }
+            else
+            {
+                this.readObject(username, sessionId);
+            }
+            if (ClientMessageDecoder.EOF != this.skipWhitespace())
+            {
+                throw this.error("Unexpected content after message");
+            }
+        }
+        finally
+        {
+            this.reader = null;
+        }
+    }
+
+    /**
+     * @return the records of the last message decoded
+     */
+    List<LogRecord> getRecords()
+    {
+        return this.records;
+    }
+
+    /**
+     * @return the filter of the last message decoded, or {@code null} if it was not a control message
+     */
+    JSONObject getFilter()
+    {
+        return this.filter;
+    }
+
+    private void readObject(final String username, final String sessionId) throws IOException
+    {
+        this.expect('{');
+        String level = null;
+        String message = null;
+        String recordUsername = null;
+        String recordSessionId = null;
+        long timestamp = Long.MIN_VALUE;
+        if ('}' == this.skipWhitespace())
+        {
+            this.position++;
+        }
+        else
+        {
+            do
+            {
+                this.skipWhitespace();
+                final String field = this.readString();
+                this.skipWhitespace();
+                this.expect(':');
+                this.skipWhitespace();
+                switch (field)
+                {
+                    case ClientMessageDecoder.LEVEL_FIELD:
+                        level = this.readScalar();
+                        break;
+                    case ClientMessageDecoder.MESSAGE_FIELD:
+                        if ('"' != this.peek())
+                        {
+                            throw this.error("message must be a string");
+                        }
+                        message = this.readString();
+                        break;
+                    case ClientMessageDecoder.TIMESTAMP_FIELD:
+                        timestamp = this.parseTimestamp(this.readScalar());
+                        break;
+                    case ClientMessageDecoder.USERNAME_FIELD:
+                        recordUsername = this.readScalar();
+                        break;
+                    case ClientMessageDecoder.SESSION_ID_FIELD:
+                        recordSessionId = this.readScalar();
+                        break;
+                    case ClientMessageDecoder.FILTER_FIELD:
+                        this.filter = this.readFilter();
+                        break;
+                    default:
+                        this.skipValue();
+                        break;
+                }
+            }
+            while (this.readSeparator('}'));
+        }
+        if (null != this.filter)
+        {
+            return;
+        }
+        if (null == message)
+        {
+            throw this.error("Record has no message");
+        }
+        this.records.add(new LogMessage(
+                null != level ? this.parseLevel(level) : ClientMessageDecoder.DEFAULT_LEVEL,
+                message,
+                null != username ? username : recordUsername,
+                null != sessionId ? sessionId : recordSessionId,
+                Long.MIN_VALUE != timestamp ? timestamp : System.currentTimeMillis()));
+    }
+
+    private Level parseLevel(final String level)
+    {
+        try
+        {
+            return JsLevel.parse(level);
+        }
+        catch (final IllegalArgumentException e)
+        {
+            throw this.error("Unknown level " + level);
+        }
+    }
+
+    private long parseTimestamp(final String timestamp)
+    {
+        if (null == timestamp)
+        {
+            return Long.MIN_VALUE;
+        }
+        try
+        {
+            return Long.parseLong(timestamp);
+        }
+        catch (final NumberFormatException e)
+        {
+            try
+            {
+                return (long) Double.parseDouble(timestamp);
+            }
+            catch (final NumberFormatException e2)
+            {
+                return Long.MIN_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Reads the filter object, keeping its text for {@link ViewerFilter#fromJSON(JSONObject)}.
+     */
+    private JSONObject readFilter() throws IOException
+    {
+        if ('{' != this.peek())
+        {
+            throw this.error("filter must be an object");
+        }
+        this.capture = new StringBuilder();
+        try
+        {
+            this.skipValue();
+            return new JSONObject(this.capture.toString());
+        }
+        finally
+        {
+            this.capture = null;
+        }
+    }
+
+    /**
+     * Reads a string, number, boolean or null as text, as {@link JSONObject#optString(String, String)} would.
+     * @return the text of the value, or {@code null} for a JSON null
+     */
+    private String readScalar() throws IOException
+    {
+        final int c = this.peek();
+        if ('"' == c)
+        {
+            return this.readString();
+        }
+        if ('{' == c || '[' == c)
+        {
+            throw this.error("Expected a string or number");
+        }
+        this.builder.setLength(0);
+        int next;
+        while (ClientMessageDecoder.EOF != (next = this.peek()) && ',' != next && '}' != next && ']' != next
+                && !Character.isWhitespace(next))
+        {
+            this.builder.append((char) this.read());
+        }
+        if (0 == this.builder.length())
+        {
+            throw this.error("Expected a value");
+        }
+        final String result = this.builder.toString();
+        return "null".equals(result) ? null : result;
+    }
+
+    private String readString() throws IOException
+    {
+        this.expect('"');
+        this.builder.setLength(0);
+        while (true)
+        {
+            final int c = this.read();
+            switch (c)
+            {
+                case ClientMessageDecoder.EOF:
+                    throw this.error("Unterminated string");
+                case '"':
+                    return this.builder.toString();
+                case '\\':
+                    this.builder.append(this.readEscape());
+                    break;
+                default:
+                    this.builder.append((char) c);
+                    break;
+            }
+        }
+    }
+
+    private char readEscape() throws IOException
+    {
+        final int c = this.read();
+        switch (c)
+        {
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int result = 0;
+                for (int i = 0; i < 4; i++)
+                {
+                    final int digit = Character.digit(this.read(), 16);
+                    if (digit < 0)
+                    {
+                        throw this.error("Invalid unicode escape");
+                    }
+                    result = (result << 4) | digit;
+                }
+                return (char) result;
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            default:
+                throw this.error("Invalid escape");
+        }
+    }
+
+    /**
+     * Skips any JSON value, including nested objects and arrays, without decoding it.
+     */
+    private void skipValue() throws IOException
+    {
+        int depth = 0;
+        do
+        {
+            final int c = this.skipWhitespace();
+            switch (c)
+            {
+                case ClientMessageDecoder.EOF:
+                    throw this.error("Unexpected end of message");
+                case '{':
+                case '[':
+                    this.read();
+                    depth++;
+                    break;
+                case '}':
+                case ']':
+                    this.read();
+                    depth--;
+                    break;
+                case '"':
+                    this.skipString();
+                    break;
+                case ',':
+                case ':':
+                    if (0 == depth)
+                    {
+                        throw this.error("Expected a value");
+                    }
+                    this.read();
+                    break;
+                default:
+                    this.readScalar();
+                    break;
+            }
+        }
+        while (depth > 0);
+        if (depth < 0)
+        {
+            throw this.error("Unbalanced brackets");
+        }
+    }
+
+    private void skipString() throws IOException
+    {
+        this.read();
+        while (true)
+        {
+            final int c = this.read();
+            if (ClientMessageDecoder.EOF == c)
+            {
+                throw this.error("Unterminated string");
+            }
+            if ('"' == c)
+            {
+                return;
+            }
+            if ('\\' == c)
+            {
+                this.read();
+            }
+        }
+    }
+
+    /**
+     * Reads the comma between members or elements, or the closing bracket.
+     * @return true if another member or element follows
+     */
+    private boolean readSeparator(final char close) throws IOException
+    {
+        final int c = this.skipWhitespace();
+        if (',' == c)
+        {
+            this.read();
+            this.skipWhitespace();
+            return true;
+        }
+        this.expect(close);
+        return false;
+    }
+
+    private void expect(final char expected) throws IOException
+    {
+        if (expected != this.read())
+        {
+            throw this.error("Expected '" + expected + "'");
+        }
+    }
+
+    private int skipWhitespace() throws IOException
+    {
+        int c;
+        while (ClientMessageDecoder.EOF != (c = this.peek()) && Character.isWhitespace(c))
+        {
+            this.read();
+        }
+        return c;
+    }
+
+    private int peek() throws IOException
+    {
+        if (this.position == this.limit && !this.fill())
+        {
+            return ClientMessageDecoder.EOF;
+        }
+        return this.buffer[this.position];
+    }
+
+    private int read() throws IOException
+    {
+        if (this.position == this.limit && !this.fill())
+        {
+            return ClientMessageDecoder.EOF;
+        }
+        final char c = this.buffer[this.position++];
+        if (null != this.capture)
+        {
+            this.capture.append(c);
+        }
+        return c;
+    }
+
+    private boolean fill() throws IOException
+    {
+        this.offset += this.limit;
+        this.position = 0;
+        this.limit = Math.max(0, this.reader.read(this.buffer));
+        return this.limit > 0;
+    }
+
+    private JSONException error(final String message)
+    {
+        return new JSONException(message + " at character " + (this.offset + this.position));
+    }
+}
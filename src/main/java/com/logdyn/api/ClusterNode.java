@@ -0,0 +1,436 @@
+package com.logdyn.api;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.LogRecord;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This process as a member of a cluster: forwards the records logged here to the other nodes
+ * and logs the records they forward into the local LogSessions, without forwarding them again.
+ *
+ * Records are queued and sent by a single thread in batches of whatever has queued while the previous batch was
+ * sent, each batch a deflated frame: a version byte, the 8 byte id of the sending node, then the deflated payload.
+ * The payload is the number of records as a varint, then for each its forwarding number as a varint, the username
+ * and httpSession Id it was logged for, and its {@link RecordCodec} form prefixed with its length.
+ *
+ * Each record is identified by the sending node and its forwarding number, which the sending thread counts up
+ * in the order records are sent. A record that has already been received from a node is ignored, within a window of
+ * the latest {@value #DEDUPE_WINDOW} forwarding numbers of each node. The JUL sequence number is not used, as it is
+ * assigned when a record is created, so a busy node may forward a record long after many newer ones.
+ */
+class ClusterNode implements ClusterTransport.Receiver
+{
+    /** Where received records are logged */
+    interface Sink
+    {
+        void deliver(LogRecord logRecord, String username, String httpSessionId);
+    }
+
+    /** Logs received records to the local LogSessions only */
+    static final Sink LOCAL = new Sink()
+    {
+        @Override
+        public void deliver(final LogRecord logRecord, final String username, final String httpSessionId)
+        {
+            Logger.logToSession(logRecord, null, username, httpSessionId);
+        }
+    };
+
+    private static final byte VERSION = 3;
+    private static final int HEADER_BYTES = 1 + 8;
+    /** the most records waiting to be sent, after which records are dropped */
+    private static final int MAX_QUEUED = 64 * 1024;
+    private static final int MAX_BATCH = 1024;
+    /** the largest payload accepted from another node */
+    private static final int MAX_PAYLOAD_BYTES = 64 * 1024 * 1024;
+    /** the number of forwarding numbers remembered per node, a frame more than this many records late is ignored */
+    static final int DEDUPE_WINDOW = 64 * 1024;
+    /** the most nodes whose recent sequence numbers are remembered */
+    private static final int MAX_ORIGINS = 256;
+
+    private final long id = new SecureRandom().nextLong();
+    private final ClusterTransport transport;
+    private final Sink sink;
+    private final BlockingQueue<Outbound> queue = new ArrayBlockingQueue<>(ClusterNode.MAX_QUEUED);
+    private final Thread sender;
+    private volatile boolean running = false;
+
+    /** guards receiving */
+    private final Object receiveLock = new Object();
+    private final Inflater inflater = new Inflater();
+    private byte[] inflated = new byte[64 * 1024];
+    private final Map<Long, DedupeWindow> origins = new LinkedHashMap<Long, DedupeWindow>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Long, DedupeWindow> eldest)
+        {
+            return this.size() > ClusterNode.MAX_ORIGINS;
+        }
+    };
+
+    private final AtomicLong sentFrames = new AtomicLong();
+    private final AtomicLong sentRecords = new AtomicLong();
+    private final AtomicLong droppedRecords = new AtomicLong();
+    private final AtomicLong receivedRecords = new AtomicLong();
+    private final AtomicLong duplicateRecords = new AtomicLong();
+    private final AtomicLong invalidFrames = new AtomicLong();
+
+    ClusterNode(final ClusterTransport transport, final Sink sink)
+    {
+        this.transport = transport;
+        this.sink = sink;
+        this.sender = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ClusterNode.this.sendLoop();
+            }
+        }, "logdyn-cluster-sender");
+        this.sender.setDaemon(true);
+    }
+
+    /**
+     * @throws IOException if the transport cannot be started
+     */
+    void start() throws IOException
+    {
+        this.transport.start(this);
+        this.running = true;
+        this.sender.start();
+    }
+
+    /**
+     * Stops forwarding, sending any records already queued, and closes the transport.
+     */
+    void close()
+    {
+        this.running = false;
+        try
+        {
+            this.sender.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        this.transport.close();
+    }
+
+    /**
+     * Queues a record logged here to be sent to the other nodes.
+     * @param logRecord the record
+     * @param username the username it was logged for, or {@code null}
+     * @param httpSessionId the httpSession Id it was logged for, or {@code null}
+     */
+    void forward(final LogRecord logRecord, final String username, final String httpSessionId)
+    {
+        if (!this.queue.offer(new Outbound(logRecord, username, httpSessionId)))
+        {
+            this.droppedRecords.incrementAndGet();
+        }
+    }
+
+    private void sendLoop()
+    {
+        final List<Outbound> batch = new ArrayList<>(ClusterNode.MAX_BATCH);
+        final RecordCodec payload = new RecordCodec(64 * 1024);
+        final RecordCodec body = new RecordCodec();
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        byte[] frame = new byte[64 * 1024];
+        long forwarded = 0;
+        try
+        {
+            while (this.running || !this.queue.isEmpty())
+            {
+                final Outbound first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                if (null == first)
+                {
+                    continue;
+                }
+                batch.add(first);
+                this.queue.drainTo(batch, ClusterNode.MAX_BATCH - 1);
+
+                payload.reset().writeVarLong(batch.size());
+                for (final Outbound outbound : batch)
+                {
+                    payload.writeVarLong(forwarded++);
+                    payload.writeString(outbound.username);
+                    payload.writeString(outbound.httpSessionId);
+                    body.reset().write(outbound.logRecord);
+                    payload.writeVarLong(body.length());
+                    payload.writeBytes(body.array(), 0, body.length());
+                }
+
+                deflater.reset();
+                deflater.setInput(payload.array(), 0, payload.length());
+                deflater.finish();
+                frame[0] = ClusterNode.VERSION;
+                ByteBuffer.wrap(frame, 1, 8).putLong(this.id);
+                int length = ClusterNode.HEADER_BYTES;
+                while (!deflater.finished())
+                {
+                    if (length == frame.length)
+                    {
+                        frame = Arrays.copyOf(frame, frame.length * 2);
+                    }
+                    length += deflater.deflate(frame, length, frame.length - length);
+                }
+                try
+                {
+                    this.transport.send(frame, 0, length);
+                    this.sentFrames.incrementAndGet();
+                    this.sentRecords.addAndGet(batch.size());
+                }
+                catch (final RuntimeException e)
+                {
+                    this.droppedRecords.addAndGet(batch.size());
+                }
+                batch.clear();
+            }
+        }
+        catch (final InterruptedException e)
+        {
+            // stopping
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public void receive(final byte[] frame, final int offset, final int length)
+    {
+        if (length < ClusterNode.HEADER_BYTES || ClusterNode.VERSION != frame[offset])
+        {
+            this.invalidFrames.incrementAndGet();
+            return;
+        }
+        final long origin = ByteBuffer.wrap(frame, offset + 1, 8).getLong();
+        if (origin == this.id)
+        {
+            return;
+        }
+        synchronized (this.receiveLock)
+        {
+            final ByteBuffer payload = this.inflate(frame, offset + ClusterNode.HEADER_BYTES, length - ClusterNode.HEADER_BYTES);
+            if (null == payload)
+            {
+                this.invalidFrames.incrementAndGet();
+                return;
+            }
+            DedupeWindow window = this.origins.get(origin);
+            if (null == window)
+            {
+                window = new DedupeWindow();
+                this.origins.put(origin, window);
+            }
+            try
+            {
+                final long count = RecordCodec.readVarLong(payload);
+                for (long i = 0; i < count; i++)
+                {
+                    final long forwarded = RecordCodec.readVarLong(payload);
+                    final String username = RecordCodec.readString(payload);
+                    final String httpSessionId = RecordCodec.readString(payload);
+                    final int bodyLength = (int) RecordCodec.readVarLong(payload);
+                    if (bodyLength < 0 || bodyLength > payload.remaining())
+                    {
+                        throw new IllegalArgumentException("Record length exceeds frame");
+                    }
+                    final ByteBuffer body = payload.slice();
+                    body.limit(bodyLength);
+                    payload.position(payload.position() + bodyLength);
+                    if (!window.firstSeen(forwarded))
+                    {
+                        this.duplicateRecords.incrementAndGet();
+                        continue;
+                    }
+                    this.receivedRecords.incrementAndGet();
+                    this.sink.deliver(RecordCodec.read(body, false), username, httpSessionId);
+                }
+            }
+            catch (final BufferUnderflowException | IllegalArgumentException e)
+            {
+                this.invalidFrames.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return the inflated payload, or {@code null} if it is corrupt or too large
+     */
+    private ByteBuffer inflate(final byte[] frame, final int offset, final int length)
+    {
+        this.inflater.reset();
+        this.inflater.setInput(frame, offset, length);
+        int inflatedLength = 0;
+        try
+        {
+            while (!this.inflater.finished())
+            {
+                if (inflatedLength == this.inflated.length)
+                {
+                    if (this.inflated.length >= ClusterNode.MAX_PAYLOAD_BYTES)
+                    {
+                        return null;
+                    }
+                    this.inflated = Arrays.copyOf(this.inflated, this.inflated.length * 2);
+                }
+                final int inflatedBytes = this.inflater.inflate(this.inflated, inflatedLength, this.inflated.length - inflatedLength);
+                if (0 == inflatedBytes && (this.inflater.needsInput() || this.inflater.needsDictionary()))
+                {
+                    return null;
+                }
+                inflatedLength += inflatedBytes;
+            }
+        }
+        catch (final DataFormatException e)
+        {
+            return null;
+        }
+        return ByteBuffer.wrap(this.inflated, 0, inflatedLength);
+    }
+
+    long getSentFrames()
+    {
+        return this.sentFrames.get();
+    }
+
+    long getSentRecords()
+    {
+        return this.sentRecords.get();
+    }
+
+    long getDroppedRecords()
+    {
+        return this.droppedRecords.get();
+    }
+
+    long getReceivedRecords()
+    {
+        return this.receivedRecords.get();
+    }
+
+    long getDuplicateRecords()
+    {
+        return this.duplicateRecords.get();
+    }
+
+    long getInvalidFrames()
+    {
+        return this.invalidFrames.get();
+    }
+
+    /**
+     * @return the number of frames the transport dropped for a peer, if it counts them
+     */
+    long getPeerDroppedFrames()
+    {
+        return this.transport instanceof TcpClusterTransport ? ((TcpClusterTransport) this.transport).getDroppedFrames() : 0;
+    }
+
+    private static final class Outbound
+    {
+        private final LogRecord logRecord;
+        private final String username;
+        private final String httpSessionId;
+
+        private Outbound(final LogRecord logRecord, final String username, final String httpSessionId)
+        {
+            this.logRecord = logRecord;
+            this.username = username;
+            this.httpSessionId = httpSessionId;
+        }
+    }
+
+    /**
+     * The forwarding numbers recently received from one node, as a bitmap of the window below the highest.
+     * As a node numbers the records it sends consecutively, a number older than the window can only come from
+     * a frame delivered again long after the first time, and is treated as already received.
+     */
+    static final class DedupeWindow
+    {
+        private final long[] bits = new long[ClusterNode.DEDUPE_WINDOW / 64];
+        private long highest = -1;
+
+        /**
+         * @param sequence a forwarding number received
+         * @return true if it had not been received before
+         */
+        boolean firstSeen(final long sequence)
+        {
+            if (sequence > this.highest)
+            {
+                if (this.highest < 0 || sequence - this.highest >= ClusterNode.DEDUPE_WINDOW)
+                {
+                    Arrays.fill(this.bits, 0);
+                }
+                else
+                {
+                    long cleared = this.highest + 1;
+                    while (cleared < sequence)
+                    {
+                        if (0 == (cleared & 63) && cleared + 64 <= sequence)
+                        {
+                            // a whole word at a time, as other records of the node may leave large gaps
+                            this.bits[this.index(cleared)] = 0;
+                            cleared += 64;
+                        }
+                        else
+                        {
+                            this.clear(cleared++);
+                        }
+                    }
+                }
+                this.highest = sequence;
+                this.set(sequence);
+                return true;
+            }
+            if (this.highest - sequence >= ClusterNode.DEDUPE_WINDOW || this.isSet(sequence))
+            {
+                return false;
+            }
+            this.set(sequence);
+            return true;
+        }
+
+        private int index(final long sequence)
+        {
+            return (int) ((sequence >>> 6) & (this.bits.length - 1));
+        }
+
+        private boolean isSet(final long sequence)
+        {
+            return 0 != (this.bits[this.index(sequence)] & (1L << sequence));
+        }
+
+        private void set(final long sequence)
+        {
+            this.bits[this.index(sequence)] |= 1L << sequence;
+        }
+
+        private void clear(final long sequence)
+        {
+            this.bits[this.index(sequence)] &= ~(1L << sequence);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.logdyn.api;
+
+import java.io.IOException;
+
+/**
+ * Carries frames of records between the nodes of a cluster, so records logged on one node reach websockets
+ * connected to any node, see {@link Logger#joinCluster(ClusterTransport)}.
+ *
+ * A transport only moves opaque frames, which the library batches, compresses and deduplicates itself.
+ * Frames may be lost, for example while a peer is unreachable, and may be delivered more than once.
+ *
+ * @see TcpClusterTransport
+ * @see LoopbackClusterTransport
+ */
+public interface ClusterTransport
+{
+    /**
+     * Receives the frames sent by other nodes.
+     */
+    interface Receiver
+    {
+        /**
+         * Called for each frame received, possibly from several threads at once.
+         * @param frame an array holding the frame, only valid until this returns
+         * @param offset the start of the frame in the array
+         * @param length the length of the frame
+         */
+        void receive(byte[] frame, int offset, int length);
+    }
+
+    /**
+     * Starts exchanging frames with the other nodes.
+     * @param receiver where to deliver frames from other nodes
+     * @throws IOException if the transport cannot be started
+     */
+    void start(Receiver receiver) throws IOException;
+
+    /**
+     * Sends a frame to every other node, without waiting for it to be delivered.
+     * @param frame an array holding the frame, which may be reused once this returns
+     * @param offset the start of the frame in the array
+     * @param length the length of the frame
+     */
+    void send(byte[] frame, int offset, int length);
+
+    /**
+     * Stops exchanging frames and releases any resources held.
+     */
+    void close();
+}
@@ -0,0 +1,636 @@
+package com.logdyn.api;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Holds message history on the heap as primitive columns rather than as LogRecord objects.
+ *
+ * Each record costs {@value #COLUMN_BYTES} bytes of columns plus its message as UTF-8 in a {@link MessageArena},
+ * which may be outside the heap, so the garbage collector has no per record objects to trace.
+ * Usernames, sessionIds and logger names are dictionary encoded, and levels are kept as their values,
+ * so a record of a level that shares its value with another is returned as whichever was stored first.
+ * Records are only materialised as {@link LogMessage}s, in small batches, when they are read.
+ * The few {@link RepeatedLogMessage}s keep their count and first timestamp in a map by sequence number.
+ *
+ * Records are kept in timestamp then sequence number order, as {@link LogRecordComparator#BY_SEQUENCE},
+ * in a ring that grows as needed. Reads hold a read lock for one batch at a time and resume from the
+ * last record they saw, so they tolerate records being added and evicted between batches.
+ */
+class ColumnarHistoryStore implements HistoryStore
+{
+    /** timestamp, sequence number, level, username, sessionId, logger name, message reference and length */
+    static final int COLUMN_BYTES = 8 + 8 + 4 + 4 + 4 + 4 + 8 + 4;
+    /** The most records materialised under one read lock */
+    private static final int READ_BATCH = 64;
+    /** The most records examined under one read lock when looking for matches */
+    private static final int SCAN_BATCH = 4096;
+
+    static final HistoryStore.Factory FACTORY = new HistoryStore.Factory()
+    {
+        @Override
+        public HistoryStore create(final String name, final RetentionPolicy retentionPolicy)
+        {
+            return new ColumnarHistoryStore(retentionPolicy);
+        }
+    };
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // the columns, a ring of records from head, guarded by lock
+    private long[] millis;
+    private long[] sequences;
+    private int[] levels;
+    private int[] usernames;
+    private int[] sessionIds;
+    private int[] loggerNames;
+    private long[] messageRefs;
+    private int[] messageLengths;
+    private int head = 0;
+    private int mask;
+    /** set once closed, after which nothing is added, guarded by lock */
+    private boolean closed = false;
+
+    private final Dictionary strings = new Dictionary();
+    private final Map<Integer, Level> levelsByValue = new HashMap<>();
+    /** the count and first timestamp of each repeated record, by sequence number, guarded by lock */
+    private final Map<Long, long[]> repeats = new HashMap<>();
+    private final MessageArena arena;
+
+    private volatile RetentionPolicy policy;
+    private volatile int size = 0;
+    private volatile long retainedBytes = 0;
+    private volatile long evictedCount = 0;
+
+    ColumnarHistoryStore(final RetentionPolicy policy)
+    {
+        this(policy, MessageArena.heap());
+    }
+
+    ColumnarHistoryStore(final RetentionPolicy policy, final MessageArena arena)
+    {
+        this.policy = policy;
+        this.arena = arena;
+        this.allocate(64);
+    }
+
+    /**
+     * Creates a factory for stores that keep their messages in direct memory.
+     * @param arenaBytes the most direct memory each store may use for messages
+     * @param slabBytes the size of each block of direct memory, and the longest message kept in full
+     * @return the factory
+     */
+    static HistoryStore.Factory offHeapFactory(final long arenaBytes, final int slabBytes)
+    {
+        // fail on creating the factory rather than the first LogSession
+        MessageArena.direct(arenaBytes, slabBytes);
+        return new HistoryStore.Factory()
+        {
+            @Override
+            public HistoryStore create(final String name, final RetentionPolicy retentionPolicy)
+            {
+                return new ColumnarHistoryStore(retentionPolicy, MessageArena.direct(arenaBytes, slabBytes));
+            }
+        };
+    }
+
+    private void allocate(final int capacity)
+    {
+        this.millis = new long[capacity];
+        this.sequences = new long[capacity];
+        this.levels = new int[capacity];
+        this.usernames = new int[capacity];
+        this.sessionIds = new int[capacity];
+        this.loggerNames = new int[capacity];
+        this.messageRefs = new long[capacity];
+        this.messageLengths = new int[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public boolean add(final LogRecord logRecord)
+    {
+        final long recordMillis = logRecord.getMillis();
+        final long sequence = logRecord.getSequenceNumber();
+        final byte[] message = this.arena.truncate(
+                null != logRecord.getMessage() ? logRecord.getMessage().getBytes(StandardCharsets.UTF_8) : null);
+        this.lock.writeLock().lock();
+        try
+        {
+            if (this.closed)
+            {
+                throw new IllegalStateException("History is closed");
+            }
+            long messageRef;
+            while (MessageArena.FULL == (messageRef = this.arena.store(message)) && this.size > 0)
+            {
+                // a bounded arena evicts the oldest records until there is room
+                this.evictOldest();
+            }
+            // records almost always arrive in order, so only search if this one does not belong at the end
+            int position = this.size;
+            if (position > 0 && ColumnarHistoryStore.compare(this.millis[this.physical(position - 1)],
+                    this.sequences[this.physical(position - 1)], recordMillis, sequence) >= 0)
+            {
+                position = this.lowerBound(recordMillis, sequence);
+                if (position < this.size && this.millis[this.physical(position)] == recordMillis
+                        && this.sequences[this.physical(position)] == sequence)
+                {
+                    this.arena.release(messageRef);
+                    return false;
+                }
+            }
+            if (this.size == this.millis.length)
+            {
+                this.grow();
+            }
+            for (int i = this.size; i > position; i--)
+            {
+                this.move(this.physical(i - 1), this.physical(i));
+            }
+            this.size++;
+            final int index = this.physical(position);
+            final Level level = null != logRecord.getLevel() ? logRecord.getLevel() : Level.INFO;
+            if (!this.levelsByValue.containsKey(level.intValue()))
+            {
+                this.levelsByValue.put(level.intValue(), level);
+            }
+            this.millis[index] = recordMillis;
+            this.sequences[index] = sequence;
+            this.levels[index] = level.intValue();
+            this.usernames[index] = this.strings.encode(logRecord instanceof LogMessage ? ((LogMessage) logRecord).getUsername() : null);
+            this.sessionIds[index] = this.strings.encode(logRecord instanceof LogMessage ? ((LogMessage) logRecord).getSessionId() : null);
+            this.loggerNames[index] = this.strings.encode(logRecord.getLoggerName());
+            this.messageRefs[index] = messageRef;
+            this.messageLengths[index] = null != message ? message.length : -1;
+            if (logRecord instanceof RepeatedLogMessage)
+            {
+                final RepeatedLogMessage repeated = (RepeatedLogMessage) logRecord;
+                this.repeats.put(sequence, new long[] {repeated.getCount(), repeated.getFirstMillis()});
+            }
+            this.retainedBytes += ColumnarHistoryStore.recordBytes(this.messageLengths[index]);
+            this.evict();
+            return true;
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    private void grow()
+    {
+        final long[] millis = this.millis;
+        final long[] sequences = this.sequences;
+        final int[] levels = this.levels;
+        final int[] usernames = this.usernames;
+        final int[] sessionIds = this.sessionIds;
+        final int[] loggerNames = this.loggerNames;
+        final long[] messageRefs = this.messageRefs;
+        final int[] messageLengths = this.messageLengths;
+        final int oldMask = this.mask;
+        this.allocate(millis.length * 2);
+        for (int i = 0; i < this.size; i++)
+        {
+            final int from = (this.head + i) & oldMask;
+            this.millis[i] = millis[from];
+            this.sequences[i] = sequences[from];
+            this.levels[i] = levels[from];
+            this.usernames[i] = usernames[from];
+            this.sessionIds[i] = sessionIds[from];
+            this.loggerNames[i] = loggerNames[from];
+            this.messageRefs[i] = messageRefs[from];
+            this.messageLengths[i] = messageLengths[from];
+        }
+        this.head = 0;
+    }
+
+    private void move(final int from, final int to)
+    {
+        this.millis[to] = this.millis[from];
+        this.sequences[to] = this.sequences[from];
+        this.levels[to] = this.levels[from];
+        this.usernames[to] = this.usernames[from];
+        this.sessionIds[to] = this.sessionIds[from];
+        this.loggerNames[to] = this.loggerNames[from];
+        this.messageRefs[to] = this.messageRefs[from];
+        this.messageLengths[to] = this.messageLengths[from];
+    }
+
+    /**
+     * Removes the oldest records until the history is within its retention policy. Must hold the write lock.
+     */
+    private void evict()
+    {
+        final RetentionPolicy policy = this.policy;
+        final long cutoff = System.currentTimeMillis() - policy.getMaxAge();
+        while (this.size > 0 && (this.size > policy.getMaxRecords()
+                || this.retainedBytes > policy.getMaxBytes()
+                || this.millis[this.head] < cutoff))
+        {
+            this.evictOldest();
+        }
+    }
+
+    /**
+     * Removes the oldest record. Must hold the write lock.
+     */
+    private void evictOldest()
+    {
+        final int index = this.head;
+        this.strings.release(this.usernames[index]);
+        this.strings.release(this.sessionIds[index]);
+        this.strings.release(this.loggerNames[index]);
+        this.arena.release(this.messageRefs[index]);
+        if (!this.repeats.isEmpty())
+        {
+            this.repeats.remove(this.sequences[index]);
+        }
+        this.retainedBytes -= ColumnarHistoryStore.recordBytes(this.messageLengths[index]);
+        this.head = (this.head + 1) & this.mask;
+        this.size--;
+        this.evictedCount++;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public void setRetentionPolicy(final RetentionPolicy retentionPolicy)
+    {
+        this.lock.writeLock().lock();
+        try
+        {
+            this.policy = retentionPolicy;
+            this.evict();
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public RetentionPolicy getRetentionPolicy()
+    {
+        return this.policy;
+    }
+
+    @Override
+    public Iterator<LogRecord> iterator()
+    {
+        return new ColumnIterator(HistoryQuery.ALL, false);
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public Iterator<LogRecord> iterator(final long since)
+    {
+        return new ColumnIterator(HistoryQuery.ALL.from(since), false);
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public Iterator<LogRecord> descendingIterator()
+    {
+        return new ColumnIterator(HistoryQuery.ALL, true);
+    }
+
+    /**
+     *  {@inheritDoc}
+     *  The time range is found by binary search, and the level, username and sessionId are compared
+     *  on the columns, so only matching records are materialised.
+     */
+    @Override
+    public Iterator<LogRecord> query(final HistoryQuery query)
+    {
+        return query.filter(new ColumnIterator(query, false));
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return this.size == 0;
+    }
+
+    @Override
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * @return the size of the columns and messages of the stored records
+     */
+    @Override
+    public long getRetainedBytes()
+    {
+        return this.retainedBytes;
+    }
+
+    @Override
+    public long getEvictedCount()
+    {
+        return this.evictedCount;
+    }
+
+    /**
+     * Discards the history, so a direct arena can be reclaimed by the garbage collector.
+     */
+    @Override
+    public void close()
+    {
+        this.lock.writeLock().lock();
+        try
+        {
+            this.closed = true;
+            this.size = 0;
+            this.retainedBytes = 0;
+            this.arena.clear();
+            this.repeats.clear();
+        }
+        finally
+        {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the size of the message arena, which is outside the heap for a direct arena
+     */
+    long getArenaBytes()
+    {
+        this.lock.readLock().lock();
+        try
+        {
+            return this.arena.getAllocatedBytes();
+        }
+        finally
+        {
+            this.lock.readLock().unlock();
+        }
+    }
+
+    private static long recordBytes(final int messageLength)
+    {
+        return ColumnarHistoryStore.COLUMN_BYTES + Math.max(0, messageLength);
+    }
+
+    private int physical(final int logical)
+    {
+        return (this.head + logical) & this.mask;
+    }
+
+    private static int compare(final long millis1, final long sequence1, final long millis2, final long sequence2)
+    {
+        final int result = Long.compare(millis1, millis2);
+        return result != 0 ? result : Long.compare(sequence1, sequence2);
+    }
+
+    /**
+     * @return the logical index of the first record at or after the timestamp and sequence number. Must hold a lock.
+     */
+    private int lowerBound(final long millis, final long sequence)
+    {
+        int low = 0;
+        int high = this.size;
+        while (low < high)
+        {
+            final int middle = (low + high) >>> 1;
+            final int index = this.physical(middle);
+            if (ColumnarHistoryStore.compare(this.millis[index], this.sequences[index], millis, sequence) < 0)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Creates a record from the columns. Must hold a lock.
+     */
+    private LogRecord materialise(final int index)
+    {
+        Level level = this.levelsByValue.get(this.levels[index]);
+        if (null == level)
+        {
+            level = JsLevel.parse(Integer.toString(this.levels[index]));
+        }
+        final long[] repeated = this.repeats.isEmpty() ? null : this.repeats.get(this.sequences[index]);
+        final String message = this.arena.read(this.messageRefs[index], this.messageLengths[index]);
+        final String username = this.strings.decode(this.usernames[index]);
+        final String sessionId = this.strings.decode(this.sessionIds[index]);
+        final LogMessage result = null != repeated
+                ? new RepeatedLogMessage(level, message, username, sessionId, (int) repeated[0], repeated[1], this.millis[index])
+                : new LogMessage(level, message, username, sessionId, this.millis[index]);
+        result.setSequenceNumber(this.sequences[index]);
+        result.setLoggerName(this.strings.decode(this.loggerNames[index]));
+        return result;
+    }
+
+    /**
+     * Reads the records matching a query in batches, each under the read lock,
+     * resuming each batch after the last record examined.
+     */
+    private class ColumnIterator implements Iterator<LogRecord>
+    {
+        private final HistoryQuery query;
+        private final boolean descending;
+        private final Deque<LogRecord> batch = new ArrayDeque<>(ColumnarHistoryStore.READ_BATCH);
+        private boolean started = false;
+        private boolean exhausted = false;
+        private long lastMillis;
+        private long lastSequence;
+
+        ColumnIterator(final HistoryQuery query, final boolean descending)
+        {
+            this.query = query;
+            this.descending = descending;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while (this.batch.isEmpty() && !this.exhausted)
+            {
+                this.fill();
+            }
+            return !this.batch.isEmpty();
+        }
+
+        @Override
+        public LogRecord next()
+        {
+            if (!this.hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            return this.batch.pollFirst();
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fill()
+        {
+            final ColumnarHistoryStore store = ColumnarHistoryStore.this;
+            store.lock.readLock().lock();
+            try
+            {
+                final int username = store.strings.find(this.query.getUsername());
+                final int sessionId = store.strings.find(this.query.getSessionId());
+                if (username == Dictionary.ABSENT || sessionId == Dictionary.ABSENT)
+                {
+                    this.exhausted = true;
+                    return;
+                }
+                final int minLevel = this.query.isAnyLevel() ? Integer.MIN_VALUE : this.query.getMinLevel().intValue();
+                int position;
+                if (this.descending)
+                {
+                    position = this.started
+                            ? store.lowerBound(this.lastMillis, this.lastSequence) - 1
+                            : store.lowerBound(this.query.getTo(), Long.MIN_VALUE) - 1;
+                }
+                else
+                {
+                    position = this.started
+                            ? store.lowerBound(this.lastMillis, this.lastSequence + 1)
+                            : store.lowerBound(this.query.getFrom(), Long.MIN_VALUE);
+                    if (this.started && this.lastSequence == Long.MAX_VALUE)
+                    {
+                        position = store.lowerBound(this.lastMillis + 1, Long.MIN_VALUE);
+                    }
+                }
+                for (int scanned = 0; scanned < ColumnarHistoryStore.SCAN_BATCH && this.batch.size() < ColumnarHistoryStore.READ_BATCH; scanned++)
+                {
+                    if (position < 0 || position >= store.size)
+                    {
+                        this.exhausted = true;
+                        return;
+                    }
+                    final int index = store.physical(position);
+                    final long recordMillis = store.millis[index];
+                    if (this.descending ? recordMillis < this.query.getFrom() : recordMillis >= this.query.getTo())
+                    {
+                        this.exhausted = true;
+                        return;
+                    }
+                    this.started = true;
+                    this.lastMillis = recordMillis;
+                    this.lastSequence = store.sequences[index];
+                    if (store.levels[index] >= minLevel
+                            && (null == this.query.getUsername() || store.usernames[index] == username)
+                            && (null == this.query.getSessionId() || store.sessionIds[index] == sessionId))
+                    {
+                        this.batch.addLast(store.materialise(index));
+                    }
+                    position += this.descending ? -1 : 1;
+                }
+            }
+            finally
+            {
+                store.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Reference counted codes for strings, where -1 is {@code null}. Guarded by the stores lock.
+     */
+    private static class Dictionary
+    {
+        static final int NULL = -1;
+        /** the code looked up for a string that is not in the dictionary */
+        static final int ABSENT = -2;
+
+        private final Map<String, Integer> codes = new HashMap<>();
+        private String[] values = new String[16];
+        private int[] references = new int[16];
+        private int[] free = new int[16];
+        private int freeCount = 0;
+        private int next = 0;
+
+        int encode(final String value)
+        {
+            if (null == value)
+            {
+                return Dictionary.NULL;
+            }
+            Integer code = this.codes.get(value);
+            if (null == code)
+            {
+                if (this.freeCount > 0)
+                {
+                    code = this.free[--this.freeCount];
+                }
+                else
+                {
+                    if (this.next == this.values.length)
+                    {
+                        this.values = Arrays.copyOf(this.values, this.next * 2);
+                        this.references = Arrays.copyOf(this.references, this.next * 2);
+                    }
+                    code = this.next++;
+                }
+                this.values[code] = value;
+                this.codes.put(value, code);
+            }
+            this.references[code]++;
+            return code;
+        }
+
+        int find(final String value)
+        {
+            if (null == value)
+            {
+                return Dictionary.NULL;
+            }
+            final Integer code = this.codes.get(value);
+            return null != code ? code : Dictionary.ABSENT;
+        }
+
+        String decode(final int code)
+        {
+            return code >= 0 ? this.values[code] : null;
+        }
+
+        void release(final int code)
+        {
+            if (code >= 0 && --this.references[code] == 0)
+            {
+                this.codes.remove(this.values[code]);
+                this.values[code] = null;
+                if (this.freeCount == this.free.length)
+                {
+                    this.free = Arrays.copyOf(this.free, this.freeCount * 2);
+                }
+                this.free[this.freeCount++] = code;
+            }
+        }
+    }
+}
@@ -0,0 +1,1012 @@
+package com.logdyn.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.zip.CRC32;
+
+/**
+ * Holds message history in append only segment files, so history survives a restart and is not limited by the heap.
+ *
+ * Each segment starts with a header holding the {@link RecordCodec#VERSION} of its records, and each record is written
+ * as its length, a CRC32 of its body, then the body in the {@link RecordCodec} format. Segments written before the
+ * header was added have none, and hold version 1 records, which are still read but no longer appended to.
+ * A new segment is started once a segment reaches its maximum size, or holds {@code 1/}{@value #SEGMENTS_PER_POLICY} of
+ * the records or bytes its retention policy allows. Retention deletes whole segments, oldest first, so once full a store
+ * keeps between {@code 1 - 1/}{@value #SEGMENTS_PER_POLICY} of its policy and the policy itself, and only the records
+ * of the segment being appended to can take it briefly over. Records past the maximum age are deleted with the last
+ * record of their segment, but are not read after they age out.
+ * Reads memory map the segments, and only per segment totals and a small index are held on the heap.
+ *
+ * Records are appended in the order they were added, and each segment remembers whether that was timestamp order.
+ * Iterators sort a segment that is out of order in memory, and merge segments whose time ranges overlap,
+ * so records are always returned in timestamp order, as by {@link LogRecordComparator#BY_SEQUENCE}.
+ * A record older than the newest one stored is looked up before it is added, so it is only stored once. Each bucket of
+ * records has a bloom filter of their timestamps and sequence numbers on the heap, and only a bucket that may hold the
+ * record is read.
+ *
+ * On opening, the existing segments are scanned, anything after the last complete record is truncated, and new records
+ * are appended to a new segment. Sequence numbers are only unique within a run, so records recovered from a previous
+ * run are renumbered as they are read, with their sign bit set. This run never assigns a negative sequence number,
+ * so they cannot be mistaken for one of its records, and sort before its records with the same timestamp.
+ */
+class FileHistoryStore implements HistoryStore
+{
+    /** The default maximum size of a segment file */
+    static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+    private static final String SEGMENT_SUFFIX = ".log";
+    /** length and CRC32 */
+    private static final int HEADER_BYTES = 8;
+    /** combined with the version in the segment header, negative so it cannot be the length of a first record */
+    private static final int SEGMENT_MAGIC = 0xF11E_0000;
+    private static final int SEGMENT_HEADER_BYTES = 4;
+    /** The number of segments the records a retention policy allows are split between, at most */
+    private static final int SEGMENTS_PER_POLICY = 8;
+    /** The number of consecutive records that share an index entry */
+    private static final int BUCKET_RECORDS = 64;
+    /** The size of the bloom filter of each bucket, 1024 bits, which for a full bucket is wrong about 1 in 400 times */
+    private static final int BLOOM_WORDS = 16;
+    private static final int BLOOM_HASHES = 4;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final RecordCodec codec = new RecordCodec();
+    private final CRC32 crc = new CRC32();
+    /** every segment, oldest first. Guarded by this, copied by readers */
+    private final List<Segment> segments = new ArrayList<>();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private volatile RetentionPolicy policy;
+    private volatile long totalRecords = 0;
+    private volatile long totalBytes = 0;
+    private long nextSegmentId = 0;
+    /** the newest record stored, anything newer cannot already be held. Guarded by this */
+    private long newestMillis = Long.MIN_VALUE;
+    private long newestSequence = Long.MIN_VALUE;
+    private FileChannel activeChannel;
+    /** set once closed, after which nothing is appended, so the directory can be opened by another store */
+    private boolean closed = false;
+
+    /**
+     * Opens the store in a directory, recovering any history already there.
+     * @param directory the directory holding this stores segments, created if needed
+     * @param segmentBytes the size a segment reaches before a new one is started
+     * @param policy the retention policy to apply
+     * @throws IllegalStateException if the directory cannot be read or created
+     */
+    FileHistoryStore(final Path directory, final int segmentBytes, final RetentionPolicy policy)
+    {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.policy = policy;
+        try
+        {
+            Files.createDirectories(directory);
+            this.recover();
+        }
+        catch (final IOException e)
+        {
+            throw new IllegalStateException("Failed to open history in " + directory, e);
+        }
+    }
+
+    /**
+     * Creates a factory for stores kept in sub directories of a directory.
+     * @param directory the parent directory of every store
+     * @param segmentBytes the size a segment reaches before a new one is started
+     * @return the factory
+     */
+    static HistoryStore.Factory factory(final File directory, final int segmentBytes)
+    {
+        return new HistoryStore.Factory()
+        {
+            @Override
+            public HistoryStore create(final String name, final RetentionPolicy retentionPolicy)
+            {
+                return new FileHistoryStore(directory.toPath().resolve(name), segmentBytes, retentionPolicy);
+            }
+        };
+    }
+
+    private void recover() throws IOException
+    {
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.directory, "*" + FileHistoryStore.SEGMENT_SUFFIX))
+        {
+            for (final Path file : stream)
+            {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        for (final Path file : files)
+        {
+            final String fileName = file.getFileName().toString();
+            final long id = Long.parseLong(fileName.substring(0, fileName.length() - FileHistoryStore.SEGMENT_SUFFIX.length()));
+            final Segment segment = new Segment(id, file);
+            segment.scan();
+            this.nextSegmentId = id + 1;
+            if (0 == segment.records)
+            {
+                // a new segment that nothing was written to before the previous run stopped
+                Files.deleteIfExists(file);
+                continue;
+            }
+            this.segments.add(segment);
+            this.totalRecords += segment.records;
+            this.totalBytes += segment.bytes;
+            if (FileHistoryStore.compare(segment.lastMillis, segment.lastSequence, this.newestMillis, this.newestSequence) > 0)
+            {
+                this.newestMillis = segment.lastMillis;
+                this.newestSequence = segment.lastSequence;
+            }
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public synchronized boolean add(final LogRecord logRecord)
+    {
+        if (this.closed)
+        {
+            throw new IllegalStateException("History in " + this.directory + " is closed");
+        }
+        final long millis = logRecord.getMillis();
+        final long sequence = logRecord.getSequenceNumber();
+        if (FileHistoryStore.compare(millis, sequence, this.newestMillis, this.newestSequence) > 0)
+        {
+            this.newestMillis = millis;
+            this.newestSequence = sequence;
+        }
+        else if (this.contains(millis, sequence))
+        {
+            return false;
+        }
+        this.codec.reset().writeInt(0).writeInt(0).write(logRecord);
+        final int bodyLength = this.codec.length() - FileHistoryStore.HEADER_BYTES;
+        this.crc.reset();
+        this.crc.update(this.codec.array(), FileHistoryStore.HEADER_BYTES, bodyLength);
+        this.codec.setInt(0, bodyLength);
+        this.codec.setInt(4, (int) this.crc.getValue());
+        try
+        {
+            Segment active = this.segments.isEmpty() ? null : this.segments.get(this.segments.size() - 1);
+            if (null == active || null == this.activeChannel || this.isFull(active, this.codec.length()))
+            {
+                active = this.roll();
+            }
+            final ByteBuffer source = this.codec.toByteBuffer();
+            while (source.hasRemaining())
+            {
+                this.activeChannel.write(source);
+            }
+            active.append(millis, sequence, logRecord.getLevel(), this.codec.length());
+            this.totalRecords++;
+            this.totalBytes += this.codec.length();
+        }
+        catch (final IOException e)
+        {
+            throw new IllegalStateException("Failed to append to history in " + this.directory, e);
+        }
+        this.evict();
+        return true;
+    }
+
+    /**
+     * Only reads the buckets whose bloom filter may hold the record. Must hold the lock.
+     * @param millis the timestamp of a record
+     * @param sequence the sequence number of the record
+     * @return true if a record with the same timestamp and sequence number is stored
+     */
+    private boolean contains(final long millis, final long sequence)
+    {
+        final long hash = FileHistoryStore.hash(millis, sequence);
+        for (final Segment segment : this.segments)
+        {
+            if (0 == segment.records || millis < segment.minMillis || millis > segment.maxMillis)
+            {
+                continue;
+            }
+            for (int bucket = 0; bucket < segment.buckets; bucket++)
+            {
+                if (segment.mayContain(bucket, millis, hash) && segment.contains(bucket, millis, sequence))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a well mixed hash of a timestamp and sequence number, for the bloom filters
+     */
+    private static long hash(final long millis, final long sequence)
+    {
+        long result = millis * 0x9E37_79B9_7F4A_7C15L + sequence;
+        result = (result ^ (result >>> 33)) * 0xFF51_AFD7_ED55_8CCDL;
+        result = (result ^ (result >>> 33)) * 0xC4CE_B9FE_1A85_EC53L;
+        return result ^ (result >>> 33);
+    }
+
+    /**
+     * Orders records as {@link LogRecordComparator#BY_SEQUENCE} does.
+     */
+    private static int compare(final long millis1, final long sequence1, final long millis2, final long sequence2)
+    {
+        final int result = Long.compare(millis1, millis2);
+        return result != 0 ? result : Long.compare(sequence1, sequence2);
+    }
+
+    /**
+     * Starts appending to a new segment. A segment recovered from a previous run is never appended to,
+     * as its records are renumbered as they are read.
+     */
+    private Segment roll() throws IOException
+    {
+        if (null != this.activeChannel)
+        {
+            this.activeChannel.close();
+            this.activeChannel = null;
+        }
+        final Path file = this.directory.resolve(String.format("%020d%s", this.nextSegmentId, FileHistoryStore.SEGMENT_SUFFIX));
+        final Segment result = new Segment(this.nextSegmentId++, file);
+        this.activeChannel = FileChannel.open(result.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        final ByteBuffer header = ByteBuffer.allocate(FileHistoryStore.SEGMENT_HEADER_BYTES);
+        header.putInt(FileHistoryStore.SEGMENT_MAGIC | RecordCodec.VERSION).flip();
+        while (header.hasRemaining())
+        {
+            this.activeChannel.write(header);
+        }
+        result.bytes = FileHistoryStore.SEGMENT_HEADER_BYTES;
+        this.totalBytes += FileHistoryStore.SEGMENT_HEADER_BYTES;
+        this.segments.add(result);
+        return result;
+    }
+
+    /**
+     * @param segment the segment to append to
+     * @param length the length of the record to append
+     * @return true if the record must start a new segment, as the segment holds its share of the retention policy,
+     * or would pass the maximum segment size
+     */
+    private boolean isFull(final Segment segment, final int length)
+    {
+        if (0 == segment.records)
+        {
+            return false;
+        }
+        final RetentionPolicy policy = this.policy;
+        return segment.records >= Math.max(1, policy.getMaxRecords() / FileHistoryStore.SEGMENTS_PER_POLICY)
+                || segment.bytes + length > Math.min(this.segmentBytes, policy.getMaxBytes() / FileHistoryStore.SEGMENTS_PER_POLICY);
+    }
+
+    private synchronized void evict()
+    {
+        final RetentionPolicy policy = this.policy;
+        final long cutoff = System.currentTimeMillis() - policy.getMaxAge();
+        while (this.segments.size() > 1)
+        {
+            final Segment oldest = this.segments.get(0);
+            if (this.totalRecords <= policy.getMaxRecords()
+                    && this.totalBytes <= policy.getMaxBytes()
+                    && oldest.maxMillis >= cutoff)
+            {
+                break;
+            }
+            this.segments.remove(0);
+            this.totalRecords -= oldest.records;
+            this.totalBytes -= oldest.bytes;
+            this.evictedCount.addAndGet(oldest.records);
+            try
+            {
+                // open mappings keep the contents readable for iterators already past this point
+                Files.deleteIfExists(oldest.file);
+            }
+            catch (final IOException e)
+            {
+                oldest.file.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public void setRetentionPolicy(final RetentionPolicy retentionPolicy)
+    {
+        this.policy = retentionPolicy;
+        this.evict();
+    }
+
+    @Override
+    public RetentionPolicy getRetentionPolicy()
+    {
+        return this.policy;
+    }
+
+    @Override
+    public Iterator<LogRecord> iterator()
+    {
+        return this.iterator(Long.MIN_VALUE);
+    }
+
+    /**
+     *  {@inheritDoc}
+     *  Segments holding only older records are skipped without being read.
+     */
+    @Override
+    public Iterator<LogRecord> iterator(final long since)
+    {
+        return new OrderedIterator(this.snapshot(), this.withinAge(HistoryQuery.ALL.from(since)), false);
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public Iterator<LogRecord> descendingIterator()
+    {
+        return new OrderedIterator(this.snapshot(), this.withinAge(HistoryQuery.ALL), true);
+    }
+
+    /**
+     *  {@inheritDoc}
+     *  Every segment, and every bucket of {@value #BUCKET_RECORDS} records within a segment, has its time range
+     *  and highest level indexed on the heap, and those that cannot match are skipped without being read.
+     */
+    @Override
+    public Iterator<LogRecord> query(final HistoryQuery query)
+    {
+        return query.filter(new OrderedIterator(this.snapshot(), this.withinAge(query), false));
+    }
+
+    /**
+     * @param query the records to read
+     * @return the query limited to records within the maximum age, as they are only deleted with their whole segment
+     */
+    private HistoryQuery withinAge(final HistoryQuery query)
+    {
+        final long cutoff = System.currentTimeMillis() - this.policy.getMaxAge();
+        return query.getFrom() < cutoff ? query.from(cutoff) : query;
+    }
+
+    private synchronized List<Segment> snapshot()
+    {
+        final List<Segment> result = new ArrayList<>(this.segments.size());
+        for (int i = 0; i < this.segments.size(); i++)
+        {
+            result.add(this.segments.get(i).copy(i == this.segments.size() - 1));
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return this.totalRecords == 0;
+    }
+
+    @Override
+    public int size()
+    {
+        return (int) Math.min(this.totalRecords, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return the size of the segment files
+     */
+    @Override
+    public long getRetainedBytes()
+    {
+        return this.totalBytes;
+    }
+
+    @Override
+    public long getEvictedCount()
+    {
+        return this.evictedCount.get();
+    }
+
+    /**
+     * Closes the segment being appended to. The segments are left on disk.
+     */
+    @Override
+    public synchronized void close()
+    {
+        this.closed = true;
+        if (null != this.activeChannel)
+        {
+            try
+            {
+                this.activeChannel.close();
+            }
+            catch (final IOException e)
+            {
+                // nothing more can be done with the channel
+            }
+            this.activeChannel = null;
+        }
+    }
+
+    /**
+     * Reads one framed record.
+     * @param buffer the buffer positioned at the start of a record, advanced past it
+     * @param version the {@link RecordCodec#VERSION} of the segments records
+     * @return the record, or {@code null} if the buffer holds no further complete and intact record
+     */
+    private static LogRecord readRecord(final ByteBuffer buffer, final int version)
+    {
+        if (buffer.remaining() < FileHistoryStore.HEADER_BYTES)
+        {
+            return null;
+        }
+        final int start = buffer.position();
+        final int length = buffer.getInt();
+        final int checksum = buffer.getInt();
+        if (length < 0 || length > buffer.remaining())
+        {
+            buffer.position(start);
+            return null;
+        }
+        // copied out of the mapping, as CRC32 only takes a ByteBuffer from Java 8
+        final byte[] body = new byte[length];
+        buffer.get(body);
+        final CRC32 crc = new CRC32();
+        crc.update(body, 0, length);
+        if ((int) crc.getValue() != checksum)
+        {
+            buffer.position(start);
+            return null;
+        }
+        return RecordCodec.read(ByteBuffer.wrap(body), true, version);
+    }
+
+    private static MappedByteBuffer map(final Path file, final long size) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, channel.size()));
+        }
+    }
+
+    /**
+     * A segment file, the totals of the records in it, and an index of its buckets.
+     * Only the appending thread writes to a segment, under the stores lock. Readers use a {@link #copy(boolean)} made
+     * under the same lock. Only the last segment is appended to, which updates the entry of its last bucket in place,
+     * so its index is copied. The index of an older segment never changes again, and is shared.
+     */
+    private static class Segment
+    {
+        private final long id;
+        private final Path file;
+        /** the {@link RecordCodec#VERSION} of the records, set from the header of an existing file */
+        private int version = RecordCodec.VERSION;
+        /** true for a segment of a previous run, whose records are renumbered as they are read */
+        private boolean recovered = false;
+        private long records = 0;
+        private long bytes = 0;
+        private long minMillis = Long.MAX_VALUE;
+        private long maxMillis = Long.MIN_VALUE;
+        private int maxLevel = Integer.MIN_VALUE;
+        /** the newest record appended */
+        private long lastMillis = Long.MIN_VALUE;
+        private long lastSequence = Long.MIN_VALUE;
+        /** false once a record older than lastMillis and lastSequence has been appended */
+        private boolean ordered = true;
+        private int buckets = 0;
+        /** the file offset of the first record of each bucket */
+        private int[] bucketOffsets = new int[8];
+        private long[] bucketMinMillis = new long[8];
+        private long[] bucketMaxMillis = new long[8];
+        private int[] bucketMaxLevels = new int[8];
+        /** {@value #BLOOM_WORDS} words per bucket, only used by the appending thread, so never copied */
+        private long[] bucketBlooms = new long[8 * FileHistoryStore.BLOOM_WORDS];
+
+        Segment(final long id, final Path file)
+        {
+            this.id = id;
+            this.file = file;
+        }
+
+        void append(final long millis, final long sequence, final Level level, final int length)
+        {
+            if (FileHistoryStore.compare(millis, sequence, this.lastMillis, this.lastSequence) > 0)
+            {
+                this.lastMillis = millis;
+                this.lastSequence = sequence;
+            }
+            else
+            {
+                this.ordered = false;
+            }
+            final int levelValue = (null != level ? level : Level.INFO).intValue();
+            if (this.records % FileHistoryStore.BUCKET_RECORDS == 0)
+            {
+                if (this.buckets == this.bucketOffsets.length)
+                {
+                    final int capacity = this.buckets * 2;
+                    this.bucketOffsets = Arrays.copyOf(this.bucketOffsets, capacity);
+                    this.bucketMinMillis = Arrays.copyOf(this.bucketMinMillis, capacity);
+                    this.bucketMaxMillis = Arrays.copyOf(this.bucketMaxMillis, capacity);
+                    this.bucketMaxLevels = Arrays.copyOf(this.bucketMaxLevels, capacity);
+                    this.bucketBlooms = Arrays.copyOf(this.bucketBlooms, capacity * FileHistoryStore.BLOOM_WORDS);
+                }
+                this.bucketOffsets[this.buckets] = (int) this.bytes;
+                this.bucketMinMillis[this.buckets] = millis;
+                this.bucketMaxMillis[this.buckets] = millis;
+                this.bucketMaxLevels[this.buckets] = levelValue;
+                this.buckets++;
+            }
+            final int bucket = this.buckets - 1;
+            this.bucketMinMillis[bucket] = Math.min(this.bucketMinMillis[bucket], millis);
+            this.bucketMaxMillis[bucket] = Math.max(this.bucketMaxMillis[bucket], millis);
+            this.bucketMaxLevels[bucket] = Math.max(this.bucketMaxLevels[bucket], levelValue);
+            final long hash = FileHistoryStore.hash(millis, sequence);
+            for (int i = 0; i < FileHistoryStore.BLOOM_HASHES; i++)
+            {
+                final int bit = (int) (hash >>> (i * 10)) & 1023;
+                this.bucketBlooms[bucket * FileHistoryStore.BLOOM_WORDS + (bit >>> 6)] |= 1L << bit;
+            }
+            this.minMillis = Math.min(this.minMillis, millis);
+            this.maxMillis = Math.max(this.maxMillis, millis);
+            this.maxLevel = Math.max(this.maxLevel, levelValue);
+            this.records++;
+            this.bytes += length;
+        }
+
+        /**
+         * @param bucket the index of a bucket
+         * @param millis the timestamp of a record
+         * @param hash the {@link FileHistoryStore#hash} of the record
+         * @return false if the bucket cannot hold the record
+         */
+        boolean mayContain(final int bucket, final long millis, final long hash)
+        {
+            if (millis < this.bucketMinMillis[bucket] || millis > this.bucketMaxMillis[bucket])
+            {
+                return false;
+            }
+            for (int i = 0; i < FileHistoryStore.BLOOM_HASHES; i++)
+            {
+                final int bit = (int) (hash >>> (i * 10)) & 1023;
+                if (0 == (this.bucketBlooms[bucket * FileHistoryStore.BLOOM_WORDS + (bit >>> 6)] & (1L << bit)))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Reads a bucket to find a record.
+         * @param bucket the index of a bucket
+         * @param millis the timestamp of the record
+         * @param sequence the sequence number of the record
+         * @return true if the bucket holds the record
+         */
+        boolean contains(final int bucket, final long millis, final long sequence)
+        {
+            final ByteBuffer records;
+            try
+            {
+                records = FileHistoryStore.map(this.file, this.bucketEnd(bucket));
+            }
+            catch (final IOException e)
+            {
+                throw new IllegalStateException("Failed to read history in " + this.file, e);
+            }
+            records.position(this.bucketOffsets[bucket]);
+            LogRecord logRecord;
+            while (null != (logRecord = this.read(records)))
+            {
+                if (logRecord.getMillis() == millis && logRecord.getSequenceNumber() == sequence)
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Reads one framed record, renumbering it if it was recovered.
+         * @param buffer the buffer positioned at the start of a record, advanced past it
+         * @return the record, or {@code null} if the buffer holds no further complete and intact record
+         */
+        LogRecord read(final ByteBuffer buffer)
+        {
+            final LogRecord result = FileHistoryStore.readRecord(buffer, this.version);
+            if (null != result && this.recovered)
+            {
+                result.setSequenceNumber(result.getSequenceNumber() | Long.MIN_VALUE);
+            }
+            return result;
+        }
+
+        /**
+         * Indexes the records in an existing file, truncating anything after the last intact record.
+         */
+        void scan() throws IOException
+        {
+            this.recovered = true;
+            final long size = Files.size(this.file);
+            final ByteBuffer buffer = FileHistoryStore.map(this.file, size);
+            if (buffer.remaining() >= FileHistoryStore.SEGMENT_HEADER_BYTES
+                    && (buffer.getInt(0) & 0xFFFF_0000) == FileHistoryStore.SEGMENT_MAGIC)
+            {
+                this.version = buffer.getInt() & 0xFFFF;
+                if (this.version > RecordCodec.VERSION)
+                {
+                    throw new IOException("Segment " + this.file + " was written by a newer version");
+                }
+                this.bytes = FileHistoryStore.SEGMENT_HEADER_BYTES;
+            }
+            else
+            {
+                // written before segments had a header, or before the header of a new segment was written
+                this.version = 1;
+            }
+            LogRecord logRecord;
+            while (null != (logRecord = this.read(buffer)))
+            {
+                this.append(logRecord.getMillis(), logRecord.getSequenceNumber(), logRecord.getLevel(),
+                    buffer.position() - (int) this.bytes);
+            }
+            if (this.bytes < size)
+            {
+                try (FileChannel channel = FileChannel.open(this.file, StandardOpenOption.WRITE))
+                {
+                    channel.truncate(this.bytes);
+                }
+            }
+        }
+
+        /**
+         * @param query the query to test
+         * @return true if the segment may hold records matching the query
+         */
+        boolean mayMatch(final HistoryQuery query)
+        {
+            return this.records > 0 && Segment.mayMatch(query, this.minMillis, this.maxMillis, this.maxLevel);
+        }
+
+        /**
+         * @param bucket the index of a bucket
+         * @param query the query to test
+         * @return true if the bucket may hold records matching the query
+         */
+        boolean mayMatch(final int bucket, final HistoryQuery query)
+        {
+            return Segment.mayMatch(query, this.bucketMinMillis[bucket], this.bucketMaxMillis[bucket], this.bucketMaxLevels[bucket]);
+        }
+
+        private static boolean mayMatch(final HistoryQuery query, final long minMillis, final long maxMillis, final int maxLevel)
+        {
+            return maxMillis >= query.getFrom() && minMillis < query.getTo()
+                    && (query.isAnyLevel() || maxLevel >= query.getMinLevel().intValue());
+        }
+
+        /**
+         * @param bucket the index of a bucket
+         * @return the file offset after the last record of the bucket
+         */
+        int bucketEnd(final int bucket)
+        {
+            return bucket + 1 < this.buckets ? this.bucketOffsets[bucket + 1] : (int) this.bytes;
+        }
+
+        /**
+         * @param active true if records may still be appended to the segment
+         * @return a copy of the segment that later appends do not change
+         */
+        Segment copy(final boolean active)
+        {
+            final Segment result = new Segment(this.id, this.file);
+            result.version = this.version;
+            result.recovered = this.recovered;
+            result.records = this.records;
+            result.bytes = this.bytes;
+            result.minMillis = this.minMillis;
+            result.maxMillis = this.maxMillis;
+            result.maxLevel = this.maxLevel;
+            result.lastMillis = this.lastMillis;
+            result.lastSequence = this.lastSequence;
+            result.ordered = this.ordered;
+            result.buckets = this.buckets;
+            if (active)
+            {
+                result.bucketOffsets = Arrays.copyOf(this.bucketOffsets, this.buckets);
+                result.bucketMinMillis = Arrays.copyOf(this.bucketMinMillis, this.buckets);
+                result.bucketMaxMillis = Arrays.copyOf(this.bucketMaxMillis, this.buckets);
+                result.bucketMaxLevels = Arrays.copyOf(this.bucketMaxLevels, this.buckets);
+            }
+            else
+            {
+                result.bucketOffsets = this.bucketOffsets;
+                result.bucketMinMillis = this.bucketMinMillis;
+                result.bucketMaxMillis = this.bucketMaxMillis;
+                result.bucketMaxLevels = this.bucketMaxLevels;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Merges the records of a snapshot of segments that match a query into timestamp order.
+     * Segments are opened in order of their time ranges, only once their earliest record (or latest, descending)
+     * could be next, so segments that do not overlap are read one at a time. A segment that is out of order
+     * is read and sorted in full when it is opened, which holds at most one segment on the heap.
+     */
+    private static class OrderedIterator implements Iterator<LogRecord>
+    {
+        private final Iterator<Segment> segments;
+        private final HistoryQuery query;
+        private final boolean descending;
+        private final Comparator<LogRecord> comparator;
+        /** the opened segments that still hold records, by their next record */
+        private final PriorityQueue<Cursor> open;
+        private Segment nextSegment;
+
+        OrderedIterator(final List<Segment> segments, final HistoryQuery query, final boolean descending)
+        {
+            this.query = query;
+            this.descending = descending;
+            this.comparator = descending
+                    ? Collections.reverseOrder(LogRecordComparator.BY_SEQUENCE)
+                    : LogRecordComparator.BY_SEQUENCE;
+            final List<Segment> sorted = new ArrayList<>(segments);
+            Collections.sort(sorted, new Comparator<Segment>()
+            {
+                @Override
+                public int compare(final Segment s1, final Segment s2)
+                {
+                    return descending ? Long.compare(s2.maxMillis, s1.maxMillis) : Long.compare(s1.minMillis, s2.minMillis);
+                }
+            });
+            this.segments = sorted.iterator();
+            this.open = new PriorityQueue<>(Math.max(1, sorted.size()), new Comparator<Cursor>()
+            {
+                @Override
+                public int compare(final Cursor c1, final Cursor c2)
+                {
+                    return OrderedIterator.this.comparator.compare(c1.next, c2.next);
+                }
+            });
+            this.nextSegment = this.segments.hasNext() ? this.segments.next() : null;
+            this.openSegments();
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return !this.open.isEmpty();
+        }
+
+        @Override
+        public LogRecord next()
+        {
+            final Cursor cursor = this.open.poll();
+            if (null == cursor)
+            {
+                throw new NoSuchElementException();
+            }
+            final LogRecord result = cursor.next;
+            if (cursor.advance())
+            {
+                this.open.add(cursor);
+            }
+            this.openSegments();
+            return result;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Opens every segment that may hold a record that comes before the next record of those already open.
+         */
+        private void openSegments()
+        {
+            while (null != this.nextSegment && (this.open.isEmpty() || this.mayPrecede(this.nextSegment, this.open.peek().next)))
+            {
+                final Cursor cursor = new Cursor(this.nextSegment);
+                if (cursor.advance())
+                {
+                    this.open.add(cursor);
+                }
+                this.nextSegment = this.segments.hasNext() ? this.segments.next() : null;
+            }
+        }
+
+        private boolean mayPrecede(final Segment segment, final LogRecord logRecord)
+        {
+            return this.descending ? segment.maxMillis >= logRecord.getMillis() : segment.minMillis <= logRecord.getMillis();
+        }
+
+        /**
+         * The records of one segment in order.
+         */
+        private final class Cursor
+        {
+            private final Iterator<LogRecord> logRecords;
+            private LogRecord next;
+
+            Cursor(final Segment segment)
+            {
+                final Iterator<LogRecord> records = new SegmentIterator(Collections.singletonList(segment),
+                        OrderedIterator.this.query, OrderedIterator.this.descending);
+                if (segment.ordered)
+                {
+                    this.logRecords = records;
+                }
+                else
+                {
+                    final List<LogRecord> sorted = new ArrayList<>();
+                    while (records.hasNext())
+                    {
+                        sorted.add(records.next());
+                    }
+                    Collections.sort(sorted, OrderedIterator.this.comparator);
+                    this.logRecords = sorted.iterator();
+                }
+            }
+
+            /**
+             * @return true if there is a next record
+             */
+            boolean advance()
+            {
+                this.next = this.logRecords.hasNext() ? this.logRecords.next() : null;
+                return null != this.next;
+            }
+        }
+    }
+
+    /**
+     * Iterates the records of a snapshot of segments that match a query, in the order they were appended.
+     * Each segment is only mapped once it is reached, and buckets that cannot match are skipped without being read.
+     * A bucket is read in full before its records are returned, so descending iteration only holds one bucket on the heap.
+     */
+    private static class SegmentIterator implements Iterator<LogRecord>
+    {
+        private final Iterator<Segment> segments;
+        private final HistoryQuery query;
+        private final boolean descending;
+        private final Deque<LogRecord> bucket = new ArrayDeque<>(FileHistoryStore.BUCKET_RECORDS);
+        private Segment segment;
+        private ByteBuffer buffer;
+        private int nextBucket;
+        private LogRecord next;
+
+        SegmentIterator(final List<Segment> segments, final HistoryQuery query, final boolean descending)
+        {
+            this.segments = segments.iterator();
+            this.query = query;
+            this.descending = descending;
+            this.next = this.advance();
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return null != this.next;
+        }
+
+        @Override
+        public LogRecord next()
+        {
+            if (null == this.next)
+            {
+                throw new NoSuchElementException();
+            }
+            final LogRecord result = this.next;
+            this.next = this.advance();
+            return result;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        private LogRecord advance()
+        {
+            while (this.bucket.isEmpty())
+            {
+                if (null != this.buffer && this.hasMoreBuckets())
+                {
+                    this.readBucket(this.nextBucket);
+                    this.nextBucket += this.descending ? -1 : 1;
+                }
+                else if (!this.nextSegment())
+                {
+                    return null;
+                }
+            }
+            return this.bucket.pollFirst();
+        }
+
+        private boolean hasMoreBuckets()
+        {
+            return this.descending ? this.nextBucket >= 0 : this.nextBucket < this.segment.buckets;
+        }
+
+        private void readBucket(final int index)
+        {
+            if (!this.segment.mayMatch(index, this.query))
+            {
+                return;
+            }
+            final ByteBuffer records = this.buffer.duplicate();
+            records.limit(this.segment.bucketEnd(index));
+            records.position(this.segment.bucketOffsets[index]);
+            LogRecord logRecord;
+            while (null != (logRecord = this.segment.read(records)))
+            {
+                if (this.query.matches(logRecord))
+                {
+                    if (this.descending)
+                    {
+                        this.bucket.addFirst(logRecord);
+                    }
+                    else
+                    {
+                        this.bucket.addLast(logRecord);
+                    }
+                }
+            }
+        }
+
+        private boolean nextSegment()
+        {
+            this.buffer = null;
+            while (this.segments.hasNext())
+            {
+                final Segment candidate = this.segments.next();
+                if (!candidate.mayMatch(this.query))
+                {
+                    continue;
+                }
+                try
+                {
+                    this.buffer = FileHistoryStore.map(candidate.file, candidate.bytes);
+                }
+                catch (final IOException e)
+                {
+                    // the segment was evicted after the snapshot was taken
+                    continue;
+                }
+                this.segment = candidate;
+                this.nextBucket = this.descending ? candidate.buckets - 1 : 0;
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.logdyn.api;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Selects records from a LogSessions message history, e.g.
+ * {@code HistoryQuery.ALL.from(System.currentTimeMillis() - 600_000).minLevel(Level.WARNING)}
+ * for warnings and above from the last 10 minutes.
+ * Queries are immutable, each method returns a new query with one criteria changed.
+ */
+public final class HistoryQuery
+{
+    /** Matches every record */
+    public static final HistoryQuery ALL = new HistoryQuery(Long.MIN_VALUE, Long.MAX_VALUE, Level.ALL, null, null, Integer.MAX_VALUE);
+
+    private final long from;
+    private final long to;
+    private final Level minLevel;
+    private final String username;
+    private final String sessionId;
+    private final int limit;
+
+    private HistoryQuery(final long from, final long to, final Level minLevel, final String username,
+                         final String sessionId, final int limit)
+    {
+        this.from = from;
+        this.to = to;
+        this.minLevel = minLevel;
+        this.username = username;
+        this.sessionId = sessionId;
+        this.limit = limit;
+    }
+
+    /**
+     * @param from the earliest timestamp to match
+     * @return a query for records from the timestamp onwards
+     */
+    public HistoryQuery from(final long from)
+    {
+        return new HistoryQuery(from, this.to, this.minLevel, this.username, this.sessionId, this.limit);
+    }
+
+    /**
+     * @param to the timestamp to match records before, exclusive
+     * @return a query for records before the timestamp
+     */
+    public HistoryQuery to(final long to)
+    {
+        return new HistoryQuery(this.from, to, this.minLevel, this.username, this.sessionId, this.limit);
+    }
+
+    /**
+     * @param minLevel the lowest level to match, compared by {@link Level#intValue()}, so {@link JsLevel}s are included
+     * @return a query for records at or above the level
+     */
+    public HistoryQuery minLevel(final Level minLevel)
+    {
+        return new HistoryQuery(this.from, this.to, Objects.requireNonNull(minLevel), this.username, this.sessionId, this.limit);
+    }
+
+    /**
+     * @param username the username to match, or {@code null} to match any
+     * @return a query for records logged for the user
+     */
+    public HistoryQuery username(final String username)
+    {
+        return new HistoryQuery(this.from, this.to, this.minLevel, username, this.sessionId, this.limit);
+    }
+
+    /**
+     * @param sessionId the httpSession Id to match, or {@code null} to match any
+     * @return a query for records logged for the httpSession
+     */
+    public HistoryQuery sessionId(final String sessionId)
+    {
+        return new HistoryQuery(this.from, this.to, this.minLevel, this.username, sessionId, this.limit);
+    }
+
+    /**
+     * @param limit the maximum number of records to return, oldest first
+     * @return a query returning at most the limit
+     * @throws IllegalArgumentException if the limit is negative
+     */
+    public HistoryQuery limit(final int limit)
+    {
+        if (limit < 0)
+        {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        return new HistoryQuery(this.from, this.to, this.minLevel, this.username, this.sessionId, limit);
+    }
+
+    public long getFrom()
+    {
+        return this.from;
+    }
+
+    public long getTo()
+    {
+        return this.to;
+    }
+
+    public Level getMinLevel()
+    {
+        return this.minLevel;
+    }
+
+    public String getUsername()
+    {
+        return this.username;
+    }
+
+    public String getSessionId()
+    {
+        return this.sessionId;
+    }
+
+    public int getLimit()
+    {
+        return this.limit;
+    }
+
+    /**
+     * @return true if the query matches records of every level
+     */
+    boolean isAnyLevel()
+    {
+        return this.minLevel.intValue() == Integer.MIN_VALUE;
+    }
+
+    /**
+     * @param level the level of a record
+     * @return true if the level is at or above the minimum level
+     */
+    boolean matchesLevel(final Level level)
+    {
+        return this.isAnyLevel() || (null != level ? level : Level.INFO).intValue() >= this.minLevel.intValue();
+    }
+
+    /**
+     * @param logRecord the record to test
+     * @return true if the record meets every criteria of this query
+     */
+    boolean matches(final LogRecord logRecord)
+    {
+        final long millis = logRecord.getMillis();
+        if (millis < this.from || millis >= this.to || !this.matchesLevel(logRecord.getLevel()))
+        {
+            return false;
+        }
+        if (null == this.username && null == this.sessionId)
+        {
+            return true;
+        }
+        if (!(logRecord instanceof LogMessage))
+        {
+            return false;
+        }
+        final LogMessage logMessage = (LogMessage) logRecord;
+        return (null == this.username || this.username.equals(logMessage.getUsername()))
+                && (null == this.sessionId || this.sessionId.equals(logMessage.getSessionId()));
+    }
+
+    /**
+     * Applies the criteria and limit of this query to records an index has narrowed down.
+     * @param candidates records that may match
+     * @return an iterator over the candidates that match, up to the limit
+     */
+    Iterator<LogRecord> filter(final Iterator<LogRecord> candidates)
+    {
+        return new Iterator<LogRecord>()
+        {
+            private int returned = 0;
+            private LogRecord next = this.advance();
+
+            @Override
+            public boolean hasNext()
+            {
+                return null != this.next;
+            }
+
+            @Override
+            public LogRecord next()
+            {
+                if (null == this.next)
+                {
+                    throw new NoSuchElementException();
+                }
+                final LogRecord result = this.next;
+                this.returned++;
+                this.next = this.advance();
+                return result;
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            private LogRecord advance()
+            {
+                while (this.returned < HistoryQuery.this.limit && candidates.hasNext())
+                {
+                    final LogRecord candidate = candidates.next();
+                    if (HistoryQuery.this.matches(candidate))
+                    {
+                        return candidate;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+}
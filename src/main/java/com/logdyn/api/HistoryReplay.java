@@ -0,0 +1,158 @@
+package com.logdyn.api;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.logging.LogRecord;
+import java.util.zip.Deflater;
+
+/**
+ * Splits message history into a series of bounded JSON array frames, or binary frames of {@link BinaryFrameCodec}.
+ * Frames are only built as the {@link LogViewer} is ready to send them, so a slow
+ * client holds back the replay rather than the server queueing the whole history at once.
+ *
+ * A compressed replay sends larger chunks of history, each deflated on its own as a zlib stream in a binary frame,
+ * so a client can inflate each frame as it arrives. Inflated, a chunk is the same as an uncompressed frame.
+ * The first byte of a zlib stream has 8 in its low 4 bits, which tells it apart from a {@link BinaryFrameCodec} frame.
+ *
+ * Frames are built by one thread at a time, but a replay may be closed by another thread as it is replaced,
+ * so closing waits for a chunk being deflated, and no further chunks are built once closed.
+ */
+class HistoryReplay
+{
+    /** The maximum number of records sent in one frame */
+    static final int MAX_FRAME_RECORDS = 500;
+    /** The frame length after which no more records are added to it */
+    static final int MAX_FRAME_CHARS = 32 * 1024;
+    /** The maximum number of records in one compressed chunk, larger as repetition across records compresses well */
+    static final int MAX_CHUNK_RECORDS = 5000;
+    /** The uncompressed chunk length after which no more records are added to it */
+    static final int MAX_CHUNK_BYTES = 256 * 1024;
+
+    private final Iterator<LogRecord> logRecords;
+    private final StringBuilder buffer = new StringBuilder(HistoryReplay.MAX_FRAME_CHARS);
+    /** deflates chunks of a compressed replay, ended once the replay is done or closed */
+    private Deflater deflater;
+    private byte[] compressed;
+
+    HistoryReplay(final Iterator<LogRecord> logRecords)
+    {
+        this(logRecords, false);
+    }
+
+    /**
+     * @param logRecords the history to send, in timestamp order
+     * @param compress true to send the history as deflated chunks, see {@link #nextCompressedFrame(BinaryFrameCodec)}
+     */
+    HistoryReplay(final Iterator<LogRecord> logRecords, final boolean compress)
+    {
+        this.logRecords = logRecords;
+        if (compress)
+        {
+            // speed over ratio, as replays are largest while many clients reconnect at once
+            this.deflater = new Deflater(Deflater.BEST_SPEED);
+            this.compressed = new byte[HistoryReplay.MAX_FRAME_CHARS];
+        }
+    }
+
+    /**
+     * @return true if the history is sent as deflated chunks
+     */
+    public boolean isCompressed()
+    {
+        return null != this.compressed;
+    }
+
+    /**
+     * @return true if all the history has been framed
+     */
+    public boolean isDone()
+    {
+        return !this.logRecords.hasNext();
+    }
+
+    /**
+     * Builds the next frame of history.
+     * @return the next frame, or {@code null} if all the history has been framed
+     */
+    public String nextFrame()
+    {
+        if (!this.logRecords.hasNext())
+        {
+            return null;
+        }
+        this.buffer.setLength(0);
+        LogRecordUtils.appendJSON(this.logRecords, HistoryReplay.MAX_FRAME_RECORDS, HistoryReplay.MAX_FRAME_CHARS, this.buffer);
+        return this.buffer.toString();
+    }
+
+    /**
+     * Builds the next binary frame of history, bounded by {@link #MAX_FRAME_CHARS} in bytes.
+     * @param codec the codec to encode the frame with
+     * @return the next frame, only valid until the codec is next used, or {@code null} if all the history has been framed
+     */
+    public ByteBuffer nextFrame(final BinaryFrameCodec codec)
+    {
+        if (!this.logRecords.hasNext())
+        {
+            return null;
+        }
+        return codec.encode(this.logRecords, HistoryReplay.MAX_FRAME_RECORDS, HistoryReplay.MAX_FRAME_CHARS);
+    }
+
+    /**
+     * Builds the next chunk of history and deflates it.
+     * @param codec the codec to encode the chunk with, or {@code null} to encode it as a JSON array
+     * @return the deflated chunk, only valid until this is next called, or {@code null} if all the history has been framed
+     * or the replay was closed
+     */
+    public synchronized ByteBuffer nextCompressedFrame(final BinaryFrameCodec codec)
+    {
+        if (null == this.deflater)
+        {
+            return null;
+        }
+        if (!this.logRecords.hasNext())
+        {
+            this.close();
+            return null;
+        }
+        if (null != codec)
+        {
+            final ByteBuffer chunk = codec.encode(this.logRecords, HistoryReplay.MAX_CHUNK_RECORDS, HistoryReplay.MAX_CHUNK_BYTES);
+            this.deflater.setInput(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+        }
+        else
+        {
+            this.buffer.setLength(0);
+            LogRecordUtils.appendJSON(this.logRecords, HistoryReplay.MAX_CHUNK_RECORDS, HistoryReplay.MAX_CHUNK_BYTES, this.buffer);
+            final byte[] chunk = this.buffer.toString().getBytes(StandardCharsets.UTF_8);
+            this.deflater.setInput(chunk);
+        }
+        this.deflater.finish();
+        int length = 0;
+        while (!this.deflater.finished())
+        {
+            if (length == this.compressed.length)
+            {
+                this.compressed = Arrays.copyOf(this.compressed, this.compressed.length * 2);
+            }
+            length += this.deflater.deflate(this.compressed, length, this.compressed.length - length);
+        }
+        this.deflater.reset();
+        return ByteBuffer.wrap(this.compressed, 0, length);
+    }
+
+    /**
+     * Releases the native memory of a compressed replay, which must not be used afterwards.
+     */
+    public synchronized void close()
+    {
+        if (null != this.deflater)
+        {
+            this.deflater.end();
+            this.deflater = null;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.logdyn.api;
+
+import java.util.Iterator;
+import java.util.logging.LogRecord;
+
+/**
+ * Holds the message history of a single LogSession.
+ * Implementations must be safe for concurrent use, and iterators must tolerate records
+ * being added and evicted while they are in use.
+ * @see HistoryStores
+ */
+public interface HistoryStore extends Iterable<LogRecord>
+{
+    /**
+     * Creates the stores used by LogSessions.
+     */
+    interface Factory
+    {
+        /**
+         * @param name a name unique to the LogSession, safe for use as a file name
+         * @param retentionPolicy the limits the store should keep to
+         * @return a new store, which may already hold history if the store is persistent
+         */
+        HistoryStore create(String name, RetentionPolicy retentionPolicy);
+    }
+
+    /**
+     * Stores a record, evicting the oldest records if this pushes the store over its retention policy.
+     * @param logRecord the record to store
+     * @return true if the record was stored, false if it was already held
+     * @throws IllegalStateException if the store has been closed
+     */
+    boolean add(LogRecord logRecord);
+
+    /**
+     * Replaces the retention policy, evicting immediately if the store exceeds the new limits.
+     * @param retentionPolicy the new policy
+     */
+    void setRetentionPolicy(RetentionPolicy retentionPolicy);
+
+    /**
+     * @return the limits the store currently keeps to
+     */
+    RetentionPolicy getRetentionPolicy();
+
+    /**
+     * @param since the earliest timestamp to include
+     * @return an iterator over the records from the timestamp onwards, oldest first
+     */
+    Iterator<LogRecord> iterator(long since);
+
+    /**
+     * @return an iterator over the records from newest to oldest
+     */
+    Iterator<LogRecord> descendingIterator();
+
+    /**
+     * Finds the records matching a query, using the stores indexes to avoid reading records outside its time range
+     * or below its minimum level.
+     * @param query the records to find
+     * @return an iterator over the matching records, oldest first
+     */
+    Iterator<LogRecord> query(HistoryQuery query);
+
+    /**
+     * @return true if no records are currently stored
+     */
+    boolean isEmpty();
+
+    /**
+     * @return the number of records currently stored
+     */
+    int size();
+
+    /**
+     * @return the estimated size of the stored records, as limited by {@link RetentionPolicy#getMaxBytes()}
+     */
+    long getRetainedBytes();
+
+    /**
+     * @return the number of records evicted since this store was created
+     */
+    long getEvictedCount();
+
+    /**
+     * Releases any resources held by the store. Persistent stores keep their history for the next store of the same name.
+     * Records added once this has started are rejected rather than stored in a store nothing will read again.
+     */
+    void close();
+}
@@ -0,0 +1,90 @@
+package com.logdyn.api;
+
+import java.io.File;
+import java.util.Objects;
+
+/**
+ * The history stores available to {@link Logger#setHistoryStoreFactory(HistoryStore.Factory)}.
+ */
+public final class HistoryStores
+{
+    private HistoryStores()
+    {
+    }
+
+    /**
+     * Keeps history on the heap. This is the default, and history is lost when the application stops.
+     * @return a factory for heap backed stores
+     */
+    public static HistoryStore.Factory memory()
+    {
+        return MemoryHistoryStore.FACTORY;
+    }
+
+    /**
+     * Keeps history on the heap as primitive columns, with messages as UTF-8 in a shared arena,
+     * which takes a fraction of the memory of {@link #memory()} at the cost of creating records again as they are read.
+     * @return a factory for columnar heap backed stores
+     */
+    public static HistoryStore.Factory columnar()
+    {
+        return ColumnarHistoryStore.FACTORY;
+    }
+
+    /**
+     * Keeps history as primitive columns on the heap, like {@link #columnar()}, with messages in direct memory,
+     * so the garbage collector has no history to trace. Each LogSession allocates direct memory for its messages
+     * as needed, up to the arena size, and evicts its oldest records once that is full.
+     * The JVMs {@code -XX:MaxDirectMemorySize} must allow for every LogSession.
+     * @param arenaBytes the most direct memory each LogSession may use for messages
+     * @return a factory for off heap stores
+     * @throws IllegalArgumentException if arenaBytes is smaller than the default slab size
+     */
+    public static HistoryStore.Factory offHeap(final long arenaBytes)
+    {
+        return HistoryStores.offHeap(arenaBytes, MessageArena.DEFAULT_SLAB_BYTES);
+    }
+
+    /**
+     * Keeps history as primitive columns on the heap with messages in direct memory, see {@link #offHeap(long)}.
+     * @param arenaBytes the most direct memory each LogSession may use for messages
+     * @param slabBytes the size of each block of direct memory allocated.
+     *                  Messages longer than this are truncated.
+     * @return a factory for off heap stores
+     * @throws IllegalArgumentException if slabBytes is not positive or arenaBytes is smaller than slabBytes
+     */
+    public static HistoryStore.Factory offHeap(final long arenaBytes, final int slabBytes)
+    {
+        return ColumnarHistoryStore.offHeapFactory(arenaBytes, slabBytes);
+    }
+
+    /**
+     * Keeps history in segment files under a directory, one sub directory per LogSession,
+     * so it is available to viewers again after a restart.
+     * @param directory the directory to keep history in
+     * @return a factory for file backed stores
+     */
+    public static HistoryStore.Factory file(final File directory)
+    {
+        return HistoryStores.file(directory, FileHistoryStore.DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Keeps history in segment files under a directory, one sub directory per LogSession,
+     * so it is available to viewers again after a restart.
+     * @param directory the directory to keep history in
+     * @param segmentBytes the size a segment file reaches before a new one is started.
+     *                     Retention removes whole segments, so smaller segments follow the retention policy more closely.
+     * @return a factory for file backed stores
+     * @throws IllegalArgumentException if segmentBytes is not positive
+     */
+    public static HistoryStore.Factory file(final File directory, final int segmentBytes)
+    {
+        Objects.requireNonNull(directory);
+        if (segmentBytes <= 0)
+        {
+            throw new IllegalArgumentException("segmentBytes must be positive");
+        }
+        return FileHistoryStore.factory(directory, segmentBytes);
+    }
+}
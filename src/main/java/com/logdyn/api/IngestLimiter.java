@@ -0,0 +1,154 @@
+package com.logdyn.api;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.LogRecord;
+
+/**
+ * Limits the rate records are accepted from a single websocket, both by its own {@link RateLimiter}
+ * and by one shared between all the websockets of the same user, see
+ * {@link LoggingEndpointConfig#setIngestLimits(double, int, double, int)}.
+ * A record must have a token from both to be accepted, and takes neither unless it has both.
+ * Frames that cannot be used, as they are malformed or hold an invalid filter, are charged to the limits too.
+ */
+class IngestLimiter
+{
+    private static final AtomicLong totalAccepted = new AtomicLong();
+    private static final AtomicLong totalSuppressed = new AtomicLong();
+
+    /** the limiter for this websocket, or {@code null} if it is not limited */
+    private final RateLimiter connectionLimiter;
+    private final LoggingEndpointConfig config;
+    /** the user or httpSession of this websocket, or {@code null} if it has neither */
+    private final String userKey;
+
+    private final AtomicLong acceptedRecords = new AtomicLong();
+    private final AtomicLong suppressedRecords = new AtomicLong();
+    private final AtomicLong unreportedSuppressed = new AtomicLong();
+    private final AtomicLong unreportedInvalid = new AtomicLong();
+
+    /**
+     * @param connectionLimiter the limiter for this websocket, or {@code null} if it is not limited
+     * @param config the configuration holding the limiters shared by users
+     * @param userKey the user or httpSession of this websocket, or {@code null} if it has neither
+     */
+    IngestLimiter(final RateLimiter connectionLimiter, final LoggingEndpointConfig config, final String userKey)
+    {
+        this.connectionLimiter = connectionLimiter;
+        this.config = config;
+        this.userKey = userKey;
+    }
+
+    /**
+     * Removes the records that are over the rate limits.
+     * @param logRecords the records received from the websocket, left holding only those accepted
+     */
+    void admit(final List<LogRecord> logRecords)
+    {
+        final RateLimiter userLimiter = this.config.getUserLimiter(this.userKey);
+        if (null == this.connectionLimiter && null == userLimiter)
+        {
+            this.acceptedRecords.addAndGet(logRecords.size());
+            IngestLimiter.totalAccepted.addAndGet(logRecords.size());
+            return;
+        }
+        final long now = System.nanoTime();
+        int kept = 0;
+        for (int i = 0; i < logRecords.size(); i++)
+        {
+            if (this.tryAcquire(userLimiter, now))
+            {
+                logRecords.set(kept++, logRecords.get(i));
+            }
+        }
+        final int suppressed = logRecords.size() - kept;
+        if (suppressed > 0)
+        {
+            logRecords.subList(kept, logRecords.size()).clear();
+            this.suppressedRecords.addAndGet(suppressed);
+            this.unreportedSuppressed.addAndGet(suppressed);
+            IngestLimiter.totalSuppressed.addAndGet(suppressed);
+        }
+        this.acceptedRecords.addAndGet(kept);
+        IngestLimiter.totalAccepted.addAndGet(kept);
+    }
+
+    /**
+     * Charges a frame that could not be used to the rate limits, so a client cannot flood the log with warnings about them.
+     * @return true if the frame is within the limits, and its warning should be logged,
+     *         false if it is only counted, see {@link #takeUnreportedInvalid()}
+     */
+    boolean admitInvalid()
+    {
+        final RateLimiter userLimiter = this.config.getUserLimiter(this.userKey);
+        if (this.tryAcquire(userLimiter, System.nanoTime()))
+        {
+            return true;
+        }
+        this.unreportedInvalid.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Takes a token from both limiters, or from neither.
+     * The connection limiter is only used by the thread receiving from its websocket,
+     * so a token it has when checked is still there to be taken once the shared user limiter has given one.
+     * @param userLimiter the limiter of the user, or {@code null} if users are not limited
+     * @param now the current {@link System#nanoTime()}
+     * @return true if the tokens were taken
+     */
+    private boolean tryAcquire(final RateLimiter userLimiter, final long now)
+    {
+        return (null == this.connectionLimiter || this.connectionLimiter.canAcquire(now))
+                && (null == userLimiter || userLimiter.tryAcquire(now))
+                && (null == this.connectionLimiter || this.connectionLimiter.tryAcquire(now));
+    }
+
+    /**
+     * @return the number of records suppressed since the last call, which should now be reported
+     */
+    long takeUnreported()
+    {
+        return this.unreportedSuppressed.get() > 0 ? this.unreportedSuppressed.getAndSet(0) : 0;
+    }
+
+    /**
+     * @return the number of unusable frames over the rate limits since the last call, which should now be reported
+     */
+    long takeUnreportedInvalid()
+    {
+        return this.unreportedInvalid.get() > 0 ? this.unreportedInvalid.getAndSet(0) : 0;
+    }
+
+    /**
+     * @return the number of records accepted from this websocket
+     */
+    long getAcceptedRecords()
+    {
+        return this.acceptedRecords.get();
+    }
+
+    /**
+     * @return the number of records from this websocket discarded by the rate limits
+     */
+    long getSuppressedRecords()
+    {
+        return this.suppressedRecords.get();
+    }
+
+    /**
+     * @return the number of records accepted from all websockets
+     */
+    static long getTotalAccepted()
+    {
+        return IngestLimiter.totalAccepted.get();
+    }
+
+    /**
+     * @return the number of records from all websockets discarded by the rate limits
+     */
+    static long getTotalSuppressed()
+    {
+        return IngestLimiter.totalSuppressed.get();
+    }
+}
@@ -1,5 +1,7 @@
 package com.logdyn.api;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 
 import org.json.JSONObject;
@@ -16,6 +18,11 @@ public class JsLevel extends Level implements JSONString
 
     private static final long serialVersionUID = -6831164266078074026L;
 
+    /** The most distinct names that are cached, so names sent by clients cannot grow the cache without bound */
+    private static final int MAX_PARSED = 256;
+    /** Levels already parsed, as {@link Level#parse} searches every known level and creates new ones for unknown values */
+    private static final ConcurrentMap<String, Level> PARSED = new ConcurrentHashMap<>();
+
     private JsLevel(final String name, final int value)
     {
         super(name, value);
@@ -23,7 +30,20 @@ public class JsLevel extends Level implements JSONString
 
     public static Level parse(final String name) throws IllegalArgumentException
     {
-        return Level.parse(name);
+        Level result = JsLevel.PARSED.get(name);
+        if (null == result)
+        {
+            result = Level.parse(name);
+            if (JsLevel.PARSED.size() < JsLevel.MAX_PARSED)
+            {
+                final Level existing = JsLevel.PARSED.putIfAbsent(name, result);
+                if (null != existing)
+                {
+                    result = existing;
+                }
+            }
+        }
+        return result;
     }
 
 	@Override
@@ -0,0 +1,72 @@
+package com.logdyn.api;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The global budget for the encoded JSON cached on {@link LogMessage}s held in heap history,
+ * so history replay can append already encoded records rather than encoding each one again.
+ * JSON is only cached while it fits the budget, and its space is returned when the record leaves the history.
+ */
+final class JsonCache
+{
+    /** The default budget, in chars */
+    static final long DEFAULT_MAX_CHARS = 4L * 1024 * 1024;
+
+    private static volatile long maxChars = JsonCache.DEFAULT_MAX_CHARS;
+    private static final AtomicLong cachedChars = new AtomicLong();
+
+    private JsonCache()
+    {
+    }
+
+    /**
+     * @param chars the length of JSON to cache
+     * @return true if the budget had room and has been reduced by the length
+     */
+    static boolean reserve(final int chars)
+    {
+        while (true)
+        {
+            final long current = JsonCache.cachedChars.get();
+            if (current + chars > JsonCache.maxChars)
+            {
+                return false;
+            }
+            if (JsonCache.cachedChars.compareAndSet(current, current + chars))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param chars the length of cached JSON that has been discarded
+     */
+    static void release(final int chars)
+    {
+        JsonCache.cachedChars.addAndGet(-chars);
+    }
+
+    /**
+     * @return true if the budget may have room for more JSON
+     */
+    static boolean hasRoom()
+    {
+        return JsonCache.cachedChars.get() < JsonCache.maxChars;
+    }
+
+    static void setMaxChars(final long maxChars)
+    {
+        JsonCache.maxChars = maxChars;
+    }
+
+    static long getMaxChars()
+    {
+        return JsonCache.maxChars;
+    }
+
+    static long getCachedChars()
+    {
+        return JsonCache.cachedChars.get();
+    }
+}
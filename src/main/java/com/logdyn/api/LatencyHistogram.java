@@ -0,0 +1,102 @@
+package com.logdyn.api;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of durations in nanoseconds with log-linear buckets, in the style of HdrHistogram:
+ * each power of two range is split into {@value #SUB_BUCKETS} linear buckets, so any recorded value is reported
+ * within about 6% of itself, in a fixed {@value #BUCKETS} buckets covering every long.
+ */
+class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << LatencyHistogram.SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - LatencyHistogram.SUB_BUCKET_BITS) * LatencyHistogram.SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LatencyHistogram.BUCKETS);
+    private final StripedCounter total = new StripedCounter();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos the duration to record, negative durations are recorded as 0
+     */
+    void record(final long nanos)
+    {
+        final long value = Math.max(0, nanos);
+        this.counts.incrementAndGet(LatencyHistogram.bucket(value));
+        this.total.add(value);
+        long current;
+        while (value > (current = this.max.get()) && !this.max.compareAndSet(current, value))
+        {
+            // another thread raised the maximum, try again against it
+        }
+    }
+
+    /**
+     * @return the recorded durations so far, which may miss some recorded while it is being taken
+     */
+    LatencySnapshot snapshot()
+    {
+        final long[] counts = new long[LatencyHistogram.BUCKETS];
+        long count = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] = this.counts.get(i);
+            count += counts[i];
+        }
+        final long max = this.max.get();
+        return new LatencySnapshot(count,
+                0 == count ? 0 : this.total.sum() / count,
+                LatencyHistogram.percentile(counts, count, 0.5, max),
+                LatencyHistogram.percentile(counts, count, 0.9, max),
+                LatencyHistogram.percentile(counts, count, 0.99, max),
+                LatencyHistogram.percentile(counts, count, 0.999, max),
+                max);
+    }
+
+    /**
+     * @return the highest value of the bucket holding the given fraction of the counts, at most the maximum recorded
+     */
+    private static long percentile(final long[] counts, final long count, final double fraction, final long max)
+    {
+        if (0 == count)
+        {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(count * fraction));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++)
+        {
+            seen += counts[i];
+            if (seen >= target)
+            {
+                return Math.min(max, LatencyHistogram.highestValue(i));
+            }
+        }
+        return max;
+    }
+
+    static int bucket(final long value)
+    {
+        if (value < LatencyHistogram.SUB_BUCKETS)
+        {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int subBucket = (int) (value >>> (exponent - LatencyHistogram.SUB_BUCKET_BITS)) & (LatencyHistogram.SUB_BUCKETS - 1);
+        return (exponent - LatencyHistogram.SUB_BUCKET_BITS + 1) * LatencyHistogram.SUB_BUCKETS + subBucket;
+    }
+
+    static long highestValue(final int bucket)
+    {
+        if (bucket < LatencyHistogram.SUB_BUCKETS)
+        {
+            return bucket;
+        }
+        final int shift = bucket / LatencyHistogram.SUB_BUCKETS - 1;
+        final long next = (long) (LatencyHistogram.SUB_BUCKETS + bucket % LatencyHistogram.SUB_BUCKETS + 1) << shift;
+        // the last bucket ends at the largest long
+        return next > 0 ? next - 1 : Long.MAX_VALUE;
+    }
+}
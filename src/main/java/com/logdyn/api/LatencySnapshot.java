@@ -0,0 +1,73 @@
+package com.logdyn.api;
+
+/**
+ * The distribution of the durations of an operation, in nanoseconds, as part of a {@link MetricsSnapshot}.
+ * Percentiles are accurate to within about 6%.
+ */
+public final class LatencySnapshot
+{
+    private final long count;
+    private final long meanNanos;
+    private final long p50Nanos;
+    private final long p90Nanos;
+    private final long p99Nanos;
+    private final long p999Nanos;
+    private final long maxNanos;
+
+    LatencySnapshot(final long count, final long meanNanos, final long p50Nanos, final long p90Nanos,
+                    final long p99Nanos, final long p999Nanos, final long maxNanos)
+    {
+        this.count = count;
+        this.meanNanos = meanNanos;
+        this.p50Nanos = p50Nanos;
+        this.p90Nanos = p90Nanos;
+        this.p99Nanos = p99Nanos;
+        this.p999Nanos = p999Nanos;
+        this.maxNanos = maxNanos;
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    public long getCount()
+    {
+        return this.count;
+    }
+
+    public long getMeanNanos()
+    {
+        return this.meanNanos;
+    }
+
+    public long getP50Nanos()
+    {
+        return this.p50Nanos;
+    }
+
+    public long getP90Nanos()
+    {
+        return this.p90Nanos;
+    }
+
+    public long getP99Nanos()
+    {
+        return this.p99Nanos;
+    }
+
+    public long getP999Nanos()
+    {
+        return this.p999Nanos;
+    }
+
+    public long getMaxNanos()
+    {
+        return this.maxNanos;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "count=" + this.count + ", mean=" + this.meanNanos + "ns, p50=" + this.p50Nanos + "ns, p99="
+                + this.p99Nanos + "ns, max=" + this.maxNanos + "ns";
+    }
+}
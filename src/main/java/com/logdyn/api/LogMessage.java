@@ -20,6 +20,10 @@ public class LogMessage extends LogRecord implements Comparable<LogRecord>
 	private final String sessionId;
 	private final String username;
 	private int hashCode = -1;
+	/** the number of heap histories holding this message, guarded by this */
+	private transient int retained = 0;
+	/** the encoded form of this message, only cached while it is held by a heap history */
+	private transient volatile String json;
 
 	public LogMessage (final Level level, final String message)
 	{
@@ -69,8 +73,9 @@ public class LogMessage extends LogRecord implements Comparable<LogRecord>
 	{
 		super(level, message);
 		this.setMillis(timestamp);
-		this.username = username;
-		this.sessionId = sessionId;
+		// pooled so the records of a user or session share one copy, and compare by reference
+		this.username = StringPool.USERNAMES.intern(username);
+		this.sessionId = StringPool.SESSION_IDS.intern(sessionId);
 	}
 
 	public String getUsername()
@@ -86,6 +91,54 @@ public class LogMessage extends LogRecord implements Comparable<LogRecord>
 		return this.sessionId;
 	}
 
+	/**
+	 * Marks this message as held by a heap history, allowing its JSON to be cached.
+	 */
+	synchronized void retain()
+	{
+		this.retained++;
+	}
+
+	/**
+	 * Marks this message as no longer held by a heap history, discarding its cached JSON once no history holds it.
+	 */
+	synchronized void release()
+	{
+		if (this.retained > 0 && --this.retained == 0 && null != this.json)
+		{
+			JsonCache.release(this.json.length());
+			this.json = null;
+		}
+	}
+
+	/**
+	 * @return the cached JSON form of this message, or {@code null}
+	 */
+	String getCachedJSON()
+	{
+		return this.json;
+	}
+
+	/**
+	 * @return true if this message is held by a heap history and its JSON is not yet cached
+	 */
+	boolean isCacheable()
+	{
+		return this.retained > 0 && null == this.json && JsonCache.hasRoom();
+	}
+
+	/**
+	 * Caches the JSON form of this message if it is held by a heap history and the {@link JsonCache} has room.
+	 * @param json the JSON form of this message
+	 */
+	synchronized void cacheJSON(final String json)
+	{
+		if (this.retained > 0 && null == this.json && JsonCache.reserve(json.length()))
+		{
+			this.json = json;
+		}
+	}
+
 	@Override
 	public int compareTo(LogRecord other)
 	{
@@ -130,12 +183,13 @@ public class LogMessage extends LogRecord implements Comparable<LogRecord>
 		}
 		else
 		{
+			// cheapest first, the pooled username and sessionId are usually the same instance
 			final LogMessage otherMessage = (LogMessage) other;
 			return this.getMillis() == otherMessage.getMillis()
-					&& this.getMessage().equals(otherMessage.getMessage())
 					&& Objects.equals(this.username, otherMessage.username)// use Objects.equals as username can be null
 					&& Objects.equals(this.sessionId, otherMessage.sessionId)// use Objects.equals as sessionId can be null
-					&& this.getLevel().equals(otherMessage.getLevel());
+					&& this.getLevel().equals(otherMessage.getLevel())
+					&& this.getMessage().equals(otherMessage.getMessage());
 		}
 	}
 }
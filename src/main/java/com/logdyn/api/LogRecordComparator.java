@@ -11,6 +11,14 @@ public class LogRecordComparator implements Comparator<LogRecord>
 {
     public static final LogRecordComparator COMPARATOR = new LogRecordComparator();
 
+    /**
+     * Orders by timestamp, then by {@link LogRecord#getSequenceNumber()}.
+     * The sequence number is assigned from a JVM wide counter when a record is created, so this gives
+     * the same timestamp ordering as {@link #COMPARATOR} using only primitive comparisons, and only
+     * treats a record as a duplicate of itself.
+     */
+    public static final Comparator<LogRecord> BY_SEQUENCE = new SequenceComparator();
+
     private LogRecordComparator()
     {
         super();
@@ -60,6 +68,21 @@ public class LogRecordComparator implements Comparator<LogRecord>
         return LogRecordComparator.COMPARATOR.compare(o1, o2);
     }
 
+    private static class SequenceComparator implements Comparator<LogRecord>
+    {
+        private SequenceComparator()
+        {
+            super();
+        }
+
+        @Override
+        public int compare(LogRecord o1, LogRecord o2)
+        {
+            final int result = Long.compare(o1.getMillis(), o2.getMillis());
+            return result != 0 ? result : Long.compare(o1.getSequenceNumber(), o2.getSequenceNumber());
+        }
+    }
+
     private static class LevelComparator implements Comparator<Level>
     {
         public static final LevelComparator COMPARATOR = new LevelComparator();
@@ -97,7 +120,12 @@ public class LogRecordComparator implements Comparator<LogRecord>
 
         @Override
         public int compare(String o1, String o2) {
-            if (o1 == null)
+            if (o1 == o2)
+            {
+                // pooled usernames and sessionIds are usually the same instance
+                return 0;
+            }
+            else if (o1 == null)
             {
                 return (o2 == null) ? 0 : -1 ;
             }
@@ -1,11 +1,13 @@
 package com.logdyn.api;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.Objects;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 
-import org.json.JSONArray;
 import org.json.JSONObject;
 
 /**
@@ -23,30 +25,229 @@ public class LogRecordUtils
     private static final String SESSION_ID_LABEL = "sessionId";
     /** The timestamp label used for JSON Objects */
     private static final String TIMESTAMP_LABEL = "timestamp";
+    /** The label for the number of repeats folded into a {@link RepeatedLogMessage} */
+    private static final String COUNT_LABEL = "count";
+    /** The label for the timestamp of the first repeat folded into a {@link RepeatedLogMessage} */
+    private static final String FIRST_TIMESTAMP_LABEL = "firstTimestamp";
 
     private static final Level DEFAULT_LEVEL = Level.FINE;
+    /** Buffers larger than this are not kept for reuse, so one huge record does not pin memory */
+    private static final int MAX_REUSED_CAPACITY = 16 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
-    private static JSONObject toJSONObject(final LogRecord logRecord)
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>()
     {
-        return new JSONObject()
-                .put(LogRecordUtils.LEVEL_LABEL, logRecord.getLevel().getName())
-                .put(LogRecordUtils.MESSAGE_LABEL, logRecord.getMessage())
-                .put(LogRecordUtils.TIMESTAMP_LABEL, Long.valueOf(logRecord.getMillis()));
-    }
+        @Override
+        protected StringBuilder initialValue()
+        {
+            return new StringBuilder(256);
+        }
+    };
 
     public static String toJSON(final LogRecord logRecord)
     {
-        return LogRecordUtils.toJSONObject(logRecord).toString();
+        final LogMessage logMessage = logRecord instanceof LogMessage ? (LogMessage) logRecord : null;
+        if (null != logMessage && null != logMessage.getCachedJSON())
+        {
+            return logMessage.getCachedJSON();
+        }
+        final StringBuilder buffer = LogRecordUtils.borrowBuffer();
+        final String result = LogRecordUtils.encode(logRecord, buffer).toString();
+        LogRecordUtils.returnBuffer(buffer);
+        if (null != logMessage)
+        {
+            logMessage.cacheJSON(result);
+        }
+        return result;
     }
 
     public static String toJSON(final Collection<LogRecord> logRecords)
     {
-        final JSONArray jsonArray = new JSONArray();
+        final StringBuilder builder = new StringBuilder(16 + 96 * logRecords.size());
+        return LogRecordUtils.appendJSON(logRecords.iterator(), Integer.MAX_VALUE, Integer.MAX_VALUE, builder).toString();
+    }
+
+    /**
+     * Appends records from an iterator as a JSON array, stopping early once either limit is reached.
+     * At least one record is appended if the iterator has any, even if it alone exceeds the limits.
+     * @param logRecords the records to append, left positioned after the last appended record
+     * @param maxRecords the maximum number of records to append
+     * @param maxChars the length of builder after which no further records are appended
+     * @param builder the builder to append to
+     * @return the builder
+     */
+    static StringBuilder appendJSON(final Iterator<? extends LogRecord> logRecords, final int maxRecords,
+                                    final int maxChars, final StringBuilder builder)
+    {
+        builder.append('[');
+        int count = 0;
+        while (count < maxRecords && builder.length() < maxChars && logRecords.hasNext())
+        {
+            if (count++ > 0)
+            {
+                builder.append(',');
+            }
+            LogRecordUtils.appendJSON(logRecords.next(), builder);
+        }
+        return builder.append(']');
+    }
+
+    /**
+     * Writes records as a JSON array, one record at a time, so the whole array is never held in memory.
+     * @param logRecords the records to write
+     * @param writer the writer to write to
+     * @throws IOException if the writer fails
+     */
+    public static void writeJSON(final Iterable<? extends LogRecord> logRecords, final Writer writer) throws IOException
+    {
+        final StringBuilder buffer = LogRecordUtils.borrowBuffer();
+        writer.write('[');
+        boolean first = true;
         for (final LogRecord logRecord : logRecords)
         {
-            jsonArray.put(LogRecordUtils.toJSONObject(logRecord));
+            if (!first)
+            {
+                buffer.append(',');
+            }
+            first = false;
+            LogRecordUtils.appendJSON(logRecord, buffer);
+            writer.append(buffer);
+            buffer.setLength(0);
+        }
+        writer.write(']');
+        LogRecordUtils.returnBuffer(buffer);
+    }
+
+    /**
+     * Appends the JSON form of a record to a builder without any intermediate objects.
+     * A {@link LogMessage} held in heap history is only encoded once, and its JSON cached for later calls.
+     * @param logRecord the record to encode
+     * @param builder the builder to append to
+     * @return the builder
+     */
+    public static StringBuilder appendJSON(final LogRecord logRecord, final StringBuilder builder)
+    {
+        if (logRecord instanceof LogMessage)
+        {
+            final LogMessage logMessage = (LogMessage) logRecord;
+            final String cached = logMessage.getCachedJSON();
+            if (null != cached)
+            {
+                return builder.append(cached);
+            }
+            if (logMessage.isCacheable())
+            {
+                final int start = builder.length();
+                LogRecordUtils.encode(logRecord, builder);
+                logMessage.cacheJSON(builder.substring(start));
+                return builder;
+            }
+        }
+        return LogRecordUtils.encode(logRecord, builder);
+    }
+
+    private static StringBuilder encode(final LogRecord logRecord, final StringBuilder builder)
+    {
+        builder.append('{');
+        if (null != logRecord.getLevel())
+        {
+            builder.append('"').append(LogRecordUtils.LEVEL_LABEL).append("\":");
+            LogRecordUtils.appendString(logRecord.getLevel().getName(), builder);
+            builder.append(',');
+        }
+        if (null != logRecord.getMessage())
+        {
+            builder.append('"').append(LogRecordUtils.MESSAGE_LABEL).append("\":");
+            LogRecordUtils.appendString(logRecord.getMessage(), builder);
+            builder.append(',');
+        }
+        builder.append('"').append(LogRecordUtils.TIMESTAMP_LABEL).append("\":").append(logRecord.getMillis());
+        if (logRecord instanceof RepeatedLogMessage)
+        {
+            final RepeatedLogMessage repeated = (RepeatedLogMessage) logRecord;
+            builder.append(",\"").append(LogRecordUtils.COUNT_LABEL).append("\":").append(repeated.getCount());
+            builder.append(",\"").append(LogRecordUtils.FIRST_TIMESTAMP_LABEL).append("\":").append(repeated.getFirstMillis());
+        }
+        return builder.append('}');
+    }
+
+    /**
+     * Appends a quoted and escaped JSON string.
+     * @param string the string to append
+     * @param builder the builder to append to
+     */
+    static void appendString(final String string, final StringBuilder builder)
+    {
+        builder.append('"');
+        int start = 0;
+        final int length = string.length();
+        for (int i = 0; i < length; i++)
+        {
+            final char c = string.charAt(i);
+            final String escape;
+            switch (c)
+            {
+                case '"':
+                    escape = "\\\"";
+                    break;
+                case '\\':
+                    escape = "\\\\";
+                    break;
+                case '\n':
+                    escape = "\\n";
+                    break;
+                case '\r':
+                    escape = "\\r";
+                    break;
+                case '\t':
+                    escape = "\\t";
+                    break;
+                case '\b':
+                    escape = "\\b";
+                    break;
+                case '\f':
+                    escape = "\\f";
+                    break;
+                default:
+                    // control characters are invalid in JSON and the line separators are invalid in javascript
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029')
+                    {
+                        escape = null;
+                        break;
+                    }
+                    continue;
+            }
+            builder.append(string, start, i);
+            start = i + 1;
+            if (null != escape)
+            {
+                builder.append(escape);
+            }
+            else
+            {
+                builder.append("\\u")
+                        .append(LogRecordUtils.HEX_DIGITS[(c >> 12) & 0xF])
+                        .append(LogRecordUtils.HEX_DIGITS[(c >> 8) & 0xF])
+                        .append(LogRecordUtils.HEX_DIGITS[(c >> 4) & 0xF])
+                        .append(LogRecordUtils.HEX_DIGITS[c & 0xF]);
+            }
+        }
+        builder.append(string, start, length).append('"');
+    }
+
+    private static StringBuilder borrowBuffer()
+    {
+        final StringBuilder buffer = LogRecordUtils.BUFFER.get();
+        buffer.setLength(0);
+        return buffer;
+    }
+
+    private static void returnBuffer(final StringBuilder buffer)
+    {
+        if (buffer.capacity() > LogRecordUtils.MAX_REUSED_CAPACITY)
+        {
+            LogRecordUtils.BUFFER.remove();
         }
-        return jsonArray.toString();
     }
 
     public static LogRecord fromJSON(final JSONObject jsonObject)
@@ -3,16 +3,39 @@ package com.logdyn.api;
 import javax.websocket.Session;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.Future;
 import java.util.logging.LogRecord;
 
 class LogSession
 {
-	/** the sessions that are part of this LogSession */
-	private final Set<Session> sessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+	/** the sessions that are part of this LogSession, and their outbound queues */
+	private final Map<Session, LogViewer> sessions = new ConcurrentHashMap<>();
 	/** The message history for this LogSession */
-	private final SortedSet<LogRecord> messages = new ConcurrentSkipListSet<>(LogRecordComparator.COMPARATOR);
+	private volatile HistoryStore messages;
+	/** folds repeated records, see {@link Logger#setCollapseWindow(long)} */
+	private final RepeatCollapser repeats = new RepeatCollapser(this);
+	/** when this LogSession was last used, to the nearest {@link #ACTIVITY_RESOLUTION} */
+	private volatile long lastActive = System.currentTimeMillis();
+	/** set once this LogSession has been closed, after which its history rejects new records */
+	private volatile boolean closed = false;
+
+	/** the precision in milliseconds of lastActive, so logging rarely writes to it */
+	private static final long ACTIVITY_RESOLUTION = 1000;
+
+	LogSession()
+	{
+		this(RetentionPolicy.DEFAULT);
+	}
+
+	LogSession(final RetentionPolicy retentionPolicy)
+	{
+		this(new MemoryHistoryStore(retentionPolicy));
+	}
+
+	LogSession(final HistoryStore messages)
+	{
+		this.messages = messages;
+	}
 
 	/**
 	 * Adds a websocket session that will recieve LogRecords sent to this LogSession.
@@ -22,9 +45,20 @@ class LogSession
 	 */
 	public boolean addWebsocketSession(final Session session)
     {
-    	return this.sessions.add(session);
+    	return this.addViewer(LoggingEndpointConfig.DEFAULTS.createViewer(session));
     }
 
+	/**
+	 * Adds a websocket session, through its outbound queue, that will recieve LogRecords sent to this LogSession.
+	 * @param viewer the viewer of the session to add
+	 * @return true if the session was added
+	 */
+	public boolean addViewer(final LogViewer viewer)
+	{
+		this.touch();
+		return null == this.sessions.put(viewer.getSession(), viewer);
+	}
+
 	/**
 	 * Removes a websocket session from this LogSession.
 	 * @param session the session to remove
@@ -33,7 +67,8 @@ class LogSession
 	 */
 	public boolean removeWebsocketSession(final Session session)
     {
-    	return this.sessions.remove(session);
+		this.touch();
+    	return null != this.sessions.remove(session);
     }
 
 	/**
@@ -59,28 +94,190 @@ class LogSession
 
 	/**
 	 * Stores the provided {@link LogRecord} and sends to the websocket sessions
-	 * contained by this LogSession, excluding the provided session.
+	 * contained by this LogSession, excluding the provided session and those whose filter does not accept it.
+	 * The record is encoded at most once and the same payload is shared by every JSON recipient,
+	 * binary recipients encode it as part of their next frame.
+	 * A repeat of a recent record may instead be folded into a count, see {@link Logger#setCollapseWindow(long)}.
 	 * @param logRecord the {@link LogRecord} to send to this LogSessions websockets.
 	 * @param exclude a {@link javax.websocket.Session} to exclude or {@code null}
-	 * @return true if the logRecord was stored as defined by {@link Collection#add}
+	 * @return true if the logRecord was stored as defined by {@link Collection#add}, false if it was folded
 	 */
 	public boolean logMessage(final LogRecord logRecord, final Session exclude)
+	{
+		this.touch();
+		return !this.repeats.fold(logRecord, null, null) && this.publish(logRecord, exclude);
+	}
+
+	/**
+	 * Folds a repeat of a recent record into a count, see {@link Logger#setCollapseWindow(long)}.
+	 * @param logRecord the record being logged
+	 * @param username the username of the user the record was logged for, or {@code null}
+	 * @param httpSessionId the httpSession Id the record was logged for, or {@code null}
+	 * @return true if the record was folded, and so must not be published
+	 */
+	boolean fold(final LogRecord logRecord, final String username, final String httpSessionId)
+	{
+		this.touch();
+		return this.repeats.fold(logRecord, username, httpSessionId);
+	}
+
+	/**
+	 * Stores a {@link LogRecord} and sends it to the websocket sessions contained by this LogSession,
+	 * without folding it into earlier repeats.
+	 * @param logRecord the {@link LogRecord} to send to this LogSessions websockets.
+	 * @param exclude a {@link javax.websocket.Session} to exclude or {@code null}
+	 * @return true if the logRecord was stored as defined by {@link Collection#add}
+	 */
+	boolean publish(final LogRecord logRecord, final Session exclude)
     {
-    	boolean result = this.messages.add(logRecord);
+		final boolean timed = Metrics.isEnabled();
+		final long start = timed ? System.nanoTime() : 0;
+    	boolean result = this.store(logRecord);
 
     	if (result)
     	{
-    		for (final Session session : this.sessions)
+    		String payload = null;
+    		for (final LogViewer viewer : this.sessions.values())
 			{
-				if (!session.equals(exclude))
+				if (!viewer.getSession().equals(exclude) && viewer.getFilter().accepts(logRecord))
 				{
-					session.getAsyncRemote().sendText(LogRecordUtils.toJSON(logRecord));
+					if (viewer.isBinary())
+					{
+						viewer.send(logRecord);
+					}
+					else
+					{
+						if (null == payload)
+						{
+							payload = LogRecordUtils.toJSON(logRecord);
+						}
+						viewer.send(payload, logRecord);
+					}
+					if (timed)
+					{
+						Metrics.QUEUED_RECORDS.increment();
+					}
 				}
 			}
 		}
+		if (timed)
+		{
+			Metrics.FAN_OUT_LATENCY.record(System.nanoTime() - start);
+		}
     	return result;
     }
 
+	/**
+	 * Adds a record to the history, or to the history that replaced it if it was closed by {@link #setHistoryStore}.
+	 * @param logRecord the record to add
+	 * @return true if the logRecord was stored as defined by {@link Collection#add}
+	 * @throws IllegalStateException if this LogSession has been closed
+	 */
+	private boolean store(final LogRecord logRecord)
+	{
+		HistoryStore store = this.messages;
+		while (true)
+		{
+			try
+			{
+				return store.add(logRecord);
+			}
+			catch (final IllegalStateException e)
+			{
+				final HistoryStore current = this.messages;
+				if (current == store)
+				{
+					throw e;
+				}
+				store = current;
+			}
+		}
+	}
+
+	/**
+	 * Stores a batch of {@link LogRecord}s and sends those not already stored to the websocket sessions
+	 * contained by this LogSession. Each record is encoded once for all recipients.
+	 * Repeats of recent records may instead be folded into a count, see {@link Logger#setCollapseWindow(long)}.
+	 * @param logRecords the {@link LogRecord}s to send to this LogSessions websockets.
+	 * @param exclude a {@link javax.websocket.Session} to exclude or {@code null}
+	 * @return the number of logRecords that were stored
+	 */
+	public int logMessages(final Collection<LogRecord> logRecords, final Session exclude)
+	{
+		this.touch();
+		final List<LogRecord> unfolded = new ArrayList<>(logRecords.size());
+		for (final LogRecord logRecord : logRecords)
+		{
+			if (!this.repeats.fold(logRecord, null, null))
+			{
+				unfolded.add(logRecord);
+			}
+		}
+		return this.publish(unfolded, exclude);
+	}
+
+	/**
+	 * Stores a batch of {@link LogRecord}s and sends those not already stored to the websocket sessions
+	 * contained by this LogSession, without folding them into earlier repeats.
+	 * @param logRecords the {@link LogRecord}s to send to this LogSessions websockets.
+	 * @param exclude a {@link javax.websocket.Session} to exclude or {@code null}
+	 * @return the number of logRecords that were stored
+	 */
+	int publish(final Collection<LogRecord> logRecords, final Session exclude)
+	{
+		final boolean timed = Metrics.isEnabled();
+		final long start = timed ? System.nanoTime() : 0;
+		final List<LogRecord> added = new ArrayList<>(logRecords.size());
+		for (final LogRecord logRecord : logRecords)
+		{
+			if (this.store(logRecord))
+			{
+				added.add(logRecord);
+			}
+		}
+		long queued = 0;
+		if (!added.isEmpty())
+		{
+			// encoded lazily, so records no viewer accepts are never encoded
+			final String[] payloads = new String[added.size()];
+			for (final LogViewer viewer : this.sessions.values())
+			{
+				if (!viewer.getSession().equals(exclude))
+				{
+					final ViewerFilter filter = viewer.getFilter();
+					for (int i = 0; i < payloads.length; i++)
+					{
+						final LogRecord logRecord = added.get(i);
+						if (!filter.accepts(logRecord))
+						{
+							continue;
+						}
+						if (viewer.isBinary())
+						{
+							viewer.send(logRecord);
+						}
+						else
+						{
+							if (null == payloads[i])
+							{
+								payloads[i] = LogRecordUtils.toJSON(logRecord);
+							}
+							viewer.send(payloads[i], logRecord);
+						}
+						queued++;
+					}
+				}
+			}
+		}
+		if (timed)
+		{
+			// one sample for the batch, as Logger times a batch as a whole
+			Metrics.QUEUED_RECORDS.add(queued);
+			Metrics.FAN_OUT_LATENCY.record(System.nanoTime() - start);
+		}
+		return added.size();
+	}
+
 	/**
 	 * sends this LogSessions message history to the specified websocket session
 	 * @param session the session to send this LogSessions messages to
@@ -89,21 +286,89 @@ class LogSession
 	 */
 	public Future<Void> sendMessages(final Session session, final LogSession otherSession)
 	{
-		final SortedSet<LogRecord> messages;
-		if (null == otherSession || this == otherSession)
+		final boolean timed = Metrics.isEnabled();
+		final long start = timed ? System.nanoTime() : 0;
+		Future<Void> result = null;
+		final Iterator<LogRecord> messages = this.historyIterator(otherSession, ReplayRequest.ALL, ViewerFilter.NONE);
+		if (messages.hasNext())
+		{
+			final StringBuilder builder = new StringBuilder();
+			LogRecordUtils.appendJSON(messages, Integer.MAX_VALUE, Integer.MAX_VALUE, builder);
+			result = session.getAsyncRemote().sendText(builder.toString());
+		}
+		if (timed)
 		{
-			messages = this.messages;
+			Metrics.REPLAYS.increment();
+			Metrics.REPLAY_LATENCY.record(System.nanoTime() - start);
 		}
-		else
+		return result;
+	}
+
+	/**
+	 * Starts sending the requested part of this LogSessions message history to the specified viewer
+	 * as a series of bounded frames, each sent once the previous one has completed.
+	 * Only records accepted by the viewers filter are sent, and count towards a limited request.
+	 * The history is sent as deflated chunks if the request asks for it, see {@link HistoryReplay}.
+	 * @param viewer the viewer to send this LogSessions messages to
+	 * @param otherSession another Session to get messages to also send.
+	 * @param request the part of the history to send
+	 */
+	public void replayMessages(final LogViewer viewer, final LogSession otherSession, final ReplayRequest request)
+	{
+		final boolean timed = Metrics.isEnabled();
+		final long start = timed ? System.nanoTime() : 0;
+		viewer.replay(this.historyIterator(otherSession, request, viewer.getFilter()), request.isCompressed());
+		if (timed)
+		{
+			Metrics.REPLAYS.increment();
+			Metrics.REPLAY_LATENCY.record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Gets the requested history of this and another LogSession merged in timestamp order, without copying it.
+	 * @param otherSession another Session to get messages from, or {@code null}
+	 * @param request the part of the history to get
+	 * @param filter the records to include
+	 * @return an iterator over the requested messages
+	 */
+	private Iterator<LogRecord> historyIterator(final LogSession otherSession, final ReplayRequest request,
+												final ViewerFilter filter)
+	{
+		final boolean merge = null != otherSession && this != otherSession;
+		if (!request.isLimited())
 		{
-			messages = new TreeSet<>(this.messages);
-			messages.addAll(otherSession.messages);
+			final Iterator<LogRecord> messages = this.messages.iterator(request.getSince());
+			return filter.filter(merge
+					? new MergingIterator<>(messages, otherSession.messages.iterator(request.getSince()), LogRecordComparator.BY_SEQUENCE)
+					: messages);
 		}
-		if (!messages.isEmpty())
+		final Iterator<LogRecord> newestFirst = filter.filter(merge
+				? new MergingIterator<>(this.messages.descendingIterator(), otherSession.messages.descendingIterator(),
+						Collections.reverseOrder(LogRecordComparator.BY_SEQUENCE))
+				: this.messages.descendingIterator());
+		// only the requested records are copied, never the whole history
+		final Deque<LogRecord> result = new ArrayDeque<>(Math.min(request.getLast(), 1024));
+		while (result.size() < request.getLast() && newestFirst.hasNext())
 		{
-			return session.getAsyncRemote().sendText(LogRecordUtils.toJSON(messages));
+			final LogRecord logRecord = newestFirst.next();
+			if (logRecord.getMillis() < request.getSince())
+			{
+				break;
+			}
+			result.addFirst(logRecord);
 		}
-		return null;
+		return result.iterator();
+	}
+
+	/**
+	 * Finds the records in this LogSessions history that match a query.
+	 * @param query the records to find
+	 * @return an iterator over the matching records, oldest first
+	 */
+	public Iterator<LogRecord> query(final HistoryQuery query)
+	{
+		return this.messages.query(query);
 	}
 
 	/**
@@ -113,9 +378,151 @@ class LogSession
 	 */
 	public boolean addExistingSession(final LogSession logSession)
 	{
-		boolean result;
-		result  = this.messages.addAll(logSession.messages);
-		result |= this.sessions.addAll(logSession.sessions);
+		boolean result = false;
+		for (final LogRecord logRecord : logSession.messages)
+		{
+			result |= this.messages.add(logRecord);
+		}
+		for (final LogViewer viewer : logSession.sessions.values())
+		{
+			result |= this.addViewer(viewer);
+		}
 		return result;
 	}
+
+	/**
+	 * Moves this LogSessions message history to a different store, copying across the records it holds.
+	 * Records logged while the history is being copied may only be kept by one of the stores.
+	 * @param historyStore the new store
+	 */
+	void setHistoryStore(final HistoryStore historyStore)
+	{
+		final HistoryStore previous = this.messages;
+		for (final LogRecord logRecord : previous)
+		{
+			historyStore.add(logRecord);
+		}
+		this.messages = historyStore;
+		previous.close();
+	}
+
+	/**
+	 * Sets the time after a record that repeats of it are folded into a single {@link RepeatedLogMessage}.
+	 * @param windowMillis the window in milliseconds, 0 to log every record as it is
+	 */
+	void setCollapseWindow(final long windowMillis)
+	{
+		this.repeats.setWindowMillis(windowMillis);
+	}
+
+	/**
+	 * Sets where the folded repeats are logged once their window closes, by default straight to this LogSession.
+	 * @param sink where to log the repeats
+	 */
+	void setRepeatSink(final RepeatCollapser.Sink sink)
+	{
+		this.repeats.setSink(sink);
+	}
+
+	/**
+	 * Logs the repeats of every record still being folded, see {@link Logger#setCollapseWindow(long)}.
+	 */
+	void flushRepeats()
+	{
+		this.repeats.flush();
+	}
+
+	/**
+	 * Releases the resources held by this LogSessions message history, and discards the repeats still being folded.
+	 * Records logged afterwards are rejected, see {@link #isClosed()}.
+	 */
+	void close()
+	{
+		this.repeats.close();
+		this.closed = true;
+		this.messages.close();
+	}
+
+	/**
+	 * @return true if this LogSession has been closed, so records must be logged to the LogSession that replaced it
+	 */
+	boolean isClosed()
+	{
+		return this.closed;
+	}
+
+	/**
+	 * Replaces the retention policy of this LogSessions message history.
+	 * @param retentionPolicy the new policy
+	 */
+	public void setRetentionPolicy(final RetentionPolicy retentionPolicy)
+	{
+		this.messages.setRetentionPolicy(retentionPolicy);
+	}
+
+	/**
+	 * Evicts the records of this LogSessions history that are now outside its retention policy,
+	 * such as those that have aged out since the last record was added.
+	 */
+	void evictHistory()
+	{
+		if (!this.closed)
+		{
+			final HistoryStore messages = this.messages;
+			messages.setRetentionPolicy(messages.getRetentionPolicy());
+		}
+	}
+
+	/**
+	 * @return the number of messages currently held in this LogSessions history
+	 */
+	public int getHistorySize()
+	{
+		return this.messages.size();
+	}
+
+	/**
+	 * @return the estimated size of this LogSessions message history
+	 */
+	public long getHistoryBytes()
+	{
+		return this.messages.getRetainedBytes();
+	}
+
+	/**
+	 * @return the number of messages evicted from this LogSessions history
+	 */
+	public long getEvictedCount()
+	{
+		return this.messages.getEvictedCount();
+	}
+
+	/**
+	 * @return when this LogSession last had a record logged or a websocket added or removed,
+	 * to within a second
+	 */
+	long getLastActive()
+	{
+		return this.lastActive;
+	}
+
+	private void touch()
+	{
+		final long now = System.currentTimeMillis();
+		if (now - this.lastActive >= LogSession.ACTIVITY_RESOLUTION)
+		{
+			this.lastActive = now;
+		}
+	}
+
+	/**
+	 * @param name the name of this LogSession to report
+	 * @return the current state of this LogSession
+	 */
+	LogSessionMetrics getMetrics(final String name)
+	{
+		final HistoryStore messages = this.messages;
+		return new LogSessionMetrics(name, this.sessions.size(), messages.size(),
+				messages.getRetainedBytes(), messages.getEvictedCount());
+	}
 }
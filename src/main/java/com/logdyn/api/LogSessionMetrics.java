@@ -0,0 +1,63 @@
+package com.logdyn.api;
+
+/**
+ * The state of a single LogSession, as part of a {@link MetricsSnapshot}.
+ */
+public final class LogSessionMetrics
+{
+    private final String name;
+    private final int websocketSessions;
+    private final int historySize;
+    private final long historyBytes;
+    private final long evictedCount;
+
+    LogSessionMetrics(final String name, final int websocketSessions, final int historySize,
+                      final long historyBytes, final long evictedCount)
+    {
+        this.name = name;
+        this.websocketSessions = websocketSessions;
+        this.historySize = historySize;
+        this.historyBytes = historyBytes;
+        this.evictedCount = evictedCount;
+    }
+
+    /**
+     * @return {@code root}, or {@code user-} or {@code session-} followed by the URL encoded username or httpSession Id
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * @return the number of websockets receiving the LogSessions records
+     */
+    public int getWebsocketSessions()
+    {
+        return this.websocketSessions;
+    }
+
+    /**
+     * @return the number of records in the LogSessions history
+     */
+    public int getHistorySize()
+    {
+        return this.historySize;
+    }
+
+    /**
+     * @return the estimated size of the LogSessions history
+     */
+    public long getHistoryBytes()
+    {
+        return this.historyBytes;
+    }
+
+    /**
+     * @return the number of records evicted from the LogSessions history
+     */
+    public long getEvictedCount()
+    {
+        return this.evictedCount;
+    }
+}
@@ -0,0 +1,639 @@
+package com.logdyn.api;
+
+import javax.websocket.CloseReason;
+import javax.websocket.Extension;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * The outbound side of a single websocket session.
+ *
+ * Only one asynchronous send is in flight at a time. Records sent while a frame is in flight,
+ * or within the linger time of each other, are coalesced into a single JSON array frame,
+ * the same format as {@link LogRecordUtils#toJSON(java.util.Collection)}, or into a single binary frame
+ * of {@link BinaryFrameCodec} if the websocket negotiated {@link LoggingEndpointConfig#BINARY_SUBPROTOCOL}.
+ * A history replay takes priority over live records until it is complete, and may be sent compressed,
+ * see {@link HistoryReplay}, unless the websocket already negotiated permessage-deflate.
+ * The replay skips any record that was queued live while it was in progress, so a record logged as the
+ * viewer was added is sent once, and live records only start being dropped once they have filled
+ * {@link #REPLAY_HEADROOM} times the high water mark, as they are waiting on the replay rather than the websocket.
+ *
+ * Once more records are waiting than the high water mark, records are dropped according to the
+ * {@link LoggingEndpointConfig.SlowConsumerPolicy}, and a session that stays above the high water mark
+ * for longer than the slow consumer timeout is closed.
+ */
+class LogViewer implements SendHandler
+{
+    /** how many times the high water mark of live records may wait for a replay to finish */
+    static final int REPLAY_HEADROOM = 4;
+
+    /** runs delayed flushes and closes, shared with other delayed work of the library */
+    static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+    {
+        @Override
+        public Thread newThread(final Runnable runnable)
+        {
+            final Thread thread = new Thread(runnable, "logdyn-viewer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Session session;
+    private final int maxBatch;
+    private final long lingerNanos;
+    private final int highWaterMark;
+    private final LoggingEndpointConfig.SlowConsumerPolicy slowConsumerPolicy;
+    private final long slowConsumerTimeoutNanos;
+    /** encodes the frames of a binary websocket, or {@code null} for JSON, only used by the draining thread */
+    private final BinaryFrameCodec binaryCodec;
+    /** true if the container compresses every frame, so a compressed replay would be compressed twice */
+    private final boolean permessageDeflate;
+    private final Runnable flushTask = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            LogViewer.this.drain();
+        }
+    };
+
+    /** guards pending, pendingSince, overflowSince, unreportedDrops and replay */
+    private final Object lock = new Object();
+    /** JSON strings, or for a binary websocket the records themselves, as they are encoded a frame at a time */
+    private final Deque<Object> pending = new ArrayDeque<>();
+    private long pendingSince;
+    /** when the queue last went over the high water mark, or 0 if it is below it */
+    private long overflowSince = 0;
+    private long unreportedDrops = 0;
+    private HistoryReplay replay;
+    /**
+     * sequence numbers of the live records queued since the replay started, or {@code null} if there is no replay.
+     * Added to under lock, and read by the replay as it builds a frame without the lock
+     */
+    private Set<Long> queuedDuringReplay;
+
+    /** number of requests to look for a frame to send, only the thread taking this from 0 sends */
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile boolean inFlight = false;
+    private volatile ViewerFilter filter = ViewerFilter.NONE;
+    private volatile boolean closing = false;
+
+    private final AtomicLong sentRecords = new AtomicLong();
+    private final AtomicLong sentFrames = new AtomicLong();
+    private final AtomicLong droppedRecords = new AtomicLong();
+    private final AtomicLong sendFailures = new AtomicLong();
+
+    /**
+     * @param session the websocket session to send to
+     * @param config the coalescing and backpressure settings to use
+     */
+    LogViewer(final Session session, final LoggingEndpointConfig config)
+    {
+        this.session = session;
+        this.maxBatch = Math.max(1, config.getMaxBatch());
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, config.getLinger()));
+        this.highWaterMark = Math.max(1, config.getHighWaterMark());
+        this.slowConsumerPolicy = config.getSlowConsumerPolicy();
+        this.slowConsumerTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getSlowConsumerTimeout());
+        this.binaryCodec = LoggingEndpointConfig.BINARY_SUBPROTOCOL.equals(session.getNegotiatedSubprotocol())
+                ? new BinaryFrameCodec()
+                : null;
+        this.permessageDeflate = LogViewer.isNegotiated(session, LoggingEndpointConfig.PERMESSAGE_DEFLATE);
+    }
+
+    private static boolean isNegotiated(final Session session, final String extensionName)
+    {
+        final List<Extension> extensions = session.getNegotiatedExtensions();
+        if (null != extensions)
+        {
+            for (final Extension extension : extensions)
+            {
+                if (extensionName.equals(extension.getName()))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public Session getSession()
+    {
+        return this.session;
+    }
+
+    /**
+     * @return the records this viewer wants to be sent
+     */
+    ViewerFilter getFilter()
+    {
+        return this.filter;
+    }
+
+    /**
+     * Replaces the records this viewer wants to be sent. Records already queued are still sent.
+     * @param filter the new filter
+     */
+    void setFilter(final ViewerFilter filter)
+    {
+        if (ViewerFilter.NONE != filter)
+        {
+            filter.setDisabledListener(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    LogViewer.this.reportFilterDisabled(filter);
+                }
+            });
+        }
+        this.filter = filter;
+    }
+
+    /**
+     * Tells the viewer that the regular expression of its filter took too long, and now matches nothing.
+     * @param filter the filter that was disabled
+     */
+    private void reportFilterDisabled(final ViewerFilter filter)
+    {
+        if (this.filter != filter)
+        {
+            return;
+        }
+        final LogRecord warning = new LogRecord(Level.WARNING, "The regex filter " + filter.getRegex().pattern()
+                + " ran out of time on " + ViewerFilter.MAX_CONSECUTIVE_TIMEOUTS
+                + " messages in a row, and now matches nothing until the filter is replaced");
+        if (this.isBinary())
+        {
+            this.send(warning);
+        }
+        else
+        {
+            this.send(LogRecordUtils.toJSON(warning));
+        }
+    }
+
+    /**
+     * @return true if records are sent to this viewer as binary frames, and must be queued with {@link #send(LogRecord)}
+     */
+    boolean isBinary()
+    {
+        return null != this.binaryCodec;
+    }
+
+    /**
+     * Queues an encoded record to be sent.
+     * @param json the JSON form of a single record, as produced by {@link LogRecordUtils#toJSON(LogRecord)}
+     */
+    public void send(final String json)
+    {
+        this.enqueue(json, null);
+    }
+
+    /**
+     * Queues an encoded record to be sent, which a replay in progress will not send again.
+     * @param json the JSON form of logRecord, as produced by {@link LogRecordUtils#toJSON(LogRecord)}
+     * @param logRecord the record
+     */
+    void send(final String json, final LogRecord logRecord)
+    {
+        this.enqueue(json, logRecord);
+    }
+
+    /**
+     * Queues a record to be sent to a binary viewer, see {@link #isBinary()}.
+     * @param logRecord the record
+     */
+    void send(final LogRecord logRecord)
+    {
+        this.enqueue(logRecord, logRecord);
+    }
+
+    /**
+     * @param record the JSON string or record to queue
+     * @param logRecord the record queued, or {@code null} if it is not known
+     */
+    private void enqueue(final Object record, final LogRecord logRecord)
+    {
+        boolean schedule = false;
+        boolean tooSlow = false;
+        synchronized (this.lock)
+        {
+            if (this.pending.isEmpty())
+            {
+                this.pendingSince = System.nanoTime();
+                schedule = this.lingerNanos > 0;
+            }
+            final int limit = null != this.replay ? this.highWaterMark * LogViewer.REPLAY_HEADROOM : this.highWaterMark;
+            if (this.pending.size() < limit)
+            {
+                this.pending.addLast(record);
+                if (null != this.queuedDuringReplay && null != logRecord)
+                {
+                    this.queuedDuringReplay.add(logRecord.getSequenceNumber());
+                }
+            }
+            else
+            {
+                final long now = System.nanoTime();
+                if (this.overflowSince == 0)
+                {
+                    this.overflowSince = now;
+                }
+                tooSlow = now - this.overflowSince > this.slowConsumerTimeoutNanos;
+                if (this.slowConsumerPolicy == LoggingEndpointConfig.SlowConsumerPolicy.DROP_OLDEST)
+                {
+                    this.pending.pollFirst();
+                    this.pending.addLast(record);
+                    if (null != this.queuedDuringReplay && null != logRecord)
+                    {
+                        this.queuedDuringReplay.add(logRecord.getSequenceNumber());
+                    }
+                }
+                else if (this.slowConsumerPolicy == LoggingEndpointConfig.SlowConsumerPolicy.SUMMARIZE)
+                {
+                    this.unreportedDrops++;
+                }
+                this.droppedRecords.incrementAndGet();
+                if (Metrics.isEnabled())
+                {
+                    Metrics.DROPPED_RECORDS.increment();
+                }
+            }
+        }
+        if (tooSlow)
+        {
+            this.close();
+        }
+        else if (schedule)
+        {
+            LogViewer.SCHEDULER.schedule(this.flushTask, this.lingerNanos, TimeUnit.NANOSECONDS);
+        }
+        this.drain();
+    }
+
+    /**
+     * Starts sending history. Live records are held back until all the history has been sent.
+     * @param logRecords the history to send, in timestamp order
+     */
+    public void replay(final Iterator<LogRecord> logRecords)
+    {
+        this.replay(logRecords, false);
+    }
+
+    /**
+     * Starts sending history. Live records are held back until all the history has been sent.
+     * @param logRecords the history to send, in timestamp order
+     * @param compress true to send the history as deflated chunks, which is ignored if the websocket
+     *                 negotiated permessage-deflate
+     */
+    void replay(final Iterator<LogRecord> logRecords, final boolean compress)
+    {
+        final HistoryReplay previous;
+        synchronized (this.lock)
+        {
+            previous = this.replay;
+            this.queuedDuringReplay = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+            this.replay = new HistoryReplay(new UnqueuedIterator(logRecords, this.queuedDuringReplay),
+                    compress && !this.permessageDeflate);
+        }
+        if (null != previous)
+        {
+            // outside the lock, as it waits for a frame the draining thread may be building
+            previous.close();
+        }
+        this.drain();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public void onResult(final SendResult result)
+    {
+        if (!result.isOK())
+        {
+            this.sendFailures.incrementAndGet();
+            if (Metrics.isEnabled())
+            {
+                Metrics.SEND_FAILURES.increment();
+            }
+        }
+        this.inFlight = false;
+        this.drain();
+    }
+
+    /**
+     * @return the number of records sent to this websocket, excluding history
+     */
+    public long getSentRecords()
+    {
+        return this.sentRecords.get();
+    }
+
+    /**
+     * @return the number of frames sent to this websocket, including history
+     */
+    public long getSentFrames()
+    {
+        return this.sentFrames.get();
+    }
+
+    /**
+     * @return the number of records dropped because this websocket was too slow
+     */
+    public long getDroppedRecords()
+    {
+        return this.droppedRecords.get();
+    }
+
+    /**
+     * @return the number of sends the container reported as failed
+     */
+    public long getSendFailures()
+    {
+        return this.sendFailures.get();
+    }
+
+    /**
+     * @return the number of records waiting to be sent
+     */
+    public int getPendingRecords()
+    {
+        synchronized (this.lock)
+        {
+            return this.pending.size();
+        }
+    }
+
+    private void drain()
+    {
+        if (this.wip.getAndIncrement() != 0)
+        {
+            // another thread, or a send that completed synchronously further up this stack, is draining
+            return;
+        }
+        do
+        {
+            if (!this.inFlight)
+            {
+                final Object frame = this.nextFrame();
+                if (null != frame)
+                {
+                    this.inFlight = true;
+                    this.sentFrames.incrementAndGet();
+                    try
+                    {
+                        if (frame instanceof ByteBuffer)
+                        {
+                            this.session.getAsyncRemote().sendBinary((ByteBuffer) frame, this);
+                        }
+                        else
+                        {
+                            this.session.getAsyncRemote().sendText((String) frame, this);
+                        }
+                    }
+                    catch (final RuntimeException e)
+                    {
+                        this.sendFailures.incrementAndGet();
+                        if (Metrics.isEnabled())
+                        {
+                            Metrics.SEND_FAILURES.increment();
+                        }
+                        this.inFlight = false;
+                    }
+                }
+            }
+        }
+        while (this.wip.decrementAndGet() != 0);
+    }
+
+    /**
+     * Takes the records of the next frame under the lock, then builds the frame without it, as every logging thread
+     * takes the lock to queue a record, and a frame of history may read the store, then encode and deflate thousands
+     * of records. Only called by the draining thread, which is the only user of the binary codec and the replay frames.
+     * @return the next frame to send, a String for JSON or a ByteBuffer for binary, or {@code null} if there is none yet
+     */
+    private Object nextFrame()
+    {
+        final HistoryReplay replay;
+        final List<Object> batch;
+        LogRecord summary = null;
+        synchronized (this.lock)
+        {
+            if (this.closing || !this.session.isOpen())
+            {
+                this.pending.clear();
+                if (null != this.replay)
+                {
+                    this.replay.close();
+                    this.replay = null;
+                    this.queuedDuringReplay = null;
+                }
+                return null;
+            }
+            replay = this.replay;
+            if (null != replay)
+            {
+                batch = null;
+            }
+            else
+            {
+                if (this.pending.isEmpty()
+                        || (this.pending.size() < this.maxBatch && System.nanoTime() - this.pendingSince < this.lingerNanos))
+                {
+                    return null;
+                }
+                final int count = Math.min(this.pending.size(), this.maxBatch);
+                batch = new ArrayList<>(count);
+                for (int i = 0; i < count; i++)
+                {
+                    batch.add(this.pending.pollFirst());
+                }
+                if (this.unreportedDrops > 0 && this.pending.isEmpty())
+                {
+                    // only reported once the queue has caught up, so it follows every record that was kept
+                    summary = this.dropSummary();
+                }
+                this.sentRecords.addAndGet(count);
+                if (this.pending.size() < this.highWaterMark / 2)
+                {
+                    this.overflowSince = 0;
+                }
+                // any records left over have already waited, so pendingSince is left as is
+            }
+        }
+        if (null == replay)
+        {
+            return this.encode(batch, summary);
+        }
+        final Object frame = replay.isCompressed() ? replay.nextCompressedFrame(this.binaryCodec)
+                : null != this.binaryCodec ? replay.nextFrame(this.binaryCodec)
+                : replay.nextFrame();
+        synchronized (this.lock)
+        {
+            if (replay == this.replay)
+            {
+                if (null != frame)
+                {
+                    return frame;
+                }
+                this.replay = null;
+                this.queuedDuringReplay = null;
+            }
+        }
+        // the replay is done, or was replaced or closed while the frame was built and the frame is not sent
+        return this.nextFrame();
+    }
+
+    /**
+     * @param batch the JSON strings, or for a binary websocket the records, to send in one frame
+     * @param summary a record reporting dropped records to send after the batch, or {@code null}
+     * @return the frame
+     */
+    private Object encode(final List<Object> batch, final LogRecord summary)
+    {
+        if (null != this.binaryCodec)
+        {
+            final List<LogRecord> logRecords = new ArrayList<>(batch.size() + 1);
+            for (final Object logRecord : batch)
+            {
+                logRecords.add((LogRecord) logRecord);
+            }
+            if (null != summary)
+            {
+                logRecords.add(summary);
+            }
+            return this.binaryCodec.encode(logRecords);
+        }
+        if (batch.size() == 1 && null == summary)
+        {
+            return batch.get(0);
+        }
+        final StringBuilder builder = new StringBuilder(batch.size() * 128).append('[');
+        for (int i = 0; i < batch.size(); i++)
+        {
+            if (i > 0)
+            {
+                builder.append(',');
+            }
+            builder.append((String) batch.get(i));
+        }
+        if (null != summary)
+        {
+            builder.append(',');
+            LogRecordUtils.appendJSON(summary, builder);
+        }
+        return builder.append(']').toString();
+    }
+
+    /**
+     * @return a record reporting the records dropped since the last report, which are then counted as reported
+     */
+    private LogRecord dropSummary()
+    {
+        final LogRecord result = new LogRecord(Level.WARNING, this.unreportedDrops
+                + " log messages were dropped as the connection could not keep up");
+        this.unreportedDrops = 0;
+        return result;
+    }
+
+    /**
+     * Closes a websocket that has stayed above the high water mark for too long.
+     * The close is done on the viewer thread as it may block.
+     */
+    private void close()
+    {
+        if (this.closing)
+        {
+            return;
+        }
+        this.closing = true;
+        LogViewer.SCHEDULER.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    LogViewer.this.session.close(new CloseReason(CloseReason.CloseCodes.TRY_AGAIN_LATER,
+                            "Too slow to receive log messages"));
+                }
+                catch (final IOException e)
+                {
+                    // the session is already unusable, nothing more to do
+                }
+            }
+        });
+    }
+
+    /**
+     * Skips the history records that were already queued live while the replay was in progress.
+     * Only used by the draining thread as it builds a frame of the replay.
+     */
+    private final class UnqueuedIterator implements Iterator<LogRecord>
+    {
+        private final Iterator<LogRecord> logRecords;
+        private final Set<Long> queued;
+        private LogRecord next;
+
+        private UnqueuedIterator(final Iterator<LogRecord> logRecords, final Set<Long> queued)
+        {
+            this.logRecords = logRecords;
+            this.queued = queued;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while (null == this.next && this.logRecords.hasNext())
+            {
+                final LogRecord logRecord = this.logRecords.next();
+                if (!this.queued.contains(logRecord.getSequenceNumber()))
+                {
+                    this.next = logRecord;
+                }
+            }
+            return null != this.next;
+        }
+
+        @Override
+        public LogRecord next()
+        {
+            if (!this.hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            final LogRecord result = this.next;
+            this.next = null;
+            return result;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -1,27 +1,138 @@
 package com.logdyn.api;
 
 import java.util.logging.Handler;
+import java.util.logging.LogManager;
 import java.util.logging.LogRecord;
 
+/**
+ * A {@link Handler} that sends records to the {@link Logger}.
+ *
+ * By default records are logged on the calling thread. In asynchronous mode they are queued
+ * and logged in batches by a dispatcher thread. Asynchronous mode can be enabled with the
+ * constructor taking queue settings, or through the logging configuration:
+ * <ul>
+ *     <li>com.logdyn.api.LogdynHandler.async = true</li>
+ *     <li>com.logdyn.api.LogdynHandler.queueSize (default 8192)</li>
+ *     <li>com.logdyn.api.LogdynHandler.batchSize (default 256)</li>
+ *     <li>com.logdyn.api.LogdynHandler.maxLatency in milliseconds (default 20)</li>
+ *     <li>com.logdyn.api.LogdynHandler.overflowPolicy BLOCK, DROP_OLDEST or DROP_NEWEST (default DROP_OLDEST)</li>
+ * </ul>
+ */
 public class LogdynHandler extends Handler
 {
+	/**
+	 * What an asynchronous handler does with a record published while its queue is full.
+	 */
+	public enum OverflowPolicy
+	{
+		/** wait for space in the queue */
+		BLOCK,
+		/** discard the oldest queued record to make space */
+		DROP_OLDEST,
+		/** discard the record being published */
+		DROP_NEWEST
+	}
+
+	private static final int DEFAULT_QUEUE_SIZE = 8192;
+	private static final int DEFAULT_BATCH_SIZE = 256;
+	private static final long DEFAULT_MAX_LATENCY = 20;
+
+	/** the dispatcher used in asynchronous mode, or {@code null} */
+	private final AsyncDispatcher dispatcher;
+
+	public LogdynHandler()
+	{
+		final String prefix = LogdynHandler.class.getName();
+		if (Boolean.parseBoolean(LogdynHandler.getProperty(prefix + ".async", "false")))
+		{
+			this.dispatcher = new AsyncDispatcher(
+					Integer.parseInt(LogdynHandler.getProperty(prefix + ".queueSize", Integer.toString(LogdynHandler.DEFAULT_QUEUE_SIZE))),
+					Integer.parseInt(LogdynHandler.getProperty(prefix + ".batchSize", Integer.toString(LogdynHandler.DEFAULT_BATCH_SIZE))),
+					Long.parseLong(LogdynHandler.getProperty(prefix + ".maxLatency", Long.toString(LogdynHandler.DEFAULT_MAX_LATENCY))),
+					OverflowPolicy.valueOf(LogdynHandler.getProperty(prefix + ".overflowPolicy", OverflowPolicy.DROP_OLDEST.name())),
+					this.getErrorManager());
+		}
+		else
+		{
+			this.dispatcher = null;
+		}
+	}
+
+	/**
+	 * Creates an asynchronous handler.
+	 * @param queueSize the maximum number of records waiting to be logged
+	 * @param batchSize the maximum number of records logged together
+	 * @param maxLatency the maximum time in milliseconds a record waits for its batch to fill
+	 * @param overflowPolicy what to do when a record is published while the queue is full
+	 */
+	public LogdynHandler(final int queueSize, final int batchSize, final long maxLatency, final OverflowPolicy overflowPolicy)
+	{
+		this.dispatcher = new AsyncDispatcher(queueSize, batchSize, maxLatency, overflowPolicy, this.getErrorManager());
+	}
 
 	@Override
 	public void publish(LogRecord record)
 	{
-		Logger.log(record);
+		if (null == this.dispatcher)
+		{
+			Logger.log(record);
+		}
+		else
+		{
+			// the thread locals are only available on the publishing thread
+			this.dispatcher.submit(record, Logger.getCurrentUsername(), Logger.getCurrentSessionId());
+		}
 	}
 
+	/**
+	 * In asynchronous mode, waits until every record published before this call has been logged.
+	 */
 	@Override
 	public void flush()
 	{
-		//NOOP
+		if (null != this.dispatcher)
+		{
+			try
+			{
+				this.dispatcher.flush();
+			}
+			catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 
+	/**
+	 * In asynchronous mode, logs every queued record and stops the dispatcher thread.
+	 */
 	@Override
 	public void close() throws SecurityException
 	{
-		//NOOP
+		if (null != this.dispatcher)
+		{
+			try
+			{
+				this.dispatcher.close();
+			}
+			catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 
+	/**
+	 * @return the number of records dropped by an asynchronous handler due to a full queue, always 0 otherwise
+	 */
+	public long getDroppedCount()
+	{
+		return null != this.dispatcher ? this.dispatcher.getDroppedCount() : 0;
+	}
+
+	private static String getProperty(final String name, final String defaultValue)
+	{
+		final String value = LogManager.getLogManager().getProperty(name);
+		return null != value ? value.trim() : defaultValue;
+	}
 }
@@ -0,0 +1,23 @@
+package com.logdyn.api;
+
+/**
+ * The management interface of the library's metrics, registered as {@code com.logdyn:type=Metrics}
+ * once metrics are first enabled.
+ */
+public interface LogdynMetricsMXBean
+{
+    /**
+     * @return true if operations are being counted and timed
+     */
+    boolean isEnabled();
+
+    /**
+     * @param enabled true to count and time operations, see {@link Logger#setMetricsEnabled(boolean)}
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return the current metrics
+     */
+    MetricsSnapshot getSnapshot();
+}
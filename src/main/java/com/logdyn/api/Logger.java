@@ -1,8 +1,20 @@
 package com.logdyn.api;
 
 import javax.websocket.Session;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.LogRecord;
 
 /**
@@ -10,12 +22,43 @@ import java.util.logging.LogRecord;
  */
 public class Logger
 {
-    private static final Map<String, LogSession> USER_SESSIONS = new ConcurrentHashMap<>();
-    private static final Map<String, LogSession> NON_USER_SESSIONS = new ConcurrentHashMap<>();
-    private static final LogSession ROOT_SESSION = new LogSession();
+    private static final ConcurrentMap<String, LogSession> USER_SESSIONS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LogSession> NON_USER_SESSIONS = new ConcurrentHashMap<>();
+    private static final String ROOT_STORE_NAME = "root";
+    private static final String USER_STORE_PREFIX = "user-";
+    private static final String SESSION_STORE_PREFIX = "session-";
+
+    private static volatile RetentionPolicy retentionPolicy = RetentionPolicy.DEFAULT;
+    private static volatile HistoryStore.Factory historyStoreFactory = HistoryStores.memory();
+    private static volatile long collapseWindow = 0;
+    private static volatile ClusterNode cluster;
+
+    /** logs the repeats folded by a LogSession as any other record, so they are counted and forwarded to the cluster */
+    private static final RepeatCollapser.Sink REPEATS = new RepeatCollapser.Sink()
+    {
+        @Override
+        public void deliver(final RepeatedLogMessage repeats, final String username, final String httpSessionId)
+        {
+            Logger.log(repeats, null, username, httpSessionId);
+        }
+    };
+
+    private static final LogSession ROOT_SESSION =
+            Logger.newLogSession(Logger.historyStoreFactory.create(Logger.ROOT_STORE_NAME, Logger.retentionPolicy));
 
     private static final ThreadLocal<String> username = new ThreadLocal<>();
     private static final ThreadLocal<String> sessionId = new ThreadLocal<>();
+    /** the LogSession last resolved by each thread, so repeated logs from a request skip the session maps */
+    private static final ThreadLocal<CachedLogSession> lastLogSession = new ThreadLocal<CachedLogSession>()
+    {
+        @Override
+        protected CachedLogSession initialValue()
+        {
+            return new CachedLogSession();
+        }
+    };
+    /** incremented whenever a LogSession is removed, invalidating every thread's cached LogSession */
+    private static final AtomicInteger generation = new AtomicInteger();
 
     /**
      * Sends a LogRecord to the relevant Websockets and stores it for later websockets to use.
@@ -35,10 +78,116 @@ public class Logger
      */
     public static boolean log(final LogRecord logRecord, final Session exclude)
     {
-        final String httpSessionId = Logger.getCurrentSessionId();
-        final String username = Logger.getCurrentUsername();
+        return Logger.log(logRecord, exclude, Logger.getCurrentUsername(), Logger.getCurrentSessionId());
+    }
+
+    /**
+     * Sends a LogRecord to the Websockets of a given user or httpSession and stores it for later websockets to use.
+     * @param logRecord the LogRecord to log.
+     * @param exclude a session to exclude from sending the messages to.
+     * @param username the username of the user the record belongs to, or {@code null}
+     * @param httpSessionId the httpSession Id the record belongs to, or {@code null}
+     * @return true if the logRecord was successfully stored, false if it was folded into earlier repeats.
+     */
+    static boolean log(final LogRecord logRecord, final Session exclude, final String username, final String httpSessionId)
+    {
+        final boolean timed = Metrics.isEnabled();
+        final long start = timed ? System.nanoTime() : 0;
+        // a repeat is neither stored nor forwarded, the count of repeats is logged through here once the window closes
+        final boolean folded = Logger.getLogSession(username, httpSessionId).fold(logRecord, username, httpSessionId);
+        final boolean result = !folded && Logger.logToSession(logRecord, exclude, username, httpSessionId);
+        if (timed)
+        {
+            Metrics.LOG_LATENCY.record(System.nanoTime() - start);
+            Metrics.LOGGED_RECORDS.increment();
+        }
+        final ClusterNode clusterNode = Logger.cluster;
+        if (null != clusterNode && !folded)
+        {
+            clusterNode.forward(logRecord, username, httpSessionId);
+        }
+        return result;
+    }
 
-        return Logger.getLogSession(username, httpSessionId).logMessage(logRecord, exclude);
+    /**
+     * Sends a batch of LogRecords to the Websockets of a given user or httpSession and stores them for later websockets to use.
+     * @param logRecords the LogRecords to log.
+     * @param exclude a session to exclude from sending the messages to.
+     * @param username the username of the user the records belong to, or {@code null}
+     * @param httpSessionId the httpSession Id the records belong to, or {@code null}
+     * @return the number of logRecords that were stored.
+     */
+    static int log(final Collection<LogRecord> logRecords, final Session exclude, final String username, final String httpSessionId)
+    {
+        final boolean timed = Metrics.isEnabled();
+        final long start = timed ? System.nanoTime() : 0;
+        final LogSession logSession = Logger.getLogSession(username, httpSessionId);
+        final List<LogRecord> unfolded = new ArrayList<>(logRecords.size());
+        for (final LogRecord logRecord : logRecords)
+        {
+            if (!logSession.fold(logRecord, username, httpSessionId))
+            {
+                unfolded.add(logRecord);
+            }
+        }
+        final int result = Logger.logToSession(unfolded, exclude, username, httpSessionId);
+        if (timed)
+        {
+            Metrics.LOG_LATENCY.record(System.nanoTime() - start);
+            Metrics.LOGGED_RECORDS.add(logRecords.size());
+        }
+        final ClusterNode clusterNode = Logger.cluster;
+        if (null != clusterNode)
+        {
+            for (final LogRecord logRecord : unfolded)
+            {
+                clusterNode.forward(logRecord, username, httpSessionId);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Joins a cluster of nodes, so records logged here are also sent to the websockets connected to the other nodes,
+     * and records logged on the other nodes are sent to the websockets connected here and stored in this nodes history.
+     * Records are forwarded in batches off the logging thread, and records received from other nodes are not forwarded again,
+     * so every node must be connected to every other. Records logged from other nodes are trusted as if logged here,
+     * so the transport must only accept frames from the other nodes, see {@link TcpClusterTransport}.
+     * @param transport the transport to the other nodes, which is started now
+     * @throws IOException if the transport cannot be started
+     * @throws IllegalStateException if already in a cluster
+     */
+    public static synchronized void joinCluster(final ClusterTransport transport) throws IOException
+    {
+        if (null != Logger.cluster)
+        {
+            throw new IllegalStateException("Already in a cluster");
+        }
+        final ClusterNode clusterNode = new ClusterNode(Objects.requireNonNull(transport), ClusterNode.LOCAL);
+        clusterNode.start();
+        Logger.cluster = clusterNode;
+    }
+
+    /**
+     * Leaves the cluster joined with {@link #joinCluster(ClusterTransport)}, sending any records still queued
+     * and closing its transport. Does nothing if not in a cluster.
+     */
+    public static synchronized void leaveCluster()
+    {
+        final ClusterNode clusterNode = Logger.cluster;
+        if (null != clusterNode)
+        {
+            Logger.cluster = null;
+            clusterNode.close();
+        }
+    }
+
+    /**
+     * @return the cluster node joined with {@link #joinCluster(ClusterTransport)}, or {@code null} if not in a cluster
+     */
+    static ClusterNode getClusterNode()
+    {
+        return Logger.cluster;
     }
 
     /**
@@ -48,7 +197,13 @@ public class Logger
      */
     public static boolean clearUser(final String username)
     {
-        return Logger.USER_SESSIONS.remove(username) != null;
+        final LogSession removed = Logger.USER_SESSIONS.remove(username);
+        Logger.generation.incrementAndGet();
+        if (null != removed)
+        {
+            removed.close();
+        }
+        return null != removed;
     }
 
     /**
@@ -58,24 +213,417 @@ public class Logger
      */
     public static boolean clearSession(final String httpSessionId)
     {
-        return Logger.NON_USER_SESSIONS.remove(httpSessionId) != null;
+        final LogSession removed = Logger.NON_USER_SESSIONS.remove(httpSessionId);
+        Logger.generation.incrementAndGet();
+        if (null != removed)
+        {
+            removed.close();
+        }
+        return null != removed;
+    }
+
+    /**
+     * Sets the limits on the message history kept by every LogSession, including existing ones.
+     * @param retentionPolicy the policy to apply
+     */
+    public static void setRetentionPolicy(final RetentionPolicy retentionPolicy)
+    {
+        Logger.retentionPolicy = Objects.requireNonNull(retentionPolicy);
+        Logger.ROOT_SESSION.setRetentionPolicy(retentionPolicy);
+        for (final LogSession logSession : Logger.USER_SESSIONS.values())
+        {
+            logSession.setRetentionPolicy(retentionPolicy);
+        }
+        for (final LogSession logSession : Logger.NON_USER_SESSIONS.values())
+        {
+            logSession.setRetentionPolicy(retentionPolicy);
+        }
+    }
+
+    /**
+     * Sets the time after a record that repeats of it, with the same level, message, username and sessionId,
+     * are folded together in every LogSession, including existing ones. The first record is logged as it is
+     * and the repeats follow as a single {@link RepeatedLogMessage} with their count once the window has passed,
+     * saving both history and traffic to websockets. By default no records are folded.
+     * @param windowMillis the window in milliseconds, 0 to log every record as it is
+     */
+    public static void setCollapseWindow(final long windowMillis)
+    {
+        Logger.collapseWindow = Math.max(0, windowMillis);
+        Logger.ROOT_SESSION.setCollapseWindow(windowMillis);
+        for (final LogSession logSession : Logger.USER_SESSIONS.values())
+        {
+            logSession.setCollapseWindow(windowMillis);
+        }
+        for (final LogSession logSession : Logger.NON_USER_SESSIONS.values())
+        {
+            logSession.setCollapseWindow(windowMillis);
+        }
+    }
+
+    /**
+     * gets the time after a record that repeats of it are folded together.
+     * @return the window in milliseconds, 0 if records are not folded
+     */
+    public static long getCollapseWindow()
+    {
+        return Logger.collapseWindow;
+    }
+
+    /**
+     * Sets where LogSessions keep their message history, e.g. {@link HistoryStores#file(java.io.File)}
+     * to keep it on disk across restarts. The history of existing LogSessions is copied to the new stores.
+     * @param factory the factory to create history stores with
+     */
+    public static synchronized void setHistoryStoreFactory(final HistoryStore.Factory factory)
+    {
+        Logger.historyStoreFactory = Objects.requireNonNull(factory);
+        Logger.ROOT_SESSION.setHistoryStore(factory.create(Logger.ROOT_STORE_NAME, Logger.retentionPolicy));
+        for (final Map.Entry<String, LogSession> entry : Logger.USER_SESSIONS.entrySet())
+        {
+            entry.getValue().setHistoryStore(factory.create(Logger.storeName(Logger.USER_STORE_PREFIX, entry.getKey()), Logger.retentionPolicy));
+        }
+        for (final Map.Entry<String, LogSession> entry : Logger.NON_USER_SESSIONS.entrySet())
+        {
+            entry.getValue().setHistoryStore(factory.create(Logger.storeName(Logger.SESSION_STORE_PREFIX, entry.getKey()), Logger.retentionPolicy));
+        }
+    }
+
+    /**
+     * gets the limits on the message history kept by each LogSession.
+     * @return the current retention policy
+     */
+    public static RetentionPolicy getRetentionPolicy()
+    {
+        return Logger.retentionPolicy;
+    }
+
+    /**
+     * Sets how much encoded JSON may be cached on records held in heap history, shared by every LogSession.
+     * Cached records are appended to history replays as they are rather than being encoded again.
+     * Lowering the limit does not discard JSON already cached, it is released as its records are evicted.
+     * @param maxChars the most chars of JSON to cache, 0 to cache none
+     */
+    public static void setJsonCacheLimit(final long maxChars)
+    {
+        JsonCache.setMaxChars(maxChars);
+    }
+
+    /**
+     * gets the most encoded JSON that may be cached on records held in heap history.
+     * @return the limit in chars
+     */
+    public static long getJsonCacheLimit()
+    {
+        return JsonCache.getMaxChars();
+    }
+
+    /**
+     * gets the encoded JSON currently cached on records held in heap history.
+     * @return the size of the cached JSON in chars
+     */
+    public static long getJsonCacheSize()
+    {
+        return JsonCache.getCachedChars();
+    }
+
+    /**
+     * gets the total number of records accepted from websocket clients.
+     * @return the number of accepted records
+     */
+    public static long getIngestedCount()
+    {
+        return IngestLimiter.getTotalAccepted();
     }
 
     /**
-     * adds a session to the relevant LogSession.
+     * gets the total number of records from websocket clients discarded by the ingest rate limits,
+     * see {@link LoggingEndpointConfig#setIngestLimits(double, int, double, int)}.
+     * @return the number of suppressed records
+     */
+    public static long getSuppressedCount()
+    {
+        return IngestLimiter.getTotalSuppressed();
+    }
+
+    /**
+     * Sets how long a LogSession with no websockets is kept after it was last used, before it and its history
+     * are removed to reclaim their memory. The root LogSession is never removed. By default LogSessions are kept
+     * until {@link #clearUser(String)} or {@link #clearSession(String)}.
+     * @param idleMillis the time in milliseconds, 0 to keep idle LogSessions
+     */
+    public static void setSessionExpiry(final long idleMillis)
+    {
+        SessionReaper.setIdleMillis(idleMillis);
+    }
+
+    /**
+     * gets how long a LogSession with no websockets is kept after it was last used.
+     * @return the time in milliseconds, 0 if idle LogSessions are kept
+     */
+    public static long getSessionExpiry()
+    {
+        return SessionReaper.getIdleMillis();
+    }
+
+    /**
+     * Sets the most history all LogSessions together may hold. While over the budget, the LogSessions with no
+     * websockets that were used least recently are removed, so the LogSessions being viewed keep their history.
+     * This is checked periodically, so the budget may be exceeded in between.
+     * @param maxBytes the budget, as estimated by each LogSessions history store, 0 for no budget
+     */
+    public static void setHistoryMemoryBudget(final long maxBytes)
+    {
+        SessionReaper.setMaxBytes(maxBytes);
+    }
+
+    /**
+     * gets the most history all LogSessions together may hold.
+     * @return the budget, 0 if there is none
+     */
+    public static long getHistoryMemoryBudget()
+    {
+        return SessionReaper.getMaxBytes();
+    }
+
+    /**
+     * gets the total number of LogSessions removed as idle or to stay within the memory budget.
+     * @return the number of removed LogSessions
+     */
+    public static long getExpiredSessionCount()
+    {
+        return SessionReaper.getExpiredSessions();
+    }
+
+    /**
+     * gets the total size of the history of the LogSessions removed as idle or to stay within the memory budget.
+     * @return the reclaimed size
+     */
+    public static long getReclaimedBytes()
+    {
+        return SessionReaper.getReclaimedBytes();
+    }
+
+    /**
+     * Evicts the history that has aged out of every LogSession, and removes the LogSessions with no websockets
+     * that have been idle for too long, then, while the history of all LogSessions is over the budget,
+     * those that were used least recently.
+     * @param now the current time
+     * @param idleMillis the time a LogSession may be idle, 0 for no limit
+     * @param maxBytes the most history all LogSessions may hold, 0 for no limit
+     */
+    static void reapSessions(final long now, final long idleMillis, final long maxBytes)
+    {
+        final List<ReapCandidate> candidates = new ArrayList<>();
+        Logger.ROOT_SESSION.evictHistory();
+        long totalBytes = Logger.ROOT_SESSION.getHistoryBytes();
+        totalBytes += Logger.findReapCandidates(Logger.USER_SESSIONS, now, idleMillis, candidates);
+        totalBytes += Logger.findReapCandidates(Logger.NON_USER_SESSIONS, now, idleMillis, candidates);
+        if (0 == maxBytes || totalBytes <= maxBytes)
+        {
+            return;
+        }
+        Collections.sort(candidates, new Comparator<ReapCandidate>()
+        {
+            @Override
+            public int compare(final ReapCandidate o1, final ReapCandidate o2)
+            {
+                return Long.compare(o1.lastActive, o2.lastActive);
+            }
+        });
+        for (int i = 0; i < candidates.size() && totalBytes > maxBytes; i++)
+        {
+            final ReapCandidate candidate = candidates.get(i);
+            final long bytes = candidate.logSession.getHistoryBytes();
+            if (Logger.expire(candidate.sessions, candidate.key, candidate.logSession))
+            {
+                totalBytes -= bytes;
+            }
+        }
+    }
+
+    /**
+     * Removes the idle LogSessions of a map, evicts the aged out history of those kept, and finds those that could be removed to stay within the budget.
+     * @return the size of the history of the LogSessions that were kept
+     */
+    private static long findReapCandidates(final ConcurrentMap<String, LogSession> sessions, final long now,
+                                           final long idleMillis, final List<ReapCandidate> candidates)
+    {
+        long result = 0;
+        for (final Map.Entry<String, LogSession> entry : sessions.entrySet())
+        {
+            final LogSession logSession = entry.getValue();
+            final long lastActive = logSession.getLastActive();
+            if (logSession.isSessionsEmpty())
+            {
+                if (0 != idleMillis && now - lastActive > idleMillis
+                        && Logger.expire(sessions, entry.getKey(), logSession))
+                {
+                    continue;
+                }
+                candidates.add(new ReapCandidate(sessions, entry.getKey(), logSession, lastActive));
+            }
+            logSession.evictHistory();
+            result += logSession.getHistoryBytes();
+        }
+        return result;
+    }
+
+    /**
+     * Removes a LogSession if it still has no websockets, serialised with creating LogSessions,
+     * so a persistent history store is closed before it can be opened again.
+     * The repeats it is still folding are logged first, as they may have been logged for viewers on other nodes.
+     * It is closed before it is removed, so a thread that already resolved it and logs to it now
+     * has the record rejected, and logs it again to the LogSession that replaces it.
+     * @return true if the LogSession was removed
+     */
+    private static boolean expire(final ConcurrentMap<String, LogSession> sessions, final String key, final LogSession logSession)
+    {
+        synchronized (sessions)
+        {
+            if (!logSession.isSessionsEmpty() || sessions.get(key) != logSession)
+            {
+                return false;
+            }
+            logSession.flushRepeats();
+            SessionReaper.reclaimed(logSession.getHistorySize(), logSession.getHistoryBytes());
+            logSession.close();
+            sessions.remove(key, logSession);
+            Logger.generation.incrementAndGet();
+            return true;
+        }
+    }
+
+    /**
+     * Turns on counting and timing of logging, websocket sends, history replays and client messages,
+     * and registers the {@link LogdynMetricsMXBean} with the platform MBean server the first time.
+     * While off, which is the default, the hot paths only check this flag.
+     * @param enabled true to collect metrics
+     */
+    public static void setMetricsEnabled(final boolean enabled)
+    {
+        Metrics.setEnabled(enabled);
+    }
+
+    /**
+     * gets whether metrics are being collected.
+     * @return true if metrics are being collected
+     */
+    public static boolean isMetricsEnabled()
+    {
+        return Metrics.isEnabled();
+    }
+
+    /**
+     * gets the current metrics, including the size of every LogSession.
+     * @return a snapshot of the metrics
+     */
+    public static MetricsSnapshot getMetrics()
+    {
+        return Metrics.snapshot();
+    }
+
+    /**
+     * gets the state of every LogSession, the root LogSession first.
+     * @return the metrics of each LogSession
+     */
+    static List<LogSessionMetrics> getLogSessionMetrics()
+    {
+        final List<LogSessionMetrics> result = new ArrayList<>(1 + Logger.USER_SESSIONS.size() + Logger.NON_USER_SESSIONS.size());
+        result.add(Logger.ROOT_SESSION.getMetrics(Logger.ROOT_STORE_NAME));
+        for (final Map.Entry<String, LogSession> entry : Logger.USER_SESSIONS.entrySet())
+        {
+            result.add(entry.getValue().getMetrics(Logger.storeName(Logger.USER_STORE_PREFIX, entry.getKey())));
+        }
+        for (final Map.Entry<String, LogSession> entry : Logger.NON_USER_SESSIONS.entrySet())
+        {
+            result.add(entry.getValue().getMetrics(Logger.storeName(Logger.SESSION_STORE_PREFIX, entry.getKey())));
+        }
+        return result;
+    }
+
+    /**
+     * gets the total number of messages evicted from all current LogSessions.
+     * @return the number of evicted messages
+     */
+    public static long getEvictedCount()
+    {
+        long result = Logger.ROOT_SESSION.getEvictedCount();
+        for (final LogSession logSession : Logger.USER_SESSIONS.values())
+        {
+            result += logSession.getEvictedCount();
+        }
+        for (final LogSession logSession : Logger.NON_USER_SESSIONS.values())
+        {
+            result += logSession.getEvictedCount();
+        }
+        return result;
+    }
+
+    /**
+     * Finds the records in the message history that match a query.
+     * The history searched is the LogSession of the querys username, else of its sessionId, else the Root session,
+     * so e.g. {@code HistoryQuery.ALL.username("admin").minLevel(JsLevel.WARN)} finds the warnings logged for admin.
+     * @param query the records to find
+     * @return the matching records, oldest first
+     */
+    public static List<LogRecord> query(final HistoryQuery query)
+    {
+        final LogSession logSession;
+        if (null != query.getUsername())
+        {
+            logSession = Logger.USER_SESSIONS.get(query.getUsername());
+        }
+        else if (null != query.getSessionId())
+        {
+            logSession = Logger.NON_USER_SESSIONS.get(query.getSessionId());
+        }
+        else
+        {
+            logSession = Logger.ROOT_SESSION;
+        }
+        final List<LogRecord> result = new ArrayList<>();
+        if (null != logSession)
+        {
+            // records logged through a Handler hold no username or sessionId, so only the LogSession is matched on them
+            final Iterator<LogRecord> matches = logSession.query(query.username(null).sessionId(null));
+            while (matches.hasNext())
+            {
+                result.add(matches.next());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * adds a session to the relevant LogSession and starts replaying its history.
+     * The client can limit the replay with {@code since} (a timestamp) and {@code last} (a record count)
+     * parameters on the websocket URL.
      * @param session the session to add
      * @param username the username of the user using the session
      * @param httpSessionId the httpSessionId of the session that is using the session.
      */
     public static void addSession(final Session session, final String username, final String httpSessionId)
+    {
+        Logger.addViewer(LoggingEndpointConfig.DEFAULTS.createViewer(session), username, httpSessionId);
+    }
+
+    /**
+     * adds a websocket session, through its outbound queue, to the relevant LogSession and starts replaying its history.
+     * @param viewer the viewer of the session to add
+     * @param username the username of the user using the session
+     * @param httpSessionId the httpSessionId of the session that is using the session.
+     */
+    static void addViewer(final LogViewer viewer, final String username, final String httpSessionId)
     {
         final LogSession logSession = getLogSession(username, httpSessionId);
-        logSession.addWebsocketSession(session);
+        logSession.addViewer(viewer);
         if (logSession != Logger.ROOT_SESSION)
         {
-            ROOT_SESSION.addWebsocketSession(session);
+            ROOT_SESSION.addViewer(viewer);
         }
-        logSession.sendMessages(session, ROOT_SESSION);
+        final Session session = viewer.getSession();
+        logSession.replayMessages(viewer, Logger.ROOT_SESSION, ReplayRequest.fromParameters(session.getRequestParameterMap()));
     }
 
     /**
@@ -94,6 +642,64 @@ public class Logger
         }
     }
 
+    /**
+     * Logs a record to the most relevant LogSession, resolving it again if it was closed after it was resolved.
+     * The record is not folded into earlier repeats, as it either already was or was received from another node,
+     * which folds the records logged there.
+     * @param logRecord the LogRecord to log.
+     * @param exclude a session to exclude from sending the messages to.
+     * @param username the username of the user the record belongs to, or {@code null}
+     * @param httpSessionId the httpSession Id the record belongs to, or {@code null}
+     * @return true if the logRecord was successfully stored.
+     */
+    static boolean logToSession(final LogRecord logRecord, final Session exclude, final String username, final String httpSessionId)
+    {
+        while (true)
+        {
+            final LogSession logSession = Logger.getLogSession(username, httpSessionId);
+            try
+            {
+                return logSession.publish(logRecord, exclude);
+            }
+            catch (final IllegalStateException e)
+            {
+                if (!logSession.isClosed())
+                {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Logs a batch to the most relevant LogSession, resolving it again if it was closed after it was resolved.
+     * The whole batch is logged again, as any records stored before the close were discarded with the LogSession.
+     * @param logRecords the LogRecords to log.
+     * @param exclude a session to exclude from sending the messages to.
+     * @param username the username of the user the records belong to, or {@code null}
+     * @param httpSessionId the httpSession Id the records belong to, or {@code null}
+     * @return the number of logRecords that were stored.
+     */
+    private static int logToSession(final Collection<LogRecord> logRecords, final Session exclude,
+                                    final String username, final String httpSessionId)
+    {
+        while (true)
+        {
+            final LogSession logSession = Logger.getLogSession(username, httpSessionId);
+            try
+            {
+                return logSession.publish(logRecords, exclude);
+            }
+            catch (final IllegalStateException e)
+            {
+                if (!logSession.isClosed())
+                {
+                    throw e;
+                }
+            }
+        }
+    }
+
     /**
      * Gets the most relevant LogSession.
      *
@@ -103,32 +709,81 @@ public class Logger
      * @param httpSessionId a heepSessionId to get or create
      * @return the most relevant LogSession
      */
-    private static LogSession getLogSession(final String username, final String httpSessionId)
+    static LogSession getLogSession(final String username, final String httpSessionId)
     {
-        LogSession result;
-        if (null != username)
+        if (null == username && null == httpSessionId)
         {
-            result = Logger.USER_SESSIONS.get(username);
-            if (null == result)
-            {
-                result = new LogSession();
-                Logger.USER_SESSIONS.put(username, result);
-            }
+            return Logger.ROOT_SESSION;
         }
-        else if (null != httpSessionId)
+        // read before resolving, so a removal that races with this lookup invalidates what is cached
+        final int generation = Logger.generation.get();
+        final CachedLogSession cached = Logger.lastLogSession.get();
+        if (cached.matches(username, httpSessionId, generation) && !cached.logSession.isClosed())
+        {
+            return cached.logSession;
+        }
+        final LogSession result = null != username
+                ? Logger.getOrCreate(Logger.USER_SESSIONS, Logger.USER_STORE_PREFIX, username)
+                : Logger.getOrCreate(Logger.NON_USER_SESSIONS, Logger.SESSION_STORE_PREFIX, httpSessionId);
+        cached.set(username, httpSessionId, generation, result);
+        return result;
+    }
+
+    /**
+     * Gets the LogSession for a key, creating it if needed.
+     * Concurrent callers for the same key always get the same LogSession.
+     * Creation is serialised, as a persistent history store must only be opened once.
+     * @param sessions the sessions to look in
+     * @param prefix the prefix of the history store name for the key
+     * @param key the username or httpSessionId
+     * @return the LogSession for the key
+     */
+    private static LogSession getOrCreate(final ConcurrentMap<String, LogSession> sessions, final String prefix, final String key)
+    {
+        LogSession result = sessions.get(key);
+        // a closed LogSession is still in the map while it is being expired, which holds the lock
+        if (null == result || result.isClosed())
         {
-            result = Logger.NON_USER_SESSIONS.get(httpSessionId);
-            if (null == result)
+            synchronized (sessions)
             {
-                result = new LogSession();
-                Logger.NON_USER_SESSIONS.put(httpSessionId, result);
+                result = sessions.get(key);
+                if (null == result || result.isClosed())
+                {
+                    result = Logger.newLogSession(Logger.historyStoreFactory.create(Logger.storeName(prefix, key), Logger.retentionPolicy));
+                    sessions.put(key, result);
+                }
             }
         }
-        else
+        return result;
+    }
+
+    /**
+     * @param messages the history store of the LogSession
+     * @return a LogSession that folds repeats as currently set, and logs the repeats through {@link #log}
+     */
+    private static LogSession newLogSession(final HistoryStore messages)
+    {
+        final LogSession result = new LogSession(messages);
+        result.setCollapseWindow(Logger.collapseWindow);
+        result.setRepeatSink(Logger.REPEATS);
+        return result;
+    }
+
+    /**
+     * @param prefix the prefix for the kind of LogSession
+     * @param key the username or httpSessionId
+     * @return a history store name for the key that is safe to use as a file name
+     */
+    private static String storeName(final String prefix, final String key)
+    {
+        try
         {
-            result = Logger.ROOT_SESSION;
+            return prefix + URLEncoder.encode(key, "UTF-8").replace("*", "%2A");
+        }
+        catch (final UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
         }
-        return result;
     }
 
     /**
@@ -138,6 +793,7 @@ public class Logger
     {
         Logger.username.remove();
         Logger.sessionId.remove();
+        Logger.lastLogSession.remove();
     }
 
     /**
@@ -175,4 +831,53 @@ public class Logger
     {
         Logger.sessionId.set(sessionId);
     }
+
+    /**
+     * A LogSession without websockets that may be removed to bring the history within the memory budget,
+     * and the map it is held in.
+     */
+    private static class ReapCandidate
+    {
+        private final ConcurrentMap<String, LogSession> sessions;
+        private final String key;
+        private final LogSession logSession;
+        /** read once, so it cannot change while sorting */
+        private final long lastActive;
+
+        ReapCandidate(final ConcurrentMap<String, LogSession> sessions, final String key,
+                      final LogSession logSession, final long lastActive)
+        {
+            this.sessions = sessions;
+            this.key = key;
+            this.logSession = logSession;
+            this.lastActive = lastActive;
+        }
+    }
+
+    /**
+     * The LogSession a thread last resolved, and the values it was resolved from.
+     */
+    private static class CachedLogSession
+    {
+        private String username;
+        private String httpSessionId;
+        private int generation;
+        private LogSession logSession;
+
+        boolean matches(final String username, final String httpSessionId, final int generation)
+        {
+            return null != this.logSession
+                    && this.generation == generation
+                    && Objects.equals(this.username, username)
+                    && Objects.equals(this.httpSessionId, httpSessionId);
+        }
+
+        void set(final String username, final String httpSessionId, final int generation, final LogSession logSession)
+        {
+            this.username = username;
+            this.httpSessionId = httpSessionId;
+            this.generation = generation;
+            this.logSession = logSession;
+        }
+    }
 }
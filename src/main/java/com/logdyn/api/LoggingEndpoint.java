@@ -1,13 +1,13 @@
 package com.logdyn.api;
 
 import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
 
 import javax.servlet.http.HttpSession;
 import javax.websocket.*;
+import java.io.IOException;
 import java.io.Reader;
 import java.security.Principal;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 
@@ -21,6 +21,9 @@ public class LoggingEndpoint extends Endpoint implements MessageHandler.Whole<Re
 	private String httpSessionId = null;
 	private String username;
 	private Session websocketSession;
+	private LogViewer viewer;
+	private IngestLimiter limiter;
+	private final ClientMessageDecoder decoder = new ClientMessageDecoder();
 
 	/**
 	 *  {@inheritDoc}
@@ -41,32 +44,75 @@ public class LoggingEndpoint extends Endpoint implements MessageHandler.Whole<Re
 			this.httpSessionId = ((HttpSession) httpSession).getId();
 		}
 		// add websocket session to relevant logSession
-		Logger.addSession(session, this.username, this.httpSessionId);
+		final LoggingEndpointConfig loggingConfig = config instanceof LoggingEndpointConfig
+				? (LoggingEndpointConfig) config
+				: LoggingEndpointConfig.DEFAULTS;
+		this.viewer = loggingConfig.createViewer(session);
+		this.limiter = loggingConfig.createIngestLimiter(this.username, this.httpSessionId);
+		Logger.addViewer(this.viewer, this.username, this.httpSessionId);
 	}
 
 	/**
 	 *  {@inheritDoc}
+	 *  A message with a {@code filter} property replaces the filter of this websocket, see {@link ViewerFilter},
+	 *  any other message is logged as a record, or a JSON array of records, from the client.
+	 *  Records over the rate limits of {@link LoggingEndpointConfig#setIngestLimits(double, int, double, int)}
+	 *  are discarded, and reported once the client sends within the limits again.
+	 *  Messages that cannot be parsed, or hold an invalid filter, are charged to the same limits,
+	 *  and those over them are only counted in that report rather than each logged.
 	 */
 	@Override
 	public void onMessage(final Reader reader)
 	{
 		this.setThreadLocals();
+		final boolean timed = Metrics.isEnabled();
+		final long start = timed ? System.nanoTime() : 0;
 
-		LogRecord logRecord;
 		try
 		{
-			final JSONObject jsonObject = new JSONObject(new JSONTokener(reader));
-			logRecord = LogRecordUtils.fromJSON(jsonObject, this.username, this.httpSessionId);
-			Logger.log(logRecord, this.websocketSession);
+			this.decoder.decode(reader, this.username, this.httpSessionId);
+			if (timed)
+			{
+				Metrics.CLIENT_RECORDS.add(this.decoder.getRecords().size());
+			}
+			if (null != this.decoder.getFilter())
+			{
+				this.viewer.setFilter(ViewerFilter.fromJSON(this.decoder.getFilter()));
+			}
+			else
+			{
+				final List<LogRecord> logRecords = this.decoder.getRecords();
+				this.limiter.admit(logRecords);
+				if (!logRecords.isEmpty())
+				{
+					this.reportSuppressed();
+				}
+				if (1 == logRecords.size())
+				{
+					Logger.log(logRecords.get(0), this.websocketSession, this.username, this.httpSessionId);
+				}
+				else if (!logRecords.isEmpty())
+				{
+					Logger.log(logRecords, this.websocketSession, this.username, this.httpSessionId);
+				}
+			}
 		}
-		catch (JSONException e)
+		catch (JSONException | IOException e)
 		{
-			logRecord = new LogRecord(Level.WARNING,"Failed to parse Log Record from client");
-			Logger.log(logRecord, null);
+			this.reportInvalid("Failed to parse Log Record from client");
+		}
+		catch (IllegalArgumentException e)
+		{
+			this.reportInvalid("Invalid filter from client: " + e.getMessage());
 		}
 		finally
 		{
 			Logger.clearThreadLocals();
+			if (timed)
+			{
+				Metrics.CLIENT_MESSAGES.increment();
+				Metrics.CLIENT_MESSAGE_LATENCY.record(System.nanoTime() - start);
+			}
 		}
 	}
 
@@ -98,9 +144,52 @@ public class LoggingEndpoint extends Endpoint implements MessageHandler.Whole<Re
 	@Override
 	public void onClose(final Session session, final CloseReason closeReason)
 	{
+		if (null != this.limiter)
+		{
+			this.reportSuppressed();
+		}
 		Logger.removeSession(session, this.username, this.httpSessionId);
 	}
 
+	/**
+	 * Logs a warning about a message from this client that could not be used, if it is within the rate limits.
+	 * @param warning the warning to log
+	 */
+	private void reportInvalid(final String warning)
+	{
+		if (this.limiter.admitInvalid())
+		{
+			this.reportSuppressed();
+			Logger.log(new LogRecord(Level.WARNING, warning), null);
+		}
+	}
+
+	/**
+	 * Logs how many records from this client were discarded by the rate limits since the last report,
+	 * and how many messages that could not be used were not warned about, to every viewer of the client including itself.
+	 */
+	private void reportSuppressed()
+	{
+		final long suppressed = this.limiter.takeUnreported();
+		final long invalid = this.limiter.takeUnreportedInvalid();
+		if (suppressed > 0 || invalid > 0)
+		{
+			final StringBuilder message = new StringBuilder();
+			if (suppressed > 0)
+			{
+				message.append(suppressed).append(" log messages from the client were suppressed by the rate limit");
+			}
+			if (invalid > 0)
+			{
+				message.append(suppressed > 0 ? ", and " : "").append(invalid)
+						.append(" messages from the client that could not be used were ignored");
+			}
+			Logger.log(new LogMessage(Level.WARNING, message.toString(),
+					this.username, this.httpSessionId, System.currentTimeMillis()),
+					null, this.username, this.httpSessionId);
+		}
+	}
+
 	private void setThreadLocals()
 	{
 		Logger.setCurrentUsername(this.username);
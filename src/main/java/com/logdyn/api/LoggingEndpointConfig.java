@@ -5,25 +5,254 @@ import javax.websocket.Decoder;
 import javax.websocket.Encoder;
 import javax.websocket.Extension;
 import javax.websocket.HandshakeResponse;
+import javax.websocket.Session;
 import javax.websocket.server.HandshakeRequest;
 import javax.websocket.server.ServerEndpointConfig;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Created by Matt on 16/06/2017.
  */
 public class LoggingEndpointConfig implements ServerEndpointConfig
 {
+    /**
+     * What happens to records sent to a websocket that has more than the high water mark waiting to be sent.
+     */
+    public enum SlowConsumerPolicy
+    {
+        /** discard the oldest waiting record */
+        DROP_OLDEST,
+        /** discard the record being sent */
+        DROP_NEWEST,
+        /** discard the record being sent and tell the client how many were discarded once it catches up */
+        SUMMARIZE
+    }
+
+    /**
+     * The websocket subprotocol a client can request to be sent binary frames of records, see {@link BinaryFrameCodec}.
+     * Clients that do not request it are sent JSON.
+     */
+    public static final String BINARY_SUBPROTOCOL = "logdyn.binary.v1";
+
+    /** The name of the websocket extension that compresses every frame */
+    public static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+    /** The settings used for websockets that were not opened through a LoggingEndpointConfig */
+    static final LoggingEndpointConfig DEFAULTS = new LoggingEndpointConfig(null);
+
+    /** the number of per user limiters kept before those with a full bucket are discarded */
+    private static final int MAX_IDLE_USER_LIMITERS = 1024;
+
     private final String path;
     private final Map<String, Object> userParams = new HashMap<>();
+    private int maxBatch = 200;
+    private long linger = 5;
+    private int highWaterMark = 10_000;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.SUMMARIZE;
+    private long slowConsumerTimeout = 30_000;
+    private double connectionIngestRate = 0;
+    private int connectionIngestBurst = 0;
+    private double userIngestRate = 0;
+    private int userIngestBurst = 0;
+    private final ConcurrentMap<String, RateLimiter> userLimiters = new ConcurrentHashMap<>();
+    private boolean permessageDeflate = true;
+
     public LoggingEndpointConfig(final String path)
     {
         this.path = path;
     }
 
+    /**
+     * Sets how records sent to each websocket are coalesced into JSON array frames.
+     * @param maxBatch the maximum number of records in one frame
+     * @param linger the time in milliseconds a record waits for others to share its frame,
+     *               0 to only coalesce records sent while a previous frame is still being sent
+     */
+    public void setCoalescing(final int maxBatch, final long linger)
+    {
+        this.maxBatch = maxBatch;
+        this.linger = linger;
+    }
+
+    /**
+     * Sets how websockets that cannot keep up with the records sent to them are handled.
+     * @param highWaterMark the number of records waiting to be sent to a websocket before records are dropped
+     * @param slowConsumerPolicy which records to drop
+     * @param slowConsumerTimeout the time in milliseconds a websocket can continuously stay above the high water mark
+     *                            before it is closed
+     */
+    public void setBackpressure(final int highWaterMark, final SlowConsumerPolicy slowConsumerPolicy,
+                                final long slowConsumerTimeout)
+    {
+        this.highWaterMark = highWaterMark;
+        this.slowConsumerPolicy = Objects.requireNonNull(slowConsumerPolicy);
+        this.slowConsumerTimeout = slowConsumerTimeout;
+    }
+
+    /**
+     * Sets how fast each client may send records to be logged. Records over either limit are discarded,
+     * and the client's viewers are told how many were discarded once it sends within the limits again.
+     * By default there are no limits.
+     * @param connectionRate the records per second each websocket may send, 0 for no limit
+     * @param connectionBurst the records a websocket may send at once after being idle
+     * @param userRate the records per second all the websockets of a user, or of a httpSession
+     *                 if there is no user, may send between them, 0 for no limit
+     * @param userBurst the records a user may send at once after being idle
+     */
+    public void setIngestLimits(final double connectionRate, final int connectionBurst,
+                                final double userRate, final int userBurst)
+    {
+        this.connectionIngestRate = connectionRate;
+        this.connectionIngestBurst = connectionBurst;
+        this.userIngestRate = userRate;
+        this.userIngestBurst = userBurst;
+        this.userLimiters.clear();
+    }
+
+    /**
+     * Sets whether websockets may negotiate permessage-deflate, which compresses every frame if the container
+     * implements it. It is offered by default. Websockets that negotiate it are sent history uncompressed
+     * even if they ask for {@code ?compress=deflate}, as it would be compressed twice.
+     * @param permessageDeflate true to offer permessage-deflate to clients
+     */
+    public void setPermessageDeflate(final boolean permessageDeflate)
+    {
+        this.permessageDeflate = permessageDeflate;
+    }
+
+    public boolean isPermessageDeflate()
+    {
+        return this.permessageDeflate;
+    }
+
+    public int getMaxBatch()
+    {
+        return this.maxBatch;
+    }
+
+    public long getLinger()
+    {
+        return this.linger;
+    }
+
+    public int getHighWaterMark()
+    {
+        return this.highWaterMark;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy()
+    {
+        return this.slowConsumerPolicy;
+    }
+
+    public long getSlowConsumerTimeout()
+    {
+        return this.slowConsumerTimeout;
+    }
+
+    public double getConnectionIngestRate()
+    {
+        return this.connectionIngestRate;
+    }
+
+    public int getConnectionIngestBurst()
+    {
+        return this.connectionIngestBurst;
+    }
+
+    public double getUserIngestRate()
+    {
+        return this.userIngestRate;
+    }
+
+    public int getUserIngestBurst()
+    {
+        return this.userIngestBurst;
+    }
+
+    /**
+     * creates the outbound queue for a newly opened websocket session,
+     * filtered by any filter parameters on the websocket URL.
+     * @param session the session that has opened
+     * @return a viewer using this configurations settings
+     */
+    LogViewer createViewer(final Session session)
+    {
+        final LogViewer result = new LogViewer(session, this);
+        result.setFilter(ViewerFilter.fromParameters(session.getRequestParameterMap()));
+        return result;
+    }
+
+    /**
+     * creates the inbound rate limits for a newly opened websocket session.
+     * @param username the user of the session, or {@code null}
+     * @param httpSessionId the httpSession of the session, or {@code null}
+     * @return a limiter sharing its user limit with the user's other websockets
+     */
+    IngestLimiter createIngestLimiter(final String username, final String httpSessionId)
+    {
+        final RateLimiter connectionLimiter = this.connectionIngestRate > 0
+                ? new RateLimiter(this.connectionIngestRate, this.connectionIngestBurst)
+                : null;
+        final String userKey = null != username ? "user:" + username
+                : null != httpSessionId ? "session:" + httpSessionId
+                : null;
+        return new IngestLimiter(connectionLimiter, this, userKey);
+    }
+
+    /**
+     * gets the limiter shared by every websocket of a user. It is looked up for each message rather than kept,
+     * as limiters with a full bucket may be discarded and created again.
+     * @param userKey the user or httpSession the limiter is for
+     * @return the limiter, or {@code null} if users are not limited
+     */
+    RateLimiter getUserLimiter(final String userKey)
+    {
+        if (this.userIngestRate <= 0 || null == userKey)
+        {
+            return null;
+        }
+        RateLimiter result = this.userLimiters.get(userKey);
+        if (null == result)
+        {
+            this.discardIdleUserLimiters();
+            final RateLimiter created = new RateLimiter(this.userIngestRate, this.userIngestBurst);
+            result = this.userLimiters.putIfAbsent(userKey, created);
+            if (null == result)
+            {
+                result = created;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Discards user limiters with a full bucket once there are many, as they are no different to a new limiter.
+     */
+    private void discardIdleUserLimiters()
+    {
+        if (this.userLimiters.size() < LoggingEndpointConfig.MAX_IDLE_USER_LIMITERS)
+        {
+            return;
+        }
+        final long now = System.nanoTime();
+        for (final Iterator<RateLimiter> iterator = this.userLimiters.values().iterator(); iterator.hasNext(); )
+        {
+            if (iterator.next().isFull(now))
+            {
+                iterator.remove();
+            }
+        }
+    }
+
     @Override
     public Class<?> getEndpointClass()
     {
@@ -39,13 +268,16 @@ public class LoggingEndpointConfig implements ServerEndpointConfig
     @Override
     public List<String> getSubprotocols()
     {
-        return Collections.emptyList();
+        return Collections.singletonList(LoggingEndpointConfig.BINARY_SUBPROTOCOL);
     }
 
     @Override
     public List<Extension> getExtensions()
     {
-        return Collections.emptyList();
+        // containers that do not implement an extension drop it when negotiating
+        return this.permessageDeflate
+                ? Collections.<Extension>singletonList(new NamedExtension(LoggingEndpointConfig.PERMESSAGE_DEFLATE))
+                : Collections.<Extension>emptyList();
     }
 
     @Override
@@ -60,6 +292,26 @@ public class LoggingEndpointConfig implements ServerEndpointConfig
                 sec.getUserProperties().put(HttpSession.class.getName(), request.getHttpSession());
                 super.modifyHandshake(sec, request, response);
             }
+
+            @Override
+            public List<Extension> getNegotiatedExtensions(final List<Extension> installed, final List<Extension> requested)
+            {
+                final List<Extension> result = super.getNegotiatedExtensions(installed, requested);
+                if (LoggingEndpointConfig.this.permessageDeflate)
+                {
+                    return result;
+                }
+                // containers may install permessage-deflate themselves, so it is removed rather than not offered
+                final List<Extension> filtered = new ArrayList<>(result.size());
+                for (final Extension extension : result)
+                {
+                    if (!LoggingEndpointConfig.PERMESSAGE_DEFLATE.equals(extension.getName()))
+                    {
+                        filtered.add(extension);
+                    }
+                }
+                return filtered;
+            }
         };
     }
 
@@ -80,4 +332,29 @@ public class LoggingEndpointConfig implements ServerEndpointConfig
     {
         return this.userParams;
     }
+
+    /**
+     * An extension offered with its default parameters, which the container negotiates with the client.
+     */
+    private static class NamedExtension implements Extension
+    {
+        private final String name;
+
+        NamedExtension(final String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public String getName()
+        {
+            return this.name;
+        }
+
+        @Override
+        public List<Parameter> getParameters()
+        {
+            return Collections.emptyList();
+        }
+    }
 }
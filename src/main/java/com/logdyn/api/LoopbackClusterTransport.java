@@ -0,0 +1,68 @@
+package com.logdyn.api;
+
+import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A {@link ClusterTransport} between nodes in the same process, for testing.
+ * Frames are delivered immediately on the sending thread to every connected transport that has been started.
+ */
+public class LoopbackClusterTransport implements ClusterTransport
+{
+    private final CopyOnWriteArrayList<LoopbackClusterTransport> peers = new CopyOnWriteArrayList<>();
+    private volatile Receiver receiver;
+
+    /**
+     * Connects two transports, so each receives the frames sent by the other.
+     * @param other the transport to connect to
+     */
+    public void connect(final LoopbackClusterTransport other)
+    {
+        if (other != this)
+        {
+            this.peers.addIfAbsent(other);
+            other.peers.addIfAbsent(this);
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public void start(final Receiver receiver)
+    {
+        this.receiver = receiver;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public void send(final byte[] frame, final int offset, final int length)
+    {
+        // a copy, as the caller may reuse the array while a receiver is still using it
+        final byte[] copy = Arrays.copyOfRange(frame, offset, offset + length);
+        for (final LoopbackClusterTransport peer : this.peers)
+        {
+            final Receiver peerReceiver = peer.receiver;
+            if (null != peerReceiver)
+            {
+                peerReceiver.receive(copy, 0, copy.length);
+            }
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        this.receiver = null;
+        for (final LoopbackClusterTransport peer : this.peers)
+        {
+            peer.peers.remove(this);
+        }
+        this.peers.clear();
+    }
+}
@@ -0,0 +1,369 @@
+package com.logdyn.api;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Holds message history on the heap.
+ * Records are kept in timestamp order and the oldest are evicted once the {@link RetentionPolicy} is exceeded.
+ * Records older than the maximum age are evicted as records are added or read, and when the {@link SessionReaper} runs.
+ * Records with the same timestamp are ordered by sequence number, see {@link LogRecordComparator#BY_SEQUENCE}.
+ * Each level also has its own ordered index, so queries for a minimum level only visit records at or above it.
+ */
+class MemoryHistoryStore implements HistoryStore
+{
+    /** Rough heap cost of a LogRecord and its skip list nodes in the history and level index, excluding strings */
+    private static final int RECORD_OVERHEAD = 200;
+    /** Rough heap cost of a String, excluding its characters */
+    private static final int STRING_OVERHEAD = 40;
+
+    private final NavigableSet<LogRecord> records = new ConcurrentSkipListSet<>(LogRecordComparator.BY_SEQUENCE);
+    /** the records of each level, keyed by {@link Level#intValue()} */
+    private final ConcurrentNavigableMap<Integer, NavigableSet<LogRecord>> byLevel = new ConcurrentSkipListMap<>();
+    /** tracked separately as {@link ConcurrentSkipListSet#size()} is not constant time */
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong retainedBytes = new AtomicLong();
+    private final AtomicLong evictedCount = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+    private volatile RetentionPolicy policy;
+    /** shared by adds and evictions, which only run while the store is open, and held exclusively to close it */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    /** guarded by closeLock */
+    private boolean closed = false;
+
+    static final HistoryStore.Factory FACTORY = new HistoryStore.Factory()
+    {
+        @Override
+        public HistoryStore create(final String name, final RetentionPolicy retentionPolicy)
+        {
+            return new MemoryHistoryStore(retentionPolicy);
+        }
+    };
+
+    MemoryHistoryStore(final RetentionPolicy policy)
+    {
+        this.policy = policy;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public boolean add(final LogRecord logRecord)
+    {
+        this.closeLock.readLock().lock();
+        try
+        {
+            if (this.closed)
+            {
+                throw new IllegalStateException("History is closed");
+            }
+            // indexed and retained before it is published to records, where a concurrent evict can take it
+            final boolean retain = logRecord instanceof LogMessage;
+            if (retain)
+            {
+                ((LogMessage) logRecord).retain();
+            }
+            final NavigableSet<LogRecord> levelIndex = this.levelIndex(logRecord.getLevel());
+            final boolean indexed = levelIndex.add(logRecord);
+            final boolean result = this.records.add(logRecord);
+            if (!result)
+            {
+                if (indexed)
+                {
+                    levelIndex.remove(logRecord);
+                }
+                if (retain)
+                {
+                    ((LogMessage) logRecord).release();
+                }
+            }
+            else
+            {
+                if (!indexed)
+                {
+                    // the copy already indexed was evicted in between, taking the index entry with it
+                    levelIndex.add(logRecord);
+                }
+                this.size.incrementAndGet();
+                this.retainedBytes.addAndGet(MemoryHistoryStore.estimateSize(logRecord));
+                this.evictOpen();
+            }
+            return result;
+        }
+        finally
+        {
+            this.closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public void setRetentionPolicy(final RetentionPolicy policy)
+    {
+        this.policy = policy;
+        this.evict();
+    }
+
+    @Override
+    public RetentionPolicy getRetentionPolicy()
+    {
+        return this.policy;
+    }
+
+    /**
+     * Removes the oldest records until the history is within its retention policy.
+     */
+    public void evict()
+    {
+        this.closeLock.readLock().lock();
+        try
+        {
+            if (!this.closed)
+            {
+                this.evictOpen();
+            }
+        }
+        finally
+        {
+            this.closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Evicts while holding the read lock of an open store.
+     */
+    private void evictOpen()
+    {
+        final RetentionPolicy policy = this.policy;
+        final long cutoff = System.currentTimeMillis() - policy.getMaxAge();
+        while (this.size.get() > policy.getMaxRecords()
+                || this.retainedBytes.get() > policy.getMaxBytes()
+                || this.isOlderThan(cutoff))
+        {
+            final LogRecord evicted = this.records.pollFirst();
+            if (null == evicted)
+            {
+                break;
+            }
+            this.levelIndex(evicted.getLevel()).remove(evicted);
+            if (evicted instanceof LogMessage)
+            {
+                ((LogMessage) evicted).release();
+            }
+            final long bytes = MemoryHistoryStore.estimateSize(evicted);
+            this.size.decrementAndGet();
+            this.retainedBytes.addAndGet(-bytes);
+            this.evictedCount.incrementAndGet();
+            this.evictedBytes.addAndGet(bytes);
+        }
+    }
+
+    private NavigableSet<LogRecord> levelIndex(final Level level)
+    {
+        final Integer key = (null != level ? level : Level.INFO).intValue();
+        NavigableSet<LogRecord> result = this.byLevel.get(key);
+        if (null == result)
+        {
+            final NavigableSet<LogRecord> created = new ConcurrentSkipListSet<>(LogRecordComparator.BY_SEQUENCE);
+            result = this.byLevel.putIfAbsent(key, created);
+            if (null == result)
+            {
+                result = created;
+            }
+        }
+        return result;
+    }
+
+    private boolean isOlderThan(final long cutoff)
+    {
+        try
+        {
+            return this.records.first().getMillis() < cutoff;
+        }
+        catch (final NoSuchElementException e)
+        {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return this.records.isEmpty();
+    }
+
+    /**
+     * @return the number of records currently stored
+     */
+    @Override
+    public int size()
+    {
+        return Math.max(this.size.get(), 0);
+    }
+
+    /**
+     * @return the estimated heap size of the stored records
+     */
+    @Override
+    public long getRetainedBytes()
+    {
+        return Math.max(this.retainedBytes.get(), 0);
+    }
+
+    /**
+     * @return the number of records evicted since this history was created
+     */
+    @Override
+    public long getEvictedCount()
+    {
+        return this.evictedCount.get();
+    }
+
+    /**
+     * @return the estimated heap size of the records evicted since this history was created
+     */
+    public long getEvictedBytes()
+    {
+        return this.evictedBytes.get();
+    }
+
+    @Override
+    public Iterator<LogRecord> iterator()
+    {
+        this.evict();
+        return Collections.unmodifiableSortedSet(this.records).iterator();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public Iterator<LogRecord> iterator(final long since)
+    {
+        this.evict();
+        return Collections.unmodifiableSortedSet(this.records.tailSet(MemoryHistoryStore.probe(since), true)).iterator();
+    }
+
+    /**
+     *  {@inheritDoc}
+     *  Each level at or above the minimum is searched for the time range, and the results merged.
+     */
+    @Override
+    public Iterator<LogRecord> query(final HistoryQuery query)
+    {
+        if (query.getFrom() >= query.getTo())
+        {
+            return Collections.emptyIterator();
+        }
+        this.evict();
+        final LogRecord from = MemoryHistoryStore.probe(query.getFrom());
+        final LogRecord to = MemoryHistoryStore.probe(query.getTo());
+        Iterator<LogRecord> result;
+        if (query.isAnyLevel())
+        {
+            result = this.records.subSet(from, true, to, false).iterator();
+        }
+        else
+        {
+            result = Collections.emptyIterator();
+            for (final NavigableSet<LogRecord> level : this.byLevel.tailMap(query.getMinLevel().intValue(), true).values())
+            {
+                result = new MergingIterator<>(result, level.subSet(from, true, to, false).iterator(), LogRecordComparator.BY_SEQUENCE);
+            }
+        }
+        return query.filter(result);
+    }
+
+    /**
+     * @param millis a timestamp
+     * @return a record that sorts before every stored record with the timestamp
+     */
+    private static LogRecord probe(final long millis)
+    {
+        final LogRecord result = new LogRecord(Level.ALL, null);
+        result.setMillis(millis);
+        result.setSequenceNumber(Long.MIN_VALUE);
+        return result;
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public Iterator<LogRecord> descendingIterator()
+    {
+        this.evict();
+        return Collections.unmodifiableSortedSet(this.records.descendingSet()).iterator();
+    }
+
+    /**
+     * Releases the JSON cached for the records, the history is otherwise discarded with the store.
+     */
+    @Override
+    public void close()
+    {
+        this.closeLock.writeLock().lock();
+        try
+        {
+            if (this.closed)
+            {
+                return;
+            }
+            this.closed = true;
+            for (final LogRecord logRecord : this.records)
+            {
+                if (logRecord instanceof LogMessage)
+                {
+                    ((LogMessage) logRecord).release();
+                }
+            }
+        }
+        finally
+        {
+            this.closeLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Estimates the heap retained by a record held in a history.
+     * @param logRecord the record to estimate
+     * @return the estimated size in bytes
+     */
+    static long estimateSize(final LogRecord logRecord)
+    {
+        long result = MemoryHistoryStore.RECORD_OVERHEAD + MemoryHistoryStore.estimateSize(logRecord.getMessage());
+        if (logRecord instanceof LogMessage)
+        {
+            final LogMessage logMessage = (LogMessage) logRecord;
+            // short usernames and sessionIds are pooled, and shared with other records
+            if (!StringPool.isPoolable(logMessage.getUsername()))
+            {
+                result += MemoryHistoryStore.estimateSize(logMessage.getUsername());
+            }
+            if (!StringPool.isPoolable(logMessage.getSessionId()))
+            {
+                result += MemoryHistoryStore.estimateSize(logMessage.getSessionId());
+            }
+        }
+        return result;
+    }
+
+    private static long estimateSize(final String string)
+    {
+        return null == string ? 0 : MemoryHistoryStore.STRING_OVERHEAD + 2L * string.length();
+    }
+}
@@ -0,0 +1,85 @@
+package com.logdyn.api;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Lazily merges two iterators that are each sorted by the same comparator.
+ * Elements that compare equal are only returned once, as a merge into a {@link java.util.TreeSet} would.
+ * @param <E> the type of element
+ */
+class MergingIterator<E> implements Iterator<E>
+{
+    private final Iterator<? extends E> first;
+    private final Iterator<? extends E> second;
+    private final Comparator<? super E> comparator;
+    private E nextFirst;
+    private E nextSecond;
+
+    MergingIterator(final Iterator<? extends E> first, final Iterator<? extends E> second,
+                    final Comparator<? super E> comparator)
+    {
+        this.first = first;
+        this.second = second;
+        this.comparator = comparator;
+        this.nextFirst = MergingIterator.advance(first);
+        this.nextSecond = MergingIterator.advance(second);
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        return null != this.nextFirst || null != this.nextSecond;
+    }
+
+    @Override
+    public E next()
+    {
+        final E result;
+        if (null == this.nextFirst && null == this.nextSecond)
+        {
+            throw new NoSuchElementException();
+        }
+        else if (null == this.nextSecond)
+        {
+            result = this.nextFirst;
+            this.nextFirst = MergingIterator.advance(this.first);
+        }
+        else if (null == this.nextFirst)
+        {
+            result = this.nextSecond;
+            this.nextSecond = MergingIterator.advance(this.second);
+        }
+        else
+        {
+            final int comparison = this.comparator.compare(this.nextFirst, this.nextSecond);
+            if (comparison <= 0)
+            {
+                result = this.nextFirst;
+                this.nextFirst = MergingIterator.advance(this.first);
+                if (comparison == 0)
+                {
+                    this.nextSecond = MergingIterator.advance(this.second);
+                }
+            }
+            else
+            {
+                result = this.nextSecond;
+                this.nextSecond = MergingIterator.advance(this.second);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    private static <E> E advance(final Iterator<? extends E> iterator)
+    {
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+}
@@ -0,0 +1,255 @@
+package com.logdyn.api;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Message bytes for a {@link ColumnarHistoryStore}, appended to fixed size slabs.
+ * A slab is reused once every message in it has been released.
+ *
+ * A heap arena grows without limit and lets the garbage collector reclaim empty slabs.
+ * A direct arena keeps its slabs in direct {@link ByteBuffer}s outside the heap, up to a fixed total size,
+ * and reports when it is full so the store can evict records to make room. Its slabs are never returned
+ * to the JVM, as direct memory is only freed by the garbage collector.
+ *
+ * A reference is the slab index in the high 32 bits and the offset in the low. Not safe for concurrent use.
+ */
+class MessageArena
+{
+    /** Returned by {@link #store(byte[])} when a bounded arena has no room */
+    static final long FULL = -1;
+
+    /** The default size of each slab */
+    static final int DEFAULT_SLAB_BYTES = 64 * 1024;
+
+    private final boolean direct;
+    private final int slabBytes;
+    private final int maxSlabs;
+
+    private ByteBuffer[] slabs = new ByteBuffer[8];
+    private int[] used = new int[8];
+    private int[] live = new int[8];
+    private int slabCount = 0;
+    /** slabs that have been allocated and not reclaimed */
+    private int allocated = 0;
+    private int[] free = new int[8];
+    private int freeCount = 0;
+    private int active = -1;
+
+    private MessageArena(final boolean direct, final int slabBytes, final int maxSlabs)
+    {
+        this.direct = direct;
+        this.slabBytes = slabBytes;
+        this.maxSlabs = maxSlabs;
+    }
+
+    /**
+     * @return an arena on the heap that grows as needed
+     */
+    static MessageArena heap()
+    {
+        return new MessageArena(false, MessageArena.DEFAULT_SLAB_BYTES, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxBytes the most direct memory to allocate
+     * @param slabBytes the size of each slab, which is also the longest message that can be stored
+     * @return an arena in direct memory
+     * @throws IllegalArgumentException if the slab size is not positive or the maximum cannot hold one slab
+     */
+    static MessageArena direct(final long maxBytes, final int slabBytes)
+    {
+        if (slabBytes <= 0 || maxBytes < slabBytes)
+        {
+            throw new IllegalArgumentException("The arena must hold at least one slab of a positive size");
+        }
+        return new MessageArena(true, slabBytes, (int) Math.min(Integer.MAX_VALUE, maxBytes / slabBytes));
+    }
+
+    /**
+     * @return the longest message, in bytes, that can be stored, longer messages must be truncated
+     */
+    int getMaxMessageBytes()
+    {
+        return this.direct ? this.slabBytes : Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return the size of the slabs currently allocated
+     */
+    long getAllocatedBytes()
+    {
+        long result = 0;
+        for (int i = 0; i < this.slabCount; i++)
+        {
+            if (null != this.slabs[i])
+            {
+                result += this.slabs[i].capacity();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Shortens a UTF-8 message to fit the arena, on a character boundary so the last character is not split.
+     * @param bytes the message as UTF-8, or {@code null}
+     * @return the message, or its longest prefix of whole characters that is no longer than {@link #getMaxMessageBytes()}
+     */
+    byte[] truncate(final byte[] bytes)
+    {
+        final int maxBytes = this.getMaxMessageBytes();
+        if (null == bytes || bytes.length <= maxBytes)
+        {
+            return bytes;
+        }
+        int end = maxBytes;
+        // back up over continuation bytes, 10xxxxxx, to the first byte of the split character
+        while (end > 0 && (bytes[end] & 0xC0) == 0x80)
+        {
+            end--;
+        }
+        return Arrays.copyOf(bytes, end);
+    }
+
+    /**
+     * @param bytes the message to store, no longer than {@link #getMaxMessageBytes()}
+     * @return a reference to the message, or {@link #FULL} if a bounded arena has no room for it
+     */
+    long store(final byte[] bytes)
+    {
+        final int length = null != bytes ? bytes.length : 0;
+        if (-1 == this.active || this.used[this.active] + length > this.slabs[this.active].capacity())
+        {
+            final int slab = this.takeSlab(length);
+            if (-1 == slab)
+            {
+                return MessageArena.FULL;
+            }
+            if (-1 != this.active && 0 == this.live[this.active])
+            {
+                this.freeSlab(this.active);
+            }
+            this.active = slab;
+        }
+        final int offset = this.used[this.active];
+        if (length > 0)
+        {
+            final ByteBuffer target = this.slabs[this.active].duplicate();
+            target.position(offset);
+            target.put(bytes);
+        }
+        this.used[this.active] += length;
+        this.live[this.active]++;
+        return ((long) this.active << 32) | offset;
+    }
+
+    /**
+     * @param reference the reference returned when the message was stored
+     * @param length the length of the message in bytes, or -1 if the message was {@code null}
+     * @return the message
+     */
+    String read(final long reference, final int length)
+    {
+        if (length < 0)
+        {
+            return null;
+        }
+        final ByteBuffer slab = this.slabs[(int) (reference >>> 32)];
+        final int offset = (int) reference;
+        if (slab.hasArray())
+        {
+            return new String(slab.array(), slab.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        final byte[] bytes = new byte[length];
+        final ByteBuffer source = slab.duplicate();
+        source.position(offset);
+        source.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param reference the reference of a message that is no longer needed
+     */
+    void release(final long reference)
+    {
+        final int slab = (int) (reference >>> 32);
+        if (0 == --this.live[slab])
+        {
+            if (slab == this.active)
+            {
+                this.used[slab] = 0;
+            }
+            else
+            {
+                this.freeSlab(slab);
+            }
+        }
+    }
+
+    /**
+     * Releases every message.
+     */
+    void clear()
+    {
+        for (int i = 0; i < this.slabCount; i++)
+        {
+            this.slabs[i] = null;
+        }
+        // the slots are reused from 0, so nothing of the cleared messages may be left in them
+        Arrays.fill(this.used, 0, this.slabCount, 0);
+        Arrays.fill(this.live, 0, this.slabCount, 0);
+        this.slabCount = 0;
+        this.allocated = 0;
+        this.freeCount = 0;
+        this.active = -1;
+    }
+
+    private int takeSlab(final int length)
+    {
+        if (this.freeCount > 0 && (this.direct || length <= this.slabBytes))
+        {
+            final int result = this.free[--this.freeCount];
+            if (null == this.slabs[result])
+            {
+                this.slabs[result] = this.allocate(this.slabBytes);
+                this.allocated++;
+            }
+            this.used[result] = 0;
+            return result;
+        }
+        if (this.allocated >= this.maxSlabs)
+        {
+            return -1;
+        }
+        if (this.slabCount == this.slabs.length)
+        {
+            this.slabs = Arrays.copyOf(this.slabs, this.slabCount * 2);
+            this.used = Arrays.copyOf(this.used, this.slabCount * 2);
+            this.live = Arrays.copyOf(this.live, this.slabCount * 2);
+            this.free = Arrays.copyOf(this.free, this.slabCount * 2);
+        }
+        final int result = this.slabCount++;
+        this.slabs[result] = this.allocate(Math.max(this.slabBytes, length));
+        this.allocated++;
+        this.used[result] = 0;
+        return result;
+    }
+
+    private ByteBuffer allocate(final int capacity)
+    {
+        return this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private void freeSlab(final int slab)
+    {
+        if (!this.direct)
+        {
+            // let the garbage collector have it, a new one is allocated if the slot is reused
+            this.slabs[slab] = null;
+            this.allocated--;
+        }
+        this.used[slab] = 0;
+        this.free[this.freeCount++] = slab;
+    }
+}
@@ -0,0 +1,133 @@
+package com.logdyn.api;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The counters and latency histograms updated on the hot paths of the library.
+ *
+ * They are only updated while enabled, so when disabled each instrumented operation costs one volatile read.
+ * Counters are striped and histograms lock free, so enabled metrics add no contention between threads.
+ */
+final class Metrics
+{
+    static final String OBJECT_NAME = "com.logdyn:type=Metrics";
+
+    static final StripedCounter LOGGED_RECORDS = new StripedCounter();
+    static final StripedCounter CLIENT_MESSAGES = new StripedCounter();
+    static final StripedCounter CLIENT_RECORDS = new StripedCounter();
+    static final StripedCounter QUEUED_RECORDS = new StripedCounter();
+    static final StripedCounter DROPPED_RECORDS = new StripedCounter();
+    static final StripedCounter SEND_FAILURES = new StripedCounter();
+    static final StripedCounter REPLAYS = new StripedCounter();
+
+    static final LatencyHistogram LOG_LATENCY = new LatencyHistogram();
+    static final LatencyHistogram FAN_OUT_LATENCY = new LatencyHistogram();
+    static final LatencyHistogram REPLAY_LATENCY = new LatencyHistogram();
+    static final LatencyHistogram CLIENT_MESSAGE_LATENCY = new LatencyHistogram();
+
+    private static volatile boolean enabled = false;
+    private static final AtomicBoolean registered = new AtomicBoolean();
+
+    private Metrics()
+    {
+    }
+
+    static boolean isEnabled()
+    {
+        return Metrics.enabled;
+    }
+
+    /**
+     * Turns metrics on or off, registering the MXBean with the platform MBean server when first turned on.
+     * @param enabled true to update metrics
+     */
+    static void setEnabled(final boolean enabled)
+    {
+        Metrics.enabled = enabled;
+        if (enabled && Metrics.registered.compareAndSet(false, true))
+        {
+            try
+            {
+                final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                final ObjectName name = new ObjectName(Metrics.OBJECT_NAME);
+                if (!server.isRegistered(name))
+                {
+                    server.registerMBean(new Bean(), name);
+                }
+            }
+            catch (final JMException | SecurityException e)
+            {
+                // JMX is unavailable, the metrics can still be read through Logger.getMetrics
+            }
+        }
+    }
+
+    /**
+     * @return the current metrics
+     */
+    static MetricsSnapshot snapshot()
+    {
+        final List<LogSessionMetrics> logSessions = Logger.getLogSessionMetrics();
+        long evicted = 0;
+        for (final LogSessionMetrics logSession : logSessions)
+        {
+            evicted += logSession.getEvictedCount();
+        }
+        final ClusterNode clusterNode = Logger.getClusterNode();
+        return new MetricsSnapshot(System.currentTimeMillis(),
+                Metrics.LOGGED_RECORDS.sum(),
+                Metrics.CLIENT_MESSAGES.sum(),
+                Metrics.CLIENT_RECORDS.sum(),
+                IngestLimiter.getTotalSuppressed(),
+                Metrics.QUEUED_RECORDS.sum(),
+                Metrics.DROPPED_RECORDS.sum(),
+                Metrics.SEND_FAILURES.sum(),
+                Metrics.REPLAYS.sum(),
+                evicted,
+                // every websocket is also a viewer of the root LogSession, which is listed first
+                logSessions.get(0).getWebsocketSessions(),
+                SessionReaper.getExpiredSessions(),
+                SessionReaper.getReclaimedRecords(),
+                SessionReaper.getReclaimedBytes(),
+                null != clusterNode ? clusterNode.getSentRecords() : 0,
+                null != clusterNode ? clusterNode.getReceivedRecords() : 0,
+                null != clusterNode ? clusterNode.getDroppedRecords() : 0,
+                null != clusterNode ? clusterNode.getDuplicateRecords() : 0,
+                null != clusterNode ? clusterNode.getInvalidFrames() : 0,
+                null != clusterNode ? clusterNode.getPeerDroppedFrames() : 0,
+                logSessions,
+                Metrics.LOG_LATENCY.snapshot(),
+                Metrics.FAN_OUT_LATENCY.snapshot(),
+                Metrics.REPLAY_LATENCY.snapshot(),
+                Metrics.CLIENT_MESSAGE_LATENCY.snapshot());
+    }
+
+    /**
+     * The MXBean, which only delegates to the static metrics.
+     */
+    private static final class Bean implements LogdynMetricsMXBean
+    {
+        @Override
+        public boolean isEnabled()
+        {
+            return Metrics.isEnabled();
+        }
+
+        @Override
+        public void setEnabled(final boolean enabled)
+        {
+            Metrics.setEnabled(enabled);
+        }
+
+        @Override
+        public MetricsSnapshot getSnapshot()
+        {
+            return Metrics.snapshot();
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.logdyn.api;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The library's metrics at a point in time, from {@link Logger#getMetrics()}.
+ *
+ * Counts and latencies accumulate from when the application started, and only while metrics are enabled,
+ * see {@link Logger#setMetricsEnabled(boolean)}. The sizes of LogSessions, the suppressed and evicted counts
+ * and the memory reclaimed from removed LogSessions are always available, as are the counts of the current cluster node,
+ * which are 0 while not in a cluster, see {@link Logger#joinCluster(ClusterTransport)}.
+ */
+public final class MetricsSnapshot
+{
+    private final long timestamp;
+    private final long loggedRecords;
+    private final long clientMessages;
+    private final long clientRecords;
+    private final long suppressedRecords;
+    private final long queuedRecords;
+    private final long droppedRecords;
+    private final long sendFailures;
+    private final long replays;
+    private final long evictedRecords;
+    private final int websocketSessions;
+    private final long expiredSessions;
+    private final long reclaimedRecords;
+    private final long reclaimedBytes;
+    private final long clusterSentRecords;
+    private final long clusterReceivedRecords;
+    private final long clusterDroppedRecords;
+    private final long clusterDuplicateRecords;
+    private final long clusterInvalidFrames;
+    private final long clusterPeerDroppedFrames;
+    private final List<LogSessionMetrics> logSessions;
+    private final LatencySnapshot logLatency;
+    private final LatencySnapshot fanOutLatency;
+    private final LatencySnapshot replayLatency;
+    private final LatencySnapshot clientMessageLatency;
+
+    MetricsSnapshot(final long timestamp, final long loggedRecords, final long clientMessages,
+                    final long clientRecords, final long suppressedRecords, final long queuedRecords,
+                    final long droppedRecords, final long sendFailures, final long replays,
+                    final long evictedRecords, final int websocketSessions, final long expiredSessions,
+                    final long reclaimedRecords, final long reclaimedBytes,
+                    final long clusterSentRecords, final long clusterReceivedRecords, final long clusterDroppedRecords,
+                    final long clusterDuplicateRecords, final long clusterInvalidFrames, final long clusterPeerDroppedFrames,
+                    final List<LogSessionMetrics> logSessions,
+                    final LatencySnapshot logLatency, final LatencySnapshot fanOutLatency,
+                    final LatencySnapshot replayLatency, final LatencySnapshot clientMessageLatency)
+    {
+        this.timestamp = timestamp;
+        this.loggedRecords = loggedRecords;
+        this.clientMessages = clientMessages;
+        this.clientRecords = clientRecords;
+        this.suppressedRecords = suppressedRecords;
+        this.queuedRecords = queuedRecords;
+        this.droppedRecords = droppedRecords;
+        this.sendFailures = sendFailures;
+        this.replays = replays;
+        this.evictedRecords = evictedRecords;
+        this.websocketSessions = websocketSessions;
+        this.expiredSessions = expiredSessions;
+        this.reclaimedRecords = reclaimedRecords;
+        this.reclaimedBytes = reclaimedBytes;
+        this.clusterSentRecords = clusterSentRecords;
+        this.clusterReceivedRecords = clusterReceivedRecords;
+        this.clusterDroppedRecords = clusterDroppedRecords;
+        this.clusterDuplicateRecords = clusterDuplicateRecords;
+        this.clusterInvalidFrames = clusterInvalidFrames;
+        this.clusterPeerDroppedFrames = clusterPeerDroppedFrames;
+        this.logSessions = Collections.unmodifiableList(logSessions);
+        this.logLatency = logLatency;
+        this.fanOutLatency = fanOutLatency;
+        this.replayLatency = replayLatency;
+        this.clientMessageLatency = clientMessageLatency;
+    }
+
+    /**
+     * @return when the snapshot was taken
+     */
+    public long getTimestamp()
+    {
+        return this.timestamp;
+    }
+
+    /**
+     * @return the number of records passed to {@link Logger#log}
+     */
+    public long getLoggedRecords()
+    {
+        return this.loggedRecords;
+    }
+
+    /**
+     * @return the number of messages received from websocket clients
+     */
+    public long getClientMessages()
+    {
+        return this.clientMessages;
+    }
+
+    /**
+     * @return the number of records received from websocket clients
+     */
+    public long getClientRecords()
+    {
+        return this.clientRecords;
+    }
+
+    /**
+     * @return the number of records from websocket clients discarded by the ingest rate limits
+     */
+    public long getSuppressedRecords()
+    {
+        return this.suppressedRecords;
+    }
+
+    /**
+     * @return the number of records queued to be sent to websockets, excluding history
+     */
+    public long getQueuedRecords()
+    {
+        return this.queuedRecords;
+    }
+
+    /**
+     * @return the number of records dropped because a websocket could not keep up
+     */
+    public long getDroppedRecords()
+    {
+        return this.droppedRecords;
+    }
+
+    /**
+     * @return the number of sends to websockets that failed
+     */
+    public long getSendFailures()
+    {
+        return this.sendFailures;
+    }
+
+    /**
+     * @return the number of history replays started
+     */
+    public long getReplays()
+    {
+        return this.replays;
+    }
+
+    /**
+     * @return the number of records evicted from the history of the current LogSessions
+     */
+    public long getEvictedRecords()
+    {
+        return this.evictedRecords;
+    }
+
+    /**
+     * @return the number of open websockets
+     */
+    public int getWebsocketSessions()
+    {
+        return this.websocketSessions;
+    }
+
+    /**
+     * @return the number of LogSessions removed as idle or to stay within the memory budget
+     */
+    public long getExpiredSessions()
+    {
+        return this.expiredSessions;
+    }
+
+    /**
+     * @return the number of records in the history of the removed LogSessions
+     */
+    public long getReclaimedRecords()
+    {
+        return this.reclaimedRecords;
+    }
+
+    /**
+     * @return the size of the history of the removed LogSessions
+     */
+    public long getReclaimedBytes()
+    {
+        return this.reclaimedBytes;
+    }
+
+    /**
+     * @return the number of records sent to the other nodes of the cluster
+     */
+    public long getClusterSentRecords()
+    {
+        return this.clusterSentRecords;
+    }
+
+    /**
+     * @return the number of records received from the other nodes of the cluster, excluding duplicates
+     */
+    public long getClusterReceivedRecords()
+    {
+        return this.clusterReceivedRecords;
+    }
+
+    /**
+     * @return the number of records not sent to the cluster, as too many were queued or the transport failed
+     */
+    public long getClusterDroppedRecords()
+    {
+        return this.clusterDroppedRecords;
+    }
+
+    /**
+     * @return the number of records received from the cluster more than once and ignored
+     */
+    public long getClusterDuplicateRecords()
+    {
+        return this.clusterDuplicateRecords;
+    }
+
+    /**
+     * @return the number of frames from the cluster that could not be read
+     */
+    public long getClusterInvalidFrames()
+    {
+        return this.clusterInvalidFrames;
+    }
+
+    /**
+     * @return the number of frames sent to the cluster but dropped for a peer that was unreachable or too slow,
+     * counted once for each peer that missed the frame, or received but dropped as too many were waiting to be logged,
+     * see {@link TcpClusterTransport#getDroppedFrames()}
+     */
+    public long getClusterPeerDroppedFrames()
+    {
+        return this.clusterPeerDroppedFrames;
+    }
+
+    /**
+     * @return the state of every LogSession
+     */
+    public List<LogSessionMetrics> getLogSessions()
+    {
+        return this.logSessions;
+    }
+
+    /**
+     * @return the time taken by {@link Logger#log}, including storing and queueing the record
+     */
+    public LatencySnapshot getLogLatency()
+    {
+        return this.logLatency;
+    }
+
+    /**
+     * @return the time taken by a LogSession to store a record and queue it to each of its websockets
+     */
+    public LatencySnapshot getFanOutLatency()
+    {
+        return this.fanOutLatency;
+    }
+
+    /**
+     * @return the time taken to send history to a websocket, or to start a replay of it
+     */
+    public LatencySnapshot getReplayLatency()
+    {
+        return this.replayLatency;
+    }
+
+    /**
+     * @return the time taken to decode and log a message from a websocket client
+     */
+    public LatencySnapshot getClientMessageLatency()
+    {
+        return this.clientMessageLatency;
+    }
+}
@@ -0,0 +1,69 @@
+package com.logdyn.api;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock free token bucket, kept as the time the bucket will next be full (the generic cell rate algorithm),
+ * so taking a token is a single compare and set without any thread refilling it.
+ */
+class RateLimiter
+{
+    /** the time each token takes to refill */
+    private final long intervalNanos;
+    /** how far ahead of now the bucket may be drawn, the burst size in time */
+    private final long toleranceNanos;
+    /** the time at which the bucket will be full again */
+    private final AtomicLong fullAt;
+
+    /**
+     * @param ratePerSecond the number of tokens added each second, must be positive
+     * @param burst the number of tokens the bucket holds, at least one
+     */
+    RateLimiter(final double ratePerSecond, final int burst)
+    {
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+        this.toleranceNanos = this.intervalNanos * Math.max(1, burst);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * @param now the current {@link System#nanoTime()}
+     * @return true if a token was taken, false if the bucket is empty
+     */
+    boolean tryAcquire(final long now)
+    {
+        while (true)
+        {
+            final long current = this.fullAt.get();
+            final long next = (current - now > 0 ? current : now) + this.intervalNanos;
+            if (next - now > this.toleranceNanos)
+            {
+                return false;
+            }
+            if (this.fullAt.compareAndSet(current, next))
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param now the current {@link System#nanoTime()}
+     * @return true if a token could be taken now, without taking it
+     */
+    boolean canAcquire(final long now)
+    {
+        final long current = this.fullAt.get();
+        return (current - now > 0 ? current : now) + this.intervalNanos - now <= this.toleranceNanos;
+    }
+
+    /**
+     * @param now the current {@link System#nanoTime()}
+     * @return true if the bucket is full, so the limiter is no different to a new one
+     */
+    boolean isFull(final long now)
+    {
+        return this.fullAt.get() - now <= 0;
+    }
+}
@@ -0,0 +1,326 @@
+package com.logdyn.api;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Compact binary encoding of the fields of a {@link LogMessage}.
+ *
+ * A record is its timestamp and sequence number as varints, its level value as a zigzag varint, then its
+ * level name, username, sessionId, logger name and message as length prefixed UTF-8, where a length of 0 means {@code null}.
+ * Records written before {@link #VERSION} 2 have no logger name, and are read by giving their version.
+ * A {@link RepeatedLogMessage} is followed by its count and the time from its first repeat to its timestamp as varints,
+ * which are only read if the buffer holds more, so a record must be read from a buffer that ends with it.
+ * An instance is a growable buffer that records are appended to, and is not safe for concurrent use.
+ */
+class RecordCodec
+{
+    /** The format written, which the readers of stored or forwarded records check before reading them */
+    static final int VERSION = 2;
+
+    private byte[] buffer;
+    private int position = 0;
+
+    RecordCodec()
+    {
+        this(256);
+    }
+
+    RecordCodec(final int initialCapacity)
+    {
+        this.buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Empties the buffer.
+     * @return this codec
+     */
+    public RecordCodec reset()
+    {
+        this.position = 0;
+        return this;
+    }
+
+    /**
+     * @return the number of bytes in the buffer
+     */
+    public int length()
+    {
+        return this.position;
+    }
+
+    /**
+     * Appends a record to the buffer.
+     * @param logRecord the record to append
+     * @return this codec
+     */
+    public RecordCodec write(final LogRecord logRecord)
+    {
+        this.writeVarLong(logRecord.getMillis());
+        this.writeVarLong(logRecord.getSequenceNumber());
+        final Level level = logRecord.getLevel();
+        this.writeVarLong(RecordCodec.zigzag(null != level ? level.intValue() : Level.INFO.intValue()));
+        this.writeString(null != level ? level.getName() : null);
+        if (logRecord instanceof LogMessage)
+        {
+            this.writeString(((LogMessage) logRecord).getUsername());
+            this.writeString(((LogMessage) logRecord).getSessionId());
+        }
+        else
+        {
+            this.writeString(null);
+            this.writeString(null);
+        }
+        this.writeString(logRecord.getLoggerName());
+        this.writeString(logRecord.getMessage());
+        if (logRecord instanceof RepeatedLogMessage)
+        {
+            final RepeatedLogMessage repeated = (RepeatedLogMessage) logRecord;
+            this.writeVarLong(repeated.getCount());
+            this.writeVarLong(repeated.getMillis() - repeated.getFirstMillis());
+        }
+        return this;
+    }
+
+    /**
+     * Appends a fixed width int to the buffer.
+     * @param value the value to append
+     * @return this codec
+     */
+    public RecordCodec writeInt(final int value)
+    {
+        this.ensureCapacity(4);
+        this.buffer[this.position++] = (byte) (value >>> 24);
+        this.buffer[this.position++] = (byte) (value >>> 16);
+        this.buffer[this.position++] = (byte) (value >>> 8);
+        this.buffer[this.position++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Overwrites a fixed width int previously reserved in the buffer.
+     * @param index the position of the int in the buffer
+     * @param value the value to write
+     */
+    public void setInt(final int index, final int value)
+    {
+        this.buffer[index] = (byte) (value >>> 24);
+        this.buffer[index + 1] = (byte) (value >>> 16);
+        this.buffer[index + 2] = (byte) (value >>> 8);
+        this.buffer[index + 3] = (byte) value;
+    }
+
+    /**
+     * Appends an unsigned varint to the buffer.
+     * @param value the value to append, treated as unsigned
+     * @return this codec
+     */
+    public RecordCodec writeVarLong(long value)
+    {
+        this.ensureCapacity(10);
+        while ((value & ~0x7FL) != 0)
+        {
+            this.buffer[this.position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.buffer[this.position++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Appends a length prefixed UTF-8 string, or {@code null}, to the buffer.
+     * @param string the string to append
+     * @return this codec
+     */
+    public RecordCodec writeString(final String string)
+    {
+        if (null == string)
+        {
+            return this.writeVarLong(0);
+        }
+        final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        this.writeVarLong(bytes.length + 1L);
+        this.ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, this.buffer, this.position, bytes.length);
+        this.position += bytes.length;
+        return this;
+    }
+
+    /**
+     * Appends raw bytes to the buffer.
+     * @param bytes the array holding the bytes
+     * @param offset the start of the bytes in the array
+     * @param length the number of bytes
+     * @return this codec
+     */
+    public RecordCodec writeBytes(final byte[] bytes, final int offset, final int length)
+    {
+        this.ensureCapacity(length);
+        System.arraycopy(bytes, offset, this.buffer, this.position, length);
+        this.position += length;
+        return this;
+    }
+
+    /**
+     * @return the backing array of the buffer, valid up to {@link #length()}
+     */
+    public byte[] array()
+    {
+        return this.buffer;
+    }
+
+    /**
+     * @return a view of the buffer, valid until the codec is next written to
+     */
+    public ByteBuffer toByteBuffer()
+    {
+        return ByteBuffer.wrap(this.buffer, 0, this.position);
+    }
+
+    private void ensureCapacity(final int extra)
+    {
+        if (this.position + extra > this.buffer.length)
+        {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.position + extra));
+        }
+    }
+
+    /**
+     * Reads a record written by {@link #write(LogRecord)}, keeping its original sequence number.
+     * @param source the buffer to read from, ending with the record, advanced past it
+     * @return the record
+     * @throws java.nio.BufferUnderflowException if the record is truncated
+     */
+    static LogMessage read(final ByteBuffer source)
+    {
+        return RecordCodec.read(source, true, RecordCodec.VERSION);
+    }
+
+    /**
+     * Reads a record written by {@link #write(LogRecord)}.
+     * @param source the buffer to read from, ending with the record, advanced past it
+     * @param keepSequence true to keep the original sequence number, false to give the record a new one,
+     *                     as the original may clash with one in this process
+     * @return the record
+     * @throws java.nio.BufferUnderflowException if the record is truncated
+     */
+    static LogMessage read(final ByteBuffer source, final boolean keepSequence)
+    {
+        return RecordCodec.read(source, keepSequence, RecordCodec.VERSION);
+    }
+
+    /**
+     * Reads a record written by {@link #write(LogRecord)} in this or an earlier format.
+     * @param source the buffer to read from, ending with the record, advanced past it
+     * @param keepSequence true to keep the original sequence number, false to give the record a new one
+     * @param version the {@link #VERSION} the record was written with
+     * @return the record
+     * @throws java.nio.BufferUnderflowException if the record is truncated
+     */
+    static LogMessage read(final ByteBuffer source, final boolean keepSequence, final int version)
+    {
+        final long millis = RecordCodec.readVarLong(source);
+        final long sequence = RecordCodec.readVarLong(source);
+        final int levelValue = RecordCodec.unzigzag(RecordCodec.readVarLong(source));
+        final String levelName = RecordCodec.readString(source);
+        final String username = RecordCodec.readString(source);
+        final String sessionId = RecordCodec.readString(source);
+        final String loggerName = version >= 2 ? RecordCodec.readString(source) : null;
+        final String message = RecordCodec.readString(source);
+        final Level level = RecordCodec.parseLevel(levelName, levelValue);
+        final LogMessage result;
+        if (source.hasRemaining())
+        {
+            final int count = (int) RecordCodec.readVarLong(source);
+            final long firstMillis = millis - RecordCodec.readVarLong(source);
+            result = new RepeatedLogMessage(level, message, username, sessionId, count, firstMillis, millis);
+        }
+        else
+        {
+            result = new LogMessage(level, message, username, sessionId, millis);
+        }
+        result.setLoggerName(loggerName);
+        if (keepSequence)
+        {
+            result.setSequenceNumber(sequence);
+        }
+        return result;
+    }
+
+    static long readVarLong(final ByteBuffer source)
+    {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7)
+        {
+            final byte b = source.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return result;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static String readString(final ByteBuffer source)
+    {
+        final long length = RecordCodec.readVarLong(source) - 1;
+        if (length < 0)
+        {
+            return null;
+        }
+        if (length > source.remaining())
+        {
+            throw new IllegalArgumentException("String length exceeds buffer");
+        }
+        final String result;
+        if (source.hasArray())
+        {
+            result = new String(source.array(), source.arrayOffset() + source.position(), (int) length, StandardCharsets.UTF_8);
+            source.position(source.position() + (int) length);
+        }
+        else
+        {
+            final byte[] bytes = new byte[(int) length];
+            source.get(bytes);
+            result = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return result;
+    }
+
+    /**
+     * Finds the level for a stored name, falling back to the value if the name is no longer known,
+     * as it may have been a custom level of a previous run.
+     * @param name the level name, or {@code null}
+     * @param value the level value
+     * @return the level
+     */
+    static Level parseLevel(final String name, final int value)
+    {
+        if (null != name)
+        {
+            try
+            {
+                return JsLevel.parse(name);
+            }
+            catch (final IllegalArgumentException e)
+            {
+                // fall through to the value
+            }
+        }
+        return JsLevel.parse(Integer.toString(value));
+    }
+
+    static long zigzag(final int value)
+    {
+        return ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL;
+    }
+
+    static int unzigzag(final long value)
+    {
+        return (int) (value >>> 1) ^ -(int) (value & 1);
+    }
+}
@@ -0,0 +1,269 @@
+package com.logdyn.api;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Folds repeats of the same record logged to a {@link LogSession} within a time window into one
+ * {@link RepeatedLogMessage}, so a tight loop logging the same error is stored and sent twice rather than
+ * thousands of times: the first occurrence as it is, then a count of the repeats once the window closes.
+ *
+ * Records are the same if they have the same level, message, username and sessionId, and were logged for the same
+ * user and httpSession. Recent records are kept in a small table indexed by a fingerprint of those fields, so records
+ * that share a slot simply replace each other, which only costs a missed fold. Folding is off while the window is 0.
+ *
+ * The repeats are logged through a {@link Sink}, by default straight to the LogSession. Once closed, the collapser
+ * discards the repeats it still holds and folds nothing more, so a flush scheduled before it was closed does nothing.
+ */
+class RepeatCollapser
+{
+    /** Where the repeats are logged once their window closes */
+    interface Sink
+    {
+        void deliver(RepeatedLogMessage repeats, String username, String httpSessionId);
+    }
+
+    /** the number of recent records remembered, a power of two */
+    private static final int SLOTS = 64;
+
+    /** the recent records, guarded by this */
+    private final Entry[] entries = new Entry[RepeatCollapser.SLOTS];
+    /** guarded by this */
+    private boolean closed = false;
+    private volatile Sink sink;
+    private volatile long windowMillis = 0;
+
+    /**
+     * @param logSession the session to log the folded repeats to, until another sink is set
+     */
+    RepeatCollapser(final LogSession logSession)
+    {
+        this.sink = new Sink()
+        {
+            @Override
+            public void deliver(final RepeatedLogMessage repeats, final String username, final String httpSessionId)
+            {
+                logSession.publish(repeats, null);
+            }
+        };
+    }
+
+    /**
+     * @param sink where to log the repeats of records from now on
+     */
+    void setSink(final Sink sink)
+    {
+        this.sink = sink;
+    }
+
+    /**
+     * @param windowMillis the time in milliseconds after a record that repeats of it are folded, 0 to not fold records
+     */
+    void setWindowMillis(final long windowMillis)
+    {
+        this.windowMillis = Math.max(0, windowMillis);
+        if (0 == this.windowMillis)
+        {
+            this.flush();
+        }
+    }
+
+    long getWindowMillis()
+    {
+        return this.windowMillis;
+    }
+
+    /**
+     * Folds a record into an earlier occurrence of it, if there is one within the window.
+     * @param logRecord the record being logged
+     * @param loggedUsername the username of the user the record was logged for, or {@code null}
+     * @param loggedHttpSessionId the httpSession Id the record was logged for, or {@code null}
+     * @return true if the record was folded, and so must not be logged
+     */
+    boolean fold(final LogRecord logRecord, final String loggedUsername, final String loggedHttpSessionId)
+    {
+        final long window = this.windowMillis;
+        if (0 == window || logRecord instanceof RepeatedLogMessage || null == logRecord.getMessage())
+        {
+            return false;
+        }
+        final String username = logRecord instanceof LogMessage ? ((LogMessage) logRecord).getUsername() : null;
+        final String sessionId = logRecord instanceof LogMessage ? ((LogMessage) logRecord).getSessionId() : null;
+        final int fingerprint = RepeatCollapser.fingerprint(logRecord.getLevel(), logRecord.getMessage(), username);
+        final int slot = (fingerprint ^ (fingerprint >>> 16)) & (RepeatCollapser.SLOTS - 1);
+        final long millis = logRecord.getMillis();
+        final boolean folded;
+        Entry expired = null;
+        RepeatedLogMessage expiredRepeats = null;
+        Entry scheduled = null;
+        synchronized (this)
+        {
+            if (this.closed)
+            {
+                return false;
+            }
+            final Entry entry = this.entries[slot];
+            if (null != entry && entry.matches(fingerprint, logRecord, username, sessionId, loggedUsername, loggedHttpSessionId)
+                    && millis - entry.startMillis >= 0 && millis - entry.startMillis < window)
+            {
+                folded = true;
+                if (0 == entry.count++)
+                {
+                    entry.firstMillis = millis;
+                    scheduled = entry;
+                }
+                entry.lastMillis = Math.max(entry.lastMillis, millis);
+            }
+            else
+            {
+                folded = false;
+                if (null != entry)
+                {
+                    expired = entry;
+                    expiredRepeats = entry.take();
+                }
+                this.entries[slot] = new Entry(fingerprint, logRecord, username, sessionId, loggedUsername, loggedHttpSessionId);
+            }
+        }
+        if (null != expiredRepeats)
+        {
+            this.deliver(expired, expiredRepeats);
+        }
+        if (null != scheduled)
+        {
+            this.schedule(slot, scheduled, window);
+        }
+        return folded;
+    }
+
+    /**
+     * Logs the repeats of every record still in its window.
+     */
+    void flush()
+    {
+        for (int i = 0; i < RepeatCollapser.SLOTS; i++)
+        {
+            this.flush(i, null);
+        }
+    }
+
+    /**
+     * Discards the repeats of every record still in its window, and stops folding records.
+     */
+    synchronized void close()
+    {
+        this.closed = true;
+        Arrays.fill(this.entries, null);
+    }
+
+    /**
+     * Logs the repeats of the record in a slot.
+     * @param slot the slot
+     * @param expected the entry to flush, or {@code null} for whatever is in the slot
+     */
+    private void flush(final int slot, final Entry expected)
+    {
+        final Entry entry;
+        final RepeatedLogMessage repeats;
+        synchronized (this)
+        {
+            entry = this.entries[slot];
+            if (null == entry || (null != expected && entry != expected))
+            {
+                return;
+            }
+            this.entries[slot] = null;
+            repeats = entry.take();
+        }
+        if (null != repeats)
+        {
+            this.deliver(entry, repeats);
+        }
+    }
+
+    private void deliver(final Entry entry, final RepeatedLogMessage repeats)
+    {
+        this.sink.deliver(repeats, entry.loggedUsername, entry.loggedHttpSessionId);
+    }
+
+    private void schedule(final int slot, final Entry entry, final long window)
+    {
+        final long delay = Math.max(0, entry.startMillis + window - System.currentTimeMillis());
+        LogViewer.SCHEDULER.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                RepeatCollapser.this.flush(slot, entry);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static int fingerprint(final Level level, final String message, final String username)
+    {
+        int result = null != level ? level.intValue() : 0;
+        result = 31 * result + message.hashCode();
+        return 31 * result + (null != username ? username.hashCode() : 0);
+    }
+
+    /**
+     * A recent record and the repeats of it seen since. Guarded by the collapser.
+     */
+    private static final class Entry
+    {
+        private final int fingerprint;
+        private final LogRecord first;
+        private final String username;
+        private final String sessionId;
+        private final String loggedUsername;
+        private final String loggedHttpSessionId;
+        private final long startMillis;
+        private int count = 0;
+        private long firstMillis;
+        private long lastMillis;
+
+        private Entry(final int fingerprint, final LogRecord first, final String username, final String sessionId,
+                      final String loggedUsername, final String loggedHttpSessionId)
+        {
+            this.fingerprint = fingerprint;
+            this.first = first;
+            this.username = username;
+            this.sessionId = sessionId;
+            this.loggedUsername = loggedUsername;
+            this.loggedHttpSessionId = loggedHttpSessionId;
+            this.startMillis = first.getMillis();
+        }
+
+        private boolean matches(final int fingerprint, final LogRecord logRecord, final String username, final String sessionId,
+                                final String loggedUsername, final String loggedHttpSessionId)
+        {
+            // the pooled username and sessionId are usually the same instance
+            return this.fingerprint == fingerprint
+                    && Objects.equals(this.first.getLevel(), logRecord.getLevel())
+                    && Objects.equals(this.username, username)
+                    && Objects.equals(this.sessionId, sessionId)
+                    && Objects.equals(this.loggedUsername, loggedUsername)
+                    && Objects.equals(this.loggedHttpSessionId, loggedHttpSessionId)
+                    && this.first.getMessage().equals(logRecord.getMessage());
+        }
+
+        /**
+         * @return the repeats seen since the first record, or {@code null} if there were none
+         */
+        private RepeatedLogMessage take()
+        {
+            if (0 == this.count)
+            {
+                return null;
+            }
+            final RepeatedLogMessage result = new RepeatedLogMessage(this.first.getLevel(), this.first.getMessage(),
+                    this.username, this.sessionId, this.count, this.firstMillis, this.lastMillis);
+            result.setLoggerName(this.first.getLoggerName());
+            this.count = 0;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.logdyn.api;
+
+import java.util.logging.Level;
+
+/**
+ * A record standing in for repeats of the same message, folded together by a LogSession
+ * when {@link Logger#setCollapseWindow(long)} is set. The first occurrence is logged as it is,
+ * and this record follows with the number of repeats after it, timestamped with the last of them.
+ */
+public class RepeatedLogMessage extends LogMessage
+{
+    private static final long serialVersionUID = 6427019544214872316L;
+
+    private final int count;
+    private final long firstMillis;
+
+    /**
+     * @param level the level of the repeated message
+     * @param message the repeated message
+     * @param username the username of the repeated message, or {@code null}
+     * @param sessionId the sessionId of the repeated message, or {@code null}
+     * @param count the number of repeats folded into this record
+     * @param firstMillis the timestamp of the first repeat
+     * @param lastMillis the timestamp of the last repeat, which is the timestamp of this record
+     */
+    public RepeatedLogMessage(final Level level, final String message, final String username, final String sessionId,
+                              final int count, final long firstMillis, final long lastMillis)
+    {
+        super(level, message, username, sessionId, lastMillis);
+        this.count = count;
+        this.firstMillis = firstMillis;
+    }
+
+    /**
+     * @return the number of repeats folded into this record
+     */
+    public int getCount()
+    {
+        return this.count;
+    }
+
+    /**
+     * @return the timestamp of the first repeat
+     */
+    public long getFirstMillis()
+    {
+        return this.firstMillis;
+    }
+}
@@ -0,0 +1,105 @@
+package com.logdyn.api;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The part of a LogSessions history that a newly connected websocket asked for.
+ * Read from the query string of the websocket URL, e.g. {@code ?since=1497052800000} or {@code ?last=100},
+ * and {@code compress=deflate} to have the history sent as compressed binary frames, see {@link HistoryReplay}.
+ */
+class ReplayRequest
+{
+    /** Request parameter holding the earliest timestamp to replay */
+    static final String SINCE_PARAMETER = "since";
+    /** Request parameter holding the maximum number of the most recent records to replay */
+    static final String LAST_PARAMETER = "last";
+    /** Request parameter holding the compression to send history with */
+    static final String COMPRESS_PARAMETER = "compress";
+    /** The only supported value of {@link #COMPRESS_PARAMETER} */
+    static final String DEFLATE = "deflate";
+
+    static final ReplayRequest ALL = new ReplayRequest(Long.MIN_VALUE, Integer.MAX_VALUE);
+
+    private final long since;
+    private final int last;
+    private final boolean compressed;
+
+    ReplayRequest(final long since, final int last)
+    {
+        this(since, last, false);
+    }
+
+    ReplayRequest(final long since, final int last, final boolean compressed)
+    {
+        this.since = since;
+        this.last = last;
+        this.compressed = compressed;
+    }
+
+    /**
+     * Parses a replay request from websocket request parameters, ignoring values that are not numbers.
+     * @param parameters the request parameters of the websocket session
+     * @return the requested replay, or {@link #ALL} if nothing was requested
+     */
+    static ReplayRequest fromParameters(final Map<String, List<String>> parameters)
+    {
+        if (null == parameters || parameters.isEmpty())
+        {
+            return ReplayRequest.ALL;
+        }
+        final long since = ReplayRequest.parse(parameters.get(ReplayRequest.SINCE_PARAMETER), Long.MIN_VALUE);
+        final long last = ReplayRequest.parse(parameters.get(ReplayRequest.LAST_PARAMETER), Integer.MAX_VALUE);
+        final List<String> compress = parameters.get(ReplayRequest.COMPRESS_PARAMETER);
+        return new ReplayRequest(since, (int) Math.max(0, Math.min(last, Integer.MAX_VALUE)),
+                null != compress && compress.contains(ReplayRequest.DEFLATE));
+    }
+
+    private static long parse(final List<String> values, final long defaultValue)
+    {
+        if (null != values && !values.isEmpty())
+        {
+            try
+            {
+                return Long.parseLong(values.get(0));
+            }
+            catch (final NumberFormatException e)
+            {
+                // fall through to the default
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * @return the earliest timestamp to replay
+     */
+    long getSince()
+    {
+        return this.since;
+    }
+
+    /**
+     * @return the maximum number of records to replay, counting back from the most recent
+     */
+    int getLast()
+    {
+        return this.last;
+    }
+
+    /**
+     * @return true if only the most recent records were requested
+     */
+    boolean isLimited()
+    {
+        return this.last != Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return true if the history should be sent deflated
+     */
+    boolean isCompressed()
+    {
+        return this.compressed;
+    }
+}
@@ -0,0 +1,59 @@
+package com.logdyn.api;
+
+/**
+ * Limits on how much message history a LogSession keeps.
+ * Once any limit is exceeded the oldest records are evicted first.
+ */
+public final class RetentionPolicy
+{
+    /** Keeps every record, the behaviour before retention was configurable */
+    public static final RetentionPolicy UNBOUNDED = new RetentionPolicy(Integer.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+
+    /** The policy used by LogSessions unless another is set through {@link Logger#setRetentionPolicy} */
+    public static final RetentionPolicy DEFAULT = new RetentionPolicy(10_000, 8L * 1024 * 1024, Long.MAX_VALUE);
+
+    private final int maxRecords;
+    private final long maxBytes;
+    private final long maxAge;
+
+    /**
+     * @param maxRecords the maximum number of records to keep
+     * @param maxBytes the maximum estimated heap size of the kept records
+     * @param maxAge the maximum age in milliseconds of a kept record
+     * @throws IllegalArgumentException if any limit is not positive
+     */
+    public RetentionPolicy(final int maxRecords, final long maxBytes, final long maxAge)
+    {
+        if (maxRecords <= 0 || maxBytes <= 0 || maxAge <= 0)
+        {
+            throw new IllegalArgumentException("Retention limits must be positive");
+        }
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @return the maximum number of records to keep
+     */
+    public int getMaxRecords()
+    {
+        return this.maxRecords;
+    }
+
+    /**
+     * @return the maximum estimated heap size of the kept records
+     */
+    public long getMaxBytes()
+    {
+        return this.maxBytes;
+    }
+
+    /**
+     * @return the maximum age in milliseconds of a kept record
+     */
+    public long getMaxAge()
+    {
+        return this.maxAge;
+    }
+}
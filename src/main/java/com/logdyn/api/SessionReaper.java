@@ -0,0 +1,126 @@
+package com.logdyn.api;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ErrorManager;
+
+/**
+ * Periodically removes LogSessions that have no websockets, once they have been idle for longer than the expiry,
+ * or, coldest first, while the history of every LogSession is over the memory budget.
+ * Each check also evicts the history that has aged out of the retention policy of every LogSession.
+ * See {@link Logger#setSessionExpiry(long)} and {@link Logger#setHistoryMemoryBudget(long)}.
+ */
+final class SessionReaper
+{
+    /** the longest time between checks */
+    private static final long MAX_PERIOD = 60_000;
+    /** the shortest time between checks */
+    private static final long MIN_PERIOD = 1_000;
+    /** reports failed checks without logging, which could itself need the LogSessions being checked */
+    private static final ErrorManager ERROR_MANAGER = new ErrorManager();
+
+    private static volatile long idleMillis = 0;
+    private static volatile long maxBytes = 0;
+    /** the scheduled checks, or {@code null} if there is nothing to check, guarded by the class */
+    private static ScheduledFuture<?> task;
+
+    private static final AtomicLong expiredSessions = new AtomicLong();
+    private static final AtomicLong reclaimedRecords = new AtomicLong();
+    private static final AtomicLong reclaimedBytes = new AtomicLong();
+
+    private SessionReaper()
+    {
+    }
+
+    /**
+     * @param idleMillis the time a LogSession without websockets is kept after it was last used, 0 to keep it
+     */
+    static void setIdleMillis(final long idleMillis)
+    {
+        SessionReaper.idleMillis = Math.max(0, idleMillis);
+        SessionReaper.schedule();
+    }
+
+    static long getIdleMillis()
+    {
+        return SessionReaper.idleMillis;
+    }
+
+    /**
+     * @param maxBytes the most history all LogSessions together may hold, 0 for no limit
+     */
+    static void setMaxBytes(final long maxBytes)
+    {
+        SessionReaper.maxBytes = Math.max(0, maxBytes);
+        SessionReaper.schedule();
+    }
+
+    static long getMaxBytes()
+    {
+        return SessionReaper.maxBytes;
+    }
+
+    /**
+     * Counts a removed LogSession.
+     * @param records the number of records its history held
+     * @param bytes the size of its history
+     */
+    static void reclaimed(final int records, final long bytes)
+    {
+        SessionReaper.expiredSessions.incrementAndGet();
+        SessionReaper.reclaimedRecords.addAndGet(records);
+        SessionReaper.reclaimedBytes.addAndGet(bytes);
+    }
+
+    static long getExpiredSessions()
+    {
+        return SessionReaper.expiredSessions.get();
+    }
+
+    static long getReclaimedRecords()
+    {
+        return SessionReaper.reclaimedRecords.get();
+    }
+
+    static long getReclaimedBytes()
+    {
+        return SessionReaper.reclaimedBytes.get();
+    }
+
+    /**
+     * Starts, restarts or stops the checks to suit the current settings.
+     */
+    private static synchronized void schedule()
+    {
+        if (null != SessionReaper.task)
+        {
+            SessionReaper.task.cancel(false);
+            SessionReaper.task = null;
+        }
+        final long idle = SessionReaper.idleMillis;
+        if (0 == idle && 0 == SessionReaper.maxBytes)
+        {
+            return;
+        }
+        // a LogSession may outlive its expiry by up to a quarter of it
+        final long period = Math.max(SessionReaper.MIN_PERIOD,
+                0 == idle ? SessionReaper.MAX_PERIOD / 6 : Math.min(SessionReaper.MAX_PERIOD, idle / 4));
+        SessionReaper.task = LogViewer.SCHEDULER.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Logger.reapSessions(System.currentTimeMillis(), SessionReaper.idleMillis, SessionReaper.maxBytes);
+                }
+                catch (final RuntimeException e)
+                {
+                    // reported rather than thrown, as a failure must not cancel the later checks
+                    SessionReaper.ERROR_MANAGER.error("Failed to remove expired LogSessions", e, ErrorManager.GENERIC_FAILURE);
+                }
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,61 @@
+package com.logdyn.api;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock free pool of strings, so the many records sharing a username or sessionId share one copy of it.
+ *
+ * The pool is a fixed size table indexed by hash, where a string replaces whatever was in its slot.
+ * Values that collide may evict each other, which only costs memory, never correctness.
+ */
+class StringPool
+{
+    /** Strings longer than this are never pooled, so the pool cannot pin large strings */
+    static final int MAX_LENGTH = 256;
+
+    static final StringPool USERNAMES = new StringPool(1024);
+    static final StringPool SESSION_IDS = new StringPool(4096);
+
+    private final AtomicReferenceArray<String> slots;
+    private final int mask;
+
+    /**
+     * @param capacity the number of slots, rounded up to a power of two
+     */
+    StringPool(final int capacity)
+    {
+        final int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * @param value the string to pool, or {@code null}
+     * @return an equal string held by the pool, or the value itself, which is pooled for later callers
+     */
+    String intern(final String value)
+    {
+        if (null == value || value.length() > StringPool.MAX_LENGTH)
+        {
+            return value;
+        }
+        final int hash = value.hashCode();
+        final int index = (hash ^ (hash >>> 16)) & this.mask;
+        final String pooled = this.slots.get(index);
+        if (value.equals(pooled))
+        {
+            return pooled;
+        }
+        this.slots.lazySet(index, value);
+        return value;
+    }
+
+    /**
+     * @param value a string
+     * @return true if the string is short enough to be shared through a pool
+     */
+    static boolean isPoolable(final String value)
+    {
+        return null != value && value.length() <= StringPool.MAX_LENGTH;
+    }
+}
@@ -0,0 +1,42 @@
+package com.logdyn.api;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spread over several cells, each on its own cache line, so threads adding to it concurrently
+ * rarely contend. Each thread adds to the cell picked by its id, and reading sums every cell.
+ */
+class StripedCounter
+{
+    /** longs between cells, so each sits on its own cache line even with adjacent line prefetching */
+    private static final int SPACING = 16;
+    /** twice the processors rounded up to a power of two, at most 64 */
+    private static final int STRIPES = Math.min(64, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1);
+
+    private final AtomicLongArray cells = new AtomicLongArray(StripedCounter.STRIPES * StripedCounter.SPACING);
+
+    void increment()
+    {
+        this.add(1);
+    }
+
+    void add(final long value)
+    {
+        final long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        final int stripe = (int) (id >>> 32) & (StripedCounter.STRIPES - 1);
+        this.cells.getAndAdd(stripe * StripedCounter.SPACING, value);
+    }
+
+    /**
+     * @return the total of every add, which may miss adds made while it is being read
+     */
+    long sum()
+    {
+        long result = 0;
+        for (int i = 0; i < StripedCounter.STRIPES; i++)
+        {
+            result += this.cells.get(i * StripedCounter.SPACING);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,660 @@
+package com.logdyn.api;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link ClusterTransport} over TCP, using a single thread and non blocking sockets, and another thread
+ * that delivers the frames received, so a slow receiver does not hold up sending and receiving.
+ *
+ * Each node listens on an address and connects to the address of every other node, sending its frames over
+ * the connections it makes and receiving frames over the connections it accepts. A frame is sent as its length
+ * as a 4 byte int, its bytes, then an HMAC-SHA256 of its bytes keyed by a secret shared by every node.
+ * A peer that cannot be reached is retried every second, and frames for it are queued up to a limit,
+ * after which further frames for it are dropped and counted until it is reached again, see {@link #getDroppedFrames()}.
+ * Received frames are likewise queued for delivery up to a limit, after which further frames received are dropped.
+ *
+ * Connections are only accepted from the hosts of the peer addresses, and a connection that sends a frame
+ * without a valid HMAC is closed, as the records in a frame are logged to the users and httpSessions it names.
+ * Frames are not encrypted, and carry usernames and httpSession Ids, so the transport must only be used
+ * on a private network between the nodes.
+ */
+public class TcpClusterTransport implements ClusterTransport
+{
+    /** the most bytes queued for a peer, or received and waiting to be delivered, after which frames are dropped */
+    static final int MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+    /** the largest frame accepted from a peer */
+    static final int MAX_FRAME_BYTES = 16 * 1024 * 1024;
+    private static final long RECONNECT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final int LENGTH_BYTES = 4;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int MAC_BYTES = 32;
+    /** the shortest secret accepted, the length of the HMAC */
+    static final int MIN_SECRET_BYTES = TcpClusterTransport.MAC_BYTES;
+
+    private final InetSocketAddress bindAddress;
+    private final List<Peer> peers = new ArrayList<>();
+    /** the hosts connections are accepted from */
+    private final Set<InetAddress> peerHosts = new HashSet<>();
+    private final SecretKeySpec secret;
+    /** signs frames being sent, guarded by itself */
+    private final Mac sendMac;
+    /** verifies frames received, only used by the selector thread */
+    private final Mac receiveMac;
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicLong rejectedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    /** frames received and authenticated, waiting to be delivered, guarded by itself */
+    private final ArrayDeque<ByteBuffer> received = new ArrayDeque<>();
+    /** guarded by received */
+    private long receivedBytes = 0;
+    private Selector selector;
+    private ServerSocketChannel server;
+    private Thread thread;
+    private Thread deliveryThread;
+    private volatile Receiver receiver;
+    private volatile boolean running = false;
+
+    /**
+     * @param bindAddress the address to accept connections from other nodes on
+     * @param peerAddresses the addresses the other nodes accept connections on,
+     *                      connections are only accepted from their hosts
+     * @param secret the secret shared by every node, at least {@value #MIN_SECRET_BYTES} bytes
+     * @throws IllegalArgumentException if the secret is too short or a peer address is unresolved
+     */
+    public TcpClusterTransport(final InetSocketAddress bindAddress, final List<InetSocketAddress> peerAddresses,
+                               final byte[] secret)
+    {
+        this.bindAddress = Objects.requireNonNull(bindAddress);
+        if (secret.length < TcpClusterTransport.MIN_SECRET_BYTES)
+        {
+            throw new IllegalArgumentException("The secret must be at least " + TcpClusterTransport.MIN_SECRET_BYTES + " bytes");
+        }
+        for (final InetSocketAddress peerAddress : peerAddresses)
+        {
+            if (peerAddress.isUnresolved())
+            {
+                throw new IllegalArgumentException("Unresolved peer address " + peerAddress);
+            }
+            this.peers.add(new Peer(peerAddress));
+            this.peerHosts.add(peerAddress.getAddress());
+        }
+        this.secret = new SecretKeySpec(secret.clone(), TcpClusterTransport.MAC_ALGORITHM);
+        this.sendMac = this.createMac();
+        this.receiveMac = this.createMac();
+    }
+
+    private Mac createMac()
+    {
+        try
+        {
+            final Mac result = Mac.getInstance(TcpClusterTransport.MAC_ALGORITHM);
+            result.init(this.secret);
+            return result;
+        }
+        catch (final GeneralSecurityException e)
+        {
+            // every JVM must support HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the number of connections refused as they were not from the host of a peer
+     */
+    public long getRejectedConnections()
+    {
+        return this.rejectedConnections.get();
+    }
+
+    /**
+     * @return the number of frames discarded as their HMAC did not match, each closing its connection
+     */
+    public long getRejectedFrames()
+    {
+        return this.rejectedFrames.get();
+    }
+
+    /**
+     * @return the number of frames dropped as too many bytes were already queued for a peer,
+     * counted once for each peer that missed the frame,
+     * or as too many bytes received were already waiting to be delivered
+     */
+    public long getDroppedFrames()
+    {
+        return this.droppedFrames.get();
+    }
+
+    /**
+     * @return the address connections are accepted on, once started, which gives the port chosen if bound to port 0
+     */
+    public InetSocketAddress getLocalAddress()
+    {
+        try
+        {
+            return null != this.server ? (InetSocketAddress) this.server.getLocalAddress() : this.bindAddress;
+        }
+        catch (final IOException e)
+        {
+            return this.bindAddress;
+        }
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public synchronized void start(final Receiver receiver) throws IOException
+    {
+        if (this.running)
+        {
+            throw new IllegalStateException("Transport already started");
+        }
+        this.receiver = Objects.requireNonNull(receiver);
+        this.selector = Selector.open();
+        try
+        {
+            this.server = ServerSocketChannel.open();
+            this.server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            this.server.bind(this.bindAddress);
+            this.server.configureBlocking(false);
+            this.server.register(this.selector, SelectionKey.OP_ACCEPT);
+        }
+        catch (final IOException e)
+        {
+            this.closeQuietly();
+            throw e;
+        }
+        this.running = true;
+        this.thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                TcpClusterTransport.this.selectLoop();
+            }
+        }, "logdyn-cluster-tcp");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        this.deliveryThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                TcpClusterTransport.this.deliveryLoop();
+            }
+        }, "logdyn-cluster-tcp-delivery");
+        this.deliveryThread.setDaemon(true);
+        this.deliveryThread.start();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public void send(final byte[] frame, final int offset, final int length)
+    {
+        if (!this.running)
+        {
+            return;
+        }
+        final byte[] mac;
+        synchronized (this.sendMac)
+        {
+            this.sendMac.update(frame, offset, length);
+            mac = this.sendMac.doFinal();
+        }
+        for (final Peer peer : this.peers)
+        {
+            final ByteBuffer buffer = ByteBuffer.allocate(TcpClusterTransport.LENGTH_BYTES + length + TcpClusterTransport.MAC_BYTES);
+            buffer.putInt(length + TcpClusterTransport.MAC_BYTES).put(frame, offset, length).put(mac).flip();
+            if (!peer.enqueue(buffer))
+            {
+                this.droppedFrames.incrementAndGet();
+            }
+        }
+        this.selector.wakeup();
+    }
+
+    /**
+     *  {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        final Thread selectThread;
+        final Thread deliverThread;
+        synchronized (this)
+        {
+            if (!this.running)
+            {
+                return;
+            }
+            this.running = false;
+            selectThread = this.thread;
+            deliverThread = this.deliveryThread;
+            this.selector.wakeup();
+        }
+        synchronized (this.received)
+        {
+            this.received.notifyAll();
+        }
+        try
+        {
+            selectThread.join(TimeUnit.SECONDS.toMillis(5));
+            deliverThread.join(TimeUnit.SECONDS.toMillis(5));
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        this.receiver = null;
+    }
+
+    private void selectLoop()
+    {
+        try
+        {
+            while (this.running)
+            {
+                final long now = System.nanoTime();
+                long nextRetry = Long.MAX_VALUE;
+                for (final Peer peer : this.peers)
+                {
+                    nextRetry = Math.min(nextRetry, peer.update(this.selector, now));
+                }
+                final long timeout = Long.MAX_VALUE == nextRetry ? 0 : Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextRetry - now));
+                this.selector.select(timeout);
+                final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                    {
+                        continue;
+                    }
+                    if (key.attachment() instanceof Peer)
+                    {
+                        ((Peer) key.attachment()).handle(key);
+                    }
+                    else if (key.attachment() instanceof Inbound)
+                    {
+                        ((Inbound) key.attachment()).handle(key);
+                    }
+                    else if (key.isAcceptable())
+                    {
+                        this.accept();
+                    }
+                }
+            }
+        }
+        catch (final IOException | ClosedSelectorException e)
+        {
+            // closing
+        }
+        finally
+        {
+            this.closeQuietly();
+        }
+    }
+
+    /**
+     * Queues a frame received and authenticated for the delivery thread, unless too much is already waiting.
+     * @param frame the frame, which is not reused
+     */
+    private void queueReceived(final ByteBuffer frame)
+    {
+        synchronized (this.received)
+        {
+            // a frame larger than the limit is still delivered on its own
+            if (this.receivedBytes > 0 && this.receivedBytes + frame.remaining() > TcpClusterTransport.MAX_QUEUED_BYTES)
+            {
+                this.droppedFrames.incrementAndGet();
+                return;
+            }
+            this.received.add(frame);
+            this.receivedBytes += frame.remaining();
+            this.received.notifyAll();
+        }
+    }
+
+    /**
+     * Delivers the frames received until closed, then delivers whatever is still queued.
+     */
+    private void deliveryLoop()
+    {
+        while (true)
+        {
+            final ByteBuffer frame;
+            synchronized (this.received)
+            {
+                while (this.received.isEmpty() && this.running)
+                {
+                    try
+                    {
+                        this.received.wait();
+                    }
+                    catch (final InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                frame = this.received.poll();
+                if (null == frame)
+                {
+                    return;
+                }
+                this.receivedBytes -= frame.remaining();
+            }
+            final Receiver current = this.receiver;
+            if (null != current)
+            {
+                try
+                {
+                    current.receive(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+                }
+                catch (final RuntimeException e)
+                {
+                    // a bad frame must not stop delivery
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        final SocketChannel channel = this.server.accept();
+        if (null != channel)
+        {
+            final SocketAddress remote = channel.getRemoteAddress();
+            if (!(remote instanceof InetSocketAddress) || !this.peerHosts.contains(((InetSocketAddress) remote).getAddress()))
+            {
+                this.rejectedConnections.incrementAndGet();
+                channel.close();
+                return;
+            }
+            channel.configureBlocking(false);
+            channel.register(this.selector, SelectionKey.OP_READ, new Inbound());
+        }
+    }
+
+    private synchronized void closeQuietly()
+    {
+        if (null != this.selector)
+        {
+            for (final SelectionKey key : this.selector.keys())
+            {
+                TcpClusterTransport.closeQuietly(key);
+            }
+            try
+            {
+                this.selector.close();
+            }
+            catch (final IOException e)
+            {
+                // nothing more can be done
+            }
+        }
+        if (null != this.server)
+        {
+            try
+            {
+                this.server.close();
+            }
+            catch (final IOException e)
+            {
+                // nothing more can be done
+            }
+        }
+        for (final Peer peer : this.peers)
+        {
+            peer.disconnected(0);
+        }
+    }
+
+    private static void closeQuietly(final SelectionKey key)
+    {
+        key.cancel();
+        try
+        {
+            key.channel().close();
+        }
+        catch (final IOException e)
+        {
+            // nothing more can be done
+        }
+    }
+
+    /**
+     * An outbound connection to another node and the frames waiting to be sent to it.
+     */
+    private static final class Peer
+    {
+        private final InetSocketAddress address;
+        /** guarded by this */
+        private final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+        /** guarded by this */
+        private long queuedBytes = 0;
+        private SelectionKey key;
+        private long retryAt = 0;
+
+        private Peer(final InetSocketAddress address)
+        {
+            this.address = address;
+        }
+
+        /**
+         * @return false if the frame was dropped, as too many bytes are already queued
+         */
+        private synchronized boolean enqueue(final ByteBuffer frame)
+        {
+            if (this.queuedBytes + frame.remaining() > TcpClusterTransport.MAX_QUEUED_BYTES)
+            {
+                return false;
+            }
+            this.queue.add(frame);
+            this.queuedBytes += frame.remaining();
+            return true;
+        }
+
+        /**
+         * Connects if due, and writes when there is anything to send.
+         * @return when the next connection attempt is due, or {@link Long#MAX_VALUE} if connected
+         */
+        private long update(final Selector selector, final long now)
+        {
+            if (null == this.key)
+            {
+                if (now - this.retryAt < 0)
+                {
+                    return this.retryAt;
+                }
+                try
+                {
+                    final SocketChannel channel = SocketChannel.open();
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    channel.connect(this.address);
+                    this.key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+                }
+                catch (final IOException e)
+                {
+                    this.disconnected(now);
+                    return this.retryAt;
+                }
+                return Long.MAX_VALUE;
+            }
+            if (this.key.isValid() && 0 == (this.key.interestOps() & SelectionKey.OP_CONNECT))
+            {
+                final boolean pending;
+                synchronized (this)
+                {
+                    pending = !this.queue.isEmpty();
+                }
+                // connections are only read to notice when they are closed
+                this.key.interestOps(SelectionKey.OP_READ | (pending ? SelectionKey.OP_WRITE : 0));
+            }
+            return Long.MAX_VALUE;
+        }
+
+        private void handle(final SelectionKey key)
+        {
+            final SocketChannel channel = (SocketChannel) key.channel();
+            try
+            {
+                if (key.isConnectable())
+                {
+                    channel.finishConnect();
+                    key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+                if (key.isReadable() && channel.read(ByteBuffer.allocate(64)) < 0)
+                {
+                    throw new IOException("Peer closed the connection");
+                }
+                if (key.isValid() && key.isWritable())
+                {
+                    this.write(channel);
+                }
+            }
+            catch (final IOException e)
+            {
+                TcpClusterTransport.closeQuietly(key);
+                this.disconnected(System.nanoTime());
+            }
+        }
+
+        private void write(final SocketChannel channel) throws IOException
+        {
+            while (true)
+            {
+                final ByteBuffer frame;
+                synchronized (this)
+                {
+                    frame = this.queue.peek();
+                }
+                if (null == frame)
+                {
+                    return;
+                }
+                channel.write(frame);
+                if (frame.hasRemaining())
+                {
+                    return;
+                }
+                synchronized (this)
+                {
+                    this.queue.poll();
+                    this.queuedBytes -= frame.limit();
+                }
+            }
+        }
+
+        /**
+         * Forgets the connection, so the next attempt is made after the retry delay.
+         * A frame that was partly written is sent again in full on the next connection.
+         */
+        private void disconnected(final long now)
+        {
+            this.key = null;
+            this.retryAt = now + TcpClusterTransport.RECONNECT_NANOS;
+            synchronized (this)
+            {
+                final ByteBuffer head = this.queue.peek();
+                if (null != head)
+                {
+                    head.rewind();
+                }
+            }
+        }
+    }
+
+    /**
+     * An accepted connection from another node, reassembling the frames it sends.
+     */
+    private final class Inbound
+    {
+        private final ByteBuffer lengthBuffer = ByteBuffer.allocate(TcpClusterTransport.LENGTH_BYTES);
+        private ByteBuffer frame;
+
+        private void handle(final SelectionKey key)
+        {
+            final SocketChannel channel = (SocketChannel) key.channel();
+            try
+            {
+                while (true)
+                {
+                    final ByteBuffer target = null != this.frame ? this.frame : this.lengthBuffer;
+                    final int read = channel.read(target);
+                    if (read < 0)
+                    {
+                        throw new IOException("Peer closed the connection");
+                    }
+                    if (target.hasRemaining())
+                    {
+                        return;
+                    }
+                    if (null == this.frame)
+                    {
+                        final int length = this.lengthBuffer.getInt(0);
+                        if (length < TcpClusterTransport.MAC_BYTES || length > TcpClusterTransport.MAX_FRAME_BYTES)
+                        {
+                            throw new IOException("Invalid frame length " + length);
+                        }
+                        this.frame = ByteBuffer.allocate(length);
+                    }
+                    else
+                    {
+                        this.deliver();
+                    }
+                }
+            }
+            catch (final IOException e)
+            {
+                TcpClusterTransport.closeQuietly(key);
+            }
+        }
+
+        private void deliver() throws IOException
+        {
+            final int length = this.frame.limit() - TcpClusterTransport.MAC_BYTES;
+            final Mac mac = TcpClusterTransport.this.receiveMac;
+            mac.update(this.frame.array(), 0, length);
+            final byte[] expected = mac.doFinal();
+            final byte[] actual = Arrays.copyOfRange(this.frame.array(), length, this.frame.limit());
+            if (!MessageDigest.isEqual(expected, actual))
+            {
+                TcpClusterTransport.this.rejectedFrames.incrementAndGet();
+                throw new IOException("Frame failed authentication");
+            }
+            // delivered by another thread, so a slow receiver does not hold up every connection
+            TcpClusterTransport.this.queueReceived(ByteBuffer.wrap(this.frame.array(), 0, length));
+            this.frame = null;
+            this.lengthBuffer.clear();
+        }
+    }
+}
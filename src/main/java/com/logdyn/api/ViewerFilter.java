@@ -0,0 +1,358 @@
+package com.logdyn.api;
+
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The records a websocket viewer wants to be sent, checked before a record is encoded
+ * so records it does not want cost nothing to serialise or send.
+ *
+ * A filter is declared with the query string of the websocket URL, e.g. {@code ?level=WARN&logger=com.example},
+ * or at any time with a control message such as {@code {"filter":{"level":"WARN","contains":"timeout"}}}.
+ * An empty control filter, {@code {"filter":{}}}, removes the filter.
+ *
+ * Filters run on the threads that log, so a regular expression is limited to {@link #MAX_REGEX_LENGTH} characters
+ * and each match to {@link #MAX_MATCH_NANOS}. A message that runs out of time is not matched, and a pattern that runs
+ * out of time for {@link #MAX_CONSECUTIVE_TIMEOUTS} messages in a row, as one that backtracks catastrophically will,
+ * is disabled and matches nothing from then on. A single overrun, as a pause of the logging thread can cause, is forgiven
+ * by the next match that completes in time. The viewer is told when its pattern is disabled, see {@link #setDisabledListener}.
+ */
+class ViewerFilter
+{
+    /** The lowest level to send, a level name or value */
+    static final String LEVEL_PARAMETER = "level";
+    /** The logger to send records of, including its child loggers */
+    static final String LOGGER_PARAMETER = "logger";
+    /** Text the message must contain */
+    static final String CONTAINS_PARAMETER = "contains";
+    /** A regular expression found in the message */
+    static final String REGEX_PARAMETER = "regex";
+    /** The longest regular expression accepted */
+    static final int MAX_REGEX_LENGTH = 256;
+    /** The time a regular expression may take to search one message */
+    static final long MAX_MATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    /** The number of matches in a row that may run out of time before the regular expression is disabled */
+    static final int MAX_CONSECUTIVE_TIMEOUTS = 8;
+    /** The number of characters read between checks of the match deadline */
+    private static final int DEADLINE_CHECK_INTERVAL = 256;
+
+    /** Sends every record */
+    static final ViewerFilter NONE = new ViewerFilter(Integer.MIN_VALUE, null, null, null);
+
+    private final int minLevel;
+    private final String loggerName;
+    private final String contains;
+    private final Pattern regex;
+    /** the matches in a row that ran out of time */
+    private final AtomicInteger consecutiveTimeouts = new AtomicInteger();
+    /** set once the regex ran out of time too often, after which it matches nothing */
+    private volatile boolean regexDisabled = false;
+    private volatile Runnable disabledListener;
+
+    ViewerFilter(final int minLevel, final String loggerName, final String contains, final Pattern regex)
+    {
+        this.minLevel = minLevel;
+        this.loggerName = loggerName;
+        this.contains = contains;
+        this.regex = regex;
+    }
+
+    /**
+     * Parses a filter from websocket request parameters, ignoring values that are not valid.
+     * @param parameters the request parameters of the websocket session
+     * @return the requested filter, or {@link #NONE} if nothing was requested
+     */
+    static ViewerFilter fromParameters(final Map<String, List<String>> parameters)
+    {
+        if (null == parameters || parameters.isEmpty())
+        {
+            return ViewerFilter.NONE;
+        }
+        int minLevel = Integer.MIN_VALUE;
+        Pattern regex = null;
+        try
+        {
+            minLevel = ViewerFilter.parseLevel(ViewerFilter.first(parameters, ViewerFilter.LEVEL_PARAMETER));
+        }
+        catch (final IllegalArgumentException e)
+        {
+            // fall through to every level
+        }
+        try
+        {
+            regex = ViewerFilter.compile(ViewerFilter.first(parameters, ViewerFilter.REGEX_PARAMETER));
+        }
+        catch (final PatternSyntaxException e)
+        {
+            // fall through to any message
+        }
+        return ViewerFilter.create(minLevel, ViewerFilter.first(parameters, ViewerFilter.LOGGER_PARAMETER),
+                ViewerFilter.first(parameters, ViewerFilter.CONTAINS_PARAMETER), regex);
+    }
+
+    /**
+     * Parses the filter of a control message.
+     * @param json the value of the {@code filter} property of the message
+     * @return the filter
+     * @throws IllegalArgumentException if the level or regular expression is not valid
+     */
+    static ViewerFilter fromJSON(final JSONObject json)
+    {
+        return ViewerFilter.create(
+                ViewerFilter.parseLevel(ViewerFilter.optString(json, ViewerFilter.LEVEL_PARAMETER)),
+                ViewerFilter.optString(json, ViewerFilter.LOGGER_PARAMETER),
+                ViewerFilter.optString(json, ViewerFilter.CONTAINS_PARAMETER),
+                ViewerFilter.compile(ViewerFilter.optString(json, ViewerFilter.REGEX_PARAMETER)));
+    }
+
+    private static ViewerFilter create(final int minLevel, final String loggerName, final String contains, final Pattern regex)
+    {
+        if (minLevel == Integer.MIN_VALUE && null == loggerName && null == contains && null == regex)
+        {
+            return ViewerFilter.NONE;
+        }
+        return new ViewerFilter(minLevel, loggerName, contains, regex);
+    }
+
+    private static String first(final Map<String, List<String>> parameters, final String name)
+    {
+        final List<String> values = parameters.get(name);
+        return null != values && !values.isEmpty() && !values.get(0).isEmpty() ? values.get(0) : null;
+    }
+
+    private static String optString(final JSONObject json, final String name)
+    {
+        final String result = json.optString(name, null);
+        return null != result && !result.isEmpty() ? result : null;
+    }
+
+    private static int parseLevel(final String level)
+    {
+        return null != level ? JsLevel.parse(level).intValue() : Integer.MIN_VALUE;
+    }
+
+    /**
+     * @throws PatternSyntaxException if the regular expression is not valid or is longer than {@link #MAX_REGEX_LENGTH}
+     */
+    private static Pattern compile(final String regex)
+    {
+        if (null == regex)
+        {
+            return null;
+        }
+        if (regex.length() > ViewerFilter.MAX_REGEX_LENGTH)
+        {
+            throw new PatternSyntaxException("Longer than " + ViewerFilter.MAX_REGEX_LENGTH + " characters",
+                    regex, ViewerFilter.MAX_REGEX_LENGTH);
+        }
+        return Pattern.compile(regex);
+    }
+
+    /**
+     * @param listener run once, on the thread that was matching, if the regular expression is disabled
+     */
+    void setDisabledListener(final Runnable listener)
+    {
+        this.disabledListener = listener;
+    }
+
+    /**
+     * @return true if the regular expression ran out of time too often, and now matches nothing
+     */
+    boolean isRegexDisabled()
+    {
+        return this.regexDisabled;
+    }
+
+    /**
+     * @return the regular expression, or {@code null} if there is none
+     */
+    Pattern getRegex()
+    {
+        return this.regex;
+    }
+
+    /**
+     * @param logRecord the record to check
+     * @return true if the viewer wants the record
+     */
+    boolean accepts(final LogRecord logRecord)
+    {
+        if (this == ViewerFilter.NONE)
+        {
+            return true;
+        }
+        final Level level = logRecord.getLevel();
+        if (null != level && level.intValue() < this.minLevel)
+        {
+            return false;
+        }
+        if (null != this.loggerName && !ViewerFilter.isLoggerOrChild(logRecord.getLoggerName(), this.loggerName))
+        {
+            return false;
+        }
+        final String message = logRecord.getMessage();
+        if (null != this.contains && (null == message || !message.contains(this.contains)))
+        {
+            return false;
+        }
+        return null == this.regex || (null != message && this.find(message));
+    }
+
+    private boolean find(final String message)
+    {
+        if (this.regexDisabled)
+        {
+            return false;
+        }
+        final boolean result;
+        try
+        {
+            result = this.regex.matcher(new DeadlineCharSequence(message, System.nanoTime() + ViewerFilter.MAX_MATCH_NANOS)).find();
+        }
+        catch (final MatchTimeoutException e)
+        {
+            if (ViewerFilter.MAX_CONSECUTIVE_TIMEOUTS == this.consecutiveTimeouts.incrementAndGet())
+            {
+                this.regexDisabled = true;
+                final Runnable listener = this.disabledListener;
+                if (null != listener)
+                {
+                    listener.run();
+                }
+            }
+            return false;
+        }
+        if (0 != this.consecutiveTimeouts.get())
+        {
+            this.consecutiveTimeouts.set(0);
+        }
+        return result;
+    }
+
+    private static boolean isLoggerOrChild(final String name, final String parent)
+    {
+        return null != name && name.startsWith(parent)
+                && (name.length() == parent.length() || name.charAt(parent.length()) == '.');
+    }
+
+    /**
+     * @param logRecords the records to filter
+     * @return an iterator over the records the viewer wants
+     */
+    Iterator<LogRecord> filter(final Iterator<LogRecord> logRecords)
+    {
+        if (this == ViewerFilter.NONE)
+        {
+            return logRecords;
+        }
+        return new Iterator<LogRecord>()
+        {
+            private LogRecord next = this.advance();
+
+            @Override
+            public boolean hasNext()
+            {
+                return null != this.next;
+            }
+
+            @Override
+            public LogRecord next()
+            {
+                if (null == this.next)
+                {
+                    throw new NoSuchElementException();
+                }
+                final LogRecord result = this.next;
+                this.next = this.advance();
+                return result;
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+
+            private LogRecord advance()
+            {
+                while (logRecords.hasNext())
+                {
+                    final LogRecord candidate = logRecords.next();
+                    if (ViewerFilter.this.accepts(candidate))
+                    {
+                        return candidate;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Thrown by {@link DeadlineCharSequence} to abandon a match, without a stack trace as it is expected.
+     */
+    private static final class MatchTimeoutException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        MatchTimeoutException()
+        {
+            super("Regular expression took too long", null, false, false);
+        }
+    }
+
+    /**
+     * A message that can only be read until a deadline, which bounds the time a {@link java.util.regex.Matcher} spends on it.
+     */
+    private static final class DeadlineCharSequence implements CharSequence
+    {
+        private final String message;
+        private final long deadline;
+        private int reads = 0;
+
+        DeadlineCharSequence(final String message, final long deadline)
+        {
+            this.message = message;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public char charAt(final int index)
+        {
+            if (++this.reads % ViewerFilter.DEADLINE_CHECK_INTERVAL == 0 && System.nanoTime() - this.deadline > 0)
+            {
+                throw new MatchTimeoutException();
+            }
+            return this.message.charAt(index);
+        }
+
+        @Override
+        public int length()
+        {
+            return this.message.length();
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end)
+        {
+            return new DeadlineCharSequence(this.message.substring(start, end), this.deadline);
+        }
+
+        @Override
+        public String toString()
+        {
+            return this.message;
+        }
+    }
+}
@@ -2,11 +2,22 @@ var loggingWebsocket = {
 		
 		websocket : null,
 		
+		//subprotocol for binary frames, servers that do not support it send JSON
+		BINARY_SUBPROTOCOL : "logdyn.binary.v1",
+		
+		//history is replayed deflated where the browser can inflate it
+		COMPRESS_REPLAY : typeof DecompressionStream === "function",
+		
+		//frames are handled in order, although compressed frames are inflated asynchronously
+		received : null,
+		
 		init : function()
 		{
 			var origin = window.location.origin.replace("http://", "ws://").replace("https://","wss://");
 			//TODO generate / find address rather than hardcode
-			loggingWebsocket.websocket = new WebSocket(origin + "/logdyn/LoggingEndpoint");
+			var address = origin + "/logdyn/LoggingEndpoint" + (loggingWebsocket.COMPRESS_REPLAY ? "?compress=deflate" : "");
+			loggingWebsocket.websocket = new WebSocket(address, [loggingWebsocket.BINARY_SUBPROTOCOL]);
+			loggingWebsocket.websocket.binaryType = "arraybuffer";
 			
 			loggingWebsocket.websocket.onopen = function() 
 			{
@@ -15,22 +26,134 @@ var loggingWebsocket = {
 			
 			loggingWebsocket.websocket.onmessage = function(message)
 			{
-				var jsonMessage = JSON.parse(message.data);
-
-				if(Array.isArray(jsonMessage))
+				//zlib streams have 8 in the low bits of their first byte, binary frames never do
+				if (message.data instanceof ArrayBuffer && (new Uint8Array(message.data)[0] & 0x0F) === 8)
+				{
+					loggingWebsocket.received = (loggingWebsocket.received || Promise.resolve()).then(function ()
+					{
+						return new Response(new Blob([message.data]).stream().pipeThrough(new DecompressionStream("deflate"))).arrayBuffer();
+					}).then(function (inflated)
+					{
+						var records = loggingWebsocket.websocket.protocol === loggingWebsocket.BINARY_SUBPROTOCOL
+								? loggingWebsocket.decodeBinary(inflated)
+								: JSON.parse(new TextDecoder("utf-8").decode(inflated));
+						records.forEach(loggingWebsocket.logLocalOnly);
+					});
+				}
+				else if (loggingWebsocket.received)
 				{
-					jsonMessage.forEach(function (message)
+					loggingWebsocket.received = loggingWebsocket.received.then(function ()
 					{
-						loggingWebsocket.logLocalOnly(message);
-                    });
+						loggingWebsocket.decodeMessage(message.data).forEach(loggingWebsocket.logLocalOnly);
+					});
 				}
 				else
 				{
-					loggingWebsocket.logLocalOnly(jsonMessage);
+					loggingWebsocket.decodeMessage(message.data).forEach(loggingWebsocket.logLocalOnly);
 				}
 			};
 		},
 		
+		decodeMessage : function(data)
+		{
+			if (data instanceof ArrayBuffer)
+			{
+				return loggingWebsocket.decodeBinary(data);
+			}
+			var jsonMessage = JSON.parse(data);
+			return Array.isArray(jsonMessage) ? jsonMessage : [jsonMessage];
+		},
+		
+		/*
+		 * Decodes a binary frame: a version byte, the record count as a varint, then for each record
+		 * its flags, the zigzag varint difference of its timestamp from the previous record,
+		 * its level as a dictionary reference, its message,
+		 * and if flagged as repeated its count and the time since its first repeat.
+		 */
+		decodeBinary : function(buffer)
+		{
+			var bytes = new Uint8Array(buffer);
+			var position = 0;
+			var dictionary = [];
+			
+			//varints may exceed 32 bits, so are decoded with arithmetic rather than bitwise operators
+			function readVarint()
+			{
+				var result = 0;
+				var scale = 1;
+				var b;
+				do
+				{
+					b = bytes[position++];
+					result += (b & 0x7F) * scale;
+					scale *= 128;
+				}
+				while (b & 0x80);
+				return result;
+			}
+			
+			function readUtf8(length)
+			{
+				var slice = bytes.subarray(position, position + length);
+				position += length;
+				if (typeof TextDecoder === "function")
+				{
+					return new TextDecoder("utf-8").decode(slice);
+				}
+				var binary = "";
+				for (var i = 0; i < slice.length; i++)
+				{
+					binary += String.fromCharCode(slice[i]);
+				}
+				return decodeURIComponent(escape(binary));
+			}
+			
+			function readString()
+			{
+				var length = readVarint();
+				return length === 0 ? null : readUtf8(length - 1);
+			}
+			
+			function readReference()
+			{
+				var reference = readVarint();
+				if (reference === 0)
+				{
+					return null;
+				}
+				if (reference % 2 === 1)
+				{
+					dictionary.push(readUtf8(readVarint()));
+					return dictionary[dictionary.length - 1];
+				}
+				return dictionary[reference / 2 - 1];
+			}
+			
+			if (bytes[position++] !== 1)
+			{
+				throw new Error("Unsupported frame version");
+			}
+			var count = readVarint();
+			var records = [];
+			var timestamp = 0;
+			for (var i = 0; i < count; i++)
+			{
+				var flags = readVarint();
+				var delta = readVarint();
+				timestamp += delta % 2 === 0 ? delta / 2 : -(delta + 1) / 2;
+				var logRecord = {timestamp : timestamp};
+				logRecord.level = readReference();
+				logRecord.message = readString();
+				if (flags & 1)
+				{
+					logRecord.count = readVarint();
+					logRecord.firstTimestamp = timestamp - readVarint();
+				}
+				records.push(logRecord);
+			}
+			return records;
+		},
+		
 		logLocalOnly : function(logRecord)
 		{
 			logRecord.level = logRecord.level.toUpperCase();
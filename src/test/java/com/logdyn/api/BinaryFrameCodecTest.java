@@ -0,0 +1,89 @@
+package com.logdyn.api;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class BinaryFrameCodecTest
+{
+	@Test
+	public void testRoundTrip()
+	{
+		final long now = 1497052800000L;
+		final List<LogRecord> logRecords = Arrays.<LogRecord>asList(
+				new LogMessage(Level.INFO, "first", "user", "A1B2", now),
+				new LogMessage(Level.INFO, "earlier é中", "user", null, now - 5),
+				new LogMessage(JsLevel.ERROR, null, (String) null, null, now + 100_000),
+				new RepeatedLogMessage(Level.WARNING, "retry", "other", "A1B2", 12, now, now + 300));
+		final ByteBuffer frame = new BinaryFrameCodec().encode(logRecords);
+		final List<LogMessage> decoded = BinaryFrameCodec.decode(frame);
+		Assert.assertFalse(frame.hasRemaining());
+
+		Assert.assertEquals(4, decoded.size());
+		for (int i = 0; i < logRecords.size(); i++)
+		{
+			Assert.assertEquals(logRecords.get(i).getMillis(), decoded.get(i).getMillis());
+			Assert.assertEquals(logRecords.get(i).getLevel(), decoded.get(i).getLevel());
+			Assert.assertEquals(logRecords.get(i).getMessage(), decoded.get(i).getMessage());
+			// usernames and sessionIds are never sent to viewers
+			Assert.assertNull(decoded.get(i).getUsername());
+			Assert.assertNull(decoded.get(i).getSessionId());
+		}
+		final RepeatedLogMessage repeated = (RepeatedLogMessage) decoded.get(3);
+		Assert.assertEquals(12, repeated.getCount());
+		Assert.assertEquals(now, repeated.getFirstMillis());
+	}
+
+	@Test
+	public void testSmallerThanJSON()
+	{
+		final List<LogRecord> logRecords = new ArrayList<>();
+		for (int i = 0; i < 100; i++)
+		{
+			logRecords.add(new LogMessage(Level.INFO, "Processed order " + i, "admin", "A1B2C3D4", 1497052800000L + i));
+		}
+		final int binary = new BinaryFrameCodec().encode(logRecords).remaining();
+		final int json = LogRecordUtils.toJSON(logRecords).length();
+		// repeated strings are sent once per frame and close timestamps take a byte
+		Assert.assertTrue(binary * 2 < json);
+		Assert.assertEquals(100, BinaryFrameCodec.decode(new BinaryFrameCodec().encode(logRecords)).size());
+	}
+
+	@Test
+	public void testBoundedFrames()
+	{
+		final List<LogRecord> logRecords = new ArrayList<>();
+		for (int i = 0; i < 25; i++)
+		{
+			logRecords.add(new LogMessage(Level.INFO, "message " + i, "user", null, i));
+		}
+		final BinaryFrameCodec codec = new BinaryFrameCodec();
+		final HistoryReplay replay = new HistoryReplay(logRecords.iterator());
+		final List<LogMessage> decoded = new ArrayList<>();
+		ByteBuffer frame;
+		int frames = 0;
+		while (null != (frame = replay.nextFrame(codec)))
+		{
+			decoded.addAll(BinaryFrameCodec.decode(frame));
+			frames++;
+		}
+		Assert.assertEquals(1, frames);
+		Assert.assertEquals(25, decoded.size());
+		Assert.assertEquals("message 24", decoded.get(24).getMessage());
+
+		final List<LogMessage> firstTen = BinaryFrameCodec.decode(codec.encode(logRecords.iterator(), 10, Integer.MAX_VALUE));
+		Assert.assertEquals(10, firstTen.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownVersion()
+	{
+		BinaryFrameCodec.decode(ByteBuffer.wrap(new byte[] {2, 0}));
+	}
+}
@@ -0,0 +1,75 @@
+package com.logdyn.api;
+
+import org.json.JSONException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class ClientMessageDecoderTest
+{
+	@Test
+	public void testRecord() throws IOException
+	{
+		final ClientMessageDecoder decoder = new ClientMessageDecoder();
+		decoder.decode(new StringReader("{\"level\":\"WARN\",\"extra\":{\"a\":[1,\"}\"]},\"message\":\"line\\n\\\"quoted\\\" \\u00e9\","
+				+ "\"timestamp\":1234,\"username\":\"client\",\"sessionId\":null}"), null, "http");
+		Assert.assertNull(decoder.getFilter());
+		final List<LogRecord> records = decoder.getRecords();
+		Assert.assertEquals(1, records.size());
+		final LogMessage record = (LogMessage) records.get(0);
+		Assert.assertEquals(JsLevel.WARN, record.getLevel());
+		Assert.assertEquals("line\n\"quoted\" \u00e9", record.getMessage());
+		Assert.assertEquals(1234, record.getMillis());
+		Assert.assertEquals("client", record.getUsername());
+		Assert.assertEquals("http", record.getSessionId());
+	}
+
+	@Test
+	public void testBatch() throws IOException
+	{
+		final ClientMessageDecoder decoder = new ClientMessageDecoder();
+		decoder.decode(new StringReader(" [ {\"message\":\"one\"}, {\"message\":\"two\",\"level\":900,\"username\":\"client\"} ] "), "user", null);
+		final List<LogRecord> records = decoder.getRecords();
+		Assert.assertEquals(2, records.size());
+		Assert.assertEquals(Level.FINE, records.get(0).getLevel());
+		Assert.assertEquals(Level.WARNING, records.get(1).getLevel());
+		Assert.assertEquals("two", records.get(1).getMessage());
+		Assert.assertEquals("user", ((LogMessage) records.get(1)).getUsername());
+
+		decoder.decode(new StringReader("[]"), null, null);
+		Assert.assertTrue(decoder.getRecords().isEmpty());
+	}
+
+	@Test
+	public void testFilter() throws IOException
+	{
+		final ClientMessageDecoder decoder = new ClientMessageDecoder();
+		decoder.decode(new StringReader("{\"filter\": {\"level\":\"ERROR\", \"contains\":\"a \\\"b\\\"\"}}"), null, null);
+		Assert.assertTrue(decoder.getRecords().isEmpty());
+		Assert.assertEquals("ERROR", decoder.getFilter().getString("level"));
+		Assert.assertEquals("a \"b\"", decoder.getFilter().getString("contains"));
+	}
+
+	@Test(expected = JSONException.class)
+	public void testMissingMessage() throws IOException
+	{
+		new ClientMessageDecoder().decode(new StringReader("{\"level\":\"INFO\"}"), null, null);
+	}
+
+	@Test(expected = JSONException.class)
+	public void testUnknownLevel() throws IOException
+	{
+		new ClientMessageDecoder().decode(new StringReader("{\"level\":\"LOUD\",\"message\":\"m\"}"), null, null);
+	}
+
+	@Test(expected = JSONException.class)
+	public void testTruncated() throws IOException
+	{
+		new ClientMessageDecoder().decode(new StringReader("[{\"message\":\"m\"},"), null, null);
+	}
+}
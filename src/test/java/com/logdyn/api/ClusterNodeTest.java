@@ -0,0 +1,407 @@
+package com.logdyn.api;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class ClusterNodeTest
+{
+	private static final long TIMEOUT_MILLIS = 10_000;
+	private static final byte[] SECRET = "a secret shared by the test nodes".getBytes(StandardCharsets.UTF_8);
+	/** a loopback peer that is never listening, so its host may connect */
+	private static final InetSocketAddress LOOPBACK_PEER = new InetSocketAddress(InetAddress.getLoopbackAddress(), 1);
+
+	@Test
+	public void testLoopbackDelivery() throws Exception
+	{
+		final LoopbackClusterTransport first = new LoopbackClusterTransport();
+		final LoopbackClusterTransport second = new LoopbackClusterTransport();
+		first.connect(second);
+		final ListSink firstSink = new ListSink();
+		final ListSink secondSink = new ListSink();
+		final ClusterNode firstNode = new ClusterNode(first, firstSink);
+		final ClusterNode secondNode = new ClusterNode(second, secondSink);
+		firstNode.start();
+		secondNode.start();
+		try
+		{
+			final long now = System.currentTimeMillis();
+			for (int i = 0; i < 100; i++)
+			{
+				firstNode.forward(new LogMessage(Level.INFO, "message " + i, "user", "http", now + i), "user", "http");
+			}
+			firstNode.forward(new LogMessage(Level.SEVERE, "anonymous", (String) null, null, now), null, null);
+			secondSink.await(101);
+
+			Assert.assertEquals(101, secondSink.records.size());
+			Assert.assertEquals(0, firstSink.records.size());
+			Assert.assertEquals("message 0", secondSink.records.get(0).getMessage());
+			Assert.assertEquals(now, secondSink.records.get(0).getMillis());
+			Assert.assertEquals("user", secondSink.usernames.get(99));
+			Assert.assertEquals("http", secondSink.sessionIds.get(99));
+			Assert.assertEquals(Level.SEVERE, secondSink.records.get(100).getLevel());
+			Assert.assertNull(secondSink.usernames.get(100));
+			Assert.assertNull(secondSink.sessionIds.get(100));
+			// counted once the loopback send returns, which is after the records were delivered
+			final long deadline = System.currentTimeMillis() + ClusterNodeTest.TIMEOUT_MILLIS;
+			while (firstNode.getSentRecords() < 101 && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(101, firstNode.getSentRecords());
+			Assert.assertEquals(101, secondNode.getReceivedRecords());
+		}
+		finally
+		{
+			firstNode.close();
+			secondNode.close();
+		}
+	}
+
+	@Test
+	public void testRecordCreatedLongBeforeForwarding() throws Exception
+	{
+		final LoopbackClusterTransport first = new LoopbackClusterTransport();
+		final LoopbackClusterTransport second = new LoopbackClusterTransport();
+		first.connect(second);
+		final ListSink sink = new ListSink();
+		final ClusterNode firstNode = new ClusterNode(first, new ListSink());
+		final ClusterNode secondNode = new ClusterNode(second, sink);
+		firstNode.start();
+		secondNode.start();
+		try
+		{
+			// its sequence number is assigned now, and falls far behind those of the records created after it
+			final LogRecord old = new LogMessage(Level.INFO, "old", "user", null, System.currentTimeMillis());
+			for (int i = 0; i <= ClusterNode.DEDUPE_WINDOW; i++)
+			{
+				new LogRecord(Level.FINEST, null);
+			}
+			firstNode.forward(new LogMessage(Level.INFO, "new", "user", null, System.currentTimeMillis()), "user", null);
+			firstNode.forward(old, "user", null);
+			sink.await(2);
+			Assert.assertEquals(2, sink.records.size());
+			Assert.assertEquals("old", sink.records.get(1).getMessage());
+			Assert.assertEquals(0, secondNode.getDuplicateRecords());
+		}
+		finally
+		{
+			firstNode.close();
+			secondNode.close();
+		}
+	}
+
+	@Test
+	public void testDuplicatesIgnored() throws Exception
+	{
+		final CapturingTransport transport = new CapturingTransport();
+		final ClusterNode sender = new ClusterNode(transport, new ListSink());
+		final ListSink sink = new ListSink();
+		final ClusterNode receiver = new ClusterNode(new LoopbackClusterTransport(), sink);
+		sender.start();
+		receiver.start();
+		try
+		{
+			final LogRecord logRecord = new LogMessage(Level.INFO, "once", "user", null, System.currentTimeMillis());
+			logRecord.setLoggerName("com.acme");
+			sender.forward(logRecord, "user", null);
+			final byte[] frame = transport.await();
+
+			receiver.receive(frame, 0, frame.length);
+			receiver.receive(frame, 0, frame.length);
+			Assert.assertEquals(1, sink.records.size());
+			Assert.assertEquals("com.acme", sink.records.get(0).getLoggerName());
+			Assert.assertEquals(1, receiver.getDuplicateRecords());
+
+			// a node ignores its own frames
+			sender.receive(frame, 0, frame.length);
+			Assert.assertEquals(0, sender.getReceivedRecords());
+		}
+		finally
+		{
+			sender.close();
+			receiver.close();
+		}
+	}
+
+	@Test
+	public void testCorruptFrameIgnored() throws Exception
+	{
+		final ListSink sink = new ListSink();
+		final ClusterNode receiver = new ClusterNode(new LoopbackClusterTransport(), sink);
+		final byte[] frame = new byte[32];
+		frame[0] = 1;
+		Arrays.fill(frame, 9, frame.length, (byte) 0x5A);
+		receiver.receive(frame, 0, frame.length);
+		receiver.receive(frame, 0, 3);
+		Assert.assertEquals(0, sink.records.size());
+		Assert.assertEquals(2, receiver.getInvalidFrames());
+	}
+
+	@Test
+	public void testDedupeWindow()
+	{
+		final ClusterNode.DedupeWindow window = new ClusterNode.DedupeWindow();
+		Assert.assertTrue(window.firstSeen(10));
+		Assert.assertFalse(window.firstSeen(10));
+		Assert.assertTrue(window.firstSeen(12));
+		// out of order, within the window
+		Assert.assertTrue(window.firstSeen(11));
+		Assert.assertFalse(window.firstSeen(11));
+		Assert.assertTrue(window.firstSeen(10 + ClusterNode.DEDUPE_WINDOW));
+		Assert.assertFalse(window.firstSeen(12));
+		Assert.assertTrue(window.firstSeen(13));
+		// older than the window
+		Assert.assertTrue(window.firstSeen(20 + 2 * ClusterNode.DEDUPE_WINDOW));
+		Assert.assertFalse(window.firstSeen(14));
+	}
+
+	@Test
+	public void testTcpDelivery() throws Exception
+	{
+		final ListSink sink = new ListSink();
+		final TcpClusterTransport second = ClusterNodeTest.tcpTransport(ClusterNodeTest.LOOPBACK_PEER, ClusterNodeTest.SECRET);
+		final ClusterNode secondNode = new ClusterNode(second, sink);
+		secondNode.start();
+		final ClusterNode firstNode = new ClusterNode(ClusterNodeTest.tcpTransport(second.getLocalAddress(), ClusterNodeTest.SECRET), new ListSink());
+		firstNode.start();
+		try
+		{
+			for (int i = 0; i < 1000; i++)
+			{
+				firstNode.forward(new LogMessage(Level.INFO, "tcp " + i, "user", null, i), "user", null);
+			}
+			sink.await(1000);
+			Assert.assertEquals(1000, sink.records.size());
+			Assert.assertEquals("tcp 999", sink.records.get(999).getMessage());
+			Assert.assertEquals(999, sink.records.get(999).getMillis());
+		}
+		finally
+		{
+			firstNode.close();
+			secondNode.close();
+		}
+	}
+
+	@Test
+	public void testTcpWrongSecretRejected() throws Exception
+	{
+		final ListSink sink = new ListSink();
+		final TcpClusterTransport second = ClusterNodeTest.tcpTransport(ClusterNodeTest.LOOPBACK_PEER, ClusterNodeTest.SECRET);
+		final ClusterNode secondNode = new ClusterNode(second, sink);
+		secondNode.start();
+		final byte[] otherSecret = ClusterNodeTest.SECRET.clone();
+		otherSecret[0]++;
+		final ClusterNode firstNode = new ClusterNode(ClusterNodeTest.tcpTransport(second.getLocalAddress(), otherSecret), new ListSink());
+		firstNode.start();
+		try
+		{
+			firstNode.forward(new LogMessage(Level.INFO, "forged", "user", null, 0), "user", null);
+			ClusterNodeTest.await(second, false);
+			Assert.assertEquals(1, second.getRejectedFrames());
+			Assert.assertEquals(0, sink.records.size());
+		}
+		finally
+		{
+			firstNode.close();
+			secondNode.close();
+		}
+	}
+
+	@Test
+	public void testTcpUnknownHostRejected() throws Exception
+	{
+		final ListSink sink = new ListSink();
+		// only accepts connections from 127.0.0.2, and this test connects from 127.0.0.1
+		final TcpClusterTransport second = ClusterNodeTest.tcpTransport(
+				new InetSocketAddress(InetAddress.getByName("127.0.0.2"), 1), ClusterNodeTest.SECRET);
+		final ClusterNode secondNode = new ClusterNode(second, sink);
+		secondNode.start();
+		final ClusterNode firstNode = new ClusterNode(ClusterNodeTest.tcpTransport(second.getLocalAddress(), ClusterNodeTest.SECRET), new ListSink());
+		firstNode.start();
+		try
+		{
+			firstNode.forward(new LogMessage(Level.INFO, "stranger", "user", null, 0), "user", null);
+			ClusterNodeTest.await(second, true);
+			Assert.assertTrue(second.getRejectedConnections() > 0);
+			Assert.assertEquals(0, sink.records.size());
+		}
+		finally
+		{
+			firstNode.close();
+			secondNode.close();
+		}
+	}
+
+	@Test
+	public void testTcpSlowReceiverDoesNotBlockConnections() throws Exception
+	{
+		final CountDownLatch receiving = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final TcpClusterTransport second = ClusterNodeTest.tcpTransport(ClusterNodeTest.LOOPBACK_PEER, ClusterNodeTest.SECRET);
+		second.start(new ClusterTransport.Receiver()
+		{
+			@Override
+			public void receive(final byte[] frame, final int offset, final int length)
+			{
+				receiving.countDown();
+				try
+				{
+					release.await();
+				}
+				catch (final InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		final ClusterNode firstNode = new ClusterNode(ClusterNodeTest.tcpTransport(second.getLocalAddress(), ClusterNodeTest.SECRET), new ListSink());
+		final byte[] otherSecret = ClusterNodeTest.SECRET.clone();
+		otherSecret[0]++;
+		final ClusterNode forgerNode = new ClusterNode(ClusterNodeTest.tcpTransport(second.getLocalAddress(), otherSecret), new ListSink());
+		try
+		{
+			firstNode.start();
+			firstNode.forward(new LogMessage(Level.INFO, "slow", "user", null, 0), "user", null);
+			Assert.assertTrue(receiving.await(ClusterNodeTest.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+			// the receiver is stuck on the first frame, and frames from other connections are still read
+			forgerNode.start();
+			forgerNode.forward(new LogMessage(Level.INFO, "forged", "user", null, 0), "user", null);
+			ClusterNodeTest.await(second, false);
+			Assert.assertEquals(1, second.getRejectedFrames());
+		}
+		finally
+		{
+			release.countDown();
+			forgerNode.close();
+			firstNode.close();
+			second.close();
+		}
+	}
+
+	@Test
+	public void testTcpUnreachablePeerDropsFrames() throws Exception
+	{
+		// nothing listens on port 1, so every frame stays queued for the peer
+		final TcpClusterTransport transport = ClusterNodeTest.tcpTransport(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 1), ClusterNodeTest.SECRET);
+		transport.start(new ClusterTransport.Receiver()
+		{
+			@Override
+			public void receive(final byte[] frame, final int offset, final int length)
+			{
+			}
+		});
+		try
+		{
+			final byte[] frame = new byte[1024 * 1024];
+			// each frame is queued with its length and HMAC
+			final int queued = TcpClusterTransport.MAX_QUEUED_BYTES / (frame.length + 4 + 32);
+			for (int i = 0; i < queued + 2; i++)
+			{
+				transport.send(frame, 0, frame.length);
+			}
+			Assert.assertEquals(2, transport.getDroppedFrames());
+		}
+		finally
+		{
+			transport.close();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testShortSecret()
+	{
+		new TcpClusterTransport(ClusterNodeTest.LOOPBACK_PEER, Collections.<InetSocketAddress>emptyList(), new byte[16]);
+	}
+
+	/**
+	 * @param peer the only peer, whose host connections are accepted from
+	 * @param secret the shared secret
+	 * @return a transport listening on an ephemeral loopback port
+	 */
+	private static TcpClusterTransport tcpTransport(final InetSocketAddress peer, final byte[] secret)
+	{
+		return new TcpClusterTransport(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+				Collections.singletonList(peer), secret);
+	}
+
+	private static void await(final TcpClusterTransport transport, final boolean connection) throws InterruptedException
+	{
+		final long deadline = System.currentTimeMillis() + ClusterNodeTest.TIMEOUT_MILLIS;
+		while (0 == (connection ? transport.getRejectedConnections() : transport.getRejectedFrames())
+				&& System.currentTimeMillis() < deadline)
+		{
+			Thread.sleep(10);
+		}
+	}
+
+	private static class ListSink implements ClusterNode.Sink
+	{
+		private final List<LogRecord> records = Collections.synchronizedList(new ArrayList<LogRecord>());
+		private final List<String> usernames = Collections.synchronizedList(new ArrayList<String>());
+		private final List<String> sessionIds = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public synchronized void deliver(final LogRecord logRecord, final String username, final String httpSessionId)
+		{
+			this.records.add(logRecord);
+			this.usernames.add(username);
+			this.sessionIds.add(httpSessionId);
+			this.notifyAll();
+		}
+
+		private synchronized void await(final int count) throws InterruptedException
+		{
+			final long deadline = System.currentTimeMillis() + ClusterNodeTest.TIMEOUT_MILLIS;
+			while (this.records.size() < count && System.currentTimeMillis() < deadline)
+			{
+				this.wait(100);
+			}
+		}
+	}
+
+	private static class CapturingTransport implements ClusterTransport
+	{
+		private byte[] frame;
+
+		@Override
+		public void start(final Receiver receiver)
+		{
+		}
+
+		@Override
+		public synchronized void send(final byte[] frame, final int offset, final int length)
+		{
+			this.frame = Arrays.copyOfRange(frame, offset, offset + length);
+			this.notifyAll();
+		}
+
+		@Override
+		public void close()
+		{
+		}
+
+		private synchronized byte[] await() throws InterruptedException
+		{
+			final long deadline = System.currentTimeMillis() + ClusterNodeTest.TIMEOUT_MILLIS;
+			while (null == this.frame && System.currentTimeMillis() < deadline)
+			{
+				this.wait(100);
+			}
+			Assert.assertNotNull(this.frame);
+			return this.frame;
+		}
+	}
+}
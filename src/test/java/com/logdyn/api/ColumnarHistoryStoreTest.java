@@ -0,0 +1,124 @@
+package com.logdyn.api;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class ColumnarHistoryStoreTest
+{
+	@Test
+	public void testOrderAndRoundTrip()
+	{
+		final ColumnarHistoryStore store = new ColumnarHistoryStore(RetentionPolicy.UNBOUNDED);
+		final LogMessage late = new LogMessage(JsLevel.WARN, "late é", "user", "session", 200);
+		final LogMessage early = new LogMessage(Level.INFO, "early", null, "session", 100);
+		early.setLoggerName("com.example");
+		Assert.assertTrue(store.add(late));
+		Assert.assertTrue(store.add(early));
+		Assert.assertFalse(store.add(early));
+		Assert.assertEquals(2, store.size());
+
+		final Iterator<LogRecord> iterator = store.iterator();
+		final LogRecord first = iterator.next();
+		Assert.assertEquals(early, first);
+		Assert.assertEquals(early.getSequenceNumber(), first.getSequenceNumber());
+		Assert.assertEquals("com.example", first.getLoggerName());
+		Assert.assertEquals(late, iterator.next());
+		Assert.assertFalse(iterator.hasNext());
+		Assert.assertEquals(late, store.descendingIterator().next());
+		Assert.assertEquals(late, store.iterator(150).next());
+	}
+
+	@Test
+	public void testNullMessage()
+	{
+		for (final MessageArena arena : new MessageArena[] {MessageArena.heap(), MessageArena.direct(4096, 1024)})
+		{
+			final ColumnarHistoryStore store = new ColumnarHistoryStore(RetentionPolicy.UNBOUNDED, arena);
+			final LogRecord logRecord = new LogRecord(Level.INFO, null);
+			Assert.assertTrue(store.add(logRecord));
+			store.add(new LogMessage(Level.INFO, "after", "user", null, logRecord.getMillis() + 1));
+			final Iterator<LogRecord> iterator = store.iterator();
+			Assert.assertNull(iterator.next().getMessage());
+			Assert.assertEquals("after", iterator.next().getMessage());
+			Assert.assertNull(store.query(HistoryQuery.ALL).next().getMessage());
+			Assert.assertEquals("after", store.descendingIterator().next().getMessage());
+		}
+	}
+
+	@Test
+	public void testRetention()
+	{
+		final ColumnarHistoryStore store = new ColumnarHistoryStore(new RetentionPolicy(100, Long.MAX_VALUE, Long.MAX_VALUE));
+		for (int i = 0; i < 100_000; i++)
+		{
+			store.add(new LogMessage(Level.INFO, "message " + i, "user" + (i % 7), "session", i));
+		}
+		Assert.assertEquals(100, store.size());
+		Assert.assertEquals(99_900, store.getEvictedCount());
+		final Iterator<LogRecord> iterator = store.iterator();
+		for (int i = 99_900; i < 100_000; i++)
+		{
+			final LogRecord logRecord = iterator.next();
+			Assert.assertEquals(i, logRecord.getMillis());
+			Assert.assertEquals("message " + i, logRecord.getMessage());
+			Assert.assertEquals("user" + (i % 7), ((LogMessage) logRecord).getUsername());
+		}
+		Assert.assertFalse(iterator.hasNext());
+	}
+
+	@Test
+	public void testOffHeapArenaFull()
+	{
+		final ColumnarHistoryStore store = new ColumnarHistoryStore(RetentionPolicy.UNBOUNDED, MessageArena.direct(4096, 1024));
+		for (int i = 0; i < 1000; i++)
+		{
+			store.add(new LogMessage(Level.INFO, "off heap message " + i, "user", "session", i));
+		}
+		Assert.assertTrue(store.size() < 1000);
+		Assert.assertEquals(1000, store.size() + store.getEvictedCount());
+		Assert.assertEquals(4096, store.getArenaBytes());
+		Assert.assertEquals("off heap message 999", store.descendingIterator().next().getMessage());
+
+		final StringBuilder longMessage = new StringBuilder();
+		while (longMessage.length() < 2000)
+		{
+			longMessage.append("long message ");
+		}
+		store.add(new LogMessage(Level.INFO, longMessage.toString(), "user", "session", 1000));
+		Assert.assertEquals(longMessage.substring(0, 1024), store.descendingIterator().next().getMessage());
+		store.close();
+		Assert.assertTrue(store.isEmpty());
+	}
+
+	@Test
+	public void testTruncateOnCharacterBoundary()
+	{
+		final ColumnarHistoryStore store = new ColumnarHistoryStore(RetentionPolicy.UNBOUNDED, MessageArena.direct(4096, 1024));
+		final StringBuilder message = new StringBuilder("ab");
+		while (message.length() < 1000)
+		{
+			// three bytes each in UTF-8, so byte 1024 falls inside one
+			message.append('\u20AC');
+		}
+		store.add(new LogMessage(Level.INFO, message.toString(), "user", "session", 0));
+		Assert.assertEquals(message.substring(0, 342), store.iterator().next().getMessage());
+		store.close();
+	}
+
+	@Test
+	public void testArenaReusedAfterClear()
+	{
+		final MessageArena arena = MessageArena.direct(32, 16);
+		arena.store(new byte[10]);
+		arena.clear();
+		final long first = arena.store(new byte[10]);
+		arena.store(new byte[10]);
+		arena.release(first);
+		// only possible if the first slab was freed, as both slabs are allocated
+		Assert.assertTrue(MessageArena.FULL != arena.store(new byte[10]));
+	}
+}
@@ -0,0 +1,239 @@
+package com.logdyn.api;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.zip.CRC32;
+
+public class FileHistoryStoreTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testRecovery() throws Exception
+	{
+		final Path directory = this.folder.getRoot().toPath();
+		final FileHistoryStore store = new FileHistoryStore(directory, 1024, RetentionPolicy.UNBOUNDED);
+		for (int i = 0; i < 100; i++)
+		{
+			store.add(new LogMessage(JsLevel.ERROR, "message " + i, "user", null, i));
+		}
+		store.close();
+
+		// a torn write at the end of the last segment
+		final File[] segments = directory.toFile().listFiles();
+		Assert.assertTrue(segments.length > 1);
+		Arrays.sort(segments);
+		try (RandomAccessFile file = new RandomAccessFile(segments[segments.length - 1], "rw"))
+		{
+			file.seek(file.length());
+			file.writeInt(100);
+			file.writeInt(0);
+		}
+
+		final FileHistoryStore recovered = new FileHistoryStore(directory, 1024, RetentionPolicy.UNBOUNDED);
+		Assert.assertEquals(100, recovered.size());
+		recovered.add(new LogMessage(Level.INFO, "after restart", null, "session", 100));
+		final List<LogRecord> logRecords = FileHistoryStoreTest.toList(recovered.iterator());
+		Assert.assertEquals(101, logRecords.size());
+		Assert.assertEquals(new LogMessage(JsLevel.ERROR, "message 0", "user", null, 0), logRecords.get(0));
+		Assert.assertEquals(new LogMessage(Level.INFO, "after restart", null, "session", 100), logRecords.get(100));
+		Assert.assertEquals(100, recovered.descendingIterator().next().getMillis());
+		Assert.assertEquals(90, recovered.iterator(90).next().getMillis());
+		recovered.close();
+	}
+
+	@Test
+	public void testRetention()
+	{
+		final FileHistoryStore store = new FileHistoryStore(this.folder.getRoot().toPath(), 1024,
+				new RetentionPolicy(50, Long.MAX_VALUE, Long.MAX_VALUE));
+		for (int i = 0; i < 1000; i++)
+		{
+			store.add(new LogMessage(Level.INFO, "message " + i, "user", "session", i));
+		}
+		Assert.assertTrue(store.size() <= 50);
+		Assert.assertTrue(store.size() >= 50 - 50 / 8);
+		Assert.assertEquals(1000, store.size() + store.getEvictedCount());
+		final List<LogRecord> logRecords = FileHistoryStoreTest.toList(store.iterator());
+		Assert.assertEquals(store.size(), logRecords.size());
+		Assert.assertEquals(999, logRecords.get(logRecords.size() - 1).getMillis());
+		store.close();
+	}
+
+	@Test
+	public void testRetentionSplitsSegments()
+	{
+		// segments far larger than the policy are split by it, so eviction never removes most of the history
+		final FileHistoryStore store = new FileHistoryStore(this.folder.getRoot().toPath(), FileHistoryStore.DEFAULT_SEGMENT_BYTES,
+				new RetentionPolicy(100, Long.MAX_VALUE, Long.MAX_VALUE));
+		for (int i = 0; i < 1000; i++)
+		{
+			store.add(new LogMessage(Level.INFO, "message " + i, "user", "session", i));
+			if (i >= 100)
+			{
+				Assert.assertTrue(store.size() <= 100);
+				Assert.assertTrue(store.size() >= 100 - 100 / 8);
+			}
+		}
+		store.close();
+	}
+
+	@Test
+	public void testAgedOutNotRead() throws InterruptedException
+	{
+		final FileHistoryStore store = new FileHistoryStore(this.folder.getRoot().toPath(), 1024,
+				new RetentionPolicy(100, Long.MAX_VALUE, 1_000));
+		final long now = System.currentTimeMillis();
+		store.add(new LogMessage(Level.INFO, "aging", "user", null, now - 900));
+		store.add(new LogMessage(Level.INFO, "fresh", "user", null, now));
+		Thread.sleep(200);
+		// both are still in the active segment
+		Assert.assertEquals(Collections.singletonList(new LogMessage(Level.INFO, "fresh", "user", null, now)),
+				FileHistoryStoreTest.toList(store.iterator()));
+		Assert.assertEquals("fresh", store.descendingIterator().next().getMessage());
+		Assert.assertEquals(1, FileHistoryStoreTest.toList(store.query(HistoryQuery.ALL)).size());
+		store.close();
+	}
+
+	@Test
+	public void testOutOfOrder()
+	{
+		final Path directory = this.folder.getRoot().toPath();
+		final FileHistoryStore store = new FileHistoryStore(directory, 1024, RetentionPolicy.UNBOUNDED);
+		final List<LogRecord> added = new ArrayList<>();
+		for (int i = 0; i < 200; i++)
+		{
+			// every fifth record arrives late, some of them after their segment was closed
+			final LogRecord logRecord = new LogMessage(Level.INFO, "message " + i, "user", "session", i % 5 == 0 ? i - 40 : i);
+			added.add(logRecord);
+			Assert.assertTrue(store.add(logRecord));
+		}
+		Assert.assertFalse(store.add(added.get(100)));
+		Assert.assertFalse(store.add(added.get(199)));
+		Assert.assertEquals(200, store.size());
+
+		final List<LogRecord> sorted = new ArrayList<>(added);
+		Collections.sort(sorted, LogRecordComparator.BY_SEQUENCE);
+		Assert.assertEquals(sorted, FileHistoryStoreTest.toList(store.iterator()));
+		final List<LogRecord> descending = FileHistoryStoreTest.toList(store.descendingIterator());
+		Collections.reverse(descending);
+		Assert.assertEquals(sorted, descending);
+		Assert.assertEquals(sorted.subList(sorted.indexOf(added.get(101)), sorted.size()),
+				FileHistoryStoreTest.toList(store.iterator(101)));
+		store.close();
+
+		final FileHistoryStore recovered = new FileHistoryStore(directory, 1024, RetentionPolicy.UNBOUNDED);
+		final List<LogRecord> recoveredRecords = FileHistoryStoreTest.toList(recovered.iterator());
+		Assert.assertEquals(sorted, recoveredRecords);
+		Assert.assertFalse(recovered.add(recoveredRecords.get(50)));
+		recovered.close();
+	}
+
+	@Test
+	public void testRecoveredRenumbered()
+	{
+		final Path directory = this.folder.getRoot().toPath();
+		final FileHistoryStore store = new FileHistoryStore(directory, 1024, RetentionPolicy.UNBOUNDED);
+		final LogRecord previous = new LogMessage(Level.INFO, "previous run", "user", null, 10);
+		store.add(previous);
+		store.add(new LogMessage(Level.INFO, "newest", "user", null, 20));
+		store.close();
+
+		final FileHistoryStore recovered = new FileHistoryStore(directory, 1024, RetentionPolicy.UNBOUNDED);
+		final LogRecord read = recovered.iterator().next();
+		Assert.assertTrue(read.getSequenceNumber() < 0);
+		Assert.assertEquals(read.getSequenceNumber(), recovered.iterator().next().getSequenceNumber());
+		// a record of this run may be given the sequence number a recovered record had in the previous run
+		final LogRecord clash = new LogMessage(Level.INFO, "this run", "user", null, 10);
+		clash.setSequenceNumber(previous.getSequenceNumber());
+		Assert.assertTrue(recovered.add(clash));
+		Assert.assertFalse(recovered.add(clash));
+		Assert.assertFalse(recovered.add(read));
+		final List<LogRecord> logRecords = FileHistoryStoreTest.toList(recovered.iterator());
+		Assert.assertEquals(3, logRecords.size());
+		Assert.assertEquals("previous run", logRecords.get(0).getMessage());
+		Assert.assertEquals("this run", logRecords.get(1).getMessage());
+		recovered.close();
+	}
+
+	@Test
+	public void testLoggerName()
+	{
+		final Path directory = this.folder.getRoot().toPath();
+		final FileHistoryStore store = new FileHistoryStore(directory, 1024, RetentionPolicy.UNBOUNDED);
+		final LogRecord named = new LogMessage(Level.INFO, "named", "user", null, 0);
+		named.setLoggerName("com.acme");
+		store.add(named);
+		store.add(new LogMessage(Level.INFO, "unnamed", "user", null, 1));
+		Assert.assertEquals("com.acme", store.iterator().next().getLoggerName());
+		store.close();
+
+		final FileHistoryStore recovered = new FileHistoryStore(directory, 1024, RetentionPolicy.UNBOUNDED);
+		final List<LogRecord> logRecords = FileHistoryStoreTest.toList(recovered.iterator());
+		Assert.assertEquals("com.acme", logRecords.get(0).getLoggerName());
+		Assert.assertNull(logRecords.get(1).getLoggerName());
+		recovered.close();
+	}
+
+	@Test
+	public void testVersion1Segment() throws Exception
+	{
+		final Path directory = this.folder.getRoot().toPath();
+		// a segment written before segments had a header, and records had a logger name
+		final RecordCodec body = new RecordCodec();
+		body.writeVarLong(5).writeVarLong(7).writeVarLong(RecordCodec.zigzag(Level.INFO.intValue()))
+				.writeString("INFO").writeString("user").writeString(null).writeString("old");
+		final CRC32 crc = new CRC32();
+		crc.update(body.array(), 0, body.length());
+		try (RandomAccessFile file = new RandomAccessFile(directory.resolve(String.format("%020d.log", 0)).toFile(), "rw"))
+		{
+			file.writeInt(body.length());
+			file.writeInt((int) crc.getValue());
+			file.write(body.array(), 0, body.length());
+		}
+
+		final FileHistoryStore store = new FileHistoryStore(directory, 1024, RetentionPolicy.UNBOUNDED);
+		Assert.assertEquals(1, store.size());
+		store.add(new LogMessage(Level.INFO, "new", "user", null, 6));
+		final List<LogRecord> logRecords = FileHistoryStoreTest.toList(store.iterator());
+		Assert.assertEquals(new LogMessage(Level.INFO, "old", "user", null, 5), logRecords.get(0));
+		Assert.assertEquals(new LogMessage(Level.INFO, "new", "user", null, 6), logRecords.get(1));
+		// the new record went to a segment of the current version
+		Assert.assertEquals(2, directory.toFile().listFiles().length);
+		store.close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testAddAfterClose()
+	{
+		final FileHistoryStore store = new FileHistoryStore(this.folder.getRoot().toPath(), 1024, RetentionPolicy.UNBOUNDED);
+		store.add(new LogMessage(Level.INFO, "before", "user", null, 0));
+		store.close();
+		// must not reopen the segment, which another store of the same name may now be appending to
+		store.add(new LogMessage(Level.INFO, "after", "user", null, 1));
+	}
+
+	private static List<LogRecord> toList(final Iterator<LogRecord> iterator)
+	{
+		final List<LogRecord> result = new ArrayList<>();
+		while (iterator.hasNext())
+		{
+			result.add(iterator.next());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,124 @@
+package com.logdyn.api;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class HistoryQueryTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testMemoryQuery()
+	{
+		HistoryQueryTest.assertQueries(new MemoryHistoryStore(RetentionPolicy.UNBOUNDED));
+	}
+
+	@Test
+	public void testColumnarQuery()
+	{
+		HistoryQueryTest.assertQueries(new ColumnarHistoryStore(RetentionPolicy.UNBOUNDED));
+	}
+
+	@Test
+	public void testFileQuery()
+	{
+		final HistoryStore store = new FileHistoryStore(this.folder.getRoot().toPath(), 4096, RetentionPolicy.UNBOUNDED);
+		HistoryQueryTest.assertQueries(store);
+		store.close();
+	}
+
+	@Test
+	public void testMemoryAgedOutOnRead() throws InterruptedException
+	{
+		final MemoryHistoryStore store = new MemoryHistoryStore(new RetentionPolicy(100, Long.MAX_VALUE, 1_000));
+		store.add(new LogMessage(Level.INFO, "aging", "user", null, System.currentTimeMillis() - 900));
+		Assert.assertTrue(store.iterator().hasNext());
+		Thread.sleep(200);
+		Assert.assertFalse(store.iterator().hasNext());
+		Assert.assertFalse(store.query(HistoryQuery.ALL).hasNext());
+		Assert.assertEquals(0, store.size());
+		Assert.assertEquals(1, store.getEvictedCount());
+	}
+
+	@Test
+	public void testMemoryLevelIndexUnderEviction() throws InterruptedException
+	{
+		final MemoryHistoryStore store = new MemoryHistoryStore(new RetentionPolicy(100, Long.MAX_VALUE, Long.MAX_VALUE));
+		final Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++)
+		{
+			threads[t] = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (int i = 0; i < 20_000; i++)
+					{
+						store.add(new LogRecord(Level.INFO, "message " + i));
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (final Thread thread : threads)
+		{
+			thread.join();
+		}
+		// a query for a minimum level reads the level index, which must hold exactly the records kept
+		int indexed = 0;
+		final Iterator<LogRecord> iterator = store.query(HistoryQuery.ALL.minLevel(Level.FINE));
+		while (iterator.hasNext())
+		{
+			iterator.next();
+			indexed++;
+		}
+		Assert.assertEquals(store.size(), indexed);
+	}
+
+	private static void assertQueries(final HistoryStore store)
+	{
+		final Level[] levels = {Level.FINE, Level.INFO, JsLevel.WARN, Level.WARNING, JsLevel.ERROR, Level.SEVERE};
+		for (int i = 0; i < 1200; i++)
+		{
+			store.add(new LogMessage(levels[i % levels.length], "message " + i, i % 2 == 0 ? "even" : "odd", "session", i));
+		}
+		Assert.assertEquals(1200, HistoryQueryTest.count(store.query(HistoryQuery.ALL)));
+		Assert.assertEquals(100, HistoryQueryTest.count(store.query(HistoryQuery.ALL.from(100).to(200))));
+		Assert.assertEquals(600, HistoryQueryTest.count(store.query(HistoryQuery.ALL.minLevel(Level.WARNING))));
+		Assert.assertEquals(400, HistoryQueryTest.count(store.query(HistoryQuery.ALL.minLevel(JsLevel.ERROR))));
+		Assert.assertEquals(600, HistoryQueryTest.count(store.query(HistoryQuery.ALL.username("odd"))));
+		Assert.assertEquals(0, HistoryQueryTest.count(store.query(HistoryQuery.ALL.sessionId("other"))));
+		Assert.assertEquals(5, HistoryQueryTest.count(store.query(HistoryQuery.ALL.minLevel(Level.SEVERE).limit(5))));
+
+		final Iterator<LogRecord> warnings = store.query(HistoryQuery.ALL.from(600).minLevel(JsLevel.WARN));
+		long previous = Long.MIN_VALUE;
+		int count = 0;
+		while (warnings.hasNext())
+		{
+			final LogRecord logRecord = warnings.next();
+			Assert.assertTrue(logRecord.getMillis() > previous);
+			Assert.assertTrue(logRecord.getLevel().intValue() >= JsLevel.WARN.intValue());
+			previous = logRecord.getMillis();
+			count++;
+		}
+		Assert.assertEquals(400, count);
+	}
+
+	private static int count(final Iterator<LogRecord> iterator)
+	{
+		int result = 0;
+		while (iterator.hasNext())
+		{
+			iterator.next();
+			result++;
+		}
+		return result;
+	}
+}
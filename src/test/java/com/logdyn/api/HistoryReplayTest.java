@@ -0,0 +1,112 @@
+package com.logdyn.api;
+
+import org.json.JSONArray;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class HistoryReplayTest
+{
+	@Test
+	public void testCompressedJSON() throws DataFormatException
+	{
+		final List<LogRecord> history = HistoryReplayTest.history(HistoryReplay.MAX_CHUNK_RECORDS + 10);
+		final HistoryReplay replay = new HistoryReplay(history.iterator(), true);
+		Assert.assertTrue(replay.isCompressed());
+
+		final ByteBuffer first = replay.nextCompressedFrame(null);
+		// the low 4 bits of a zlib header, which tell it apart from a binary frame
+		Assert.assertEquals(8, first.get(first.position()) & 0x0F);
+		final byte[] inflated = HistoryReplayTest.inflate(first);
+		Assert.assertTrue(inflated.length > first.remaining() * 5);
+		final JSONArray chunk = new JSONArray(new String(inflated, StandardCharsets.UTF_8));
+		Assert.assertEquals("Processed order 0", chunk.getJSONObject(0).getString("message"));
+
+		// chunks are bounded in length as well as records
+		int records = chunk.length();
+		int frames = 1;
+		ByteBuffer frame;
+		while (null != (frame = replay.nextCompressedFrame(null)))
+		{
+			records += new JSONArray(new String(HistoryReplayTest.inflate(frame), StandardCharsets.UTF_8)).length();
+			frames++;
+		}
+		Assert.assertEquals(history.size(), records);
+		Assert.assertTrue(frames > 1);
+		Assert.assertNull(replay.nextCompressedFrame(null));
+	}
+
+	@Test
+	public void testCompressedBinary() throws DataFormatException
+	{
+		final HistoryReplay replay = new HistoryReplay(HistoryReplayTest.history(100).iterator(), true);
+		final List<LogMessage> decoded = BinaryFrameCodec.decode(
+				ByteBuffer.wrap(HistoryReplayTest.inflate(replay.nextCompressedFrame(new BinaryFrameCodec()))));
+		Assert.assertEquals(100, decoded.size());
+		Assert.assertEquals("Processed order 99", decoded.get(99).getMessage());
+		Assert.assertEquals(Level.INFO, decoded.get(99).getLevel());
+		Assert.assertNull(replay.nextCompressedFrame(new BinaryFrameCodec()));
+	}
+
+	@Test
+	public void testUncompressedByDefault()
+	{
+		final HistoryReplay replay = new HistoryReplay(HistoryReplayTest.history(10).iterator());
+		Assert.assertFalse(replay.isCompressed());
+		Assert.assertEquals(10, new JSONArray(replay.nextFrame()).length());
+		Assert.assertNull(replay.nextFrame());
+	}
+
+	@Test
+	public void testCompressParameter()
+	{
+		final Map<String, List<String>> parameters = new HashMap<>();
+		parameters.put(ReplayRequest.LAST_PARAMETER, Collections.singletonList("100"));
+		Assert.assertFalse(ReplayRequest.fromParameters(parameters).isCompressed());
+		parameters.put(ReplayRequest.COMPRESS_PARAMETER, Arrays.asList("gzip", "deflate"));
+		final ReplayRequest request = ReplayRequest.fromParameters(parameters);
+		Assert.assertTrue(request.isCompressed());
+		Assert.assertEquals(100, request.getLast());
+		Assert.assertFalse(ReplayRequest.ALL.isCompressed());
+	}
+
+	private static List<LogRecord> history(final int count)
+	{
+		final List<LogRecord> result = new ArrayList<>(count);
+		for (int i = 0; i < count; i++)
+		{
+			result.add(new LogMessage(Level.INFO, "Processed order " + i, "admin", "A1B2C3D4", 1497052800000L + i));
+		}
+		return result;
+	}
+
+	private static byte[] inflate(final ByteBuffer frame) throws DataFormatException
+	{
+		final Inflater inflater = new Inflater();
+		inflater.setInput(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+		byte[] result = new byte[frame.remaining() * 4];
+		int length = 0;
+		while (!inflater.finished())
+		{
+			if (length == result.length)
+			{
+				result = Arrays.copyOf(result, result.length * 2);
+			}
+			length += inflater.inflate(result, length, result.length - length);
+		}
+		inflater.end();
+		return Arrays.copyOf(result, length);
+	}
+}
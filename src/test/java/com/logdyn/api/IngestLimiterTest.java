@@ -0,0 +1,121 @@
+package com.logdyn.api;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class IngestLimiterTest
+{
+	@Test
+	public void testBurstAndRefill()
+	{
+		final RateLimiter limiter = new RateLimiter(10, 3);
+		final long now = System.nanoTime();
+		Assert.assertTrue(limiter.tryAcquire(now));
+		Assert.assertTrue(limiter.tryAcquire(now));
+		Assert.assertTrue(limiter.tryAcquire(now));
+		Assert.assertFalse(limiter.tryAcquire(now));
+		Assert.assertFalse(limiter.isFull(now));
+		// one token every 100ms
+		Assert.assertTrue(limiter.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(100)));
+		Assert.assertFalse(limiter.tryAcquire(now + TimeUnit.MILLISECONDS.toNanos(100)));
+		Assert.assertTrue(limiter.isFull(now + TimeUnit.SECONDS.toNanos(1)));
+	}
+
+	@Test
+	public void testUserLimitShared()
+	{
+		final LoggingEndpointConfig config = new LoggingEndpointConfig(null);
+		config.setIngestLimits(0, 0, 0.001, 3);
+		final IngestLimiter first = config.createIngestLimiter("user", null);
+		final IngestLimiter second = config.createIngestLimiter("user", "http");
+		final IngestLimiter other = config.createIngestLimiter(null, "http");
+
+		final List<LogRecord> records = IngestLimiterTest.records(2);
+		first.admit(records);
+		Assert.assertEquals(2, records.size());
+		final List<LogRecord> more = IngestLimiterTest.records(2);
+		second.admit(more);
+		Assert.assertEquals(1, more.size());
+		Assert.assertEquals("0", more.get(0).getMessage());
+		Assert.assertEquals(1, second.getSuppressedRecords());
+		Assert.assertEquals(1, second.takeUnreported());
+		Assert.assertEquals(0, second.takeUnreported());
+
+		final List<LogRecord> unrelated = IngestLimiterTest.records(3);
+		other.admit(unrelated);
+		Assert.assertEquals(3, unrelated.size());
+	}
+
+	@Test
+	public void testConnectionLimit()
+	{
+		final LoggingEndpointConfig config = new LoggingEndpointConfig(null);
+		config.setIngestLimits(0.001, 2, 0, 0);
+		final IngestLimiter limiter = config.createIngestLimiter("user", null);
+		final List<LogRecord> records = IngestLimiterTest.records(5);
+		limiter.admit(records);
+		Assert.assertEquals(2, records.size());
+		Assert.assertEquals(2, limiter.getAcceptedRecords());
+		Assert.assertEquals(3, limiter.getSuppressedRecords());
+		// a new connection of the same user has its own bucket
+		final List<LogRecord> others = IngestLimiterTest.records(2);
+		config.createIngestLimiter("user", null).admit(others);
+		Assert.assertEquals(2, others.size());
+	}
+
+	@Test
+	public void testRefusedByUserKeepsConnectionToken()
+	{
+		final LoggingEndpointConfig config = new LoggingEndpointConfig(null);
+		config.setIngestLimits(0.001, 1, 0.001, 1);
+		final IngestLimiter first = config.createIngestLimiter("user", null);
+		final IngestLimiter second = config.createIngestLimiter("user", null);
+		final List<LogRecord> records = IngestLimiterTest.records(1);
+		first.admit(records);
+		Assert.assertEquals(1, records.size());
+		final List<LogRecord> refused = IngestLimiterTest.records(1);
+		second.admit(refused);
+		Assert.assertTrue(refused.isEmpty());
+
+		// new user limiters, so only the connection limiter can refuse
+		config.setIngestLimits(0.001, 1, 0.001, 1);
+		final List<LogRecord> retried = IngestLimiterTest.records(1);
+		second.admit(retried);
+		Assert.assertEquals(1, retried.size());
+	}
+
+	@Test
+	public void testInvalidFramesLimited()
+	{
+		final LoggingEndpointConfig config = new LoggingEndpointConfig(null);
+		config.setIngestLimits(0.001, 2, 0, 0);
+		final IngestLimiter limiter = config.createIngestLimiter("user", null);
+		Assert.assertTrue(limiter.admitInvalid());
+		for (int i = 0; i < 10; i++)
+		{
+			limiter.admitInvalid();
+		}
+		Assert.assertEquals(9, limiter.takeUnreportedInvalid());
+		Assert.assertEquals(0, limiter.takeUnreportedInvalid());
+		// the frames used the tokens records would have
+		final List<LogRecord> records = IngestLimiterTest.records(1);
+		limiter.admit(records);
+		Assert.assertTrue(records.isEmpty());
+	}
+
+	private static List<LogRecord> records(final int count)
+	{
+		final List<LogRecord> result = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+		{
+			result.add(new LogRecord(Level.INFO, String.valueOf(i)));
+		}
+		return result;
+	}
+}
@@ -25,5 +25,37 @@ public class LogMessageTest
 		Assert.assertEquals(msg1.hashCode(), msg2.hashCode());
 	}
 
-	//TODO test compareTo method
+	@Test
+	public void testCompareTo()
+	{
+		final LogMessage earlier = new LogMessage(Level.CONFIG,"TestMessage",null, 0);
+		final LogMessage later = new LogMessage(Level.CONFIG,"TestMessage",null, 1);
+		final LogMessage same = new LogMessage(Level.CONFIG,"TestMessage",null, 0);
+		Assert.assertTrue(earlier.compareTo(later) < 0);
+		Assert.assertTrue(later.compareTo(earlier) > 0);
+		Assert.assertEquals(0, earlier.compareTo(same));
+	}
+
+	@Test
+	public void testSequenceOrdering()
+	{
+		final LogMessage first = new LogMessage(Level.CONFIG,"TestMessage",null, 0);
+		final LogMessage second = new LogMessage(Level.CONFIG,"TestMessage",null, 0);
+		final LogMessage later = new LogMessage(Level.SEVERE,"AnotherMessage",null, 1);
+		// timestamp ordering is kept, ties are broken by creation order rather than content
+		Assert.assertTrue(LogRecordComparator.BY_SEQUENCE.compare(first, second) < 0);
+		Assert.assertTrue(LogRecordComparator.BY_SEQUENCE.compare(second, later) < 0);
+		Assert.assertEquals(0, LogRecordComparator.BY_SEQUENCE.compare(first, first));
+	}
+
+	@Test
+	public void testPooledIdentity()
+	{
+		final LogMessage first = new LogMessage(Level.INFO, "TestMessage", new String("user"), new String("session"), 0);
+		final LogMessage second = new LogMessage(Level.INFO, "TestMessage", new String("user"), new String("session"), 0);
+		Assert.assertSame(first.getUsername(), second.getUsername());
+		Assert.assertSame(first.getSessionId(), second.getSessionId());
+		Assert.assertEquals(first, second);
+		Assert.assertSame(JsLevel.parse("WARN"), JsLevel.parse("WARN"));
+	}
 }
@@ -0,0 +1,69 @@
+package com.logdyn.api;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class LogRecordUtilsTest
+{
+	@Test
+	public void testToJSONEscaping()
+	{
+		final String message = "quote\" backslash\\ newline\n tab\t bell\u0007 separator  unicodeé";
+		final LogRecord logRecord = new LogMessage(JsLevel.ERROR, message, "user", "session", 1234L);
+		final JSONObject json = new JSONObject(LogRecordUtils.toJSON(logRecord));
+		Assert.assertEquals("ERROR", json.getString("level"));
+		Assert.assertEquals(message, json.getString("message"));
+		Assert.assertEquals(1234L, json.getLong("timestamp"));
+	}
+
+	@Test
+	public void testToJSONRoundTrip()
+	{
+		final LogRecord logRecord = new LogMessage(Level.WARNING, "TestMessage", "user", "session", 1234L);
+		final LogRecord parsed = LogRecordUtils.fromJSON(new JSONObject(LogRecordUtils.toJSON(logRecord)), "user", "session");
+		Assert.assertEquals(logRecord, parsed);
+	}
+
+	@Test
+	public void testWriteJSON() throws Exception
+	{
+		final Collection<LogRecord> logRecords = Arrays.<LogRecord>asList(
+				new LogMessage(Level.INFO, "first", "user", "session", 1L),
+				new LogMessage(Level.INFO, "second", "user", "session", 2L));
+		final StringWriter writer = new StringWriter();
+		LogRecordUtils.writeJSON(logRecords, writer);
+		Assert.assertEquals(LogRecordUtils.toJSON(logRecords), writer.toString());
+		final JSONArray json = new JSONArray(writer.toString());
+		Assert.assertEquals(2, json.length());
+		Assert.assertEquals("second", json.getJSONObject(1).getString("message"));
+	}
+
+	@Test
+	public void testCachedJSON()
+	{
+		final MemoryHistoryStore store = new MemoryHistoryStore(new RetentionPolicy(1, Long.MAX_VALUE, Long.MAX_VALUE));
+		final LogMessage retained = new LogMessage(Level.INFO, "retained", "user", "session", 1L);
+		final LogMessage notRetained = new LogMessage(Level.INFO, "not retained", "user", "session", 1L);
+		LogRecordUtils.toJSON(notRetained);
+		Assert.assertNull(notRetained.getCachedJSON());
+
+		store.add(retained);
+		final String json = LogRecordUtils.toJSON(retained);
+		Assert.assertSame(json, retained.getCachedJSON());
+		Assert.assertSame(json, LogRecordUtils.toJSON(retained));
+		Assert.assertEquals(json, LogRecordUtils.appendJSON(retained, new StringBuilder()).toString());
+
+		final long cached = JsonCache.getCachedChars();
+		store.add(new LogMessage(Level.INFO, "later", "user", "session", 2L));
+		Assert.assertNull(retained.getCachedJSON());
+		Assert.assertEquals(cached - json.length(), JsonCache.getCachedChars());
+	}
+}
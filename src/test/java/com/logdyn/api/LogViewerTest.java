@@ -0,0 +1,277 @@
+package com.logdyn.api;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class LogViewerTest
+{
+	private final List<String> frames = new ArrayList<>();
+	private final List<SendHandler> inFlight = new ArrayList<>();
+	private boolean completeSends = true;
+	private LogSession logSession;
+	private LogViewer viewer;
+
+	@Before
+	public void setUp()
+	{
+		this.logSession = new LogSession();
+		for (int i = 0; i < 1200; i++)
+		{
+			final LogRecord logRecord = new LogRecord(Level.INFO, "message " + i);
+			logRecord.setMillis(i * 1000L);
+			this.logSession.logMessage(logRecord, null);
+		}
+		final LoggingEndpointConfig config = new LoggingEndpointConfig(null);
+		config.setCoalescing(100, 0);
+		this.viewer = config.createViewer(this.createSession());
+	}
+
+	@Test
+	public void testReplayPaged()
+	{
+		this.logSession.addViewer(this.viewer);
+		this.logSession.replayMessages(this.viewer, null, ReplayRequest.ALL);
+
+		Assert.assertEquals(3, this.frames.size());
+		Assert.assertEquals(HistoryReplay.MAX_FRAME_RECORDS, new JSONArray(this.frames.get(0)).length());
+		final List<String> messages = this.messages();
+		Assert.assertEquals(1200, messages.size());
+		for (int i = 0; i < messages.size(); i++)
+		{
+			Assert.assertEquals("message " + i, messages.get(i));
+		}
+	}
+
+	@Test
+	public void testReplaySince()
+	{
+		this.logSession.addViewer(this.viewer);
+		this.logSession.replayMessages(this.viewer, null, new ReplayRequest(500_000L, Integer.MAX_VALUE));
+
+		final List<String> messages = this.messages();
+		Assert.assertEquals(700, messages.size());
+		Assert.assertEquals("message 500", messages.get(0));
+		Assert.assertEquals("message 1199", messages.get(699));
+	}
+
+	@Test
+	public void testReplayLast()
+	{
+		this.logSession.addViewer(this.viewer);
+		this.logSession.replayMessages(this.viewer, null, new ReplayRequest(Long.MIN_VALUE, 10));
+
+		final List<String> messages = this.messages();
+		Assert.assertEquals(10, messages.size());
+		Assert.assertEquals("message 1190", messages.get(0));
+		Assert.assertEquals("message 1199", messages.get(9));
+	}
+
+	@Test
+	public void testReplayLastSince()
+	{
+		this.logSession.addViewer(this.viewer);
+		// since is reached before last
+		this.logSession.replayMessages(this.viewer, null, new ReplayRequest(1_195_000L, 10));
+
+		final List<String> messages = this.messages();
+		Assert.assertEquals(5, messages.size());
+		Assert.assertEquals("message 1195", messages.get(0));
+	}
+
+	@Test
+	public void testLiveRecordSentOnce()
+	{
+		this.completeSends = false;
+		this.logSession.addViewer(this.viewer);
+		this.logSession.replayMessages(this.viewer, null, ReplayRequest.ALL);
+		Assert.assertEquals(1, this.inFlight.size());
+
+		// logged once the viewer is added, so it is queued live and is also in the history still to be replayed
+		this.logSession.logMessage(new LogRecord(Level.INFO, "live"), null);
+		while (!this.inFlight.isEmpty())
+		{
+			this.inFlight.remove(0).onResult(new SendResult());
+		}
+
+		final List<String> messages = this.messages();
+		Assert.assertEquals(1201, messages.size());
+		Assert.assertEquals("live", messages.get(1200));
+		Assert.assertEquals(1, Collections.frequency(messages, "live"));
+	}
+
+	@Test
+	public void testQueueingNotBlockedByReplay() throws Exception
+	{
+		final CountDownLatch reading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Iterator<LogRecord> slowHistory = new Iterator<LogRecord>()
+		{
+			private boolean done = false;
+
+			@Override
+			public boolean hasNext()
+			{
+				return !this.done;
+			}
+
+			@Override
+			public LogRecord next()
+			{
+				reading.countDown();
+				try
+				{
+					release.await();
+				}
+				catch (final InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+				this.done = true;
+				return new LogRecord(Level.INFO, "history");
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+		final Thread replaying = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				LogViewerTest.this.viewer.replay(slowHistory);
+			}
+		});
+		replaying.start();
+		Assert.assertTrue(reading.await(5, TimeUnit.SECONDS));
+
+		// a frame of history is being built, which must not hold up a logging thread
+		final Thread logging = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				LogViewerTest.this.viewer.send(LogRecordUtils.toJSON(new LogRecord(Level.INFO, "live")));
+			}
+		});
+		logging.start();
+		logging.join(5_000);
+		Assert.assertFalse(logging.isAlive());
+
+		release.countDown();
+		replaying.join(5_000);
+		Assert.assertEquals(Arrays.asList("history", "live"), this.messages());
+	}
+
+	@Test
+	public void testDisabledFilterReported()
+	{
+		this.viewer.setFilter(ViewerFilter.fromJSON(new JSONObject("{\"regex\":\"(.*a){8}$\"}")));
+		this.logSession.addViewer(this.viewer);
+		final StringBuilder pathological = new StringBuilder();
+		for (int i = 0; i < 64; i++)
+		{
+			pathological.append('a');
+		}
+		pathological.append('!');
+		for (int i = 0; i < ViewerFilter.MAX_CONSECUTIVE_TIMEOUTS; i++)
+		{
+			this.logSession.logMessage(new LogRecord(Level.INFO, pathological.toString()), null);
+		}
+
+		final List<String> messages = this.messages();
+		Assert.assertEquals(1, messages.size());
+		Assert.assertTrue(messages.get(0).startsWith("The regex filter (.*a){8}$ ran out of time"));
+	}
+
+	private List<String> messages()
+	{
+		final List<String> result = new ArrayList<>();
+		for (final String frame : this.frames)
+		{
+			if (frame.startsWith("["))
+			{
+				final JSONArray array = new JSONArray(frame);
+				for (int i = 0; i < array.length(); i++)
+				{
+					result.add(array.getJSONObject(i).getString("message"));
+				}
+			}
+			else
+			{
+				result.add(new JSONObject(frame).getString("message"));
+			}
+		}
+		return result;
+	}
+
+	private Session createSession()
+	{
+		final RemoteEndpoint.Async remote = (RemoteEndpoint.Async) Proxy.newProxyInstance(
+				LogViewerTest.class.getClassLoader(), new Class<?>[] {RemoteEndpoint.Async.class}, new InvocationHandler()
+				{
+					@Override
+					public Object invoke(final Object proxy, final Method method, final Object[] args)
+					{
+						if ("sendText".equals(method.getName()))
+						{
+							LogViewerTest.this.frames.add((String) args[0]);
+							if (LogViewerTest.this.completeSends)
+							{
+								((SendHandler) args[1]).onResult(new SendResult());
+							}
+							else
+							{
+								LogViewerTest.this.inFlight.add((SendHandler) args[1]);
+							}
+						}
+						return null;
+					}
+				});
+		return (Session) Proxy.newProxyInstance(
+				LogViewerTest.class.getClassLoader(), new Class<?>[] {Session.class}, new InvocationHandler()
+				{
+					@Override
+					public Object invoke(final Object proxy, final Method method, final Object[] args)
+					{
+						switch (method.getName())
+						{
+							case "getAsyncRemote":
+								return remote;
+							case "getId":
+								return "viewer";
+							case "isOpen":
+								return Boolean.TRUE;
+							case "hashCode":
+								return System.identityHashCode(proxy);
+							case "equals":
+								return proxy == args[0];
+							default:
+								return null;
+						}
+					}
+				});
+	}
+}
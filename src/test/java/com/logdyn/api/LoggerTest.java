@@ -0,0 +1,100 @@
+package com.logdyn.api;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class LoggerTest
+{
+	private static final int THREADS = 16;
+	private static final int RECORDS_PER_THREAD = 200;
+
+	@After
+	public void tearDown()
+	{
+		Logger.setRetentionPolicy(RetentionPolicy.DEFAULT);
+	}
+
+	@Test
+	public void testConcurrentFirstLogsLoseNothing() throws Exception
+	{
+		Logger.setRetentionPolicy(RetentionPolicy.UNBOUNDED);
+		final ExecutorService executor = Executors.newFixedThreadPool(LoggerTest.THREADS);
+		try
+		{
+			for (int round = 0; round < 200; round++)
+			{
+				final String username = "stress-user-" + round;
+				final CountDownLatch start = new CountDownLatch(1);
+				final List<Future<Integer>> results = new ArrayList<>();
+				for (int i = 0; i < LoggerTest.THREADS; i++)
+				{
+					results.add(executor.submit(new Callable<Integer>()
+					{
+						@Override
+						public Integer call() throws Exception
+						{
+							Logger.setCurrentUsername(username);
+							start.await();
+							int stored = 0;
+							for (int j = 0; j < LoggerTest.RECORDS_PER_THREAD; j++)
+							{
+								if (Logger.log(new LogRecord(Level.INFO, "message " + j)))
+								{
+									stored++;
+								}
+							}
+							Logger.clearThreadLocals();
+							return stored;
+						}
+					}));
+				}
+				start.countDown();
+				int stored = 0;
+				for (final Future<Integer> result : results)
+				{
+					stored += result.get(30, TimeUnit.SECONDS);
+				}
+				Assert.assertEquals(LoggerTest.THREADS * LoggerTest.RECORDS_PER_THREAD, stored);
+				Assert.assertEquals(stored, Logger.getLogSession(username, null).getHistorySize());
+				Logger.clearUser(username);
+			}
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testClearUserInvalidatesCachedSession()
+	{
+		Logger.setCurrentUsername("cleared-user");
+		try
+		{
+			Logger.log(new LogRecord(Level.INFO, "before"));
+			final LogSession before = Logger.getLogSession("cleared-user", null);
+			Logger.clearUser("cleared-user");
+			Logger.log(new LogRecord(Level.INFO, "after"));
+			final LogSession after = Logger.getLogSession("cleared-user", null);
+			Assert.assertNotSame(before, after);
+			Assert.assertEquals(1, after.getHistorySize());
+		}
+		finally
+		{
+			Logger.clearUser("cleared-user");
+			Logger.clearThreadLocals();
+		}
+	}
+}
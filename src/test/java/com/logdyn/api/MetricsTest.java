@@ -0,0 +1,133 @@
+package com.logdyn.api;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.logging.ErrorManager;
+import java.util.logging.Level;
+
+public class MetricsTest
+{
+	@After
+	public void tearDown()
+	{
+		Logger.setMetricsEnabled(false);
+	}
+
+	@Test
+	public void testHistogramAccuracy()
+	{
+		final LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++)
+		{
+			histogram.record(i * 1000L);
+		}
+		final LatencySnapshot snapshot = histogram.snapshot();
+		Assert.assertEquals(1000, snapshot.getCount());
+		Assert.assertEquals(500_500, snapshot.getMeanNanos());
+		Assert.assertEquals(500_000, snapshot.getP50Nanos(), 500_000 * 0.07);
+		Assert.assertEquals(990_000, snapshot.getP99Nanos(), 990_000 * 0.07);
+		Assert.assertEquals(1_000_000, snapshot.getMaxNanos());
+		Assert.assertEquals(0, new LatencyHistogram().snapshot().getP99Nanos());
+		for (final long value : new long[] {0, 15, 16, 17, 1000, 123_456_789, Long.MAX_VALUE})
+		{
+			Assert.assertTrue(LatencyHistogram.highestValue(LatencyHistogram.bucket(value)) >= value);
+		}
+	}
+
+	@Test
+	public void testCounters() throws Exception
+	{
+		final long logged = Logger.getMetrics().getLoggedRecords();
+		Logger.log(new LogMessage(Level.INFO, "not counted"), null, "metrics-user", null);
+		Assert.assertEquals(logged, Logger.getMetrics().getLoggedRecords());
+
+		Logger.setMetricsEnabled(true);
+		Logger.log(new LogMessage(Level.INFO, "counted"), null, "metrics-user", null);
+		final MetricsSnapshot snapshot = Logger.getMetrics();
+		Assert.assertEquals(logged + 1, snapshot.getLoggedRecords());
+		Assert.assertTrue(snapshot.getLogLatency().getCount() >= 1);
+		Assert.assertEquals("root", snapshot.getLogSessions().get(0).getName());
+		boolean found = false;
+		for (final LogSessionMetrics logSession : snapshot.getLogSessions())
+		{
+			if ("user-metrics-user".equals(logSession.getName()))
+			{
+				found = true;
+				Assert.assertEquals(2, logSession.getHistorySize());
+			}
+		}
+		Assert.assertTrue(found);
+
+		final CompositeData bean = (CompositeData) ManagementFactory.getPlatformMBeanServer()
+				.getAttribute(new ObjectName(Metrics.OBJECT_NAME), "Snapshot");
+		Assert.assertEquals(logged + 1, bean.get("loggedRecords"));
+		Assert.assertTrue(((CompositeData[]) bean.get("logSessions")).length >= 2);
+		Logger.clearUser("metrics-user");
+	}
+
+	@Test
+	public void testClusterCounters() throws Exception
+	{
+		Assert.assertEquals(0, Logger.getMetrics().getClusterSentRecords());
+		Logger.joinCluster(new LoopbackClusterTransport());
+		try
+		{
+			Logger.log(new LogMessage(Level.INFO, "clustered"), null, "cluster-metrics-user", null);
+			final long deadline = System.currentTimeMillis() + 5000;
+			while (Logger.getMetrics().getClusterSentRecords() < 1 && System.currentTimeMillis() < deadline)
+			{
+				Thread.sleep(10);
+			}
+			Assert.assertEquals(1, Logger.getMetrics().getClusterSentRecords());
+			final CompositeData bean = (CompositeData) ManagementFactory.getPlatformMBeanServer()
+					.getAttribute(new ObjectName(Metrics.OBJECT_NAME), "Snapshot");
+			Assert.assertEquals(1L, bean.get("clusterSentRecords"));
+			Assert.assertEquals(0L, bean.get("clusterInvalidFrames"));
+		}
+		finally
+		{
+			Logger.leaveCluster();
+			Logger.clearUser("cluster-metrics-user");
+		}
+		Assert.assertEquals(0, Logger.getMetrics().getClusterSentRecords());
+	}
+
+	@Test
+	public void testAsyncRecordsCounted() throws Exception
+	{
+		Logger.setMetricsEnabled(true);
+		final long logged = Logger.getMetrics().getLoggedRecords();
+		final long fannedOut = Logger.getMetrics().getFanOutLatency().getCount();
+		final AsyncDispatcher dispatcher = new AsyncDispatcher(100, 10, 1, LogdynHandler.OverflowPolicy.BLOCK, new ErrorManager());
+		for (int i = 0; i < 5; i++)
+		{
+			dispatcher.submit(new LogMessage(Level.INFO, "async " + i), "async-metrics-user", null);
+		}
+		dispatcher.flush();
+		dispatcher.close();
+		Assert.assertEquals(logged + 5, Logger.getMetrics().getLoggedRecords());
+		// batches are timed through the fan out too
+		Assert.assertTrue(Logger.getMetrics().getFanOutLatency().getCount() > fannedOut);
+		Logger.clearUser("async-metrics-user");
+	}
+
+	@Test(timeout = 10_000)
+	public void testSubmitAfterCloseDropped() throws Exception
+	{
+		for (final LogdynHandler.OverflowPolicy policy : LogdynHandler.OverflowPolicy.values())
+		{
+			final AsyncDispatcher dispatcher = new AsyncDispatcher(1, 10, 1, policy, new ErrorManager());
+			dispatcher.close();
+			// neither left in the queue nor blocked waiting for a dispatcher that has stopped
+			Assert.assertFalse(dispatcher.submit(new LogMessage(Level.INFO, "late 1"), "async-closed-user", null));
+			Assert.assertFalse(dispatcher.submit(new LogMessage(Level.INFO, "late 2"), "async-closed-user", null));
+			Assert.assertEquals(0, dispatcher.getQueueSize());
+			Assert.assertEquals(2, dispatcher.getDroppedCount());
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package com.logdyn.api;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class RepeatCollapserTest
+{
+	@Test
+	public void testRepeatsFolded()
+	{
+		final LogSession logSession = new LogSession(RetentionPolicy.UNBOUNDED);
+		logSession.setCollapseWindow(60_000);
+		final long start = System.currentTimeMillis();
+		for (int i = 0; i < 100; i++)
+		{
+			logSession.logMessage(new LogMessage(Level.SEVERE, "retry failed", "user", "http", start + i));
+		}
+		logSession.logMessage(new LogMessage(Level.INFO, "other", "user", "http", start + 100));
+		Assert.assertEquals(2, logSession.getHistorySize());
+
+		// closing the window logs the repeats
+		logSession.setCollapseWindow(0);
+		final List<LogRecord> history = RepeatCollapserTest.history(logSession);
+		Assert.assertEquals(3, history.size());
+		Assert.assertEquals(start, history.get(0).getMillis());
+		final RepeatedLogMessage repeated = (RepeatedLogMessage) history.get(1);
+		Assert.assertEquals(99, repeated.getCount());
+		Assert.assertEquals(start + 1, repeated.getFirstMillis());
+		Assert.assertEquals(start + 99, repeated.getMillis());
+		Assert.assertEquals("retry failed", repeated.getMessage());
+		Assert.assertEquals("user", repeated.getUsername());
+		Assert.assertTrue(LogRecordUtils.toJSON(repeated).endsWith(",\"count\":99,\"firstTimestamp\":" + (start + 1) + "}"));
+	}
+
+	@Test
+	public void testWindowExpiry()
+	{
+		final LogSession logSession = new LogSession(RetentionPolicy.UNBOUNDED);
+		logSession.setCollapseWindow(1_000);
+		final long start = System.currentTimeMillis();
+		logSession.logMessage(new LogMessage(Level.WARNING, "slow", "user", null, start));
+		logSession.logMessage(new LogMessage(Level.WARNING, "slow", "user", null, start + 10));
+		logSession.logMessage(new LogMessage(Level.WARNING, "slow", "other", null, start + 20));
+		// a repeat outside the window logs the earlier repeats and starts a new window
+		logSession.logMessage(new LogMessage(Level.WARNING, "slow", "user", null, start + 2_000));
+		final List<LogRecord> history = RepeatCollapserTest.history(logSession);
+		Assert.assertEquals(4, history.size());
+		Assert.assertEquals(1, ((RepeatedLogMessage) history.get(1)).getCount());
+		Assert.assertEquals(start + 2_000, history.get(3).getMillis());
+		Assert.assertFalse(history.get(3) instanceof RepeatedLogMessage);
+	}
+
+	@Test
+	public void testRepeatsLoggedAfterWindow() throws InterruptedException
+	{
+		final LogSession logSession = new LogSession(RetentionPolicy.UNBOUNDED);
+		logSession.setCollapseWindow(50);
+		final long start = System.currentTimeMillis();
+		logSession.logMessage(new LogMessage(Level.SEVERE, "down", "user", null, start));
+		logSession.logMessage(new LogMessage(Level.SEVERE, "down", "user", null, start + 1));
+		Assert.assertEquals(1, logSession.getHistorySize());
+		for (int i = 0; i < 100 && logSession.getHistorySize() < 2; i++)
+		{
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(2, logSession.getHistorySize());
+	}
+
+	@Test
+	public void testRepeatsLoggedThroughLogger()
+	{
+		final boolean metricsEnabled = Logger.isMetricsEnabled();
+		Logger.setMetricsEnabled(true);
+		Logger.setCollapseWindow(60_000);
+		try
+		{
+			final long start = System.currentTimeMillis();
+			for (int i = 0; i < 3; i++)
+			{
+				Logger.log(new LogMessage(Level.SEVERE, "retry failed", "repeat-user", null, start + i), null, "repeat-user", null);
+			}
+			final LogSession logSession = Logger.getLogSession("repeat-user", null);
+			Assert.assertEquals(1, logSession.getHistorySize());
+			final long logged = Logger.getMetrics().getLoggedRecords();
+
+			// the repeats are counted as a logged record, and logged to the LogSession the records were logged for
+			Logger.setCollapseWindow(0);
+			final List<LogRecord> history = RepeatCollapserTest.history(logSession);
+			Assert.assertEquals(2, history.size());
+			Assert.assertEquals(2, ((RepeatedLogMessage) history.get(1)).getCount());
+			Assert.assertEquals(logged + 1, Logger.getMetrics().getLoggedRecords());
+		}
+		finally
+		{
+			Logger.setCollapseWindow(0);
+			Logger.setMetricsEnabled(metricsEnabled);
+			Logger.clearUser("repeat-user");
+		}
+	}
+
+	@Test
+	public void testClosedDiscardsRepeats() throws InterruptedException
+	{
+		final LogSession logSession = new LogSession(RetentionPolicy.UNBOUNDED);
+		final AtomicInteger delivered = new AtomicInteger();
+		logSession.setRepeatSink(new RepeatCollapser.Sink()
+		{
+			@Override
+			public void deliver(final RepeatedLogMessage repeats, final String username, final String httpSessionId)
+			{
+				delivered.incrementAndGet();
+			}
+		});
+		logSession.setCollapseWindow(50);
+		final long start = System.currentTimeMillis();
+		logSession.logMessage(new LogMessage(Level.SEVERE, "down", "user", null, start));
+		logSession.logMessage(new LogMessage(Level.SEVERE, "down", "user", null, start + 1));
+		logSession.close();
+		// the flush scheduled for the end of the window finds nothing to log to the closed LogSession
+		Thread.sleep(150);
+		Assert.assertEquals(0, delivered.get());
+	}
+
+	@Test
+	public void testStoresKeepCount()
+	{
+		final RepeatedLogMessage repeated = new RepeatedLogMessage(Level.SEVERE, "retry failed", "user", null, 42, 1000, 5000);
+		final RecordCodec codec = new RecordCodec().write(repeated);
+		final LogMessage decoded = RecordCodec.read(codec.toByteBuffer());
+		Assert.assertEquals(42, ((RepeatedLogMessage) decoded).getCount());
+		Assert.assertEquals(1000, ((RepeatedLogMessage) decoded).getFirstMillis());
+		Assert.assertFalse(RecordCodec.read(new RecordCodec().write(new LogMessage(Level.INFO, "m")).toByteBuffer())
+				instanceof RepeatedLogMessage);
+
+		final ColumnarHistoryStore store = new ColumnarHistoryStore(RetentionPolicy.UNBOUNDED);
+		store.add(repeated);
+		final RepeatedLogMessage stored = (RepeatedLogMessage) store.iterator().next();
+		Assert.assertEquals(42, stored.getCount());
+		Assert.assertEquals(5000, stored.getMillis());
+	}
+
+	private static List<LogRecord> history(final LogSession logSession)
+	{
+		final List<LogRecord> result = new ArrayList<>();
+		final Iterator<LogRecord> iterator = logSession.query(HistoryQuery.ALL);
+		while (iterator.hasNext())
+		{
+			result.add(iterator.next());
+		}
+		return result;
+	}
+}
@@ -0,0 +1,92 @@
+package com.logdyn.api;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.logging.Level;
+
+public class SessionReaperTest
+{
+	@Test
+	public void testIdleSessionsExpire()
+	{
+		final LogSession logSession = Logger.getLogSession("reaper-idle", null);
+		Logger.log(new LogMessage(Level.INFO, "once"), null, "reaper-idle", null);
+		final long expired = Logger.getExpiredSessionCount();
+		final long reclaimed = Logger.getReclaimedBytes();
+
+		Logger.reapSessions(System.currentTimeMillis(), 60_000, 0);
+		Assert.assertSame(logSession, Logger.getLogSession("reaper-idle", null));
+
+		Logger.reapSessions(System.currentTimeMillis() + 120_000, 60_000, 0);
+		Assert.assertNotSame(logSession, Logger.getLogSession("reaper-idle", null));
+		Assert.assertTrue(Logger.getExpiredSessionCount() > expired);
+		Assert.assertTrue(Logger.getReclaimedBytes() > reclaimed);
+		Assert.assertEquals(0, Logger.getLogSession("reaper-idle", null).getHistorySize());
+		Logger.clearUser("reaper-idle");
+	}
+
+	@Test
+	public void testAgedOutHistoryEvicted() throws InterruptedException
+	{
+		final LogSession logSession = Logger.getLogSession("reaper-aged", null);
+		logSession.setRetentionPolicy(new RetentionPolicy(100, Long.MAX_VALUE, 1_000));
+		Logger.log(new LogMessage(Level.INFO, "aging", "reaper-aged", null, System.currentTimeMillis() - 900), null, "reaper-aged", null);
+		Assert.assertEquals(1, logSession.getHistorySize());
+		Thread.sleep(200);
+
+		// nothing is added or read, only the reaper sees the record has aged out
+		Logger.reapSessions(System.currentTimeMillis(), 0, 0);
+		Assert.assertSame(logSession, Logger.getLogSession("reaper-aged", null));
+		Assert.assertEquals(0, logSession.getHistorySize());
+		Logger.clearUser("reaper-aged");
+	}
+
+	@Test
+	public void testLogAfterClose()
+	{
+		final LogSession closing = Logger.getLogSession("reaper-race", null);
+		// as the reaper does, before it removes the LogSession
+		closing.close();
+		try
+		{
+			closing.logMessage(new LogMessage(Level.INFO, "rejected"), null);
+			Assert.fail();
+		}
+		catch (final IllegalStateException e)
+		{
+			Assert.assertTrue(closing.isClosed());
+		}
+
+		Assert.assertTrue(Logger.log(new LogMessage(Level.INFO, "late"), null, "reaper-race", null));
+		final LogSession replacement = Logger.getLogSession("reaper-race", null);
+		Assert.assertNotSame(closing, replacement);
+		Assert.assertEquals(1, replacement.getHistorySize());
+		Logger.clearUser("reaper-race");
+	}
+
+	@Test
+	public void testBudgetRemovesColdestFirst() throws InterruptedException
+	{
+		// remove the LogSessions left by other tests, which would be colder still
+		Logger.reapSessions(Long.MAX_VALUE / 2, 1, 0);
+		Logger.log(new LogMessage(Level.INFO, "cold"), null, "reaper-cold", null);
+		// lastActive is only kept to the second
+		Thread.sleep(1_100);
+		Logger.log(new LogMessage(Level.INFO, "warm"), null, "reaper-warm", null);
+		final LogSession cold = Logger.getLogSession("reaper-cold", null);
+		final LogSession warm = Logger.getLogSession("reaper-warm", null);
+
+		long total = 0;
+		for (final LogSessionMetrics logSession : Logger.getMetrics().getLogSessions())
+		{
+			total += logSession.getHistoryBytes();
+		}
+		// room for everything but the cold session
+		Logger.reapSessions(System.currentTimeMillis(), 0, total - 1);
+		Assert.assertNotSame(cold, Logger.getLogSession("reaper-cold", null));
+		Assert.assertSame(warm, Logger.getLogSession("reaper-warm", null));
+		Logger.clearUser("reaper-cold");
+		Logger.clearUser("reaper-warm");
+	}
+}
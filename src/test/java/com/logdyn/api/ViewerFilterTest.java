@@ -0,0 +1,101 @@
+package com.logdyn.api;
+
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+public class ViewerFilterTest
+{
+	@Test
+	public void testFromJSON()
+	{
+		final ViewerFilter filter = ViewerFilter.fromJSON(new JSONObject("{\"level\":\"WARN\",\"logger\":\"com.example\",\"regex\":\"time(d )?out\"}"));
+		Assert.assertTrue(filter.accepts(ViewerFilterTest.record(JsLevel.ERROR, "com.example.db", "request timed out")));
+		Assert.assertFalse(filter.accepts(ViewerFilterTest.record(Level.INFO, "com.example.db", "request timed out")));
+		Assert.assertFalse(filter.accepts(ViewerFilterTest.record(Level.SEVERE, "com.examples", "request timed out")));
+		Assert.assertFalse(filter.accepts(ViewerFilterTest.record(Level.SEVERE, "com.example", "request failed")));
+		Assert.assertSame(ViewerFilter.NONE, ViewerFilter.fromJSON(new JSONObject("{}")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidRegex()
+	{
+		ViewerFilter.fromJSON(new JSONObject("{\"regex\":\"(\"}"));
+	}
+
+	@Test
+	public void testFromParameters()
+	{
+		final Map<String, List<String>> parameters = new HashMap<>();
+		parameters.put(ViewerFilter.CONTAINS_PARAMETER, Collections.singletonList("disk"));
+		parameters.put(ViewerFilter.LEVEL_PARAMETER, Arrays.asList("not a level"));
+		final ViewerFilter filter = ViewerFilter.fromParameters(parameters);
+		Assert.assertTrue(filter.accepts(ViewerFilterTest.record(Level.FINE, null, "disk full")));
+		Assert.assertFalse(filter.accepts(ViewerFilterTest.record(Level.SEVERE, null, "out of memory")));
+	}
+
+	@Test(timeout = 5000)
+	public void testCatastrophicRegex()
+	{
+		final ViewerFilter filter = ViewerFilter.fromJSON(new JSONObject("{\"regex\":\"(.*a){8}$\"}"));
+		final StringBuilder message = new StringBuilder();
+		for (int i = 0; i < 64; i++)
+		{
+			message.append('a');
+		}
+		final LogRecord pathological = ViewerFilterTest.record(Level.INFO, null, message.append('!').toString());
+		final AtomicInteger disabled = new AtomicInteger();
+		filter.setDisabledListener(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				disabled.incrementAndGet();
+			}
+		});
+		final long start = System.nanoTime();
+		Assert.assertFalse(filter.accepts(pathological));
+		Assert.assertTrue(System.nanoTime() - start < 1_000_000_000L);
+		// an overrun is forgiven by the next match that completes in time
+		Assert.assertFalse(filter.accepts(ViewerFilterTest.record(Level.INFO, null, "b")));
+		for (int i = 1; i < ViewerFilter.MAX_CONSECUTIVE_TIMEOUTS; i++)
+		{
+			Assert.assertFalse(filter.accepts(pathological));
+		}
+		Assert.assertFalse(filter.isRegexDisabled());
+
+		Assert.assertFalse(filter.accepts(pathological));
+		Assert.assertTrue(filter.isRegexDisabled());
+		Assert.assertEquals(1, disabled.get());
+		// once disabled the pattern matches nothing, and the viewer is only told once
+		Assert.assertFalse(filter.accepts(pathological));
+		Assert.assertEquals(1, disabled.get());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLongRegex()
+	{
+		final StringBuilder regex = new StringBuilder();
+		for (int i = 0; i <= ViewerFilter.MAX_REGEX_LENGTH; i++)
+		{
+			regex.append('a');
+		}
+		ViewerFilter.fromJSON(new JSONObject().put(ViewerFilter.REGEX_PARAMETER, regex.toString()));
+	}
+
+	private static LogRecord record(final Level level, final String loggerName, final String message)
+	{
+		final LogRecord result = new LogRecord(level, message);
+		result.setLoggerName(loggerName);
+		return result;
+	}
+}